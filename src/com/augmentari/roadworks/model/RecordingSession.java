@@ -28,6 +28,12 @@ public class RecordingSession {
     private long eventsLogged;
     private String dataFileFullPath;
     private State state;
+    private long uploadOffset;
+    private long fileSize;
+    private String checksum;
+    private SessionStatistics statistics = new SessionStatistics();
+    private String rawCapturePath;
+    private String rawSegments;
 
     public long getId() {
         return id;
@@ -76,4 +82,70 @@ public class RecordingSession {
     public void setState(State state) {
         this.state = state;
     }
+
+    /**
+     * @return number of bytes of the data file already acknowledged by the server.
+     */
+    public long getUploadOffset() {
+        return uploadOffset;
+    }
+
+    public void setUploadOffset(long uploadOffset) {
+        this.uploadOffset = uploadOffset;
+    }
+
+    /**
+     * @return size of the finished data file, in bytes; 0 for sessions recorded before it was stored.
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public void setFileSize(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * @return CRC-32 of the finished data file as 8 hex digits; null for sessions recorded before it was stored.
+     */
+    public String getChecksum() {
+        return checksum;
+    }
+
+    public void setChecksum(String checksum) {
+        this.checksum = checksum;
+    }
+
+    /**
+     * @return summary of the session, stored when it was finished; all zeros for sessions recorded before it was.
+     */
+    public SessionStatistics getStatistics() {
+        return statistics;
+    }
+
+    public void setStatistics(SessionStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * @return directory of the raw accelerometer capture of the session; null if there is none.
+     */
+    public String getRawCapturePath() {
+        return rawCapturePath;
+    }
+
+    public void setRawCapturePath(String rawCapturePath) {
+        this.rawCapturePath = rawCapturePath;
+    }
+
+    /**
+     * @return segments of the raw capture, a line per segment as in its index file; null if there is no capture.
+     */
+    public String getRawSegments() {
+        return rawSegments;
+    }
+
+    public void setRawSegments(String rawSegments) {
+        this.rawSegments = rawSegments;
+    }
 }
@@ -0,0 +1,168 @@
+package com.augmentari.roadworks.model;
+
+/**
+ * Summary of a recording session, kept up to date event by event while logging, so that it is stored along with the
+ * session and never has to be computed from the data file: number of events, sum and maximum of their severities, a
+ * histogram of the severities and the distance driven.
+ * <p/>
+ * Severity buckets grow by powers of two: bucket 0 takes everything below {@link #FIRST_BUCKET_LIMIT}, bucket i the
+ * severities from FIRST_BUCKET_LIMIT * 2^(i-1) to twice that, and the last one everything above.
+ * <p/>
+ * Not thread safe: updated on the sensor processing thread only. The event count may be read on any thread while
+ * logging, to be shown.
+ */
+public class SessionStatistics {
+
+    public static final int BUCKETS = 6;
+    public static final double FIRST_BUCKET_LIMIT = 4d;
+
+    // positions closer than this to the last one counted are taken for GPS jitter, not driving
+    public static final double MIN_DISTANCE_STEP_METERS = 10d;
+
+    private static final double EARTH_RADIUS_METERS = 6371000d;
+
+    private volatile long count = 0;
+    private double severitySum = 0d;
+    private double severityMax = 0d;
+    private final int[] histogram = new int[BUCKETS];
+
+    private double distanceMeters = 0d;
+    private boolean hasPosition = false;
+    private double lastLatitude;
+    private double lastLongitude;
+
+    public void addEvent(double severity) {
+        count++;
+        severitySum += severity;
+        if (severity > severityMax) {
+            severityMax = severity;
+        }
+        histogram[bucket(severity)]++;
+    }
+
+    /**
+     * Account for the vehicle being at the given position now.
+     */
+    public void addPosition(double latitude, double longitude) {
+        addPosition(latitude, longitude, true);
+    }
+
+    /**
+     * Account for the vehicle being at the given position now, if it is a real one: positions without a fix (the GPS
+     * bypassed or not there yet, so 0,0) are ignored, and the distance is counted from the first fix on.
+     */
+    public void addPosition(double latitude, double longitude, boolean hasFix) {
+        if (!hasFix) {
+            return;
+        }
+        if (!hasPosition) {
+            lastLatitude = latitude;
+            lastLongitude = longitude;
+            hasPosition = true;
+            return;
+        }
+        double step = haversineMeters(lastLatitude, lastLongitude, latitude, longitude);
+        if (step >= MIN_DISTANCE_STEP_METERS) {
+            distanceMeters += step;
+            lastLatitude = latitude;
+            lastLongitude = longitude;
+        }
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getSeveritySum() {
+        return severitySum;
+    }
+
+    public double getSeverityMax() {
+        return severityMax;
+    }
+
+    public double getMeanSeverity() {
+        return count == 0 ? 0d : severitySum / count;
+    }
+
+    /**
+     * @return number of events in every bucket; a copy.
+     */
+    public int[] getHistogram() {
+        return histogram.clone();
+    }
+
+    public double getDistanceMeters() {
+        return distanceMeters;
+    }
+
+    /**
+     * @return events per kilometer driven, 0 if not moved at all.
+     */
+    public double getEventsPerKm() {
+        return distanceMeters < MIN_DISTANCE_STEP_METERS ? 0d : count * 1000d / distanceMeters;
+    }
+
+    /**
+     * @return mean speed over the given duration, in meters per second.
+     */
+    public double getMeanSpeed(long durationMillis) {
+        return durationMillis <= 0 ? 0d : distanceMeters * 1000d / durationMillis;
+    }
+
+    /**
+     * @return histogram as comma separated counts, the way it is stored.
+     */
+    public String encodeHistogram() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < BUCKETS; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(histogram[i]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Statistics as stored with a finished session.
+     *
+     * @param histogram as produced by {@link #encodeHistogram()}; null or empty for no events.
+     */
+    public static SessionStatistics restore(long count, double severitySum, double severityMax, String histogram,
+                                            double distanceMeters) {
+        SessionStatistics statistics = new SessionStatistics();
+        statistics.count = count;
+        statistics.severitySum = severitySum;
+        statistics.severityMax = severityMax;
+        statistics.distanceMeters = distanceMeters;
+        if (histogram != null && histogram.length() > 0) {
+            String[] counts = histogram.split(",");
+            for (int i = 0; i < Math.min(counts.length, BUCKETS); i++) {
+                statistics.histogram[i] = Integer.parseInt(counts[i]);
+            }
+        }
+        return statistics;
+    }
+
+    static int bucket(double severity) {
+        int bucket = 0;
+        double limit = FIRST_BUCKET_LIMIT;
+        while (severity >= limit && bucket < BUCKETS - 1) {
+            bucket++;
+            limit *= 2;
+        }
+        return bucket;
+    }
+
+    static double haversineMeters(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double dLatitude = Math.toRadians(latitude2 - latitude1);
+        double dLongitude = Math.toRadians(longitude2 - longitude1);
+        double sinLatitude = Math.sin(dLatitude / 2);
+        double sinLongitude = Math.sin(dLongitude / 2);
+        double a = sinLatitude * sinLatitude
+                + Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2))
+                * sinLongitude * sinLongitude;
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1d, Math.sqrt(a)));
+    }
+}
@@ -10,6 +10,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
+import android.preference.PreferenceManager;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -20,6 +21,7 @@ import com.augmentari.roadworks.sensorlogger.R;
 import com.augmentari.roadworks.sensorlogger.component.AccelerometerGraphView;
 import com.augmentari.roadworks.sensorlogger.detector.FileLoggingDetector;
 import com.augmentari.roadworks.sensorlogger.detector.NotificatingDetector;
+import com.augmentari.roadworks.sensorlogger.detector.RawCaptureDetector;
 import com.augmentari.roadworks.sensorlogger.service.DataUploaderService;
 import com.augmentari.roadworks.sensorlogger.service.SensorLoggerService;
 import com.augmentari.roadworks.sensorlogger.util.Constants;
@@ -51,6 +53,7 @@ public class MainActivity extends Activity {
 
     private AccelerometerGraphView accelerometerGraph;
     private final FileLoggingDetector fileLoggingDetector = new FileLoggingDetector(this);
+    private final RawCaptureDetector rawCaptureDetector = new RawCaptureDetector(this, fileLoggingDetector);
 
     private SensorLoggerService.SessionLoggerServiceBinder binder = null;
 
@@ -73,10 +76,19 @@ public class MainActivity extends Activity {
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
             binder = (SensorLoggerService.SessionLoggerServiceBinder) service;
+            fileLoggingDetector.setSensorClock(binder.getSensorClock());
 
             binder.addAccelChangedListener(accelerometerGraph);
             binder.addAccelChangedListener(fileLoggingDetector);
             binder.addAccelChangedListener(new NotificatingDetector(MainActivity.this));
+            if (PreferenceManager.getDefaultSharedPreferences(MainActivity.this)
+                    .getBoolean(RawCaptureDetector.PREF_RAW_CAPTURE, false)) {
+                binder.addAccelChangedListener(rawCaptureDetector);
+                binder.addRawSampleListener(rawCaptureDetector);
+            } else {
+                binder.removeAccelChangedListener(rawCaptureDetector);
+                binder.removeRawSampleListener(rawCaptureDetector);
+            }
             if (binder.isStarted()) {
                 setServiceState(ServiceState.STARTED);
             } else {
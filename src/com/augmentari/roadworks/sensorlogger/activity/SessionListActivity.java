@@ -4,12 +4,17 @@ import android.app.ActionBar;
 import android.app.ListActivity;
 import android.app.LoaderManager;
 import android.app.ProgressDialog;
+import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
 import android.content.Loader;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.graphics.Color;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.text.format.DateFormat;
 import android.view.*;
 import android.widget.*;
@@ -17,13 +22,25 @@ import com.augmentari.roadworks.model.RecordingSession;
 import com.augmentari.roadworks.sensorlogger.R;
 import com.augmentari.roadworks.sensorlogger.dao.RecordingSessionDAO;
 import com.augmentari.roadworks.sensorlogger.dao.SQLiteHelperImpl;
+import com.augmentari.roadworks.sensorlogger.dao.SessionListPages;
 import com.augmentari.roadworks.sensorlogger.dao.SimpleCursorLoader;
 
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 /**
  * Activity showing a list of the sessions with their info (status, kilometers logged etc).
  */
 public class SessionListActivity extends ListActivity implements LoaderManager.LoaderCallbacks<Cursor>, AdapterView.OnItemLongClickListener {
 
+    private static final DecimalFormat DISTANCE_FORMAT = new DecimalFormat("0.0");
+
+    // rows left below the visible ones when the next page gets requested
+    private static final int PREFETCH_ROWS = 10;
+
     // This is the Adapter being used to display the list's data
     SimpleCursorAdapter mAdapter;
 
@@ -57,6 +74,21 @@ public class SessionListActivity extends ListActivity implements LoaderManager.L
         }
 
         getListView().setOnItemLongClickListener(this);
+        getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (totalItemCount > 0 && firstVisibleItem + visibleItemCount >= totalItemCount - PREFETCH_ROWS) {
+                    Loader<Cursor> loader = getLoaderManager().getLoader(0);
+                    if (loader != null) {
+                        ((SessionListLoader) loader).loadNextPage(totalItemCount);
+                    }
+                }
+            }
+        });
 
         // Create a progress bar to display while the list loads
         TextView textView = new TextView(this);
@@ -93,7 +125,11 @@ public class SessionListActivity extends ListActivity implements LoaderManager.L
                         .append("-")
                         .append(cursor.getLong(cursor.getColumnIndex(SQLiteHelperImpl.FIELD_EVENTS_LOGGED_COUNT)))
                         .append("-")
-                        .append(stateString);
+                        .append(stateString)
+                        .append("-")
+                        .append(DISTANCE_FORMAT.format(
+                                cursor.getDouble(cursor.getColumnIndex(SQLiteHelperImpl.FIELD_DISTANCE)) / 1000))
+                        .append(" km");
 
                 ((TextView) view).setText(bldr.toString());
 
@@ -158,6 +194,11 @@ public class SessionListActivity extends ListActivity implements LoaderManager.L
     }
 }
 
+/**
+ * Loads the session list a page at a time as it is scrolled (see {@link SessionListPages}), and merges in the sessions
+ * changed meanwhile, as announced on {@link RecordingSessionDAO#SESSIONS_URI}. Every result is an in-memory cursor over
+ * the rows loaded so far.
+ */
 class SessionListLoader extends SimpleCursorLoader {
 
     //TODO: how do I check if there is really a mem leak?
@@ -168,16 +209,93 @@ class SessionListLoader extends SimpleCursorLoader {
 
     private final Context activityContext;
 
+    // only touched by the loads, which never run at the same time
+    private final SessionListPages pages = new SessionListPages();
+    private volatile boolean complete = false;
+
+    // what the next load has to do, requested from the UI thread
+    private final Object requestLock = new Object();
+    private boolean nextPageRequested = false;
+    private boolean reloadRequested = false;
+    private final Set<Long> changedIds = new HashSet<Long>();
+
+    // UI thread only
+    private int nextPageRequestedAt = -1;
+    private boolean observing = false;
+
+    private final ContentObserver observer = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            // the only one called before API 16
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            sessionsChanged(uri);
+        }
+    };
+
     public SessionListLoader(Context context) {
         super(context);
         this.activityContext = context;
         recordingSessionDAO = new RecordingSessionDAO(context);
     }
 
+    /**
+     * Load the next page, unless it has already been requested for this length of the list or there is none.
+     *
+     * @param loadedCount number of rows in the list now.
+     */
+    public void loadNextPage(int loadedCount) {
+        if (complete || loadedCount == nextPageRequestedAt) {
+            return;
+        }
+        nextPageRequestedAt = loadedCount;
+        synchronized (requestLock) {
+            nextPageRequested = true;
+        }
+        onContentChanged();
+    }
+
     @Override
     public Cursor loadInBackground() {
+        boolean nextPage;
+        boolean reload;
+        long[] changed;
+        synchronized (requestLock) {
+            nextPage = nextPageRequested;
+            reload = reloadRequested;
+            changed = new long[changedIds.size()];
+            int i = 0;
+            for (Long id : changedIds) {
+                changed[i++] = id;
+            }
+            nextPageRequested = false;
+            reloadRequested = false;
+            changedIds.clear();
+        }
+
         recordingSessionDAO.open();
-        Cursor cursor = recordingSessionDAO.getAllSessionsSortById();
+        if (pages.isEmpty()) {
+            pages.addPage(readRows(recordingSessionDAO.getSessionListPage(
+                    Long.MAX_VALUE, SessionListPages.PAGE_SIZE)), SessionListPages.PAGE_SIZE);
+        } else if (reload) {
+            // one query for all of the loaded range, not page by page
+            pages.replace(readRows(recordingSessionDAO.getSessionListFrom(pages.getOldestId())));
+        } else if (changed.length > 0) {
+            mergeChanged(changed);
+        }
+        if (nextPage && !pages.isComplete()) {
+            pages.addPage(readRows(recordingSessionDAO.getSessionListPage(
+                    pages.getNextPageBeforeId(), SessionListPages.PAGE_SIZE)), SessionListPages.PAGE_SIZE);
+        }
+        complete = pages.isComplete();
+
+        MatrixCursor cursor = new MatrixCursor(RecordingSessionDAO.LIST_COLUMNS, pages.size());
+        for (int i = 0; i < pages.size(); i++) {
+            cursor.addRow(pages.get(i));
+        }
         return cursor;
     }
 
@@ -195,6 +313,11 @@ class SessionListLoader extends SimpleCursorLoader {
 
     @Override
     protected void onStartLoading() {
+        if (!observing) {
+            activityContext.getContentResolver().registerContentObserver(
+                    RecordingSessionDAO.SESSIONS_URI, true, observer);
+            observing = true;
+        }
         dialog = ProgressDialog.show(
                 activityContext,
                 activityContext.getString(R.string.loading_title),
@@ -204,6 +327,67 @@ class SessionListLoader extends SimpleCursorLoader {
         super.onStartLoading();
     }
 
+    @Override
+    protected void onReset() {
+        super.onReset();
+        if (observing) {
+            activityContext.getContentResolver().unregisterContentObserver(observer);
+            observing = false;
+        }
+    }
+
+    private void sessionsChanged(Uri uri) {
+        synchronized (requestLock) {
+            // a single session has the id appended; anything else may have changed any of them
+            if (uri != null && uri.getPathSegments().size() == 2) {
+                changedIds.add(ContentUris.parseId(uri));
+            } else {
+                reloadRequested = true;
+            }
+        }
+        onContentChanged();
+    }
 
-}
+    private void mergeChanged(long[] changed) {
+        long newestId = pages.getNewestId();
+        List<Long> loaded = new ArrayList<Long>();
+        boolean added = false;
+        for (long id : changed) {
+            if (id > newestId) {
+                added = true;
+            } else if (pages.isLoaded(id)) {
+                loaded.add(id);
+            }
+            // older than loaded: will come with its page
+        }
+
+        if (added) {
+            pages.merge(readRows(recordingSessionDAO.getSessionListFrom(newestId + 1)));
+        }
+        if (!loaded.isEmpty()) {
+            long[] ids = new long[loaded.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = loaded.get(i);
+            }
+            List<Object[]> rows = readRows(recordingSessionDAO.getSessionListRows(ids));
+            for (long id : ids) {
+                pages.remove(id);
+            }
+            pages.merge(rows);
+        }
+    }
 
+    private static List<Object[]> readRows(Cursor cursor) {
+        List<Object[]> rows = new ArrayList<Object[]>(cursor.getCount());
+        try {
+            while (cursor.moveToNext()) {
+                // in the order of RecordingSessionDAO.LIST_COLUMNS
+                rows.add(new Object[]{cursor.getLong(0), cursor.getLong(1), cursor.getLong(2), cursor.getString(3),
+                        cursor.getDouble(4)});
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+}
@@ -7,41 +7,79 @@ import android.graphics.Paint;
 import android.graphics.Point;
 import android.preference.PreferenceManager;
 import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
+import android.view.View;
 import android.view.WindowManager;
 import android.widget.Toast;
 import com.augmentari.roadworks.sensorlogger.service.SensorLoggerService;
 import com.augmentari.roadworks.sensorlogger.util.Log;
 
-import java.util.Arrays;
-
 /**
  * View showing line chart/graph view of the accelerometer readings.
  */
 public class AccelerometerGraphView extends SurfaceView implements SurfaceHolder.Callback, SensorLoggerService.AccelerometerChangeListener {
 
     public static final float GRAVITY_FT_SEC = 9.8f;
+    public static final String PREF_GRAPH_FRAME_RATE = "pref_graph_frame_rate";
+    public static final int DEFAULT_FRAME_RATE = 15;
+    // about 5 minutes at the fastest sensor rate
+    public static final int HISTORY_CAPACITY = 64 * 1024;
+
     // max possible size of the circularbuffer = sizeof(float) * 3 * max(deviceX, deviceY). So, should not be more than
     // 20Kb
     final Object changedDataLock = new Object();
+    // both guarded by changedDataLock: the drawing thread sleeps while there is nothing new or nobody to see it
+    private boolean dataChanged = false;
+    private boolean visible = true;
+    private final FramePacer pacer = new FramePacer(DEFAULT_FRAME_RATE);
+    private final GraphLines lines = new GraphLines();
+
+    // history mode: minutes of samples, zoomed out by pinching; one sample per column is the live graph
+    private final MinMaxPyramid longHistory = new MinMaxPyramid(HISTORY_CAPACITY);
+    private volatile float samplesPerColumn = 1;
+    private float[] envelopeMins = new float[0];
+    private float[] envelopeMaxs = new float[0];
+    private final ScaleGestureDetector scaleDetector;
     private DrawingThread thread;
     private Paint paintNormal, paintOverThreshold, detectionFillPaint, whitePaint;
     private int width;
     private float ftSecToPx;
     private int height;
     private float threshold = 2f;
-    private CircularBuffer buffer = null;
+    // the view keeps its own buffer of filtered values, filled in from the sample batches on the processing thread
+    private final CircularBuffer buffer;
+    // values copied out of the buffer for drawing, newest first; one per pixel column
+    private float[] snapshotValues = new float[0];
 
     public AccelerometerGraphView(Context context, AttributeSet attrs) {
         super(context, attrs);
         getHolder().addCallback(this);
+        scaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                // spreading the fingers zooms in, i.e. fewer samples per column
+                int maxSamplesPerColumn = Math.max(1, HISTORY_CAPACITY / Math.max(1, width));
+                samplesPerColumn = Math.max(1, Math.min(maxSamplesPerColumn,
+                        samplesPerColumn / detector.getScaleFactor()));
+                requestFrame();
+                return true;
+            }
+        });
 
-        paintNormal = new Paint(Paint.ANTI_ALIAS_FLAG);
+        WindowManager manager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        Point p = new Point();
+        manager.getDefaultDisplay().getSize(p);
+        buffer = new CircularBuffer(Math.max(p.x, p.y));
+
+        // no anti-aliasing: the segments are a pixel wide and there are hundreds of them
+        paintNormal = new Paint();
         paintNormal.setColor(Color.GREEN);
         paintNormal.setStyle(Paint.Style.STROKE);
 
-        paintOverThreshold = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paintOverThreshold = new Paint();
         paintOverThreshold.setColor(Color.RED);
         paintOverThreshold.setStrokeWidth(2f);
         paintOverThreshold.setStyle(Paint.Style.STROKE);
@@ -62,32 +100,76 @@ public class AccelerometerGraphView extends SurfaceView implements SurfaceHolder
         canvas.drawRect(0, 0, width - 1, height - 1, whitePaint);
         canvas.drawLine(0, height - threshold * ftSecToPx, width, height - threshold * ftSecToPx, whitePaint);
 
-        if (buffer == null) {
-            // nothing to draw, quiting.
-            return;
+        float zoom = samplesPerColumn;
+        if (zoom <= 1) {
+            // one pass over the buffer, then one drawLines() per paint instead of one drawLine() per pixel column
+            float[] values = snapshotValues;
+            int count = buffer.snapshot(values, values.length);
+            lines.build(values, count, width, height, ftSecToPx, threshold);
+        } else {
+            // the envelope costs the same per column however long the window
+            int count = longHistory.envelope((int) (zoom * width), width, envelopeMins, envelopeMaxs);
+            lines.buildEnvelope(envelopeMins, envelopeMaxs, count, width, height, ftSecToPx, threshold);
+        }
+        if (lines.getFillCount() > 0) {
+            canvas.drawLines(lines.getFill(), 0, lines.getFillCount(), detectionFillPaint);
+        }
+        if (lines.getNormalCount() > 0) {
+            canvas.drawLines(lines.getNormal(), 0, lines.getNormalCount(), paintNormal);
         }
+        if (lines.getOverThresholdCount() > 0) {
+            canvas.drawLines(lines.getOverThreshold(), 0, lines.getOverThresholdCount(), paintOverThreshold);
+        }
+    }
 
-        float lastX1 = width;
-        float lastY1 = height - (buffer.getValue(0) * ftSecToPx);
+    /**
+     * @return the pacing of the graph frames, with the frame time and dropped frame counters.
+     */
+    public FramePacer getFramePacer() {
+        return pacer;
+    }
 
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        scaleDetector.onTouchEvent(event);
+        return true;
+    }
 
-        for (int i = 1; i < buffer.getActualSize(); i++) {
-            float toX = width - i;
+    /**
+     * @param samplesPerColumn zoom of the graph: 1 for the live graph, more to show the history.
+     */
+    public void setSamplesPerColumn(float samplesPerColumn) {
+        this.samplesPerColumn = Math.max(1, samplesPerColumn);
+        requestFrame();
+    }
 
-            float value = buffer.getValue(i);
-            float toY = height - (value * ftSecToPx);
+    public float getSamplesPerColumn() {
+        return samplesPerColumn;
+    }
 
-            Paint paint;
-            if (value < threshold) {
-                paint = paintNormal;
-            } else {
-                paint = paintOverThreshold;
-                canvas.drawRect(lastX1, lastY1, toX, height - threshold * ftSecToPx - 1, detectionFillPaint);
-            }
-            canvas.drawLine(lastX1, lastY1, toX, toY, paint);
+    private void requestFrame() {
+        synchronized (changedDataLock) {
+            dataChanged = true;
+            changedDataLock.notifyAll();
+        }
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        updateVisibility();
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        updateVisibility();
+    }
 
-            lastX1 = toX;
-            lastY1 = toY;
+    private void updateVisibility() {
+        synchronized (changedDataLock) {
+            visible = getWindowVisibility() == VISIBLE && isShown();
+            changedDataLock.notifyAll();
         }
     }
 
@@ -108,15 +190,22 @@ public class AccelerometerGraphView extends SurfaceView implements SurfaceHolder
         } catch (NumberFormatException ex) {
             Toast.makeText(getContext(), "Wrong setting for detection threshold. Defaulting to 2.", Toast.LENGTH_LONG).show();
         }
-
-        if (buffer == null) {
-            WindowManager manager = (WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE);
-            Point p = new Point();
-            manager.getDefaultDisplay().getSize(p);
-            buffer = new CircularBuffer(Math.max(p.x, p.y));
+        try {
+            pacer.setTargetFrameRate(Integer.parseInt(PreferenceManager
+                    .getDefaultSharedPreferences(getContext())
+                    .getString(PREF_GRAPH_FRAME_RATE, Integer.toString(DEFAULT_FRAME_RATE))));
+        } catch (IllegalArgumentException ex) {
+            Log.w("Wrong setting for graph frame rate, defaulting to " + DEFAULT_FRAME_RATE);
+            pacer.setTargetFrameRate(DEFAULT_FRAME_RATE);
         }
+        // wake the drawing thread up, in case it has been paused
+        updateVisibility();
+
         this.width = width;
         this.height = height;
+        snapshotValues = new float[width + 1];
+        envelopeMins = new float[width + 1];
+        envelopeMaxs = new float[width + 1];
 
         ftSecToPx = height / GRAVITY_FT_SEC;
     }
@@ -132,6 +221,8 @@ public class AccelerometerGraphView extends SurfaceView implements SurfaceHolder
                 }
                 thread.join();
                 retry = false;
+                Log.i("Graph frames drawn: " + pacer.getFrameCount() + ", dropped: " + pacer.getDroppedFrameCount()
+                        + ", average " + pacer.getAverageFrameNanos() / 1000 + " us");
             } catch (InterruptedException e) {
                 Log.i("Interrupted stopping drawing thread of the surface");
             }
@@ -139,13 +230,12 @@ public class AccelerometerGraphView extends SurfaceView implements SurfaceHolder
     }
 
     @Override
-    public void onAccelerometerChanged(float value, CircularBuffer buffer, double latitude, double longitude, double speed) {
-        synchronized (changedDataLock) {
-            changedDataLock.notifyAll();
-        }
-        if (this.buffer != buffer) {
-            this.buffer = buffer;
-        }
+    public void onAccelerometerBatch(float[] values, long[] timestamps, int count, SampleBuffer history) {
+        buffer.appendAll(values, 0, count);
+        longHistory.appendAll(values, 0, count);
+
+        // one redraw request per batch; the drawing thread paces them down to the frame rate
+        requestFrame();
     }
 
     @Override
@@ -161,7 +251,7 @@ public class AccelerometerGraphView extends SurfaceView implements SurfaceHolder
     class DrawingThread extends Thread {
         private final SurfaceHolder holder;
         private final AccelerometerGraphView graphView;
-        private boolean running;
+        private volatile boolean running;
 
         public DrawingThread(SurfaceHolder holder, AccelerometerGraphView context) {
             super("Accel drawingn thread");
@@ -176,29 +266,40 @@ public class AccelerometerGraphView extends SurfaceView implements SurfaceHolder
         @Override
         public void run() {
             while (running) {
-                Canvas c = null;
                 try {
                     synchronized (changedDataLock) {
-                        changedDataLock.wait();
+                        while (running && (!dataChanged || !visible
+                                || pacer.getDelayNanos(System.nanoTime()) == Long.MAX_VALUE)) {
+                            changedDataLock.wait();
+                        }
                     }
-                    c = holder.lockCanvas(null);
-                    if (c != null) {
+                    long delay = pacer.getDelayNanos(System.nanoTime());
+                    if (delay > 0) {
+                        Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+                    }
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (!running) {
+                    break;
+                }
+                synchronized (changedDataLock) {
+                    // whatever comes in while drawing is for the next frame
+                    dataChanged = false;
+                }
+
+                long start = System.nanoTime();
+                Canvas c = holder.lockCanvas(null);
+                if (c != null) {
+                    try {
                         synchronized (holder) {
                             graphView.doDrawOnSeparateThread(c);
                         }
-                    }
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                } finally {
-                    if (c != null) {
+                    } finally {
                         holder.unlockCanvasAndPost(c);
                     }
                 }
-                try {
-                    Thread.sleep(500);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+                pacer.onFrameDrawn(start, System.nanoTime());
             }
         }
     }
@@ -1,19 +1,30 @@
 package com.augmentari.roadworks.sensorlogger.component;
 
-import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * //TODO replace me with something normal
+ * Circular buffer of the float values, keeping the last 'size' appended values. Newer values overwrite the oldest ones
+ * when there's no more capacity.
+ * <p/>
+ * The buffer is lock-free, for a single writer and any number of readers. The writer announces the range of positions
+ * it is going to overwrite (claimed sequence) before touching the data and publishes them afterwards (published
+ * sequence). A reader copies the values it wants and then checks the claimed sequence to find out which of the copied
+ * values might have been overwritten meanwhile -- these are just cut off, so readers never block nor retry.
  */
 public class CircularBuffer {
 
     private static final int MAX_SIZE = 1024 * 10;
 
-    int endIndex = -1;
+    private final int size;
 
-    private int size;
-    public boolean isOverflown = false;
-    private float[] dataArray;
+    // float values stored as raw int bits; atomic array gives us volatile semantics for the elements
+    private final AtomicIntegerArray dataArray;
+
+    // total number of values the writer has started to write
+    private final AtomicLong claimedSequence = new AtomicLong(0);
+    // total number of values written completely; values at positions [published - size, published) are in the buffer
+    private final AtomicLong publishedSequence = new AtomicLong(0);
 
     /**
      * Default constructor, making a 'big enough' buffer to have enough data for the whole screen.
@@ -28,34 +39,92 @@ public class CircularBuffer {
      * @param size size of the buffer. It will overwrite the oldest entries when there's no more capacity for them.
      */
     CircularBuffer(int size) {
-        dataArray = new float[size];
-        Arrays.fill(dataArray, 0);
-
+        if (size <= 0) {
+            throw new IllegalArgumentException("Buffer size should be positive, got " + size);
+        }
         this.size = size;
+        dataArray = new AtomicIntegerArray(size);
+    }
+
+    /**
+     * Append a single value. Writer thread only.
+     */
+    public void append(float value) {
+        long published = publishedSequence.get();
+        claimedSequence.set(published + 1);
+        dataArray.set((int) (published % size), Float.floatToRawIntBits(value));
+        publishedSequence.set(published + 1);
     }
 
-    public synchronized void append(float value) {
-        if (endIndex == size - 1) {
-            isOverflown = true;
+    /**
+     * Append length values from the array, starting at offset, in one go. Writer thread only.
+     */
+    public void appendAll(float[] values, int offset, int length) {
+        if (length <= 0) {
+            return;
+        }
+        long published = publishedSequence.get();
+        claimedSequence.set(published + length);
+
+        // only the last 'size' values would survive anyway
+        int skipped = Math.max(0, length - size);
+        for (int i = skipped; i < length; i++) {
+            dataArray.set((int) ((published + i) % size), Float.floatToRawIntBits(values[offset + i]));
         }
-        endIndex = ++endIndex % size;
-        dataArray[endIndex] = value;
+        publishedSequence.set(published + length);
     }
 
+    /**
+     * @return number of values currently in the buffer.
+     */
     public int getActualSize() {
-        if (isOverflown) {
-            return size;
-        }
-        return endIndex + 1;
+        return (int) Math.min(publishedSequence.get(), size);
     }
 
-    public synchronized float getValue(int i) {
-        int index = endIndex - i;
+    public int getSize() {
+        return size;
+    }
 
-        while (index < 0) {
+    /**
+     * Get a single value.
+     *
+     * @param i index of the value, 0 being the newest one.
+     */
+    public float getValue(int i) {
+        long position = publishedSequence.get() - 1 - i;
+
+        int index = (int) (position % size);
+        if (index < 0) {
             index += size;
         }
 
-        return dataArray[index];
+        return Float.intBitsToFloat(dataArray.get(index));
+    }
+
+    /**
+     * Copy a consistent window of the newest values to the destination array, newest value first (same order as
+     * {@link #getValue(int)}).
+     *
+     * @param destination array to copy values to.
+     * @param maxCount    max number of values to copy; also limited by the destination length and the actual size.
+     * @return number of values copied. Might be less than asked for if the writer overwrote the oldest values while
+     * they were being copied.
+     */
+    public int snapshot(float[] destination, int maxCount) {
+        long published = publishedSequence.get();
+        int count = (int) Math.min(Math.min(published, size), Math.min(maxCount, destination.length));
+
+        for (int i = 0; i < count; i++) {
+            int index = (int) ((published - 1 - i) % size);
+            destination[i] = Float.intBitsToFloat(dataArray.get(index));
+        }
+
+        // positions below (claimed - size) could have been overwritten while we were copying
+        long firstValidPosition = claimedSequence.get() - size;
+        long firstCopiedPosition = published - count;
+        if (firstCopiedPosition < firstValidPosition) {
+            count = (int) Math.max(0, published - firstValidPosition);
+        }
+        return count;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,92 @@
+package com.augmentari.roadworks.sensorlogger.component;
+
+/**
+ * Paces the frames of a rendering thread to a target frame rate, and keeps the frame statistics: how long the frames
+ * take to draw, and how many frame slots got missed because a frame took longer than its slot.
+ * <p/>
+ * Frames are only drawn when there is something new to show, so time without frames is not counted as missed. A
+ * target of 0 frames per second stops the rendering altogether.
+ * <p/>
+ * Times are System.nanoTime() values passed in by the caller. Thread safe.
+ */
+public class FramePacer {
+
+    private static final long NANOS_PER_SECOND = 1000L * 1000 * 1000;
+
+    private int targetFrameRate;
+    private long frameIntervalNanos;
+    private long nextFrameNanos = 0;
+    // nanoTime() values may be anything, so the first frame is not scheduled by time
+    private boolean scheduled = false;
+
+    private long frameCount = 0;
+    private long droppedFrameCount = 0;
+    private long lastFrameNanos = 0;
+    private long totalFrameNanos = 0;
+
+    public FramePacer(int targetFrameRate) {
+        setTargetFrameRate(targetFrameRate);
+    }
+
+    /**
+     * @param targetFrameRate frames per second; 0 to draw nothing.
+     */
+    public synchronized void setTargetFrameRate(int targetFrameRate) {
+        if (targetFrameRate < 0) {
+            throw new IllegalArgumentException("Frame rate should not be negative, got " + targetFrameRate);
+        }
+        this.targetFrameRate = targetFrameRate;
+        frameIntervalNanos = targetFrameRate == 0 ? 0 : NANOS_PER_SECOND / targetFrameRate;
+    }
+
+    public synchronized int getTargetFrameRate() {
+        return targetFrameRate;
+    }
+
+    /**
+     * @return how long to wait from now before the next frame may start: 0 if it may start right away,
+     *         Long.MAX_VALUE if the rendering is stopped.
+     */
+    public synchronized long getDelayNanos(long nowNanos) {
+        if (frameIntervalNanos == 0) {
+            return Long.MAX_VALUE;
+        }
+        return scheduled ? Math.max(0, nextFrameNanos - nowNanos) : 0;
+    }
+
+    /**
+     * Record a frame drawn, and schedule the next one.
+     */
+    public synchronized void onFrameDrawn(long startNanos, long endNanos) {
+        long duration = endNanos - startNanos;
+        frameCount++;
+        lastFrameNanos = duration;
+        totalFrameNanos += duration;
+        if (frameIntervalNanos == 0) {
+            return;
+        }
+
+        // the frame took the slot it started in; the whole slots it ran over are the ones missed
+        long slotStart = scheduled && nextFrameNanos - startNanos > 0 ? nextFrameNanos : startNanos;
+        long missed = Math.max(0, (endNanos - slotStart) / frameIntervalNanos);
+        droppedFrameCount += missed;
+        nextFrameNanos = slotStart + (missed + 1) * frameIntervalNanos;
+        scheduled = true;
+    }
+
+    public synchronized long getFrameCount() {
+        return frameCount;
+    }
+
+    public synchronized long getDroppedFrameCount() {
+        return droppedFrameCount;
+    }
+
+    public synchronized long getLastFrameNanos() {
+        return lastFrameNanos;
+    }
+
+    public synchronized long getAverageFrameNanos() {
+        return frameCount == 0 ? 0 : totalFrameNanos / frameCount;
+    }
+}
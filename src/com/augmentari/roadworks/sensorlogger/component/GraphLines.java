@@ -0,0 +1,128 @@
+package com.augmentari.roadworks.sensorlogger.component;
+
+/**
+ * Line segments of the accelerometer graph, as point arrays for Canvas.drawLines(): the segments below the threshold,
+ * the ones over it, and the fill between those and the threshold line. The arrays are reused from frame to frame and
+ * only grow when the graph gets wider.
+ * <p/>
+ * The graph has one value (or one min/max envelope) per pixel column, newest at the right edge.
+ */
+public class GraphLines {
+
+    // x0, y0, x1, y1 per segment
+    private static final int POINTS_PER_SEGMENT = 4;
+
+    private float[] normal = new float[0];
+    private float[] overThreshold = new float[0];
+    private float[] fill = new float[0];
+    private int normalCount;
+    private int overThresholdCount;
+    private int fillCount;
+
+    /**
+     * @param values      values to draw, newest first.
+     * @param count       number of the values to draw.
+     * @param width       width of the graph; the newest value is drawn at this x.
+     * @param height      height of the graph; values go up from this y.
+     * @param pxPerUnit   vertical scale.
+     * @param threshold   value over which the segments go to the over-threshold lines, and get filled.
+     */
+    public void build(float[] values, int count, int width, int height, float pxPerUnit, float threshold) {
+        reset(count - 1);
+        if (count < 2) {
+            return;
+        }
+
+        float thresholdY = height - threshold * pxPerUnit;
+        float lastX = width;
+        float lastY = height - values[0] * pxPerUnit;
+        for (int i = 1; i < count; i++) {
+            float x = width - i;
+            float y = height - values[i] * pxPerUnit;
+            if (values[i] < threshold) {
+                normalCount = put(normal, normalCount, lastX, lastY, x, y);
+            } else {
+                overThresholdCount = put(overThreshold, overThresholdCount, lastX, lastY, x, y);
+                fillCount = put(fill, fillCount, x, lastY, x, thresholdY - 1);
+            }
+            lastX = x;
+            lastY = y;
+        }
+    }
+
+    /**
+     * Build the lines of a min/max envelope: a vertical segment per column, from the min to the max of the column.
+     * The columns reaching over the threshold go to the over-threshold lines; there is no fill.
+     *
+     * @param mins      min of each column, newest first.
+     * @param maxs      max of each column, newest first.
+     * @param count     number of columns to draw.
+     * @param width     width of the graph; the newest column is drawn at this x.
+     * @param height    height of the graph; values go up from this y.
+     * @param pxPerUnit vertical scale.
+     * @param threshold value reaching over which the columns go to the over-threshold lines.
+     */
+    public void buildEnvelope(float[] mins, float[] maxs, int count, int width, int height, float pxPerUnit,
+                              float threshold) {
+        reset(count);
+
+        for (int i = 0; i < count; i++) {
+            float x = width - i;
+            float top = height - maxs[i] * pxPerUnit;
+            // at least a pixel, so that a flat column still shows
+            float bottom = Math.max(height - mins[i] * pxPerUnit, top + 1);
+            if (maxs[i] < threshold) {
+                normalCount = put(normal, normalCount, x, bottom, x, top);
+            } else {
+                overThresholdCount = put(overThreshold, overThresholdCount, x, bottom, x, top);
+            }
+        }
+    }
+
+    private void reset(int segments) {
+        int capacity = Math.max(0, segments) * POINTS_PER_SEGMENT;
+        if (normal.length < capacity) {
+            normal = new float[capacity];
+            overThreshold = new float[capacity];
+            fill = new float[capacity];
+        }
+        normalCount = 0;
+        overThresholdCount = 0;
+        fillCount = 0;
+    }
+
+    private static int put(float[] points, int offset, float x0, float y0, float x1, float y1) {
+        points[offset] = x0;
+        points[offset + 1] = y0;
+        points[offset + 2] = x1;
+        points[offset + 3] = y1;
+        return offset + POINTS_PER_SEGMENT;
+    }
+
+    public float[] getNormal() {
+        return normal;
+    }
+
+    /**
+     * @return number of floats of {@link #getNormal()} in use.
+     */
+    public int getNormalCount() {
+        return normalCount;
+    }
+
+    public float[] getOverThreshold() {
+        return overThreshold;
+    }
+
+    public int getOverThresholdCount() {
+        return overThresholdCount;
+    }
+
+    public float[] getFill() {
+        return fill;
+    }
+
+    public int getFillCount() {
+        return fillCount;
+    }
+}
@@ -0,0 +1,173 @@
+package com.augmentari.roadworks.sensorlogger.component;
+
+import java.util.Arrays;
+
+/**
+ * The recent location fixes by the time they were taken, so that every sample gets the position of the moment it was
+ * taken at rather than the newest fix when it gets processed: with the events batched in the sensor FIFO, a batch
+ * covers seconds of driving, i.e. over a hundred meters.
+ * <p/>
+ * Between two fixes the position (and the speed) is interpolated linearly, unless they are more than
+ * {@link #MAX_INTERPOLATION_MILLIS} apart, when the nearer one is taken; the bearing is always the nearer one's. After
+ * the newest fix the newest one is taken, it is not extrapolated. Before the oldest fix there was no fix: the track
+ * keeps many times the batching latency worth of fixes.
+ * <p/>
+ * Copy-on-write, like {@link com.augmentari.roadworks.sensorlogger.util.ListenerRegistry}: fixes are added (rare,
+ * about once a second) by one thread, positions looked up (for every sample) by another without locking.
+ */
+public class LocationTrack {
+
+    public static final int DEFAULT_CAPACITY = 32;
+    public static final long MAX_INTERPOLATION_MILLIS = 10 * 1000;
+
+    private final int capacity;
+    // oldest first
+    private volatile Fix[] fixes = new Fix[0];
+
+    public LocationTrack() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of the newest fixes kept.
+     */
+    public LocationTrack(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity should be positive, got " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Add the newest fix; a fix not newer than the newest one is ignored.
+     *
+     * @param timeMillis when the fix was taken, on the clock the positions are looked up by.
+     * @param bearing    direction of travel in degrees clockwise from north; NaN if the GPS did not give one.
+     */
+    public synchronized void add(long timeMillis, double latitude, double longitude, float speed, float bearing) {
+        Fix[] current = fixes;
+        if (current.length > 0 && timeMillis <= current[current.length - 1].timeMillis) {
+            return;
+        }
+        Fix[] updated;
+        if (current.length < capacity) {
+            updated = Arrays.copyOf(current, current.length + 1);
+        } else {
+            updated = new Fix[capacity];
+            System.arraycopy(current, 1, updated, 0, capacity - 1);
+        }
+        updated[updated.length - 1] = new Fix(timeMillis, latitude, longitude, speed, bearing);
+        fixes = updated;
+    }
+
+    /**
+     * Forget all the fixes, e.g. when the GPS is started again.
+     */
+    public synchronized void clear() {
+        fixes = new Fix[0];
+    }
+
+    public int size() {
+        return fixes.length;
+    }
+
+    /**
+     * Look up the position at the given time.
+     *
+     * @param position filled in with the position; reused by the caller, so that looking up does not allocate.
+     */
+    public void positionAt(long timeMillis, Position position) {
+        Fix[] current = fixes;
+        // the newest fixes are the ones looked for
+        int i = current.length - 1;
+        while (i >= 0 && current[i].timeMillis > timeMillis) {
+            i--;
+        }
+        if (i < 0) {
+            position.clear();
+            return;
+        }
+        Fix before = current[i];
+        if (i == current.length - 1 || before.timeMillis == timeMillis) {
+            position.set(before);
+            return;
+        }
+        Fix after = current[i + 1];
+        long span = after.timeMillis - before.timeMillis;
+        double fraction = (double) (timeMillis - before.timeMillis) / span;
+        Fix nearer = fraction < 0.5 ? before : after;
+        if (span > MAX_INTERPOLATION_MILLIS) {
+            position.set(nearer);
+            return;
+        }
+        position.hasFix = true;
+        position.latitude = before.latitude + (after.latitude - before.latitude) * fraction;
+        position.longitude = before.longitude + (after.longitude - before.longitude) * fraction;
+        position.speed = (float) (before.speed + (after.speed - before.speed) * fraction);
+        position.bearing = nearer.bearing;
+    }
+
+    private static final class Fix {
+        private final long timeMillis;
+        private final double latitude;
+        private final double longitude;
+        private final float speed;
+        private final float bearing;
+
+        Fix(long timeMillis, double latitude, double longitude, float speed, float bearing) {
+            this.timeMillis = timeMillis;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.speed = speed;
+            this.bearing = bearing;
+        }
+    }
+
+    /**
+     * Position looked up with {@link #positionAt(long, Position)}. Without a fix, the location is 0,0 and the bearing
+     * NaN.
+     */
+    public static final class Position {
+        private boolean hasFix;
+        private double latitude;
+        private double longitude;
+        private float speed;
+        private float bearing = Float.NaN;
+
+        public boolean hasFix() {
+            return hasFix;
+        }
+
+        public double getLatitude() {
+            return latitude;
+        }
+
+        public double getLongitude() {
+            return longitude;
+        }
+
+        public float getSpeed() {
+            return speed;
+        }
+
+        public float getBearing() {
+            return bearing;
+        }
+
+        private void set(Fix fix) {
+            hasFix = true;
+            latitude = fix.latitude;
+            longitude = fix.longitude;
+            speed = fix.speed;
+            bearing = fix.bearing;
+        }
+
+        private void clear() {
+            hasFix = false;
+            latitude = 0;
+            longitude = 0;
+            speed = 0;
+            bearing = Float.NaN;
+        }
+    }
+}
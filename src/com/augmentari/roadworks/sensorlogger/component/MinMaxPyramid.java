@@ -0,0 +1,165 @@
+package com.augmentari.roadworks.sensorlogger.component;
+
+/**
+ * History of float samples for plotting long time windows: the samples themselves plus a pyramid of min/max
+ * envelopes, each level summing up {@link #FANOUT} entries of the level below. A window of any length is reduced to
+ * a min/max envelope per pixel column from the coarsest level still finer than a column, so the cost of drawing is
+ * proportional to the number of columns and not to the number of samples in the window.
+ * <p/>
+ * Every level is a ring of its own: the history keeps the newest {@link #getCapacity()} samples. Levels are updated
+ * as the samples come in, so the envelopes are always ready.
+ * <p/>
+ * Thread safe: one thread appends while another draws.
+ */
+public class MinMaxPyramid {
+
+    public static final int FANOUT = 4;
+
+    // no point in a level with fewer entries than a screen has pixels
+    private static final int MIN_LEVEL_SIZE = 256;
+
+    private final int capacity;
+    private final float[] samples;
+    // mins[level - 1], maxs[level - 1]: the envelopes of blocks of FANOUT^level samples
+    private final float[][] mins;
+    private final float[][] maxs;
+    private final int[] blockSizes;
+    // envelope of the block being filled, per level
+    private final float[] pendingMins;
+    private final float[] pendingMaxs;
+
+    private long count = 0;
+
+    /**
+     * @param capacity number of samples to keep; a multiple of FANOUT to the power of the number of levels wanted,
+     *                 e.g. a power of 4.
+     */
+    public MinMaxPyramid(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity should be positive, got " + capacity);
+        }
+        int levels = 0;
+        for (int size = capacity; size % FANOUT == 0 && size / FANOUT >= MIN_LEVEL_SIZE; size /= FANOUT) {
+            levels++;
+        }
+        this.capacity = capacity;
+        samples = new float[capacity];
+        mins = new float[levels][];
+        maxs = new float[levels][];
+        blockSizes = new int[levels + 1];
+        blockSizes[0] = 1;
+        for (int level = 1; level <= levels; level++) {
+            blockSizes[level] = blockSizes[level - 1] * FANOUT;
+            mins[level - 1] = new float[capacity / blockSizes[level]];
+            maxs[level - 1] = new float[capacity / blockSizes[level]];
+        }
+        pendingMins = new float[levels];
+        pendingMaxs = new float[levels];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getLevelCount() {
+        return mins.length;
+    }
+
+    /**
+     * @return number of samples appended so far, including the ones no longer kept.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized void append(float value) {
+        put(value);
+    }
+
+    public synchronized void appendAll(float[] values, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            put(values[i]);
+        }
+    }
+
+    private void put(float value) {
+        samples[(int) (count % capacity)] = value;
+        count++;
+        for (int level = 1; level <= mins.length; level++) {
+            int blockSize = blockSizes[level];
+            long positionInBlock = (count - 1) % blockSize;
+            float min = value, max = value;
+            if (level > 1) {
+                // getting here means a block of the level below has just been completed
+                int below = (int) ((count / blockSizes[level - 1] - 1) % mins[level - 2].length);
+                min = mins[level - 2][below];
+                max = maxs[level - 2][below];
+            }
+            if (positionInBlock < blockSizes[level - 1]) {
+                pendingMins[level - 1] = min;
+                pendingMaxs[level - 1] = max;
+            } else {
+                pendingMins[level - 1] = Math.min(pendingMins[level - 1], min);
+                pendingMaxs[level - 1] = Math.max(pendingMaxs[level - 1], max);
+            }
+            if (positionInBlock != blockSize - 1) {
+                // the block is not complete, so nothing up from here changes either
+                return;
+            }
+            int index = (int) ((count / blockSize - 1) % mins[level - 1].length);
+            mins[level - 1][index] = pendingMins[level - 1];
+            maxs[level - 1][index] = pendingMaxs[level - 1];
+        }
+    }
+
+    /**
+     * Reduce the newest windowSamples samples to min/max per column, newest column first. Columns are whole blocks of
+     * the level used, so up to one block of the newest samples (less than a column) may not be shown yet.
+     *
+     * @param windowSamples number of the newest samples to show; limited by what is kept.
+     * @param columns       number of columns to reduce the window to.
+     * @param minsOut       min of each column.
+     * @param maxsOut       max of each column.
+     * @return number of columns filled; less than asked for if there are fewer samples than columns.
+     */
+    public synchronized int envelope(int windowSamples, int columns, float[] minsOut, float[] maxsOut) {
+        columns = Math.min(columns, Math.min(minsOut.length, maxsOut.length));
+        long window = Math.min(windowSamples, Math.min(count, capacity));
+        if (columns <= 0 || window <= 0) {
+            return 0;
+        }
+
+        // the coarsest level with at least one block per column
+        int level = 0;
+        while (level < mins.length && blockSizes[level + 1] <= window / columns) {
+            level++;
+        }
+        int blockSize = blockSizes[level];
+        long newestBlock = count / blockSize - 1;
+        long blocks = Math.min(window / blockSize, newestBlock + 1);
+        int filled = (int) Math.min(columns, blocks);
+
+        for (int column = 0; column < filled; column++) {
+            // blocks [from, to) back from the newest, spread evenly over the columns
+            long from = column * blocks / filled;
+            long to = (column + 1) * blocks / filled;
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            for (long back = from; back < to; back++) {
+                long block = newestBlock - back;
+                if (level == 0) {
+                    float value = samples[(int) (block % capacity)];
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                } else {
+                    int index = (int) (block % mins[level - 1].length);
+                    min = Math.min(min, mins[level - 1][index]);
+                    max = Math.max(max, maxs[level - 1][index]);
+                }
+            }
+            minsOut[column] = min;
+            maxsOut[column] = max;
+        }
+        return filled;
+    }
+}
@@ -0,0 +1,208 @@
+package com.augmentari.roadworks.sensorlogger.component;
+
+import java.util.Arrays;
+
+/**
+ * Resamples the accelerometer readings to a constant rate, from the timestamps of the sensor events. Sensors deliver
+ * at whatever rate the device has for the requested delay, with jitter from event to event, and at other rates again
+ * when the sampling mode changes; the filters downstream work in samples, so they only mean the same everywhere when
+ * the samples are evenly spaced.
+ * <p/>
+ * Output samples are taken at the multiples of the period: each one is the mean of the input over the period around
+ * it, the input being interpolated linearly between its samples. When the sensor is slower than the output that is
+ * about the interpolated value at the output timestamp; when it is faster (400-500 Hz at the fastest rate on many
+ * devices), the mean is what keeps an impulse shorter than the period from falling between the output samples: it is
+ * spread over one or two of them, with its area kept. Input timestamps going back or repeating are dropped. No samples
+ * are made up over gaps longer than the given one (sensor re-registered, device asleep): the output skips the gap and
+ * resumes on the grid after it, the means at either side of it taken over the part of the period there is input for.
+ * <p/>
+ * Output arrays are reused from batch to batch and only grow when a batch gives more samples than ever before. Not
+ * thread safe -- should be fed from a single thread.
+ */
+public class Resampler {
+
+    private static final int INITIAL_CAPACITY = 512;
+
+    private final long periodNanos;
+    private final long maxGapNanos;
+
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private float[] xs = new float[INITIAL_CAPACITY];
+    private float[] ys = new float[INITIAL_CAPACITY];
+    private float[] zs = new float[INITIAL_CAPACITY];
+    private int count;
+
+    private boolean hasPrevious = false;
+    private long previousTimestamp;
+    private float previousX, previousY, previousZ;
+    private final long halfPeriodNanos;
+    // the output sample being integrated: its timestamp, the part of its period integrated so far and the integrals
+    private long nextOutputTimestamp;
+    private long windowFrom;
+    private long windowCovered;
+    private double sumX, sumY, sumZ;
+
+    private long gapCount = 0;
+    private long droppedCount = 0;
+
+    /**
+     * @param periodNanos period of the output samples.
+     * @param maxGapNanos longest time between two input samples to interpolate over.
+     */
+    public Resampler(long periodNanos, long maxGapNanos) {
+        if (periodNanos <= 0 || maxGapNanos < periodNanos) {
+            throw new IllegalArgumentException("Bad period/gap: " + periodNanos + "/" + maxGapNanos);
+        }
+        this.periodNanos = periodNanos;
+        this.maxGapNanos = maxGapNanos;
+        this.halfPeriodNanos = periodNanos / 2;
+    }
+
+    /**
+     * Coefficient of an exponential low-pass filter (y = alpha * y + (1 - alpha) * x) having the given time constant
+     * at the given sample period.
+     */
+    public static float lowPassAlpha(double timeConstantSeconds, long periodNanos) {
+        double period = periodNanos / 1e9;
+        return (float) (timeConstantSeconds / (timeConstantSeconds + period));
+    }
+
+    /**
+     * Resample a batch of input samples, oldest first. The output samples whose periods are covered by the input so
+     * far are then available from the getters, oldest first, until the next call; the last one or two come with the
+     * next batch, or when the input turns out to have a gap after them.
+     *
+     * @return number of output samples.
+     */
+    public int resample(long[] inTimestamps, float[] inXs, float[] inYs, float[] inZs, int inCount) {
+        count = 0;
+        for (int i = 0; i < inCount; i++) {
+            long timestamp = inTimestamps[i];
+            if (hasPrevious && timestamp <= previousTimestamp) {
+                droppedCount++;
+                continue;
+            }
+            if (!hasPrevious || timestamp - previousTimestamp > maxGapNanos) {
+                if (hasPrevious) {
+                    gapCount++;
+                    if (nextOutputTimestamp <= previousTimestamp) {
+                        // the input before the gap reached the output sample, if not the end of its period
+                        putWindow(previousX, previousY, previousZ);
+                    }
+                }
+                // first grid point at or after the sample
+                nextOutputTimestamp = timestamp / periodNanos * periodNanos;
+                if (nextOutputTimestamp < timestamp) {
+                    nextOutputTimestamp += periodNanos;
+                }
+                startWindow(Math.max(timestamp, nextOutputTimestamp - halfPeriodNanos));
+            } else {
+                integrate(timestamp, inXs[i], inYs[i], inZs[i]);
+            }
+            hasPrevious = true;
+            previousTimestamp = timestamp;
+            previousX = inXs[i];
+            previousY = inYs[i];
+            previousZ = inZs[i];
+        }
+        return count;
+    }
+
+    /**
+     * Add the input from the previous sample to the given one to the output samples, putting out every one whose
+     * period it completes.
+     */
+    private void integrate(long timestamp, float x, float y, float z) {
+        double span = timestamp - previousTimestamp;
+        while (true) {
+            long windowEnd = nextOutputTimestamp - halfPeriodNanos + periodNanos;
+            long end = Math.min(timestamp, windowEnd);
+            if (end > windowCovered) {
+                // trapezoid under the line between the samples
+                double from = (windowCovered - previousTimestamp) / span;
+                double to = (end - previousTimestamp) / span;
+                double weight = end - windowCovered;
+                sumX += weight * (previousX + (x - previousX) * (from + to) / 2);
+                sumY += weight * (previousY + (y - previousY) * (from + to) / 2);
+                sumZ += weight * (previousZ + (z - previousZ) * (from + to) / 2);
+                windowCovered = end;
+            }
+            if (timestamp < windowEnd) {
+                return;
+            }
+            putWindow(x, y, z);
+            nextOutputTimestamp += periodNanos;
+            startWindow(windowEnd);
+        }
+    }
+
+    private void startWindow(long from) {
+        windowFrom = from;
+        windowCovered = from;
+        sumX = 0;
+        sumY = 0;
+        sumZ = 0;
+    }
+
+    /**
+     * Put out the mean of the current output sample; the given values if none of its period has been covered (a
+     * single sample between gaps).
+     */
+    private void putWindow(float x, float y, float z) {
+        long length = windowCovered - windowFrom;
+        if (length == 0) {
+            put(nextOutputTimestamp, x, y, z);
+        } else {
+            put(nextOutputTimestamp, (float) (sumX / length), (float) (sumY / length), (float) (sumZ / length));
+        }
+    }
+
+    private void put(long timestamp, float x, float y, float z) {
+        if (count == timestamps.length) {
+            int capacity = timestamps.length * 2;
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+            zs = Arrays.copyOf(zs, capacity);
+        }
+        timestamps[count] = timestamp;
+        xs[count] = x;
+        ys[count] = y;
+        zs[count] = z;
+        count++;
+    }
+
+    public long getPeriodNanos() {
+        return periodNanos;
+    }
+
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+
+    public float[] getXs() {
+        return xs;
+    }
+
+    public float[] getYs() {
+        return ys;
+    }
+
+    public float[] getZs() {
+        return zs;
+    }
+
+    /**
+     * @return number of times the input had a gap too long to interpolate over.
+     */
+    public long getGapCount() {
+        return gapCount;
+    }
+
+    /**
+     * @return number of input samples dropped for their timestamps not going forward.
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+}
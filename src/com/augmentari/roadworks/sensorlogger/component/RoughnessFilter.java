@@ -0,0 +1,73 @@
+package com.augmentari.roadworks.sensorlogger.component;
+
+/**
+ * Sliding-window 'roughness' filter for the gravity-free accelerometer readings. The output value is the sum of absolute
+ * differences between consecutive samples (across all 3 axes) over the last windowSize samples, divided by
+ * windowSize * 3.
+ * <p/>
+ * The sum is maintained incrementally: each new sample adds its difference to the previous one and evicts the oldest
+ * difference, so the per-sample cost does not depend on the window size. To avoid accumulating rounding errors, the
+ * running sum is recomputed from scratch once per full turn of the ring, which keeps the amortized cost constant.
+ * <p/>
+ * Not thread safe -- should be fed from a single thread.
+ */
+public class RoughnessFilter {
+
+    private final int windowSize;
+
+    // ring of (windowSize - 1) differences between consecutive samples, oldest at 'head'
+    private final float[] differences;
+    private int head = 0;
+    private double runningSum = 0d;
+
+    // previous sample; window starts filled up with zeros
+    private float lastX, lastY, lastZ;
+
+    /**
+     * Create filter for a window of a given size.
+     *
+     * @param windowSize number of samples in the window; should be at least 2 to have a difference to compute.
+     */
+    public RoughnessFilter(int windowSize) {
+        if (windowSize < 2) {
+            throw new IllegalArgumentException("Window size should be at least 2, got " + windowSize);
+        }
+        this.windowSize = windowSize;
+        differences = new float[windowSize - 1];
+    }
+
+    /**
+     * Push next sample through the filter.
+     *
+     * @return filtered value for the window ending with this sample.
+     */
+    public float filter(float x, float y, float z) {
+        float difference = Math.abs(x - lastX) + Math.abs(y - lastY) + Math.abs(z - lastZ);
+        lastX = x;
+        lastY = y;
+        lastZ = z;
+
+        runningSum += difference - differences[head];
+        differences[head] = difference;
+        head++;
+
+        if (head == differences.length) {
+            head = 0;
+            resync();
+        }
+
+        return (float) (runningSum / windowSize / 3);
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    private void resync() {
+        double sum = 0d;
+        for (float difference : differences) {
+            sum += difference;
+        }
+        runningSum = sum;
+    }
+}
@@ -0,0 +1,151 @@
+package com.augmentari.roadworks.sensorlogger.component;
+
+/**
+ * Multi-channel circular buffer keeping the full-fidelity history of the processed samples: raw accelerometer axes,
+ * the filtered value, sensor timestamp and the location known at that moment, with the speed and bearing -- along with
+ * whether there was a fix at all; without one the location is 0,0 and must not be taken for a position. Channels are
+ * kept in separate primitive arrays (struct of arrays), so appending never allocates.
+ * <p/>
+ * Unlike {@link CircularBuffer}, this one is not thread safe: it is written and read on the sensor processing thread
+ * only (i.e. from within the listener callbacks).
+ */
+public class SampleBuffer {
+
+    // ~40 seconds at the fastest sensor rate
+    private static final int DEFAULT_CAPACITY = 8192;
+
+    private final int capacity;
+
+    private final long[] timestampNanos;
+    private final float[] x;
+    private final float[] y;
+    private final float[] z;
+    private final float[] value;
+    private final boolean[] hasFix;
+    private final double[] latitude;
+    private final double[] longitude;
+    private final float[] speed;
+    private final float[] bearing;
+
+    private int endIndex = -1;
+    private long totalAppended = 0;
+
+    public SampleBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public SampleBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity should be positive, got " + capacity);
+        }
+        this.capacity = capacity;
+
+        timestampNanos = new long[capacity];
+        x = new float[capacity];
+        y = new float[capacity];
+        z = new float[capacity];
+        value = new float[capacity];
+        hasFix = new boolean[capacity];
+        latitude = new double[capacity];
+        longitude = new double[capacity];
+        speed = new float[capacity];
+        bearing = new float[capacity];
+    }
+
+    public void append(long timestampNanos, float x, float y, float z, float value,
+                       boolean hasFix, double latitude, double longitude, float speed, float bearing) {
+        endIndex++;
+        if (endIndex == capacity) {
+            endIndex = 0;
+        }
+        totalAppended++;
+
+        this.timestampNanos[endIndex] = timestampNanos;
+        this.x[endIndex] = x;
+        this.y[endIndex] = y;
+        this.z[endIndex] = z;
+        this.value[endIndex] = value;
+        this.hasFix[endIndex] = hasFix;
+        this.latitude[endIndex] = latitude;
+        this.longitude[endIndex] = longitude;
+        this.speed[endIndex] = speed;
+        this.bearing[endIndex] = bearing;
+    }
+
+    /**
+     * @return number of samples currently available.
+     */
+    public int getActualSize() {
+        return (int) Math.min(totalAppended, capacity);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of samples ever appended to the buffer.
+     */
+    public long getTotalAppended() {
+        return totalAppended;
+    }
+
+    // All the getters take the index of the sample, 0 being the newest one.
+
+    public long getTimestampNanos(int i) {
+        return timestampNanos[toArrayIndex(i)];
+    }
+
+    public float getX(int i) {
+        return x[toArrayIndex(i)];
+    }
+
+    public float getY(int i) {
+        return y[toArrayIndex(i)];
+    }
+
+    public float getZ(int i) {
+        return z[toArrayIndex(i)];
+    }
+
+    public float getValue(int i) {
+        return value[toArrayIndex(i)];
+    }
+
+    /**
+     * @return whether there was a location fix when the sample was taken; if not, the location is meaningless.
+     */
+    public boolean hasFix(int i) {
+        return hasFix[toArrayIndex(i)];
+    }
+
+    public double getLatitude(int i) {
+        return latitude[toArrayIndex(i)];
+    }
+
+    public double getLongitude(int i) {
+        return longitude[toArrayIndex(i)];
+    }
+
+    public float getSpeed(int i) {
+        return speed[toArrayIndex(i)];
+    }
+
+    /**
+     * @return direction of travel in degrees clockwise from north; NaN if the GPS did not give one.
+     */
+    public float getBearing(int i) {
+        return bearing[toArrayIndex(i)];
+    }
+
+    private int toArrayIndex(int i) {
+        if (i < 0 || i >= getActualSize()) {
+            throw new IndexOutOfBoundsException("Sample " + i + " is not in the buffer of size " + getActualSize());
+        }
+        int index = endIndex - i;
+        if (index < 0) {
+            index += capacity;
+        }
+        return index;
+    }
+}
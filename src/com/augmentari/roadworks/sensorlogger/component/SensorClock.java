@@ -0,0 +1,85 @@
+package com.augmentari.roadworks.sensorlogger.component;
+
+/**
+ * Maps sensor event timestamps (nanoseconds of the sensor clock, which has no fixed relation to the wall clock) to
+ * wall clock milliseconds. Events are stamped when they happen, but delivered later: right away one by one, or in
+ * batches up to the report latency late when the sensor batches them in its FIFO. So the wall clock read on delivery
+ * is only an upper bound of the time of an event, and the offset between the clocks is estimated as the minimum of
+ * (delivery time - event timestamp) over the recent deliveries: the events delivered with the least delay, like the
+ * newest one of each batch.
+ * <p/>
+ * The minimum is kept over two windows of {@link #WINDOW_NANOS} of sensor time, so that a wall clock set forward is
+ * followed within two windows; a wall clock set back is followed with the next delivery.
+ * <p/>
+ * One thread (the sensor callback) observes the deliveries, any thread may map the timestamps.
+ */
+public class SensorClock {
+
+    public static final long WINDOW_NANOS = 30L * 1000 * 1000 * 1000;
+
+    private static final long NANOS_PER_MILLI = 1000 * 1000;
+
+    // written by the observing thread, read by any
+    private volatile long offsetNanos;
+    private volatile boolean synced = false;
+    private volatile long maxDeliveryLatencyNanos = 0;
+
+    // observing thread only
+    private long windowStartNanos;
+    private long currentWindowMin;
+    private long previousWindowMin;
+
+    /**
+     * Record the delivery of an event. Observing thread only.
+     *
+     * @param eventTimestampNanos timestamp of the event, sensor clock.
+     * @param wallMillis          wall clock at the delivery, System.currentTimeMillis().
+     */
+    public void observe(long eventTimestampNanos, long wallMillis) {
+        long offset = wallMillis * NANOS_PER_MILLI - eventTimestampNanos;
+        if (!synced) {
+            windowStartNanos = eventTimestampNanos;
+            currentWindowMin = offset;
+            previousWindowMin = offset;
+        } else if (eventTimestampNanos - windowStartNanos >= WINDOW_NANOS) {
+            windowStartNanos = eventTimestampNanos;
+            previousWindowMin = currentWindowMin;
+            currentWindowMin = offset;
+        } else if (offset < currentWindowMin) {
+            currentWindowMin = offset;
+        }
+        long estimate = Math.min(currentWindowMin, previousWindowMin);
+        offsetNanos = estimate;
+        synced = true;
+
+        long latency = offset - estimate;
+        if (latency > maxDeliveryLatencyNanos) {
+            maxDeliveryLatencyNanos = latency;
+        }
+    }
+
+    /**
+     * @return true once there has been a delivery to estimate the offset from.
+     */
+    public boolean isSynchronized() {
+        return synced;
+    }
+
+    /**
+     * @return wall clock milliseconds of an event timestamp; the current wall clock if nothing has been delivered yet.
+     */
+    public long toWallMillis(long eventTimestampNanos) {
+        if (!synced) {
+            return System.currentTimeMillis();
+        }
+        return (eventTimestampNanos + offsetNanos) / NANOS_PER_MILLI;
+    }
+
+    /**
+     * @return the longest an event has been delivered after it happened, as far as the estimate tells: about the
+     *         report latency when the events come in batches.
+     */
+    public long getMaxDeliveryLatencyNanos() {
+        return maxDeliveryLatencyNanos;
+    }
+}
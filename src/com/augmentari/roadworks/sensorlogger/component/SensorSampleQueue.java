@@ -0,0 +1,122 @@
+package com.augmentari.roadworks.sensorlogger.component;
+
+import com.augmentari.roadworks.sensorlogger.util.RingSequence;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer/single-consumer queue of raw accelerometer samples. Samples are kept in preallocated
+ * primitive arrays (timestamp + x/y/z), so neither offering nor draining allocates anything.
+ * <p/>
+ * Exactly one thread may call {@link #offer(long, float, float, float)} (the sensor callback thread) and exactly one
+ * thread may call {@link #drainTo(long[], float[], float[], float[], int)} (the processing thread). When the consumer
+ * falls too far behind, new samples are dropped and counted in {@link #getOverflowCount()}.
+ * <p/>
+ * The consumer does not need to poll: see {@link #setConsumer(Thread, int)}.
+ */
+public class SensorSampleQueue {
+
+    private final RingSequence sequence;
+    private final int capacity;
+
+    private final long[] timestamps;
+    private final float[] xs;
+    private final float[] ys;
+    private final float[] zs;
+
+    private final AtomicLong overflowCount = new AtomicLong(0);
+
+    /**
+     * Create queue with a given capacity.
+     *
+     * @param capacity number of samples the queue may hold, should be a power of 2.
+     */
+    public SensorSampleQueue(int capacity) {
+        this.sequence = new RingSequence(capacity);
+        this.capacity = capacity;
+
+        timestamps = new long[capacity];
+        xs = new float[capacity];
+        ys = new float[capacity];
+        zs = new float[capacity];
+    }
+
+    /**
+     * Have the producer unpark the consumer thread when the queue stops being empty, and again when it reaches the
+     * given size, see {@link RingSequence#setConsumer(Thread, int)}.
+     */
+    public void setConsumer(Thread consumer, int wakeUpSize) {
+        sequence.setConsumer(consumer, wakeUpSize);
+    }
+
+    /**
+     * Put a sample to the queue. Producer thread only.
+     *
+     * @return true if sample has been queued, false if the queue was full and the sample got dropped.
+     */
+    public boolean offer(long timestamp, float x, float y, float z) {
+        long write = sequence.claim();
+        if (write < 0) {
+            overflowCount.incrementAndGet();
+            return false;
+        }
+
+        int index = sequence.index(write);
+        timestamps[index] = timestamp;
+        xs[index] = x;
+        ys[index] = y;
+        zs[index] = z;
+
+        sequence.publish(write);
+        return true;
+    }
+
+    /**
+     * Copy up to maxCount oldest samples into the supplied arrays and remove them from the queue. Consumer thread only.
+     *
+     * @return number of samples copied; 0 if the queue is empty.
+     */
+    public int drainTo(long[] timestampsOut, float[] xOut, float[] yOut, float[] zOut, int maxCount) {
+        int count = sequence.available(maxCount);
+        if (count <= 0) {
+            return 0;
+        }
+
+        int start = sequence.index(sequence.getReadSequence());
+        int firstPart = Math.min(count, capacity - start);
+        copy(start, 0, firstPart, timestampsOut, xOut, yOut, zOut);
+        if (firstPart < count) {
+            copy(0, firstPart, count - firstPart, timestampsOut, xOut, yOut, zOut);
+        }
+
+        // slots are free for the producer only after we've copied them out
+        sequence.release(count);
+        return count;
+    }
+
+    private void copy(int from, int to, int length, long[] timestampsOut, float[] xOut, float[] yOut, float[] zOut) {
+        System.arraycopy(timestamps, from, timestampsOut, to, length);
+        System.arraycopy(xs, from, xOut, to, length);
+        System.arraycopy(ys, from, yOut, to, length);
+        System.arraycopy(zs, from, zOut, to, length);
+    }
+
+    public boolean isEmpty() {
+        return sequence.isEmpty();
+    }
+
+    public int size() {
+        return sequence.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of samples dropped so far because the queue was full.
+     */
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+}
@@ -0,0 +1,67 @@
+package com.augmentari.roadworks.sensorlogger.dao;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * {@link SqlBackend} on top of the Android SQLiteDatabase.
+ */
+public class AndroidSqlBackend implements SqlBackend {
+
+    private final SQLiteDatabase database;
+
+    public AndroidSqlBackend(SQLiteDatabase database) {
+        this.database = database;
+    }
+
+    @Override
+    public Statement compileStatement(String sql) {
+        final SQLiteStatement statement = database.compileStatement(sql);
+        return new Statement() {
+            @Override
+            public void bindLong(int index, long value) {
+                statement.bindLong(index, value);
+            }
+
+            @Override
+            public void bindDouble(int index, double value) {
+                statement.bindDouble(index, value);
+            }
+
+            @Override
+            public void bindString(int index, String value) {
+                statement.bindString(index, value);
+            }
+
+            @Override
+            public long executeInsert() {
+                return statement.executeInsert();
+            }
+
+            @Override
+            public int executeUpdateDelete() {
+                return statement.executeUpdateDelete();
+            }
+        };
+    }
+
+    @Override
+    public void execSQL(String sql) {
+        database.execSQL(sql);
+    }
+
+    @Override
+    public void beginTransaction() {
+        database.beginTransaction();
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        database.setTransactionSuccessful();
+    }
+
+    @Override
+    public void endTransaction() {
+        database.endTransaction();
+    }
+}
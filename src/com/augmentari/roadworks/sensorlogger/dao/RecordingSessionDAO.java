@@ -1,18 +1,14 @@
 package com.augmentari.roadworks.sensorlogger.dao;
 
-import android.content.ContentValues;
+import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
 import com.augmentari.roadworks.model.RecordingSession;
+import com.augmentari.roadworks.model.SessionStatistics;
 import com.augmentari.roadworks.sensorlogger.util.Formats;
-import com.augmentari.roadworks.sensorlogger.util.Log;
-import org.apache.commons.io.IOUtils;
-import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.FileInputStream;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -23,20 +19,47 @@ import java.util.List;
  */
 public class RecordingSessionDAO {
 
+    /**
+     * Changes to the sessions are announced on this URI (with the session id appended when a single session changed),
+     * for the session list to pick them up. There's no content provider behind it.
+     */
+    public static final Uri SESSIONS_URI = Uri.parse("content://com.augmentari.roadworks.sensorlogger/sessions");
+
+    /**
+     * Columns the session list shows; the id goes first.
+     */
+    public static final String[] LIST_COLUMNS = {
+            SQLiteHelperImpl.FIELD_ID,
+            SQLiteHelperImpl.FIELD_START_TIME,
+            SQLiteHelperImpl.FIELD_EVENTS_LOGGED_COUNT,
+            SQLiteHelperImpl.FIELD_STATE,
+            SQLiteHelperImpl.FIELD_DISTANCE
+    };
+
+    static final String UPLOAD_SELECTION = SQLiteHelperImpl.FIELD_STATE + " = ?";
+    static final String UPLOAD_ORDER = SQLiteHelperImpl.FIELD_START_TIME;
+
     private SQLiteDatabase database;
 
     private SQLiteHelperImpl dbHelper;
 
+    private SessionWriter writer;
+
+    private final Context context;
+
     public RecordingSessionDAO(Context context) {
+        this.context = context;
         dbHelper = new SQLiteHelperImpl(context);
     }
 
     public void open() {
         database = dbHelper.getWritableDatabase();
+        writer = new SessionWriter(new AndroidSqlBackend(database));
     }
 
     public void openRead() {
         database = dbHelper.getReadableDatabase();
+        writer = new SessionWriter(new AndroidSqlBackend(database));
     }
 
 
@@ -55,49 +78,31 @@ public class RecordingSessionDAO {
         if (Formats.isEmpty(recordingSession.getDataFileFullPath())) {
             throw new IllegalStateException("Should have start time set up prior to saving.");
         }
+        long id = writer.startSession(recordingSession.getDataFileFullPath(),
+                recordingSession.getStartTime().getTime());
+        recordingSession.setId(id);
         recordingSession.setState(RecordingSession.State.LOGGING);
-
-        ContentValues cvUpdateLoggingSessionsToFailed = new ContentValues();
-        cvUpdateLoggingSessionsToFailed.put(SQLiteHelperImpl.FIELD_STATE, RecordingSession.State.FAILED.name());
-        int rowsAffected = database.update(
-                SQLiteHelperImpl.TABLE_SESSIONS,
-                cvUpdateLoggingSessionsToFailed,
-                SQLiteHelperImpl.FIELD_STATE + "=?",
-                new String[]{RecordingSession.State.LOGGING.name()}
-        );
-
-        ContentValues cvCreateNewSession = new ContentValues();
-        cvCreateNewSession.put(SQLiteHelperImpl.FIELD_DATA_FILE_PATH, recordingSession.getDataFileFullPath());
-        cvCreateNewSession.put(SQLiteHelperImpl.FIELD_START_TIME, recordingSession.getStartTime().getTime());
-        cvCreateNewSession.put(SQLiteHelperImpl.FIELD_STATE, RecordingSession.State.LOGGING.name());
-        long insertId = database.insert(
-                SQLiteHelperImpl.TABLE_SESSIONS,
-                null,
-                cvCreateNewSession);
-
-
-        return getSessionById(insertId);
+        // the sessions left logging have been failed too
+        notifyChange(SESSIONS_URI);
+        return recordingSession;
     }
 
-    public void finishSession(long sessionId, long statementsLogged, Date logEndTime) {
-        ContentValues cv = new ContentValues();
-        cv.put(SQLiteHelperImpl.FIELD_END_TIME, logEndTime.getTime());
-        cv.put(SQLiteHelperImpl.FIELD_EVENTS_LOGGED_COUNT, statementsLogged);
-        cv.put(SQLiteHelperImpl.FIELD_STATE, RecordingSession.State.LOGGED.name());
+    public void finishSession(long sessionId, Date logEndTime, long fileSize, long crc32,
+                              SessionStatistics statistics) {
+        writer.finishSession(sessionId, logEndTime.getTime(), fileSize, formatChecksum(crc32), statistics);
+        notifyChange(ContentUris.withAppendedId(SESSIONS_URI, sessionId));
+    }
 
-        database.update(
-                SQLiteHelperImpl.TABLE_SESSIONS,
-                cv,
-                SQLiteHelperImpl.FIELD_ID + " = " + sessionId,
-                null);
+    static String formatChecksum(long crc32) {
+        return String.format("%08x", crc32);
     }
 
     public RecordingSession getSessionById(long id) {
         Cursor cursor = database.query(
                 SQLiteHelperImpl.TABLE_SESSIONS,
                 SQLiteHelperImpl.ALL_COLUMNS,
-                SQLiteHelperImpl.FIELD_ID + " = " + id,
-                null, null, null, null);
+                SQLiteHelperImpl.FIELD_ID + " = ?",
+                new String[]{Long.toString(id)}, null, null, null);
         cursor.moveToFirst();
 
         RecordingSession session = cursorToSession(cursor);
@@ -106,23 +111,67 @@ public class RecordingSessionDAO {
         return session;
     }
 
-    public Cursor getAllSessionsSortById() {
+    /**
+     * Page of the session list: the sessions older than beforeId, newest first. Keyed by id rather than by offset, so
+     * every page is a short index range scan, however deep into the list.
+     */
+    public Cursor getSessionListPage(long beforeId, int limit) {
         return database.query(
                 SQLiteHelperImpl.TABLE_SESSIONS,
-                SQLiteHelperImpl.ALL_COLUMNS,
-                "",
+                LIST_COLUMNS,
+                SQLiteHelperImpl.FIELD_ID + " < ?",
+                new String[]{Long.toString(beforeId)},
+                null,
                 null,
+                SQLiteHelperImpl.FIELD_ID + " DESC",
+                Integer.toString(limit));
+    }
+
+    /**
+     * @return the session list rows of the sessions with id from fromId on, newest first.
+     */
+    public Cursor getSessionListFrom(long fromId) {
+        return database.query(
+                SQLiteHelperImpl.TABLE_SESSIONS,
+                LIST_COLUMNS,
+                SQLiteHelperImpl.FIELD_ID + " >= ?",
+                new String[]{Long.toString(fromId)},
                 null,
                 null,
                 SQLiteHelperImpl.FIELD_ID + " DESC");
     }
 
+    /**
+     * @return the session list rows of the given sessions; the ones which do not exist are missing.
+     */
+    public Cursor getSessionListRows(long[] ids) {
+        StringBuilder selection = new StringBuilder(SQLiteHelperImpl.FIELD_ID).append(" IN (");
+        String[] selectionArgs = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            selection.append(i == 0 ? "?" : ", ?");
+            selectionArgs[i] = Long.toString(ids[i]);
+        }
+        selection.append(")");
+        return database.query(
+                SQLiteHelperImpl.TABLE_SESSIONS,
+                LIST_COLUMNS,
+                selection.toString(),
+                selectionArgs,
+                null,
+                null,
+                SQLiteHelperImpl.FIELD_ID + " DESC");
+    }
+
+    /**
+     * @return sessions logged but not yet uploaded, oldest first. Served by the state index: cheap however many
+     *         uploaded sessions the table has accumulated.
+     */
     public List<RecordingSession> getRecordingSessionsToUpload() {
         Cursor cursor = database.query(
                 SQLiteHelperImpl.TABLE_SESSIONS,
                 SQLiteHelperImpl.ALL_COLUMNS,
-                SQLiteHelperImpl.FIELD_STATE + " = '" + RecordingSession.State.LOGGED.name() + "'",
-                null, null, null, null);
+                UPLOAD_SELECTION,
+                new String[]{RecordingSession.State.LOGGED.name()}, null, null, UPLOAD_ORDER);
         List<RecordingSession> recordingSessions = new ArrayList<RecordingSession>();
         while (cursor.moveToNext()) {
             recordingSessions.add(cursorToSession(cursor));
@@ -132,25 +181,54 @@ public class RecordingSessionDAO {
         return recordingSessions;
     }
 
-    public void markUploaded(long[] ids) {
-        ContentValues cv = new ContentValues();
-        cv.put(SQLiteHelperImpl.FIELD_STATE, RecordingSession.State.UPLOADED.name());
-        if (ids == null || ids.length == 0) {
-            return; // no data to update.
+    /**
+     * @return sessions done logging with id greater than afterId, oldest first -- the ones not merged into the defect
+     *         clusters yet (see SessionMergeService). A range scan of the primary key.
+     */
+    public List<RecordingSession> getRecordingSessionsToMerge(long afterId) {
+        Cursor cursor = database.query(
+                SQLiteHelperImpl.TABLE_SESSIONS,
+                SQLiteHelperImpl.ALL_COLUMNS,
+                SQLiteHelperImpl.FIELD_ID + " > ? AND " + SQLiteHelperImpl.FIELD_STATE + " <> ?",
+                new String[]{Long.toString(afterId), RecordingSession.State.LOGGING.name()},
+                null, null, SQLiteHelperImpl.FIELD_ID);
+        List<RecordingSession> recordingSessions = new ArrayList<RecordingSession>();
+        while (cursor.moveToNext()) {
+            recordingSessions.add(cursorToSession(cursor));
         }
+        cursor.close();
+
+        return recordingSessions;
+    }
 
-        StringBuilder idsString = new StringBuilder(Long.toString(ids[0])); // no issue - see check above.
-        for (int i = 1; i < ids.length; i++) {
-            //starting from the second
-            idsString.append(",").append(ids[i]);
+    public void markUploaded(long[] ids) {
+        writer.changeState(ids, RecordingSession.State.UPLOADED);
+        for (long id : ids) {
+            notifyChange(ContentUris.withAppendedId(SESSIONS_URI, id));
         }
+    }
 
-        database.update(
-                SQLiteHelperImpl.TABLE_SESSIONS,
-                cv,
-                SQLiteHelperImpl.FIELD_ID + " in (" + idsString.toString() + ") ",
-                null);
+    public void markFailed(long sessionId) {
+        writer.changeState(new long[]{sessionId}, RecordingSession.State.FAILED);
+        notifyChange(ContentUris.withAppendedId(SESSIONS_URI, sessionId));
+    }
 
+    /**
+     * Persist the number of bytes of the session data file acknowledged by the server, to resume the upload from.
+     */
+    public void updateUploadOffset(long sessionId, long uploadOffset) {
+        writer.updateUploadOffset(sessionId, uploadOffset);
+    }
+
+    /**
+     * Link the raw accelerometer capture to the session, see RawCaptureDetector.
+     */
+    public void setRawCapture(long sessionId, String capturePath, String segments) {
+        writer.setRawCapture(sessionId, capturePath, segments);
+    }
+
+    private void notifyChange(Uri uri) {
+        context.getContentResolver().notifyChange(uri, null);
     }
 
     private RecordingSession cursorToSession(Cursor cursor) {
@@ -162,25 +240,14 @@ public class RecordingSessionDAO {
         sess.setState(RecordingSession.State.valueOf(cursor.getString(3)));
         sess.setDataFileFullPath(cursor.getString(4));
         sess.setEventsLogged(cursor.getLong(5));
+        sess.setUploadOffset(cursor.getLong(6));
+        sess.setFileSize(cursor.getLong(7));
+        sess.setChecksum(cursor.getString(8));
+        sess.setStatistics(SessionStatistics.restore(cursor.getLong(5), cursor.getDouble(9), cursor.getDouble(10),
+                cursor.getString(11), cursor.getDouble(12)));
+        sess.setRawCapturePath(cursor.getString(13));
+        sess.setRawSegments(cursor.getString(14));
 
         return sess;
     }
-
-    public static JSONObject sessionToJSONObject(RecordingSession session) throws JSONException {
-        JSONObject object = new JSONObject();
-        object.put("id", session.getId());
-        object.put("startTime", Formats.formatJsonDate(session.getStartTime()));
-        object.put("endTime", Formats.formatJsonDate(session.getEndTime()));
-        object.put("eventsLogged", session.getEventsLogged());
-
-        // TODO: implement this effectively, please!
-        try {
-            object.put("data", IOUtils.toString(new FileInputStream(session.getDataFileFullPath())));
-        } catch (IOException e) {
-            Log.e("Error reading data for the session " + session.getId(), e);
-            object.put("data", "");
-        }
-
-        return object;
-    }
 }
@@ -10,7 +10,8 @@ import com.augmentari.roadworks.sensorlogger.util.Log;
  */
 public class SQLiteHelperImpl extends SQLiteOpenHelper {
 
-    public static final int DB_VERSION = 1;
+    // follows the migrations, so appending one is all it takes to upgrade installed databases
+    public static final int DB_VERSION = SchemaMigrations.LATEST_VERSION;
     public static final String DB_FILENAME = "SensorLogger.db";
 
     public static final String TABLE_SESSIONS = "session";
@@ -20,14 +21,18 @@ public class SQLiteHelperImpl extends SQLiteOpenHelper {
     public static final String FIELD_END_TIME = "end_time";
     public static final String FIELD_DATA_FILE_PATH = "data_file_path";
     public static final String FIELD_EVENTS_LOGGED_COUNT = "events_logged";
+    public static final String FIELD_UPLOAD_OFFSET = "upload_offset";
+    public static final String FIELD_FILE_SIZE = "file_size";
+    public static final String FIELD_CHECKSUM = "checksum";
+    public static final String FIELD_SEVERITY_SUM = "severity_sum";
+    public static final String FIELD_SEVERITY_MAX = "severity_max";
+    public static final String FIELD_SEVERITY_HISTOGRAM = "severity_histogram";
+    public static final String FIELD_DISTANCE = "distance";
+    public static final String FIELD_RAW_CAPTURE_PATH = "raw_capture_path";
+    public static final String FIELD_RAW_SEGMENTS = "raw_segments";
 
-    public static final String DB_CREATE_CODE = "CREATE TABLE " + TABLE_SESSIONS + " ( "
-            + FIELD_ID + " integer primary key autoincrement, "
-            + FIELD_START_TIME + " integer, "
-            + FIELD_END_TIME + " integer, "
-            + FIELD_STATE + " text, "
-            + FIELD_DATA_FILE_PATH + " text, "
-            + FIELD_EVENTS_LOGGED_COUNT + " integer)";
+    public static final String INDEX_STATE = "session_state_idx";
+    public static final String INDEX_START_TIME = "session_start_time_idx";
 
     public static final String[] ALL_COLUMNS = {
             FIELD_ID,
@@ -35,7 +40,16 @@ public class SQLiteHelperImpl extends SQLiteOpenHelper {
             FIELD_END_TIME,
             FIELD_STATE,
             FIELD_DATA_FILE_PATH,
-            FIELD_EVENTS_LOGGED_COUNT
+            FIELD_EVENTS_LOGGED_COUNT,
+            FIELD_UPLOAD_OFFSET,
+            FIELD_FILE_SIZE,
+            FIELD_CHECKSUM,
+            FIELD_SEVERITY_SUM,
+            FIELD_SEVERITY_MAX,
+            FIELD_SEVERITY_HISTOGRAM,
+            FIELD_DISTANCE,
+            FIELD_RAW_CAPTURE_PATH,
+            FIELD_RAW_SEGMENTS
     };
 
     public SQLiteHelperImpl(Context context) {
@@ -44,14 +58,21 @@ public class SQLiteHelperImpl extends SQLiteOpenHelper {
 
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
-        sqLiteDatabase.execSQL(DB_CREATE_CODE);
+        SchemaMigrations.create(new AndroidSqlBackend(sqLiteDatabase));
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!db.isReadOnly()) {
+            // readers (the session list) do not block the writers (logging, upload), and commits are cheaper
+            db.enableWriteAheadLogging();
+        }
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        Log.w("Upgrading database from version " + oldVersion + " to "
-                + newVersion + ", which will destroy all old data");
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_SESSIONS);
-        onCreate(db);
+        Log.i("Upgrading database from version " + oldVersion + " to " + newVersion);
+        SchemaMigrations.upgrade(new AndroidSqlBackend(db), oldVersion, newVersion);
     }
 }
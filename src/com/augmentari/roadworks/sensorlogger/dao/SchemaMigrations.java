@@ -0,0 +1,97 @@
+package com.augmentari.roadworks.sensorlogger.dao;
+
+/**
+ * Versioned schema of the session table. A new database gets the version 1 table and then every migration, the same
+ * path an installed one takes when upgraded, so there is just one definition of the current schema. Migrations only
+ * add to the schema: sessions not yet uploaded must survive an app update.
+ * <p/>
+ * To change the schema, append a migration; never edit one which has been released.
+ */
+public class SchemaMigrations {
+
+    static final String CREATE_V1 = "CREATE TABLE " + SQLiteHelperImpl.TABLE_SESSIONS + " ( "
+            + SQLiteHelperImpl.FIELD_ID + " integer primary key autoincrement, "
+            + SQLiteHelperImpl.FIELD_START_TIME + " integer, "
+            + SQLiteHelperImpl.FIELD_END_TIME + " integer, "
+            + SQLiteHelperImpl.FIELD_STATE + " text, "
+            + SQLiteHelperImpl.FIELD_DATA_FILE_PATH + " text, "
+            + SQLiteHelperImpl.FIELD_EVENTS_LOGGED_COUNT + " integer)";
+
+    // MIGRATIONS[i] takes the schema from version i + 1 to version i + 2
+    private static final String[][] MIGRATIONS = {
+            // 1 -> 2: resumable uploads
+            {
+                    "ALTER TABLE " + SQLiteHelperImpl.TABLE_SESSIONS
+                            + " ADD COLUMN " + SQLiteHelperImpl.FIELD_UPLOAD_OFFSET + " integer not null default 0"
+            },
+            // 2 -> 3: file size and checksum, indexes for the upload query and the session list
+            {
+                    "ALTER TABLE " + SQLiteHelperImpl.TABLE_SESSIONS
+                            + " ADD COLUMN " + SQLiteHelperImpl.FIELD_FILE_SIZE + " integer not null default 0",
+                    "ALTER TABLE " + SQLiteHelperImpl.TABLE_SESSIONS
+                            + " ADD COLUMN " + SQLiteHelperImpl.FIELD_CHECKSUM + " text",
+                    "CREATE INDEX " + SQLiteHelperImpl.INDEX_STATE
+                            + " ON " + SQLiteHelperImpl.TABLE_SESSIONS + " (" + SQLiteHelperImpl.FIELD_STATE + ")",
+                    "CREATE INDEX " + SQLiteHelperImpl.INDEX_START_TIME
+                            + " ON " + SQLiteHelperImpl.TABLE_SESSIONS + " (" + SQLiteHelperImpl.FIELD_START_TIME + ")"
+            },
+            // 3 -> 4: summary statistics
+            {
+                    "ALTER TABLE " + SQLiteHelperImpl.TABLE_SESSIONS
+                            + " ADD COLUMN " + SQLiteHelperImpl.FIELD_SEVERITY_SUM + " real not null default 0",
+                    "ALTER TABLE " + SQLiteHelperImpl.TABLE_SESSIONS
+                            + " ADD COLUMN " + SQLiteHelperImpl.FIELD_SEVERITY_MAX + " real not null default 0",
+                    "ALTER TABLE " + SQLiteHelperImpl.TABLE_SESSIONS
+                            + " ADD COLUMN " + SQLiteHelperImpl.FIELD_SEVERITY_HISTOGRAM + " text",
+                    "ALTER TABLE " + SQLiteHelperImpl.TABLE_SESSIONS
+                            + " ADD COLUMN " + SQLiteHelperImpl.FIELD_DISTANCE + " real not null default 0"
+            },
+            // 4 -> 5: raw accelerometer capture of the session
+            {
+                    "ALTER TABLE " + SQLiteHelperImpl.TABLE_SESSIONS
+                            + " ADD COLUMN " + SQLiteHelperImpl.FIELD_RAW_CAPTURE_PATH + " text",
+                    "ALTER TABLE " + SQLiteHelperImpl.TABLE_SESSIONS
+                            + " ADD COLUMN " + SQLiteHelperImpl.FIELD_RAW_SEGMENTS + " text"
+            }
+    };
+
+    public static final int LATEST_VERSION = MIGRATIONS.length + 1;
+
+    private SchemaMigrations() {
+    }
+
+    /**
+     * Create the schema of the latest version in an empty database.
+     */
+    public static void create(SqlBackend backend) {
+        backend.beginTransaction();
+        try {
+            backend.execSQL(CREATE_V1);
+            upgrade(backend, 1, LATEST_VERSION);
+            backend.setTransactionSuccessful();
+        } finally {
+            backend.endTransaction();
+        }
+    }
+
+    /**
+     * Run the migrations from oldVersion to newVersion, all in one transaction: either the database ends up in the new
+     * version, or it is left untouched.
+     */
+    public static void upgrade(SqlBackend backend, int oldVersion, int newVersion) {
+        if (oldVersion < 1 || newVersion > LATEST_VERSION || oldVersion > newVersion) {
+            throw new IllegalArgumentException("No migration from version " + oldVersion + " to " + newVersion);
+        }
+        backend.beginTransaction();
+        try {
+            for (int version = oldVersion; version < newVersion; version++) {
+                for (String sql : MIGRATIONS[version - 1]) {
+                    backend.execSQL(sql);
+                }
+            }
+            backend.setTransactionSuccessful();
+        } finally {
+            backend.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.augmentari.roadworks.sensorlogger.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The part of the session list loaded so far, newest session first. Rows are loaded a page at a time, keyed by id
+ * (see {@link RecordingSessionDAO#getSessionListPage}), so loading the next page costs the same however far down the
+ * list is scrolled; rows changed later are merged in one by one instead of reloading everything.
+ * <p/>
+ * Every row is an array of {@link RecordingSessionDAO#LIST_COLUMNS} values, with the id (a Long) first. Not thread
+ * safe.
+ */
+public class SessionListPages {
+
+    public static final int PAGE_SIZE = 50;
+
+    private final List<Object[]> rows = new ArrayList<Object[]>();
+    private boolean complete = false;
+
+    public int size() {
+        return rows.size();
+    }
+
+    public boolean isEmpty() {
+        return rows.isEmpty();
+    }
+
+    /**
+     * @return true if the oldest session has been loaded, so there is no next page.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return id of the newest session loaded; the list must not be empty.
+     */
+    public long getNewestId() {
+        return id(rows.get(0));
+    }
+
+    /**
+     * @return id of the oldest session loaded; the list must not be empty.
+     */
+    public long getOldestId() {
+        return id(rows.get(rows.size() - 1));
+    }
+
+    /**
+     * @return id to load the next page before: the oldest id loaded, or Long.MAX_VALUE for the first page.
+     */
+    public long getNextPageBeforeId() {
+        return rows.isEmpty() ? Long.MAX_VALUE : getOldestId();
+    }
+
+    /**
+     * @return whether the session is within the loaded range of ids, so that a change to it has to be merged.
+     */
+    public boolean isLoaded(long id) {
+        return !rows.isEmpty() && id >= getOldestId() && id <= getNewestId();
+    }
+
+    /**
+     * Append the next page, the sessions older than the ones loaded.
+     *
+     * @param requested number of rows which were asked for; a shorter page is the last one.
+     */
+    public void addPage(List<Object[]> page, int requested) {
+        for (Object[] row : page) {
+            if (!rows.isEmpty() && id(row) >= getOldestId()) {
+                throw new IllegalArgumentException("Page is not older than the loaded rows: " + id(row));
+            }
+            rows.add(row);
+        }
+        complete = page.size() < requested;
+    }
+
+    /**
+     * Replace all the loaded rows, keeping whether the oldest session has been loaded.
+     */
+    public void replace(List<Object[]> reloaded) {
+        rows.clear();
+        rows.addAll(reloaded);
+    }
+
+    /**
+     * Replace the loaded rows with the same ids, insert the new ones in place.
+     */
+    public void merge(List<Object[]> changed) {
+        for (Object[] row : changed) {
+            int index = indexOf(id(row));
+            if (index >= 0) {
+                rows.set(index, row);
+            } else {
+                rows.add(-index - 1, row);
+            }
+        }
+    }
+
+    /**
+     * Remove the session, if loaded.
+     */
+    public void remove(long id) {
+        int index = indexOf(id);
+        if (index >= 0) {
+            rows.remove(index);
+        }
+    }
+
+    public Object[] get(int index) {
+        return rows.get(index);
+    }
+
+    /**
+     * @return index of the session, or (-(insertion point) - 1) if not loaded.
+     */
+    int indexOf(long id) {
+        // rows are sorted by id, descending
+        int low = 0;
+        int high = rows.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleId = id(rows.get(middle));
+            if (middleId > id) {
+                low = middle + 1;
+            } else if (middleId < id) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private static long id(Object[] row) {
+        return (Long) row[0];
+    }
+}
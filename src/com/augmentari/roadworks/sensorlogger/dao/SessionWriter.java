@@ -0,0 +1,160 @@
+package com.augmentari.roadworks.sensorlogger.dao;
+
+import com.augmentari.roadworks.model.RecordingSession;
+import com.augmentari.roadworks.model.SessionStatistics;
+
+/**
+ * All the writes to the session table. Statements are compiled once, on first use, and then only re-bound; operations
+ * touching several rows run in a single transaction, so SQLite syncs the journal once rather than once per row.
+ * <p/>
+ * Thread safe: the compiled statements keep their bindings between bind and execute, so every write holds the lock of
+ * the writer. Upload workers report progress from several threads at once.
+ */
+public class SessionWriter {
+
+    private static final String SQL_CHANGE_STATE_WHERE_STATE = "UPDATE " + SQLiteHelperImpl.TABLE_SESSIONS
+            + " SET " + SQLiteHelperImpl.FIELD_STATE + " = ? WHERE " + SQLiteHelperImpl.FIELD_STATE + " = ?";
+
+    private static final String SQL_INSERT = "INSERT INTO " + SQLiteHelperImpl.TABLE_SESSIONS + " ("
+            + SQLiteHelperImpl.FIELD_DATA_FILE_PATH + ", "
+            + SQLiteHelperImpl.FIELD_START_TIME + ", "
+            + SQLiteHelperImpl.FIELD_STATE + ") VALUES (?, ?, ?)";
+
+    private static final String SQL_FINISH = "UPDATE " + SQLiteHelperImpl.TABLE_SESSIONS + " SET "
+            + SQLiteHelperImpl.FIELD_END_TIME + " = ?, "
+            + SQLiteHelperImpl.FIELD_EVENTS_LOGGED_COUNT + " = ?, "
+            + SQLiteHelperImpl.FIELD_FILE_SIZE + " = ?, "
+            + SQLiteHelperImpl.FIELD_CHECKSUM + " = ?, "
+            + SQLiteHelperImpl.FIELD_SEVERITY_SUM + " = ?, "
+            + SQLiteHelperImpl.FIELD_SEVERITY_MAX + " = ?, "
+            + SQLiteHelperImpl.FIELD_SEVERITY_HISTOGRAM + " = ?, "
+            + SQLiteHelperImpl.FIELD_DISTANCE + " = ?, "
+            + SQLiteHelperImpl.FIELD_STATE + " = ? WHERE " + SQLiteHelperImpl.FIELD_ID + " = ?";
+
+    private static final String SQL_CHANGE_STATE = "UPDATE " + SQLiteHelperImpl.TABLE_SESSIONS
+            + " SET " + SQLiteHelperImpl.FIELD_STATE + " = ? WHERE " + SQLiteHelperImpl.FIELD_ID + " = ?";
+
+    private static final String SQL_UPDATE_UPLOAD_OFFSET = "UPDATE " + SQLiteHelperImpl.TABLE_SESSIONS
+            + " SET " + SQLiteHelperImpl.FIELD_UPLOAD_OFFSET + " = ? WHERE " + SQLiteHelperImpl.FIELD_ID + " = ?";
+
+    private static final String SQL_SET_RAW_CAPTURE = "UPDATE " + SQLiteHelperImpl.TABLE_SESSIONS + " SET "
+            + SQLiteHelperImpl.FIELD_RAW_CAPTURE_PATH + " = ?, "
+            + SQLiteHelperImpl.FIELD_RAW_SEGMENTS + " = ? WHERE " + SQLiteHelperImpl.FIELD_ID + " = ?";
+
+    private final SqlBackend backend;
+
+    private SqlBackend.Statement changeStateWhereState;
+    private SqlBackend.Statement insert;
+    private SqlBackend.Statement finish;
+    private SqlBackend.Statement changeState;
+    private SqlBackend.Statement updateUploadOffset;
+    private SqlBackend.Statement setRawCapture;
+
+    public SessionWriter(SqlBackend backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Insert a new session in LOGGING state. Sessions left in LOGGING state (the app was killed while logging) are
+     * changed to FAILED in the same transaction.
+     *
+     * @return id of the new session.
+     */
+    public synchronized long startSession(String dataFilePath, long startTime) {
+        if (changeStateWhereState == null) {
+            changeStateWhereState = backend.compileStatement(SQL_CHANGE_STATE_WHERE_STATE);
+            insert = backend.compileStatement(SQL_INSERT);
+        }
+
+        backend.beginTransaction();
+        try {
+            changeStateWhereState.bindString(1, RecordingSession.State.FAILED.name());
+            changeStateWhereState.bindString(2, RecordingSession.State.LOGGING.name());
+            changeStateWhereState.executeUpdateDelete();
+
+            insert.bindString(1, dataFilePath);
+            insert.bindLong(2, startTime);
+            insert.bindString(3, RecordingSession.State.LOGGING.name());
+            long id = insert.executeInsert();
+
+            backend.setTransactionSuccessful();
+            return id;
+        } finally {
+            backend.endTransaction();
+        }
+    }
+
+    /**
+     * @param fileSize   size of the finished data file, in bytes.
+     * @param checksum   checksum of the finished data file, see {@link RecordingSession#getChecksum()}.
+     * @param statistics summary of the session; the number of events logged is taken from there.
+     */
+    public synchronized void finishSession(long sessionId, long endTime, long fileSize, String checksum,
+                              SessionStatistics statistics) {
+        if (finish == null) {
+            finish = backend.compileStatement(SQL_FINISH);
+        }
+        finish.bindLong(1, endTime);
+        finish.bindLong(2, statistics.getCount());
+        finish.bindLong(3, fileSize);
+        finish.bindString(4, checksum);
+        finish.bindDouble(5, statistics.getSeveritySum());
+        finish.bindDouble(6, statistics.getSeverityMax());
+        finish.bindString(7, statistics.encodeHistogram());
+        finish.bindDouble(8, statistics.getDistanceMeters());
+        finish.bindString(9, RecordingSession.State.LOGGED.name());
+        finish.bindLong(10, sessionId);
+        finish.executeUpdateDelete();
+    }
+
+    /**
+     * Move the sessions to the given state, in a single transaction.
+     *
+     * @return number of sessions changed.
+     */
+    public synchronized int changeState(long[] sessionIds, RecordingSession.State state) {
+        if (sessionIds == null || sessionIds.length == 0) {
+            return 0;
+        }
+        if (changeState == null) {
+            changeState = backend.compileStatement(SQL_CHANGE_STATE);
+        }
+
+        int changed = 0;
+        backend.beginTransaction();
+        try {
+            changeState.bindString(1, state.name());
+            for (long sessionId : sessionIds) {
+                changeState.bindLong(2, sessionId);
+                changed += changeState.executeUpdateDelete();
+            }
+            backend.setTransactionSuccessful();
+        } finally {
+            backend.endTransaction();
+        }
+        return changed;
+    }
+
+    public synchronized void updateUploadOffset(long sessionId, long uploadOffset) {
+        if (updateUploadOffset == null) {
+            updateUploadOffset = backend.compileStatement(SQL_UPDATE_UPLOAD_OFFSET);
+        }
+        updateUploadOffset.bindLong(1, uploadOffset);
+        updateUploadOffset.bindLong(2, sessionId);
+        updateUploadOffset.executeUpdateDelete();
+    }
+
+    /**
+     * @param capturePath directory of the raw capture of the session.
+     * @param segments    segment list of the capture, see {@link RecordingSession#getRawSegments()}.
+     */
+    public synchronized void setRawCapture(long sessionId, String capturePath, String segments) {
+        if (setRawCapture == null) {
+            setRawCapture = backend.compileStatement(SQL_SET_RAW_CAPTURE);
+        }
+        setRawCapture.bindString(1, capturePath);
+        setRawCapture.bindString(2, segments);
+        setRawCapture.bindLong(3, sessionId);
+        setRawCapture.executeUpdateDelete();
+    }
+}
@@ -0,0 +1,43 @@
+package com.augmentari.roadworks.sensorlogger.dao;
+
+/**
+ * The few things the session writes and the schema migrations need from the database: precompiled statements, plain
+ * SQL and transactions. Implemented on top of SQLiteDatabase in the app (see {@link AndroidSqlBackend}) and on top of
+ * JDBC in the tests, so that {@link SessionWriter} and {@link SchemaMigrations} run against a real SQLite in both.
+ */
+public interface SqlBackend {
+
+    /**
+     * A precompiled statement; compiled once and executed many times with different bindings. Indexes are 1-based.
+     */
+    public interface Statement {
+        void bindLong(int index, long value);
+
+        void bindDouble(int index, double value);
+
+        void bindString(int index, String value);
+
+        /**
+         * @return row id of the inserted row.
+         */
+        long executeInsert();
+
+        /**
+         * @return number of rows affected.
+         */
+        int executeUpdateDelete();
+    }
+
+    Statement compileStatement(String sql);
+
+    /**
+     * Execute a single statement returning no data, like CREATE or ALTER.
+     */
+    void execSQL(String sql);
+
+    void beginTransaction();
+
+    void setTransactionSuccessful();
+
+    void endTransaction();
+}
@@ -1,15 +1,22 @@
 package com.augmentari.roadworks.sensorlogger.detector;
 
 import android.content.Context;
+import android.content.Intent;
 import android.preference.PreferenceManager;
 import android.widget.Toast;
 import com.augmentari.roadworks.model.RecordingSession;
+import com.augmentari.roadworks.model.SessionStatistics;
 import com.augmentari.roadworks.sensorlogger.R;
-import com.augmentari.roadworks.sensorlogger.component.CircularBuffer;
+import com.augmentari.roadworks.sensorlogger.component.SampleBuffer;
+import com.augmentari.roadworks.sensorlogger.component.SensorClock;
 import com.augmentari.roadworks.sensorlogger.dao.RecordingSessionDAO;
+import com.augmentari.roadworks.sensorlogger.format.BackgroundSessionWriter;
 import com.augmentari.roadworks.sensorlogger.service.SensorLoggerService;
+import com.augmentari.roadworks.sensorlogger.service.SessionMergeService;
+import com.augmentari.roadworks.sensorlogger.spatial.DefectStore;
 import com.augmentari.roadworks.sensorlogger.util.CloseUtils;
 import com.augmentari.roadworks.sensorlogger.util.Formats;
+import com.augmentari.roadworks.sensorlogger.util.Log;
 
 import java.io.*;
 import java.text.MessageFormat;
@@ -20,26 +27,39 @@ import java.util.Date;
  * stored on the filesystem.
  */
 public class FileLoggingDetector implements SensorLoggerService.AccelerometerChangeListener {
-    // size of the buffer for the file stream; .5M for a start
-    public static final int BUFFER_SIZE = 512 * 1024;
     public static final double MINIMAL_SEVERITY_TO_RECORD = 2d;
 
-    private long potholesLogged;
-
-    private PrintWriter fileResultsWriter;
+    // null when there is no session, or its file could not be opened. Opened and closed on the main thread
+    private volatile BackgroundSessionWriter fileResultsWriter;
+    // set on the main thread when the session starts: the processing thread then takes the writer over and starts new
+    // statistics with its next batch, so that the events of the session are written and counted from the same one on
+    private volatile boolean sessionPending = false;
+    private BackgroundSessionWriter sessionWriter = null;
+    // updated on the processing thread only, see SessionStatistics
+    private volatile SessionStatistics statistics = new SessionStatistics();
+    // loaded off the main thread, see openDefectStore(); null until then, or if it could not be opened
+    private volatile DefectStore defectStore;
+    private Thread defectStoreLoader = null;
     private final RecordingSessionDAO recordingSessionDAO;
-    private RecordingSession currentSession = null;
+    private volatile RecordingSession currentSession = null;
     private Context context;
+    // null until the service is connected; events are then stamped with the time they are processed at
+    private volatile SensorClock sensorClock = null;
     private float threshold = 1;
     private float previousAccelerometerValue;
 
+    // without a fix (GPS bypassed, or none yet) the location is 0,0: kept out of the distance and of the defect index
+    private boolean startHasFix;
     private double startLatitude;
     private double startLongitude;
     private double startSpeed;
+    private float startBearing;
 
+    private boolean endHasFix;
     private double endLatitude;
     private double endLongitude;
     private double endSpeed;
+    private float endBearing;
     private double cumulativeSeverity = 0d;
 
 
@@ -49,26 +69,47 @@ public class FileLoggingDetector implements SensorLoggerService.AccelerometerCha
     }
 
     @Override
-    public void onAccelerometerChanged(float lastAccelFilteredDiffValue, CircularBuffer wholeBuffer, double latitude, double longitude, double speed) {
-        if (lastAccelFilteredDiffValue > threshold && previousAccelerometerValue < threshold) {
-            cumulativeSeverity = 0d;
-            startLatitude = latitude;
-            startLongitude = longitude;
-            startSpeed = speed;
+    public void onAccelerometerBatch(float[] values, long[] timestamps, int count, SampleBuffer history) {
+        if (sessionPending) {
+            sessionPending = false;
+            sessionWriter = fileResultsWriter;
+            statistics = new SessionStatistics();
         }
 
-        if (lastAccelFilteredDiffValue > threshold) {
-            cumulativeSeverity += lastAccelFilteredDiffValue - threshold;
-        }
+        for (int i = 0; i < count; i++) {
+            float lastAccelFilteredDiffValue = values[i];
+
+            if (lastAccelFilteredDiffValue > threshold && previousAccelerometerValue < threshold) {
+                cumulativeSeverity = 0d;
+                int historyIndex = count - 1 - i;
+                startHasFix = history.hasFix(historyIndex);
+                startLatitude = history.getLatitude(historyIndex);
+                startLongitude = history.getLongitude(historyIndex);
+                startSpeed = history.getSpeed(historyIndex);
+                startBearing = history.getBearing(historyIndex);
+            }
 
-        if (lastAccelFilteredDiffValue < threshold && previousAccelerometerValue > threshold) {
-            endLatitude = latitude;
-            endLongitude = longitude;
-            endSpeed = speed;
-            recordReading();
+            if (lastAccelFilteredDiffValue > threshold) {
+                cumulativeSeverity += lastAccelFilteredDiffValue - threshold;
+            }
+
+            if (lastAccelFilteredDiffValue < threshold && previousAccelerometerValue > threshold) {
+                int historyIndex = count - 1 - i;
+                endHasFix = history.hasFix(historyIndex);
+                endLatitude = history.getLatitude(historyIndex);
+                endLongitude = history.getLongitude(historyIndex);
+                endSpeed = history.getSpeed(historyIndex);
+                endBearing = history.getBearing(historyIndex);
+                recordReading(timestamps[i]);
+            }
+
+            previousAccelerometerValue = lastAccelFilteredDiffValue;
         }
 
-        previousAccelerometerValue = lastAccelFilteredDiffValue;
+        if (count > 0) {
+            // newest position of the batch; the distance is summed from these
+            statistics.addPosition(history.getLatitude(0), history.getLongitude(0), history.hasFix(0));
+        }
     }
 
     @Override
@@ -82,38 +123,73 @@ public class FileLoggingDetector implements SensorLoggerService.AccelerometerCha
             Toast.makeText(context, "Wrong setting for detection threshold. Defaulting to 2.", Toast.LENGTH_LONG).show();
         }
 
-        try {
-            potholesLogged = 0;
+        openDefectStore();
 
+        fileResultsWriter = null;
+        try {
             currentSession = new RecordingSession();
             currentSession.setStartTime(new Date());
 
-            String shortFileName = "data" + currentSession.getStartTime().getTime() + ".log";
+            String shortFileName = "data" + currentSession.getStartTime().getTime() + ".rws";
             currentSession.setDataFileFullPath(new File(context.getFilesDir(),
                     shortFileName).getAbsolutePath());
             recordingSessionDAO.open();
             currentSession = recordingSessionDAO.startNewRecordingSession(currentSession);
 
-            fileResultsWriter = new PrintWriter(
-                    new BufferedWriter(
-                            new OutputStreamWriter(context.openFileOutput(shortFileName, Context.MODE_PRIVATE))
-                            , BUFFER_SIZE));
-            writeHeading();
-        } catch (FileNotFoundException e) {
-            CloseUtils.closeStream(fileResultsWriter);
+            // written on a thread of its own, synced every couple of seconds: see BackgroundSessionWriter
+            FileOutputStream fos = context.openFileOutput(shortFileName, Context.MODE_PRIVATE);
+            try {
+                fileResultsWriter = new BackgroundSessionWriter(fos, currentSession.getId());
+            } catch (IOException e) {
+                CloseUtils.closeStream(fos);
+                throw e;
+            }
+        } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            // without a writer, if it failed to open
+            sessionPending = true;
         }
     }
 
     @Override
     public void onSessionClosed() {
-        CloseUtils.closeStream(fileResultsWriter);
+        // the processing thread has been stopped by now, so the statistics are final; unless it has not had a batch
+        // of this session at all
+        SessionStatistics finalStatistics = sessionPending ? new SessionStatistics() : statistics;
+        sessionPending = false;
+        BackgroundSessionWriter writer = fileResultsWriter;
+        fileResultsWriter = null;
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                Log.e("Error writing the session file", e);
+            }
+            if (writer.getEventsDropped() > 0) {
+                Log.w("Events not written to the session file: " + writer.getEventsDropped());
+            }
+        }
+        DefectStore store = defectStore;
+        if (store != null) {
+            store.flush();
+            if (store.getRecordsDropped() > 0) {
+                Log.w("Defects not written to the defect index: " + store.getRecordsDropped());
+            }
+        }
 
         if (currentSession != null) {
 
             recordingSessionDAO.open();
-            recordingSessionDAO.finishSession(currentSession.getId(), potholesLogged, new Date());
+            if (writer != null) {
+                recordingSessionDAO.finishSession(currentSession.getId(), new Date(),
+                        writer.getBytesWritten(), writer.getChecksum(), finalStatistics);
+            } else {
+                // the data file was never opened, there is nothing to upload
+                recordingSessionDAO.markFailed(currentSession.getId());
+            }
             CloseUtils.closeDao(recordingSessionDAO);
+            context.startService(new Intent(context, SessionMergeService.class));
 
             Toast.makeText(
                     context,
@@ -121,32 +197,95 @@ public class FileLoggingDetector implements SensorLoggerService.AccelerometerCha
                             context.getString(R.string.fileCollectedSizeMessage),
                             Formats.formatReadableBytesSize(new File(currentSession.getDataFileFullPath()).length())),
                     Toast.LENGTH_LONG).show();
+            currentSession = null;
         }
     }
 
-    private void writeHeading() {
-        fileResultsWriter.println("Time, Severity, Lat, Lon, Speed");
+    /**
+     * Stamp the events with the time of the samples rather than with the time they get processed at: samples may be
+     * delivered in batches, seconds after they were taken.
+     */
+    public void setSensorClock(SensorClock sensorClock) {
+        this.sensorClock = sensorClock;
     }
 
-    private void recordReading() {
+    private void recordReading(long timestampNanos) {
 
         if (cumulativeSeverity < MINIMAL_SEVERITY_TO_RECORD) {
             // despite this being over the threshold, we skip it from recording since it is quite minimal
             return;
         }
 
-        StringBuilder sb = new StringBuilder();
-        sb.append(System.currentTimeMillis()) //as we need to re-sample the actual sequence to a constant sample rate
-                .append(",").append(cumulativeSeverity)
-                .append(",").append((startLatitude + endLatitude) / 2)
-                .append(",").append((startLongitude + endLongitude) / 2)
-                .append(",").append((startSpeed + endSpeed) / 2);
-        fileResultsWriter.println(sb.toString());
+        BackgroundSessionWriter writer = sessionWriter;
+        if (writer == null) {
+            return;
+        }
+        SensorClock clock = sensorClock;
+        long timeMillis = clock != null ? clock.toWallMillis(timestampNanos) : System.currentTimeMillis();
+        double latitude = (startLatitude + endLatitude) / 2;
+        double longitude = (startLongitude + endLongitude) / 2;
+        if (startHasFix != endHasFix) {
+            // the fix came in the middle of the event: halfway to 0,0 is nowhere
+            latitude = startHasFix ? startLatitude : endLatitude;
+            longitude = startHasFix ? startLongitude : endLongitude;
+        }
+        // an event is over in well under a second, so either end gives the direction; the later fix if there is one
+        float bearing = Float.isNaN(endBearing) ? startBearing : endBearing;
+        if (!writer.offer(timeMillis, cumulativeSeverity, latitude, longitude,
+                (startSpeed + endSpeed) / 2, bearing)) {
+            // the writer is behind or has failed; counted there, reported at the end of the session
+            return;
+        }
+
+        statistics.addEvent(cumulativeSeverity);
+        DefectStore store = defectStore;
+        if (store != null && (startHasFix || endHasFix)) {
+            try {
+                store.add(latitude, longitude, (float) cumulativeSeverity, timeMillis);
+            } catch (IOException e) {
+                Log.e("Error adding event to the defect index", e);
+            }
+        }
+    }
+
+    /**
+     * Load the defect store on a thread of its own, unless it is loaded or being loaded already: it reads the whole
+     * log, which is too slow for the main thread the sessions are started on. Defects detected before it is there are
+     * in the session file, but not in the index.
+     */
+    private void openDefectStore() {
+        if (defectStore != null || (defectStoreLoader != null && defectStoreLoader.isAlive())) {
+            return;
+        }
+        defectStoreLoader = new Thread("Defect index loader thread") {
+            @Override
+            public void run() {
+                try {
+                    defectStore = DefectStore.get(context);
+                } catch (IOException e) {
+                    // the session is still worth logging without the index; tried again with the next one
+                    Log.e("Error opening the defect index", e);
+                }
+            }
+        };
+        defectStoreLoader.start();
+    }
 
-        potholesLogged++;
+    /**
+     * @return id of the session being logged; -1 if there is none.
+     */
+    public long getCurrentSessionId() {
+        return currentSession != null ? currentSession.getId() : -1;
     }
 
     public long getPotholesLogged() {
-        return potholesLogged;
+        return statistics.getCount();
+    }
+
+    /**
+     * @return summary of the session being logged so far.
+     */
+    public SessionStatistics getStatistics() {
+        return statistics;
     }
 }
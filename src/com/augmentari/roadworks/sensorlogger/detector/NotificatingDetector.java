@@ -7,7 +7,7 @@ import android.net.Uri;
 import android.preference.PreferenceManager;
 import android.widget.Toast;
 import com.augmentari.roadworks.sensorlogger.R;
-import com.augmentari.roadworks.sensorlogger.component.CircularBuffer;
+import com.augmentari.roadworks.sensorlogger.component.SampleBuffer;
 import com.augmentari.roadworks.sensorlogger.service.SensorLoggerService;
 
 /**
@@ -32,12 +32,19 @@ public class NotificatingDetector implements SensorLoggerService.AccelerometerCh
     }
 
     @Override
-    public void onAccelerometerChanged(float lastAccelFilteredDiffValue, CircularBuffer wholeBuffer, double latitude, double longitude, double speed) {
-        if (lastAccelFilteredDiffValue > threshold && prevValue < threshold) {
-            ringtone.play();
+    public void onAccelerometerBatch(float[] values, long[] timestamps, int count, SampleBuffer history) {
+        boolean thresholdCrossed = false;
+        for (int i = 0; i < count; i++) {
+            if (values[i] > threshold && prevValue < threshold) {
+                thresholdCrossed = true;
+            }
+            prevValue = values[i];
         }
 
-        prevValue = lastAccelFilteredDiffValue;
+        // a single beep per batch is enough -- several would just overlap anyway
+        if (thresholdCrossed) {
+            ringtone.play();
+        }
     }
 
     @Override
@@ -0,0 +1,116 @@
+package com.augmentari.roadworks.sensorlogger.detector;
+
+import android.content.Context;
+import com.augmentari.roadworks.sensorlogger.component.SampleBuffer;
+import com.augmentari.roadworks.sensorlogger.dao.RecordingSessionDAO;
+import com.augmentari.roadworks.sensorlogger.format.RawSampleFormat;
+import com.augmentari.roadworks.sensorlogger.format.RawSampleSegmentWriter;
+import com.augmentari.roadworks.sensorlogger.service.SensorLoggerService;
+import com.augmentari.roadworks.sensorlogger.util.CloseUtils;
+import com.augmentari.roadworks.sensorlogger.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Optional detector which records every raw accelerometer sample (timestamp, x, y, z) of the session, so that the
+ * detection may be re-tuned at the server side. These are the samples as the sensor delivered them, before the
+ * resampling and the filters, so it has to be registered as a {@link SensorLoggerService.RawSampleListener} as well as
+ * for the sessions. Samples go to memory-mapped segment files in the directory of the session under
+ * getFilesDir() (see RawSampleFormat); when the capture is finished, the directory and the segment list are stored
+ * in the session row.
+ * <p/>
+ * The session is the one started by the {@link FileLoggingDetector}; the capture starts with the first batch of it,
+ * so it does not matter which of the two is told about the new session first.
+ */
+public class RawCaptureDetector implements SensorLoggerService.AccelerometerChangeListener,
+        SensorLoggerService.RawSampleListener {
+
+    public static final String PREF_RAW_CAPTURE = "pref_raw_capture";
+
+    private final Context context;
+    private final FileLoggingDetector sessions;
+    // set on the main thread when the session starts, taken up with the next batch
+    private volatile boolean capturePending = false;
+    private long sessionId;
+    private RawSampleSegmentWriter writer = null;
+
+    public RawCaptureDetector(Context context, FileLoggingDetector sessions) {
+        this.context = context;
+        this.sessions = sessions;
+    }
+
+    @Override
+    public void onAccelerometerBatch(float[] values, long[] timestamps, int count, SampleBuffer history) {
+        // resampled: only the sessions are taken from here, the samples come in onRawSamples()
+    }
+
+    @Override
+    public void onRawSamples(long[] timestamps, float[] xs, float[] ys, float[] zs, int count) {
+        if (capturePending) {
+            capturePending = false;
+            startCapture();
+        }
+        if (writer == null) {
+            return;
+        }
+        try {
+            for (int i = 0; i < count; i++) {
+                writer.append(timestamps[i], xs[i], ys[i], zs[i]);
+            }
+        } catch (IOException e) {
+            // most likely out of space; stop capturing rather than failing every batch, keeping what there is
+            Log.e("Error writing raw samples, raw capture stopped", e);
+            finishCapture();
+        }
+    }
+
+    @Override
+    public void onNewSessionStarted() {
+        finishCapture();
+        capturePending = true;
+    }
+
+    @Override
+    public void onSessionClosed() {
+        capturePending = false;
+        finishCapture();
+    }
+
+    private void startCapture() {
+        sessionId = sessions.getCurrentSessionId();
+        if (sessionId < 0) {
+            Log.w("No session to capture raw samples for");
+            return;
+        }
+        File directory = RawSampleFormat.captureDirectory(context.getFilesDir(), sessionId);
+        try {
+            writer = new RawSampleSegmentWriter(directory);
+        } catch (IOException e) {
+            Log.e("Could not start raw capture in " + directory, e);
+            writer = null;
+        }
+    }
+
+    private void finishCapture() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            Log.e("Error finishing raw capture", e);
+        }
+        Log.i("Raw capture finished: " + writer.getTotalSamples() + " samples in "
+                + writer.getSegmentCount() + " segments");
+
+        RecordingSessionDAO dao = new RecordingSessionDAO(context);
+        try {
+            dao.open();
+            dao.setRawCapture(sessionId, writer.getDirectory().getAbsolutePath(), writer.getSegments());
+        } finally {
+            CloseUtils.closeDao(dao);
+        }
+        writer = null;
+    }
+}
@@ -0,0 +1,233 @@
+package com.augmentari.roadworks.sensorlogger.format;
+
+import com.augmentari.roadworks.sensorlogger.util.RingSequence;
+import com.augmentari.roadworks.sensorlogger.util.RingWriterThread;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * {@link SessionFileWriter} running on a thread of its own, so that the thread recording the events never waits for
+ * the storage. Events are handed over through a bounded single-producer/single-consumer queue of preallocated
+ * columns; when the writer falls too far behind, new events are dropped and counted rather than blocking the caller.
+ * <p/>
+ * The writer thread takes the events in batches and makes them durable (flush and fsync) whenever
+ * {@code syncBytes} of blocks have been written since the last sync, or {@code syncIntervalMillis} has passed with
+ * events still unsynced -- so a crash loses at most the events of about one sync interval, however slowly they come.
+ * In between, the writer thread is parked: it is woken up by the events coming in, or when a sync is due.
+ * <p/>
+ * Exactly one thread may call {@link #offer(long, double, double, double, double, float)}.
+ */
+public class BackgroundSessionWriter implements Closeable {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 2000;
+    public static final long DEFAULT_SYNC_BYTES = 16 * 1024;
+
+    private static final int BATCH_SIZE = SessionFileFormat.BLOCK_CAPACITY;
+
+    private final SessionFileWriter writer;
+    private final FileDescriptor fd;
+    private final long syncIntervalNanos;
+    private final long syncBytes;
+
+    private final RingSequence sequence;
+    private final long[] times;
+    private final float[] severities;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final float[] speeds;
+    private final float[] bearings;
+
+    private final RingWriterThread writerThread;
+    private volatile long eventsSynced = 0;
+    private volatile long syncCount = 0;
+    private long lastSyncNanos;
+    private long bytesAtLastSync;
+
+    /**
+     * Write to a file, syncing it to the storage per the default policy. No buffering needed: the session writer hands
+     * the stream whole blocks.
+     */
+    public BackgroundSessionWriter(FileOutputStream out, long sessionId) throws IOException {
+        this(out, out.getFD(), sessionId, DEFAULT_QUEUE_CAPACITY, DEFAULT_SYNC_INTERVAL_MILLIS, DEFAULT_SYNC_BYTES);
+    }
+
+    /**
+     * Create writer, write the file header and start the writer thread.
+     *
+     * @param out                stream to write to, buffered by the caller. Gets closed with the writer.
+     * @param fd                 descriptor of the file behind the stream, to sync; null only to flush.
+     * @param queueCapacity      number of events the queue may hold, should be a power of 2.
+     * @param syncIntervalMillis longest time written events may stay unsynced.
+     * @param syncBytes          number of bytes written which triggers a sync regardless of the time.
+     */
+    public BackgroundSessionWriter(OutputStream out, FileDescriptor fd, long sessionId, int queueCapacity,
+                                   long syncIntervalMillis, long syncBytes) throws IOException {
+        this.sequence = new RingSequence(queueCapacity);
+        this.writer = new SessionFileWriter(out, sessionId);
+        this.fd = fd;
+        this.syncIntervalNanos = syncIntervalMillis * 1000 * 1000;
+        this.syncBytes = syncBytes;
+
+        times = new long[queueCapacity];
+        severities = new float[queueCapacity];
+        latitudes = new double[queueCapacity];
+        longitudes = new double[queueCapacity];
+        speeds = new float[queueCapacity];
+        bearings = new float[queueCapacity];
+
+        lastSyncNanos = System.nanoTime();
+        bytesAtLastSync = 0;
+        writerThread = new RingWriterThread("Session writer thread", sequence, BATCH_SIZE, new RingWriterThread.Sink() {
+            @Override
+            public void write(int index) throws IOException {
+                writer.write(times[index], severities[index], latitudes[index], longitudes[index], speeds[index],
+                        bearings[index]);
+            }
+
+            @Override
+            public void afterBatch(int count) throws IOException {
+                if (isSyncDue()) {
+                    sync();
+                }
+            }
+
+            @Override
+            public long getIdleParkNanos() {
+                // until the next event, or close(); with events unsynced, no longer than till the sync is due
+                if (writerThread.getWritten() > eventsSynced) {
+                    return lastSyncNanos + syncIntervalNanos - System.nanoTime();
+                }
+                return RingWriterThread.PARK_UNTIL_SIGNALLED;
+            }
+        });
+        writerThread.start();
+    }
+
+    /**
+     * Queue an event for writing. Producer thread only.
+     *
+     * @return true if the event has been queued, false if the queue was full and the event got dropped.
+     */
+    public boolean offer(long timeMillis, double severity, double latitude, double longitude, double speed,
+                         float bearing) {
+        long write = sequence.claim();
+        if (write < 0) {
+            writerThread.countDropped();
+            return false;
+        }
+
+        int index = sequence.index(write);
+        times[index] = timeMillis;
+        severities[index] = (float) severity;
+        latitudes[index] = latitude;
+        longitudes[index] = longitude;
+        speeds[index] = (float) speed;
+        bearings[index] = bearing;
+
+        sequence.publish(write);
+        return true;
+    }
+
+    /**
+     * Write out and sync whatever is queued, stop the writer thread and close the stream.
+     *
+     * @throws IOException the error the writer thread has stopped on, if any.
+     */
+    @Override
+    public void close() throws IOException {
+        writerThread.stop();
+
+        if (writerThread.getError() == null) {
+            try {
+                sync();
+            } catch (IOException e) {
+                writerThread.fail(e);
+            }
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            writerThread.fail(e);
+        }
+        if (writerThread.getError() != null) {
+            throw writerThread.getError();
+        }
+    }
+
+    /**
+     * @return number of events accepted by {@link #offer(long, double, double, double, double, float)} so far.
+     */
+    public long getEventsQueued() {
+        return sequence.getPublishedCount();
+    }
+
+    /**
+     * @return number of events handed over to the file so far.
+     */
+    public long getEventsWritten() {
+        return writerThread.getWritten();
+    }
+
+    /**
+     * @return number of events known to be on the storage.
+     */
+    public long getEventsSynced() {
+        return eventsSynced;
+    }
+
+    /**
+     * @return number of events dropped: because the queue was full, or because of a write error.
+     */
+    public long getEventsDropped() {
+        return writerThread.getDropped();
+    }
+
+    public long getSyncCount() {
+        return syncCount;
+    }
+
+    /**
+     * @return the error writing has stopped on; null if there was none.
+     */
+    public IOException getError() {
+        return writerThread.getError();
+    }
+
+    /**
+     * @return bytes written to the file, including the header. Final only after {@link #close()}.
+     */
+    public long getBytesWritten() {
+        return writer.getBytesWritten();
+    }
+
+    /**
+     * @return CRC-32 of the file. Final only after {@link #close()}.
+     */
+    public long getChecksum() {
+        return writer.getChecksum();
+    }
+
+    private boolean isSyncDue() {
+        if (writer.getBytesWritten() - bytesAtLastSync >= syncBytes) {
+            return true;
+        }
+        return writerThread.getWritten() > eventsSynced && System.nanoTime() - lastSyncNanos >= syncIntervalNanos;
+    }
+
+    private void sync() throws IOException {
+        long written = writerThread.getWritten();
+        writer.flush();
+        if (fd != null) {
+            fd.sync();
+        }
+        eventsSynced = written;
+        syncCount++;
+        lastSyncNanos = System.nanoTime();
+        bytesAtLastSync = writer.getBytesWritten();
+    }
+}
@@ -0,0 +1,48 @@
+package com.augmentari.roadworks.sensorlogger.format;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Constants of the raw accelerometer capture format.
+ * <p/>
+ * A capture is a directory of segment files plus an index file, one directory per session (see
+ * {@link #captureDirectory}). Segments have a fixed size, except the last one, which is cut to its samples when the
+ * capture is finished. Each segment starts with a 16-byte header: magic (int32), version (int16), reserved (int16),
+ * segment number (int32), number of samples in the segment (int32, kept up to date after every sample). Then come
+ * fixed-size records: timestamp in nanos (int64), x, y, z (float32).
+ * All numbers are little-endian.
+ * <p/>
+ * The index file has a line per finished segment: "segment,file,samples,firstTimestampNanos,lastTimestampNanos".
+ * The same lines go to the session row along with the directory, once the capture is finished.
+ */
+public class RawSampleFormat {
+
+    // "RWRC" when read byte by byte
+    public static final int MAGIC = 0x43525752;
+    public static final short VERSION = 1;
+
+    public static final int HEADER_SIZE = 16;
+    public static final int SAMPLE_COUNT_OFFSET = 12;
+    public static final int RECORD_SIZE = 8 + 3 * 4;
+
+    // 8M per segment: ~400K samples, i.e. over half an hour at the fastest rate
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    public static final String INDEX_FILE_NAME = "segments.idx";
+    public static final String INDEX_HEADING = "segment,file,samples,firstTimestampNanos,lastTimestampNanos";
+
+    private RawSampleFormat() {
+    }
+
+    /**
+     * @return directory of the raw capture of the given session, under the application files directory.
+     */
+    public static File captureDirectory(File filesDirectory, long sessionId) {
+        return new File(filesDirectory, "raw-session-" + sessionId);
+    }
+
+    public static File segmentFile(File directory, int segment) {
+        return new File(directory, String.format(Locale.US, "segment-%05d.raw", segment));
+    }
+}
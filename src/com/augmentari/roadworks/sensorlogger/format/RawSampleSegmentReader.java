@@ -0,0 +1,94 @@
+package com.augmentari.roadworks.sensorlogger.format;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reader of the raw accelerometer capture written by {@link RawSampleSegmentWriter}. Walks the segments in order and
+ * only reads the samples counted in each segment header, so a capture interrupted by a crash is still readable.
+ * <p/>
+ * Usage: call {@link #next()} until it returns false, reading the current sample with the getters in between.
+ */
+public class RawSampleSegmentReader implements Closeable {
+
+    private final File directory;
+
+    private MappedByteBuffer segment;
+    private int segmentNumber = -1;
+    private int segmentSamples = 0;
+    private int current = 0;
+    private int position;
+
+    public RawSampleSegmentReader(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Move to the next sample.
+     *
+     * @return false if there are no more samples.
+     */
+    public boolean next() throws IOException {
+        while (segment == null || current >= segmentSamples) {
+            if (!openNextSegment()) {
+                return false;
+            }
+        }
+        position = RawSampleFormat.HEADER_SIZE + current * RawSampleFormat.RECORD_SIZE;
+        current++;
+        return true;
+    }
+
+    public long getTimestampNanos() {
+        return segment.getLong(position);
+    }
+
+    public float getX() {
+        return segment.getFloat(position + 8);
+    }
+
+    public float getY() {
+        return segment.getFloat(position + 12);
+    }
+
+    public float getZ() {
+        return segment.getFloat(position + 16);
+    }
+
+    @Override
+    public void close() {
+        segment = null;
+    }
+
+    private boolean openNextSegment() throws IOException {
+        File file = RawSampleFormat.segmentFile(directory, segmentNumber + 1);
+        if (!file.isFile()) {
+            segment = null;
+            return false;
+        }
+        segmentNumber++;
+
+        RandomAccessFile segmentFile = new RandomAccessFile(file, "r");
+        try {
+            segment = segmentFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, segmentFile.length());
+        } finally {
+            segmentFile.close();
+        }
+        segment.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (segment.getInt(0) != RawSampleFormat.MAGIC) {
+            throw new IOException("Not a raw sample segment: " + file);
+        }
+        if (segment.getInt(8) != segmentNumber) {
+            throw new IOException("Segment " + file + " has unexpected number " + segment.getInt(8));
+        }
+        segmentSamples = segment.getInt(RawSampleFormat.SAMPLE_COUNT_OFFSET);
+        current = 0;
+        return true;
+    }
+}
@@ -0,0 +1,158 @@
+package com.augmentari.roadworks.sensorlogger.format;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only writer of raw accelerometer samples into memory-mapped segment files (see {@link RawSampleFormat}).
+ * Appending a sample is just a few stores into the mapped memory -- no system calls and no allocation; the OS takes
+ * care of writing the pages out. When a segment is full, the writer rolls over to the next one and records the
+ * finished segment in the index file. On close, the last segment is cut down to the samples it holds, so a short
+ * capture does not take a whole segment on disk.
+ * <p/>
+ * Not thread safe.
+ */
+public class RawSampleSegmentWriter implements Closeable {
+
+    private final File directory;
+    private final int segmentSize;
+    private final int samplesPerSegment;
+
+    private RandomAccessFile segmentFile;
+    private MappedByteBuffer segment;
+    private int segmentNumber = -1;
+    private int segmentSamples;
+    private long firstTimestampNanos;
+    private long lastTimestampNanos;
+
+    private long totalSamples = 0;
+    // the index lines, for the session row
+    private final StringBuilder segments = new StringBuilder();
+
+    public RawSampleSegmentWriter(File directory) throws IOException {
+        this(directory, RawSampleFormat.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Create writer and open the first segment.
+     *
+     * @param directory   directory for the segments and index; gets created if missing.
+     * @param segmentSize size of a segment file, bytes.
+     */
+    public RawSampleSegmentWriter(File directory, int segmentSize) throws IOException {
+        if (segmentSize < RawSampleFormat.HEADER_SIZE + RawSampleFormat.RECORD_SIZE) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.samplesPerSegment = (segmentSize - RawSampleFormat.HEADER_SIZE) / RawSampleFormat.RECORD_SIZE;
+
+        Writer index = new FileWriter(new File(directory, RawSampleFormat.INDEX_FILE_NAME));
+        try {
+            index.write(RawSampleFormat.INDEX_HEADING + "\n");
+        } finally {
+            index.close();
+        }
+
+        openNextSegment();
+    }
+
+    public void append(long timestampNanos, float x, float y, float z) throws IOException {
+        if (segmentSamples == samplesPerSegment) {
+            finishSegment(false);
+            openNextSegment();
+        }
+
+        int position = RawSampleFormat.HEADER_SIZE + segmentSamples * RawSampleFormat.RECORD_SIZE;
+        segment.putLong(position, timestampNanos);
+        segment.putFloat(position + 8, x);
+        segment.putFloat(position + 12, y);
+        segment.putFloat(position + 16, z);
+
+        if (segmentSamples == 0) {
+            firstTimestampNanos = timestampNanos;
+        }
+        lastTimestampNanos = timestampNanos;
+        segmentSamples++;
+        totalSamples++;
+
+        // the count goes last, so a crash never leaves a half-written sample counted in
+        segment.putInt(RawSampleFormat.SAMPLE_COUNT_OFFSET, segmentSamples);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (segment != null) {
+            finishSegment(true);
+        }
+    }
+
+    public long getTotalSamples() {
+        return totalSamples;
+    }
+
+    public int getSegmentCount() {
+        return segmentNumber + 1;
+    }
+
+    /**
+     * @return the finished segments, a line per segment as in the index file (without the heading).
+     */
+    public String getSegments() {
+        return segments.toString();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    private void openNextSegment() throws IOException {
+        segmentNumber++;
+        segmentSamples = 0;
+
+        segmentFile = new RandomAccessFile(RawSampleFormat.segmentFile(directory, segmentNumber), "rw");
+        segmentFile.setLength(segmentSize);
+        segment = segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segment.order(ByteOrder.LITTLE_ENDIAN);
+
+        segment.putInt(0, RawSampleFormat.MAGIC);
+        segment.putShort(4, RawSampleFormat.VERSION);
+        segment.putShort(6, (short) 0);
+        segment.putInt(8, segmentNumber);
+        segment.putInt(RawSampleFormat.SAMPLE_COUNT_OFFSET, 0);
+    }
+
+    private void finishSegment(boolean last) throws IOException {
+        try {
+            segment.force();
+            if (last) {
+                // the mapping is never touched past the samples again, so the file may shrink under it
+                segmentFile.setLength(RawSampleFormat.HEADER_SIZE + segmentSamples * RawSampleFormat.RECORD_SIZE);
+            }
+        } finally {
+            segment = null;
+            // the mapping stays valid after the channel is closed, and goes away with the buffer
+            segmentFile.close();
+        }
+
+        String line = segmentNumber + "," + RawSampleFormat.segmentFile(directory, segmentNumber).getName() + ","
+                + segmentSamples + "," + firstTimestampNanos + "," + lastTimestampNanos + "\n";
+        segments.append(line);
+        Writer index = new FileWriter(new File(directory, RawSampleFormat.INDEX_FILE_NAME), true);
+        try {
+            index.write(line);
+        } finally {
+            index.close();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.augmentari.roadworks.sensorlogger.format;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Converts binary session files to the "Time, Severity, Lat, Lon, Speed" CSV format written by the older versions of
+ * the application, for consumers which still expect text.
+ */
+public class SessionCsvConverter {
+
+    private SessionCsvConverter() {
+    }
+
+    /**
+     * Stream all the events from the reader to the writer as CSV, heading line included. Neither the reader nor the
+     * writer are closed.
+     *
+     * @return number of events converted.
+     */
+    public static long convert(SessionFileReader reader, Writer out) throws IOException {
+        out.write(SessionFileFormat.CSV_HEADING);
+        out.write('\n');
+
+        // reused for every line
+        StringBuilder line = new StringBuilder(64);
+        long events = 0;
+        while (reader.next()) {
+            line.setLength(0);
+            line.append(reader.getTimeMillis())
+                    .append(',').append(reader.getSeverity())
+                    .append(',');
+            appendFixedPoint(line, reader.getLatitudeFixedPoint());
+            line.append(',');
+            appendFixedPoint(line, reader.getLongitudeFixedPoint());
+            line.append(',').append(reader.getSpeed())
+                    .append('\n');
+            out.append(line);
+            events++;
+        }
+        return events;
+    }
+
+    /**
+     * Append coordinate stored as degrees * 10^7 in the decimal notation, without going through double (and its
+     * rounding artifacts).
+     */
+    static void appendFixedPoint(StringBuilder sb, int fixedPoint) {
+        long value = fixedPoint;
+        if (value < 0) {
+            sb.append('-');
+            value = -value;
+        }
+        long scale = (long) SessionFileFormat.COORDINATE_SCALE;
+        sb.append(value / scale).append('.');
+
+        long fraction = value % scale;
+        for (long digit = scale / 10; digit > fraction && digit > 1; digit /= 10) {
+            sb.append('0');
+        }
+        sb.append(fraction);
+    }
+}
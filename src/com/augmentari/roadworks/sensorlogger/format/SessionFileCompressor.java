@@ -0,0 +1,82 @@
+package com.augmentari.roadworks.sensorlogger.format;
+
+import com.augmentari.roadworks.sensorlogger.util.CloseUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Produces the gzip-compressed sibling of a finished session data file ("data123.rws" - "data123.rws.gz"), which is
+ * what gets uploaded. The artifact is written to a temporary file and renamed when complete, so a half-written one is
+ * never picked up; once there, it is reused as long as it is newer than the data file. The output is the same for the
+ * same input, so an upload offset into the artifact stays valid even if the artifact is produced again.
+ */
+public class SessionFileCompressor {
+
+    public static final String COMPRESSED_SUFFIX = ".gz";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private SessionFileCompressor() {
+    }
+
+    public static File compressedFile(File dataFile) {
+        return new File(dataFile.getPath() + COMPRESSED_SUFFIX);
+    }
+
+    public static boolean isCompressed(File dataFile) {
+        File compressed = compressedFile(dataFile);
+        return compressed.isFile() && compressed.lastModified() >= dataFile.lastModified();
+    }
+
+    /**
+     * Compress the data file unless it has been done already.
+     *
+     * @return the compressed artifact.
+     */
+    public static File compress(File dataFile) throws IOException {
+        File compressed = compressedFile(dataFile);
+        if (isCompressed(dataFile)) {
+            return compressed;
+        }
+
+        InputStream is = new FileInputStream(dataFile);
+        File temporary = null;
+        GZIPOutputStream os = null;
+        try {
+            // unique name: the upload and the charging-time compression may run at the same time
+            temporary = File.createTempFile(compressed.getName(), ".tmp", compressed.getParentFile());
+            os = new GZIPOutputStream(new FileOutputStream(temporary), BUFFER_SIZE);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = is.read(buffer)) >= 0) {
+                os.write(buffer, 0, read);
+            }
+            os.close();
+            os = null;
+        } finally {
+            CloseUtils.closeStream(is);
+            if (os != null) {
+                CloseUtils.closeStream(os);
+                temporary.delete();
+            }
+        }
+
+        if (!temporary.renameTo(compressed)) {
+            temporary.delete();
+            throw new IOException("Could not rename " + temporary + " to " + compressed);
+        }
+        return compressed;
+    }
+
+    /**
+     * Remove the compressed artifact, if any -- once the session is uploaded it is of no use.
+     */
+    public static void deleteCompressed(File dataFile) {
+        compressedFile(dataFile).delete();
+    }
+}
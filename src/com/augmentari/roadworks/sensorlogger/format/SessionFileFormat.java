@@ -0,0 +1,79 @@
+package com.augmentari.roadworks.sensorlogger.format;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Constants and shared helpers of the binary session file format.
+ * <p/>
+ * A file starts with a fixed 16-byte header: magic (int32), version (int16), reserved (int16), session id (int64).
+ * Then come blocks of up to {@link #BLOCK_CAPACITY} events, each one being: event count (int32), payload length in
+ * bytes (int32) and the payload, stored column by column:
+ * <ul>
+ * <li>timestamps, millis: first one as int64, then zig-zag varint deltas to the previous one;</li>
+ * <li>severities: float32 each;</li>
+ * <li>latitudes, degrees * 10^7: first one as int32, then zig-zag varint deltas;</li>
+ * <li>longitudes, same as latitudes;</li>
+ * <li>speeds, m/s: float32 each;</li>
+ * <li>bearings, degrees clockwise from north as given by the GPS: float32 each, NaN if there was none. Since version
+ * 2; files of version 1 end the block with the speeds.</li>
+ * </ul>
+ * All the fixed-size numbers are little-endian.
+ */
+public class SessionFileFormat {
+
+    // "RWSL" when read byte by byte
+    public static final int MAGIC = 0x4C535752;
+    public static final short VERSION = 2;
+
+    public static final int HEADER_SIZE = 16;
+    public static final int BLOCK_HEADER_SIZE = 8;
+    public static final int BLOCK_CAPACITY = 256;
+
+    public static final double COORDINATE_SCALE = 1e7;
+
+    private static final int MAX_VARINT_LONG_SIZE = 10;
+    private static final int MAX_VARINT_INT_SIZE = 5;
+
+    // worst case payload of a full block
+    public static final int MAX_BLOCK_PAYLOAD_SIZE = 8 + (BLOCK_CAPACITY - 1) * MAX_VARINT_LONG_SIZE
+            + 4 * BLOCK_CAPACITY
+            + 2 * (4 + (BLOCK_CAPACITY - 1) * MAX_VARINT_INT_SIZE)
+            + 4 * BLOCK_CAPACITY
+            + 4 * BLOCK_CAPACITY;
+
+    public static final String CSV_HEADING = "Time, Severity, Lat, Lon, Speed";
+
+    private SessionFileFormat() {
+    }
+
+    /**
+     * Check whether the file is a binary session file, as opposed to the CSV files written by the older versions.
+     */
+    public static boolean isSessionFile(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            int magic = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = is.read();
+                if (b < 0) {
+                    return false;
+                }
+                magic |= b << (8 * i);
+            }
+            return magic == MAGIC;
+        } finally {
+            is.close();
+        }
+    }
+
+    public static int toFixedPoint(double coordinate) {
+        return (int) Math.round(coordinate * COORDINATE_SCALE);
+    }
+
+    public static double fromFixedPoint(int coordinate) {
+        return coordinate / COORDINATE_SCALE;
+    }
+}
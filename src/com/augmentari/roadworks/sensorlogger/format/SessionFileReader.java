@@ -0,0 +1,202 @@
+package com.augmentari.roadworks.sensorlogger.format;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Streaming reader of the binary session files (see {@link SessionFileFormat} for the layout). Only one block is kept
+ * in memory at a time, regardless of the file size.
+ * <p/>
+ * Usage: call {@link #next()} until it returns false, reading the current event with the getters in between. A block
+ * truncated at the end of the file (e.g. the application has been killed while writing it) is treated as the end of
+ * the data.
+ */
+public class SessionFileReader implements Closeable {
+
+    private final InputStream in;
+
+    private final short version;
+    private final long sessionId;
+
+    private final ByteBuffer block = ByteBuffer
+            .allocate(SessionFileFormat.BLOCK_HEADER_SIZE + SessionFileFormat.MAX_BLOCK_PAYLOAD_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+
+    private final long[] times = new long[SessionFileFormat.BLOCK_CAPACITY];
+    private final float[] severities = new float[SessionFileFormat.BLOCK_CAPACITY];
+    private final int[] latitudes = new int[SessionFileFormat.BLOCK_CAPACITY];
+    private final int[] longitudes = new int[SessionFileFormat.BLOCK_CAPACITY];
+    private final float[] speeds = new float[SessionFileFormat.BLOCK_CAPACITY];
+    private final float[] bearings = new float[SessionFileFormat.BLOCK_CAPACITY];
+    private int blockCount = 0;
+    private int current = -1;
+
+    /**
+     * Create reader and read the file header.
+     *
+     * @param in stream to read from. Gets closed with the reader.
+     * @throws IOException if the stream is not a session file, or of an unsupported version.
+     */
+    public SessionFileReader(InputStream in) throws IOException {
+        this.in = in;
+
+        if (!readFully(SessionFileFormat.HEADER_SIZE)) {
+            throw new IOException("Session file header is truncated");
+        }
+        if (block.getInt() != SessionFileFormat.MAGIC) {
+            throw new IOException("Not a session file");
+        }
+        version = block.getShort();
+        if (version > SessionFileFormat.VERSION) {
+            throw new IOException("Unsupported session file version " + version);
+        }
+        block.getShort();
+        sessionId = block.getLong();
+    }
+
+    public short getVersion() {
+        return version;
+    }
+
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Move to the next event.
+     *
+     * @return false if there are no more events.
+     */
+    public boolean next() throws IOException {
+        current++;
+        if (current < blockCount) {
+            return true;
+        }
+        current = 0;
+        blockCount = 0;
+        return readBlock();
+    }
+
+    public long getTimeMillis() {
+        return times[current];
+    }
+
+    public float getSeverity() {
+        return severities[current];
+    }
+
+    /**
+     * @return latitude in the fixed-point representation, degrees * 10^7.
+     */
+    public int getLatitudeFixedPoint() {
+        return latitudes[current];
+    }
+
+    /**
+     * @return longitude in the fixed-point representation, degrees * 10^7.
+     */
+    public int getLongitudeFixedPoint() {
+        return longitudes[current];
+    }
+
+    public double getLatitude() {
+        return SessionFileFormat.fromFixedPoint(latitudes[current]);
+    }
+
+    public double getLongitude() {
+        return SessionFileFormat.fromFixedPoint(longitudes[current]);
+    }
+
+    public float getSpeed() {
+        return speeds[current];
+    }
+
+    /**
+     * @return direction of travel in degrees clockwise from north; NaN if not known, as is always the case with the
+     * files of version 1.
+     */
+    public float getBearing() {
+        return bearings[current];
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private boolean readBlock() throws IOException {
+        if (!readFully(SessionFileFormat.BLOCK_HEADER_SIZE)) {
+            return false;
+        }
+        int count = block.getInt();
+        int payloadSize = block.getInt();
+        if (count <= 0 || count > SessionFileFormat.BLOCK_CAPACITY
+                || payloadSize <= 0 || payloadSize > SessionFileFormat.MAX_BLOCK_PAYLOAD_SIZE) {
+            throw new IOException("Corrupted block header: " + count + " events, " + payloadSize + " bytes");
+        }
+        if (!readFully(payloadSize)) {
+            return false;
+        }
+
+        times[0] = block.getLong();
+        for (int i = 1; i < count; i++) {
+            times[i] = times[i - 1] + getVarLong();
+        }
+        for (int i = 0; i < count; i++) {
+            severities[i] = block.getFloat();
+        }
+        getDeltaColumn(latitudes, count);
+        getDeltaColumn(longitudes, count);
+        for (int i = 0; i < count; i++) {
+            speeds[i] = block.getFloat();
+        }
+        for (int i = 0; i < count; i++) {
+            bearings[i] = version >= 2 ? block.getFloat() : Float.NaN;
+        }
+
+        blockCount = count;
+        return true;
+    }
+
+    private void getDeltaColumn(int[] column, int count) {
+        column[0] = block.getInt();
+        for (int i = 1; i < count; i++) {
+            column[i] = (int) (column[i - 1] + getVarLong());
+        }
+    }
+
+    private long getVarLong() {
+        long zigZag = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = block.get();
+            zigZag |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (zigZag >>> 1) ^ -(zigZag & 1);
+    }
+
+    /**
+     * Read exactly length bytes into the beginning of the block buffer.
+     *
+     * @return false if the stream ended before that.
+     */
+    private boolean readFully(int length) throws IOException {
+        block.clear();
+        byte[] array = block.array();
+        int read = 0;
+        while (read < length) {
+            int n = in.read(array, read, length - read);
+            if (n < 0) {
+                return false;
+            }
+            read += n;
+        }
+        block.limit(length);
+        return true;
+    }
+}
@@ -0,0 +1,166 @@
+package com.augmentari.roadworks.sensorlogger.format;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+
+/**
+ * Writer of the binary session files (see {@link SessionFileFormat} for the layout). Events are collected into
+ * preallocated column arrays and written out a block at a time, so writing an event does not allocate.
+ * <p/>
+ * Not thread safe.
+ */
+public class SessionFileWriter implements Closeable {
+
+    private final OutputStream out;
+
+    private final long[] times = new long[SessionFileFormat.BLOCK_CAPACITY];
+    private final float[] severities = new float[SessionFileFormat.BLOCK_CAPACITY];
+    private final int[] latitudes = new int[SessionFileFormat.BLOCK_CAPACITY];
+    private final int[] longitudes = new int[SessionFileFormat.BLOCK_CAPACITY];
+    private final float[] speeds = new float[SessionFileFormat.BLOCK_CAPACITY];
+    private final float[] bearings = new float[SessionFileFormat.BLOCK_CAPACITY];
+    private int count = 0;
+
+    private final ByteBuffer block = ByteBuffer
+            .allocate(SessionFileFormat.BLOCK_HEADER_SIZE + SessionFileFormat.MAX_BLOCK_PAYLOAD_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+
+    private long eventsWritten = 0;
+    private long bytesWritten = 0;
+    private final CRC32 checksum = new CRC32();
+
+    /**
+     * Create writer and write the file header straight away.
+     *
+     * @param out       stream to write to. Gets closed with the writer.
+     * @param sessionId id of the recording session this file belongs to.
+     */
+    public SessionFileWriter(OutputStream out, long sessionId) throws IOException {
+        this.out = out;
+
+        block.clear();
+        block.putInt(SessionFileFormat.MAGIC);
+        block.putShort(SessionFileFormat.VERSION);
+        block.putShort((short) 0);
+        block.putLong(sessionId);
+        writeBlockBuffer();
+    }
+
+    public void write(long timeMillis, double severity, double latitude, double longitude, double speed)
+            throws IOException {
+        write(timeMillis, severity, latitude, longitude, speed, Float.NaN);
+    }
+
+    /**
+     * @param bearing direction of travel in degrees clockwise from north; NaN if not known.
+     */
+    public void write(long timeMillis, double severity, double latitude, double longitude, double speed,
+                      float bearing) throws IOException {
+        times[count] = timeMillis;
+        severities[count] = (float) severity;
+        latitudes[count] = SessionFileFormat.toFixedPoint(latitude);
+        longitudes[count] = SessionFileFormat.toFixedPoint(longitude);
+        speeds[count] = (float) speed;
+        bearings[count] = bearing;
+        count++;
+        eventsWritten++;
+
+        if (count == SessionFileFormat.BLOCK_CAPACITY) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Write out the events collected so far as a (possibly partial) block, and flush the underlying stream.
+     */
+    public void flush() throws IOException {
+        writeBlock();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writeBlock();
+        } finally {
+            out.close();
+        }
+    }
+
+    public long getEventsWritten() {
+        return eventsWritten;
+    }
+
+    /**
+     * @return bytes handed over to the underlying stream so far, including the header.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return CRC-32 of the bytes handed over to the underlying stream so far, including the header; computed on the
+     *         fly so the finished file does not have to be read again.
+     */
+    public long getChecksum() {
+        return checksum.getValue();
+    }
+
+    private void writeBlock() throws IOException {
+        if (count == 0) {
+            return;
+        }
+
+        block.clear();
+        block.position(SessionFileFormat.BLOCK_HEADER_SIZE);
+
+        block.putLong(times[0]);
+        for (int i = 1; i < count; i++) {
+            putVarLong(times[i] - times[i - 1]);
+        }
+        for (int i = 0; i < count; i++) {
+            block.putFloat(severities[i]);
+        }
+        putDeltaColumn(latitudes);
+        putDeltaColumn(longitudes);
+        for (int i = 0; i < count; i++) {
+            block.putFloat(speeds[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            block.putFloat(bearings[i]);
+        }
+
+        block.putInt(0, count);
+        block.putInt(4, block.position() - SessionFileFormat.BLOCK_HEADER_SIZE);
+        writeBlockBuffer();
+
+        count = 0;
+    }
+
+    private void putDeltaColumn(int[] column) {
+        block.putInt(column[0]);
+        for (int i = 1; i < count; i++) {
+            putVarLong((long) column[i] - column[i - 1]);
+        }
+    }
+
+    private void putVarLong(long value) {
+        // zig-zag, so that small negative deltas take little space as well
+        long zigZag = (value << 1) ^ (value >> 63);
+        while ((zigZag & ~0x7FL) != 0) {
+            block.put((byte) ((zigZag & 0x7F) | 0x80));
+            zigZag >>>= 7;
+        }
+        block.put((byte) zigZag);
+    }
+
+    private void writeBlockBuffer() throws IOException {
+        out.write(block.array(), 0, block.position());
+        bytesWritten += block.position();
+        checksum.update(block.array(), 0, block.position());
+    }
+}
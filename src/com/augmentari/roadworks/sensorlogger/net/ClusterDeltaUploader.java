@@ -0,0 +1,103 @@
+package com.augmentari.roadworks.sensorlogger.net;
+
+import com.augmentari.roadworks.sensorlogger.spatial.DefectCluster;
+import com.augmentari.roadworks.sensorlogger.util.CloseUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Uploads what has changed in the defect clusters since the last upload, instead of the raw events of every pass.
+ * <p/>
+ * Protocol: the clusters are POSTed to {@code <base>api/clusters} as JSON, {@code {"clusters": [...]}}. Every cluster
+ * carries both its totals and the deltas since the last acknowledged upload, so a server which has got a batch but
+ * lost the response can tell the repeat by the totals. Any 2xx response acknowledges the whole batch.
+ */
+public class ClusterDeltaUploader {
+
+    private final String baseUrl;
+    private final ResumableSessionUploader.ConnectionFactory connectionFactory;
+
+    public ClusterDeltaUploader(String baseUrl, ResumableSessionUploader.ConnectionFactory connectionFactory) {
+        this.baseUrl = baseUrl;
+        this.connectionFactory = connectionFactory;
+    }
+
+    /**
+     * @throws IOException if the server has not acknowledged the batch.
+     */
+    public void upload(List<DefectCluster> clusters) throws IOException {
+        byte[] body = toJson(clusters).getBytes("UTF-8");
+        HttpURLConnection connection = connectionFactory.open(baseUrl + "api/clusters");
+        boolean completed = false;
+        try {
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(5000);
+            connection.setRequestMethod("POST");
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+
+            OutputStream os = connection.getOutputStream();
+            os.write(body);
+            os.close();
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode / 100 != 2) {
+                throw new IOException("Upload of " + clusters.size() + " clusters rejected by server: "
+                        + responseCode + " " + connection.getResponseMessage());
+            }
+            // read the response out, so that the connection may be reused
+            drain(connection.getInputStream());
+            completed = true;
+        } finally {
+            if (!completed) {
+                CloseUtils.closeConnection(connection);
+            }
+        }
+    }
+
+    static String toJson(List<DefectCluster> clusters) {
+        StringBuilder json = new StringBuilder(64 + clusters.size() * 256);
+        json.append("{\"clusters\":[");
+        for (int i = 0; i < clusters.size(); i++) {
+            DefectCluster cluster = clusters.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":").append(cluster.getId());
+            json.append(String.format(Locale.US, ",\"latitude\":%.7f,\"longitude\":%.7f",
+                    cluster.getLatitude(), cluster.getLongitude()));
+            if (!Double.isNaN(cluster.getHeading())) {
+                json.append(String.format(Locale.US, ",\"heading\":%.1f", cluster.getHeading()));
+            }
+            json.append(",\"count\":").append(cluster.getCount());
+            json.append(",\"countDelta\":").append(cluster.getCount() - cluster.getUploadedCount());
+            json.append(String.format(Locale.US, ",\"severitySum\":%.3f,\"severitySumDelta\":%.3f,\"severityMax\":%.3f",
+                    cluster.getSeveritySum(), cluster.getSeveritySum() - cluster.getUploadedSeveritySum(),
+                    cluster.getSeverityMax()));
+            json.append(",\"firstSeen\":").append(cluster.getFirstSeen());
+            json.append(",\"lastSeen\":").append(cluster.getLastSeen());
+            json.append('}');
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    private static void drain(InputStream is) throws IOException {
+        if (is == null) {
+            return;
+        }
+        byte[] buffer = new byte[1024];
+        try {
+            while (is.read(buffer) >= 0) {
+                // ignore
+            }
+        } finally {
+            CloseUtils.closeStream(is);
+        }
+    }
+}
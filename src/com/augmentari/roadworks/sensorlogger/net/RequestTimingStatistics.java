@@ -0,0 +1,75 @@
+package com.augmentari.roadworks.sensorlogger.net;
+
+/**
+ * Totals of {@link RequestTimings} over many requests -- to see where the upload time goes. Thread safe.
+ */
+public class RequestTimingStatistics {
+
+    private int requests = 0;
+    // requests over HTTPS, whose new connections are seen; for the others it is not known if they were reused
+    private int connectionsObserved = 0;
+    private int connectionsReused = 0;
+    private int handshakes = 0;
+    private int sessionsResumed = 0;
+
+    private long connectNanos = 0;
+    private long handshakeNanos = 0;
+    private long firstByteNanos = 0;
+
+    public synchronized void add(RequestTimings timings) {
+        requests++;
+        if (timings.isConnectionObserved()) {
+            connectionsObserved++;
+            if (timings.isConnectionReused()) {
+                connectionsReused++;
+            } else {
+                connectNanos += timings.getConnectNanos();
+            }
+        }
+        if (timings.getHandshakeNanos() >= 0) {
+            handshakes++;
+            handshakeNanos += timings.getHandshakeNanos();
+            if (timings.isSessionResumed()) {
+                sessionsResumed++;
+            }
+        }
+        if (timings.getFirstByteNanos() >= 0) {
+            firstByteNanos += timings.getFirstByteNanos();
+        }
+    }
+
+    public synchronized int getRequests() {
+        return requests;
+    }
+
+    public synchronized int getConnectionsObserved() {
+        return connectionsObserved;
+    }
+
+    public synchronized int getConnectionsReused() {
+        return connectionsReused;
+    }
+
+    public synchronized int getHandshakes() {
+        return handshakes;
+    }
+
+    public synchronized int getSessionsResumed() {
+        return sessionsResumed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int connects = connectionsObserved - connectionsReused;
+        return "RequestTimingStatistics{requests=" + requests
+                + ", reused=" + connectionsReused + " of " + connectionsObserved + " observed"
+                + ", handshakes=" + handshakes + " (resumed " + sessionsResumed + ")"
+                + ", avg connect=" + average(connectNanos, connects)
+                + "us, avg handshake=" + average(handshakeNanos, handshakes)
+                + "us, avg firstByte=" + average(firstByteNanos, requests) + "us}";
+    }
+
+    private static long average(long totalNanos, int count) {
+        return count == 0 ? 0 : totalNanos / count / 1000;
+    }
+}
@@ -0,0 +1,112 @@
+package com.augmentari.roadworks.sensorlogger.net;
+
+/**
+ * Where the time of a single HTTP request goes: connect (DNS lookup and TCP connect together), TLS handshake, and the
+ * wait for the first byte of the response. All durations are in nanos, -1 if the phase did not happen -- a request
+ * going over a pooled connection has no connect and no handshake.
+ * <p/>
+ * The timings of the request in progress are kept per thread ({@link #start(boolean)}, {@link #current()}), as that
+ * is the only way to get them out of HttpURLConnection: its socket factory marks the phases it sees on the calling
+ * thread. The lookup is not timed on its own, as HttpURLConnection resolves the host before the factory gets to see
+ * the socket. For plain HTTP there is no factory at all, so whether the connection was new is not known.
+ */
+public class RequestTimings {
+
+    private static final ThreadLocal<RequestTimings> CURRENT = new ThreadLocal<RequestTimings>();
+
+    private final long startNanos = System.nanoTime();
+    private final boolean connectionObserved;
+
+    private long connectNanos = -1;
+    private volatile long handshakeNanos = -1;
+    private volatile boolean sessionResumed = false;
+    private long firstByteNanos = -1;
+
+    private RequestTimings(boolean connectionObserved) {
+        this.connectionObserved = connectionObserved;
+    }
+
+    /**
+     * Start timing a new request on this thread.
+     *
+     * @param connectionObserved whether new connections get reported (HTTPS through TimingSSLSocketFactory).
+     */
+    public static RequestTimings start(boolean connectionObserved) {
+        RequestTimings timings = new RequestTimings(connectionObserved);
+        CURRENT.set(timings);
+        return timings;
+    }
+
+    /**
+     * @return the timings of the request in progress on this thread, or null if nobody is timing.
+     */
+    public static RequestTimings current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Stop timing on this thread.
+     */
+    public static void finish() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Called when a new socket got connected for the request.
+     */
+    public void markConnected() {
+        connectNanos = System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Called when the TLS handshake of the new socket completes -- possibly from another thread.
+     */
+    public void markHandshakeDone(long handshakeNanos, boolean sessionResumed) {
+        this.sessionResumed = sessionResumed;
+        this.handshakeNanos = handshakeNanos;
+    }
+
+    public void markFirstByte() {
+        firstByteNanos = System.nanoTime() - startNanos;
+    }
+
+    public long getConnectNanos() {
+        return connectNanos;
+    }
+
+    public long getHandshakeNanos() {
+        return handshakeNanos;
+    }
+
+    public long getFirstByteNanos() {
+        return firstByteNanos;
+    }
+
+    /**
+     * @return true if new connections of the request would have been seen, see {@link #isConnectionReused()}.
+     */
+    public boolean isConnectionObserved() {
+        return connectionObserved;
+    }
+
+    /**
+     * @return true if the request went over a pooled connection; false also when that is not known.
+     */
+    public boolean isConnectionReused() {
+        return connectionObserved && connectNanos < 0;
+    }
+
+    /**
+     * @return true if the handshake resumed an earlier TLS session instead of doing the full one.
+     */
+    public boolean isSessionResumed() {
+        return sessionResumed;
+    }
+
+    @Override
+    public String toString() {
+        return "RequestTimings{connect=" + (connectionObserved ? connectNanos / 1000 + "us" : "unknown")
+                + ", handshake=" + handshakeNanos / 1000 + "us" + (sessionResumed ? " (resumed)" : "")
+                + ", firstByte=" + firstByteNanos / 1000 + "us}";
+    }
+}
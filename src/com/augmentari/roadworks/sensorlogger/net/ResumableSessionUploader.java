@@ -0,0 +1,245 @@
+package com.augmentari.roadworks.sensorlogger.net;
+
+import com.augmentari.roadworks.model.RecordingSession;
+import com.augmentari.roadworks.sensorlogger.format.SessionFileCompressor;
+import com.augmentari.roadworks.sensorlogger.util.CloseUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Uploads the data file of a single session in byte-range chunks, so that an interrupted transfer is resumed from the
+ * last acknowledged byte rather than started over.
+ * <p/>
+ * Protocol: every chunk is POSTed to {@code <base>api/sessions/<id>} with the {@code Content-Range} header
+ * ("bytes first-last/total") and the session meta-data in the {@code X-Session-*} headers. Any 2xx (or 308) response
+ * acknowledges the chunk. The server may report what it actually holds with a {@code Range: bytes=0-last} header --
+ * for example when it already got the chunk but the response was lost -- and the upload continues from there; a 416
+ * response must carry that header. The offsets are reported to the {@link Checkpoint} so that they survive the
+ * process.
+ * <p/>
+ * The gzip-compressed artifact of the data file is uploaded as a file of its own: {@code Content-Type:
+ * application/gzip} with {@code X-Session-Encoding: gzip}, the ranges being of the compressed bytes. It is not sent
+ * with {@code Content-Encoding}, as a slice of a gzip stream is no valid gzip body; the server stores the chunks as
+ * they come and decompresses the whole artifact once it has it. The plain file goes as
+ * {@code application/octet-stream} with {@code X-Session-Encoding: identity}. If the server answers 415 to the
+ * compressed artifact, the uploader switches to the plain file for good, restarting the session from zero.
+ * <p/>
+ * Memory use is one chunk buffer, whatever the size of the file.
+ */
+public class ResumableSessionUploader {
+
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    // 308 is not in HttpURLConnection constants; used by resumable upload protocols for 'incomplete, go on'
+    private static final int HTTP_RESUME_INCOMPLETE = 308;
+    private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private static final String CONTENT_TYPE_GZIP = "application/gzip";
+    private static final String CONTENT_TYPE_PLAIN = "application/octet-stream";
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=0-(\\d+)");
+
+    /**
+     * Source of the connections, so that the caller decides about SSL and such.
+     */
+    public interface ConnectionFactory {
+        HttpURLConnection open(String url) throws IOException;
+    }
+
+    /**
+     * Receives the number of bytes the server has acknowledged for a session -- to be persisted.
+     */
+    public interface Checkpoint {
+        void onAcknowledged(RecordingSession session, long offset);
+    }
+
+    private final String baseUrl;
+    private final ConnectionFactory connectionFactory;
+    private final byte[] buffer;
+    private boolean compressionEnabled = true;
+    private RequestTimingStatistics statistics = null;
+
+    public ResumableSessionUploader(String baseUrl, ConnectionFactory connectionFactory) {
+        this(baseUrl, connectionFactory, DEFAULT_CHUNK_SIZE);
+    }
+
+    public ResumableSessionUploader(String baseUrl, ConnectionFactory connectionFactory, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size should be positive: " + chunkSize);
+        }
+        this.baseUrl = baseUrl;
+        this.connectionFactory = connectionFactory;
+        this.buffer = new byte[chunkSize];
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    /**
+     * @param statistics where to add the timings of every request; null not to time them.
+     */
+    public void setStatistics(RequestTimingStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Upload the session data file, starting at the given offset.
+     *
+     * @param session    session to upload.
+     * @param offset     number of bytes already acknowledged by the server.
+     * @param checkpoint notified after every acknowledged chunk.
+     * @throws IOException if the transfer fails; the offset reported to checkpoint last is where to resume from.
+     */
+    public void upload(RecordingSession session, long offset, Checkpoint checkpoint) throws IOException {
+        File dataFile = new File(session.getDataFileFullPath());
+        if (compressionEnabled) {
+            // normally done already while charging; otherwise it is done now
+            File compressed = SessionFileCompressor.compress(dataFile);
+            try {
+                uploadFile(session, compressed, CONTENT_TYPE_GZIP, offset, checkpoint);
+                return;
+            } catch (EncodingRejectedException e) {
+                compressionEnabled = false;
+                offset = 0;
+                checkpoint.onAcknowledged(session, offset);
+            }
+        }
+        uploadFile(session, dataFile, CONTENT_TYPE_PLAIN, offset, checkpoint);
+    }
+
+    private void uploadFile(RecordingSession session, File dataFile, String contentType, long offset,
+                            Checkpoint checkpoint) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(dataFile, "r");
+        try {
+            long total = file.length();
+            if (offset > total) {
+                offset = 0;
+            }
+            do {
+                int length = (int) Math.min(buffer.length, total - offset);
+                file.seek(offset);
+                file.readFully(buffer, 0, length);
+
+                long acknowledged = sendChunk(session, contentType, offset, length, total);
+                if (acknowledged <= offset && length > 0) {
+                    throw new IOException("Server made no progress on session " + session.getId() + " at " + offset);
+                }
+                offset = acknowledged;
+                checkpoint.onAcknowledged(session, offset);
+            } while (offset < total);
+        } finally {
+            CloseUtils.closeStream(file);
+        }
+    }
+
+    /**
+     * @return the number of bytes of the file the server holds after this chunk.
+     */
+    private long sendChunk(RecordingSession session, String contentType, long offset, int length, long total)
+            throws IOException {
+        String url = baseUrl + "api/sessions/" + session.getId();
+        // only HTTPS connections go through the timing socket factory
+        RequestTimings timings = statistics == null ? null : RequestTimings.start(url.startsWith("https:"));
+
+        HttpURLConnection connection = connectionFactory.open(url);
+        boolean completed = false;
+        try {
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(5000);
+            connection.setRequestMethod("POST");
+            connection.setFixedLengthStreamingMode(length);
+            connection.setRequestProperty("Content-Type", contentType);
+            connection.setRequestProperty("X-Session-Encoding", CONTENT_TYPE_GZIP.equals(contentType)
+                    ? "gzip" : "identity");
+            connection.setRequestProperty("Content-Range", length == 0
+                    ? "bytes */" + total
+                    : "bytes " + offset + "-" + (offset + length - 1) + "/" + total);
+            connection.setRequestProperty("X-Session-Start-Time", Long.toString(session.getStartTime().getTime()));
+            connection.setRequestProperty("X-Session-End-Time", Long.toString(session.getEndTime().getTime()));
+            connection.setRequestProperty("X-Session-Events-Logged", Long.toString(session.getEventsLogged()));
+
+            OutputStream os = connection.getOutputStream();
+            os.write(buffer, 0, length);
+            os.close();
+
+            int responseCode = connection.getResponseCode();
+            if (timings != null) {
+                timings.markFirstByte();
+            }
+            long serverOffset = parseRange(connection.getHeaderField("Range"));
+            if (responseCode == HTTP_RANGE_NOT_SATISFIABLE && serverOffset >= 0) {
+                drain(connection.getErrorStream());
+                completed = true;
+                return serverOffset;
+            }
+            if (responseCode == HTTP_UNSUPPORTED_MEDIA_TYPE && CONTENT_TYPE_GZIP.equals(contentType)) {
+                throw new EncodingRejectedException(contentType);
+            }
+            if (responseCode / 100 != 2 && responseCode != HTTP_RESUME_INCOMPLETE) {
+                throw new IOException("Upload of session " + session.getId() + " rejected by server: "
+                        + responseCode + " " + connection.getResponseMessage());
+            }
+
+            // read the response out, so that the connection may be reused
+            drain(connection.getInputStream());
+            completed = true;
+            return serverOffset >= 0 ? serverOffset : offset + length;
+        } finally {
+            if (!completed) {
+                CloseUtils.closeConnection(connection);
+            }
+            if (timings != null) {
+                RequestTimings.finish();
+                statistics.add(timings);
+            }
+        }
+    }
+
+    private void drain(InputStream is) throws IOException {
+        if (is == null) {
+            return;
+        }
+        try {
+            while (is.read(buffer) >= 0) {
+                // ignore
+            }
+        } finally {
+            CloseUtils.closeStream(is);
+        }
+    }
+
+    /**
+     * @return number of bytes the server reports to hold, or -1 if it does not say.
+     */
+    static long parseRange(String range) {
+        if (range == null) {
+            return -1;
+        }
+        Matcher matcher = RANGE_PATTERN.matcher(range.trim());
+        if (!matcher.matches()) {
+            return -1;
+        }
+        return Long.parseLong(matcher.group(1)) + 1;
+    }
+
+    private static class EncodingRejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        EncodingRejectedException(String contentType) {
+            super("Server does not accept " + contentType);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.augmentari.roadworks.sensorlogger.net;
+
+import com.augmentari.roadworks.model.RecordingSession;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads independent sessions in parallel over a small, bounded number of connections, so that high-latency links
+ * are kept busy. Every session is retried on its own with exponential backoff, resuming from the last acknowledged
+ * byte (see {@link ResumableSessionUploader}).
+ * <p/>
+ * Memory use is bounded by connections * chunk size: each connection has a single chunk buffer, and nothing else of
+ * the session data is held in memory -- the sessions waiting in the queue are just meta-data.
+ */
+public class UploadEngine {
+
+    public static final int MAX_CONNECTIONS = 8;
+
+    /**
+     * Receives the progress and the outcome of every session. Called from the upload threads.
+     */
+    public interface Listener extends ResumableSessionUploader.Checkpoint {
+        void onUploaded(RecordingSession session);
+
+        void onFailed(RecordingSession session, IOException e);
+    }
+
+    private final int connections;
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+
+    // one uploader per connection; the uploaders are not thread safe, so a session takes one for itself
+    private final BlockingQueue<ResumableSessionUploader> uploaders;
+
+    /**
+     * @param connections          number of parallel connections, 1..MAX_CONNECTIONS.
+     * @param chunkSize            size of the upload chunks, which is the memory taken by every connection.
+     * @param maxAttempts          attempts per session before giving up till the next run.
+     * @param initialBackoffMillis pause after the first failed attempt; doubles with every next one.
+     * @param maxBackoffMillis     limit for the pause between attempts.
+     */
+    public UploadEngine(String baseUrl, ResumableSessionUploader.ConnectionFactory connectionFactory,
+                        int connections, int chunkSize, int maxAttempts,
+                        long initialBackoffMillis, long maxBackoffMillis) {
+        if (connections < 1 || connections > MAX_CONNECTIONS) {
+            throw new IllegalArgumentException("Connections should be 1.." + MAX_CONNECTIONS + ": " + connections);
+        }
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Should be at least one attempt: " + maxAttempts);
+        }
+        this.connections = connections;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+
+        uploaders = new ArrayBlockingQueue<ResumableSessionUploader>(connections);
+        for (int i = 0; i < connections; i++) {
+            uploaders.add(new ResumableSessionUploader(baseUrl, connectionFactory, chunkSize));
+        }
+    }
+
+    /**
+     * @param statistics where to add the timings of every request; null not to time them.
+     */
+    public void setStatistics(RequestTimingStatistics statistics) {
+        for (ResumableSessionUploader uploader : uploaders) {
+            uploader.setStatistics(statistics);
+        }
+    }
+
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        for (ResumableSessionUploader uploader : uploaders) {
+            uploader.setCompressionEnabled(compressionEnabled);
+        }
+    }
+
+    /**
+     * Upload the sessions; blocks till every one is either uploaded or has run out of attempts.
+     *
+     * @return number of sessions uploaded.
+     */
+    public int uploadAll(List<RecordingSession> sessions, final Listener listener) throws InterruptedException {
+        final AtomicInteger uploaded = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(connections, Math.max(1, sessions.size())));
+        try {
+            for (final RecordingSession session : sessions) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (uploadWithRetries(session, listener)) {
+                            uploaded.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        return uploaded.get();
+    }
+
+    long backoffMillis(int failedAttempts) {
+        long backoff = initialBackoffMillis << Math.min(failedAttempts - 1, 30);
+        return Math.min(backoff, maxBackoffMillis);
+    }
+
+    private boolean uploadWithRetries(RecordingSession session, final Listener listener) {
+        ResumableSessionUploader uploader = uploaders.poll();
+        if (uploader == null) {
+            // can not happen: there are as many uploaders as threads
+            throw new IllegalStateException("No uploader available");
+        }
+        try {
+            final long[] offset = {session.getUploadOffset()};
+            ResumableSessionUploader.Checkpoint checkpoint = new ResumableSessionUploader.Checkpoint() {
+                @Override
+                public void onAcknowledged(RecordingSession session, long acknowledged) {
+                    offset[0] = acknowledged;
+                    listener.onAcknowledged(session, acknowledged);
+                }
+            };
+
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    uploader.upload(session, offset[0], checkpoint);
+                    listener.onUploaded(session);
+                    return true;
+                } catch (IOException e) {
+                    if (attempt >= maxAttempts) {
+                        listener.onFailed(session, e);
+                        return false;
+                    }
+                }
+                try {
+                    Thread.sleep(backoffMillis(attempt));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    listener.onFailed(session, new IOException("Upload interrupted"));
+                    return false;
+                }
+            }
+        } finally {
+            uploaders.add(uploader);
+        }
+    }
+}
@@ -6,11 +6,13 @@ import org.apache.http.conn.ssl.StrictHostnameVerifier;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.TrustManagerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -19,12 +21,27 @@ import java.security.cert.CertificateException;
 
 /**
  * Factory providing secure HTTPS connections with the certificate chain/ssl verifier understanding our own certificates.
+ * <p/>
+ * The connections are kept alive and pooled by HttpURLConnection, which only works if they share the socket factory --
+ * so there is just one, created on first use. Its TLS sessions are cached, so even a new connection to the same
+ * server gets away with an abbreviated handshake.
  */
 public class NetworkingFactory {
 
     private static final String TRUSTED_KEYSTORE_PASSWORD = "tomcat";
 
-    private static SSLContext sslContext = null;
+    // idle connections kept per route; a few more than the upload connections
+    public static final int MAX_POOLED_CONNECTIONS = 10;
+    private static final int TLS_SESSION_CACHE_SIZE = 16;
+    private static final int TLS_SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+    private static volatile TimingSSLSocketFactory sslSocketFactory = null;
+
+    static {
+        // read by the HttpURLConnection connection pool on its first use
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", Integer.toString(MAX_POOLED_CONNECTIONS));
+    }
 
     /**
      * Using STRICT hostname verifier, which means it will not accept SSL connections from indirect sub-domains.
@@ -38,7 +55,8 @@ public class NetworkingFactory {
      *
      * @param url     url to open
      * @param context context where we live (only used for loading resources).
-     * @return open url connection. Don't forget to disconnect() it!
+     * @return open url connection. Read the response out and close its streams when done; do not disconnect() it
+     * unless it failed, so that it goes back to the pool.
      * @throws NetworkingException in case of any exception (crypto, ...). Look into the cause for the details.
      */
     public static HttpURLConnection openConnection(String url, Context context) throws NetworkingException {
@@ -53,7 +71,7 @@ public class NetworkingFactory {
             if (connection instanceof HttpsURLConnection) {
                 HttpsURLConnection httpsConnection = (HttpsURLConnection) connection;
                 httpsConnection.setHostnameVerifier(HOSTNAME_VERIFIER);
-                httpsConnection.setSSLSocketFactory(sslContext.getSocketFactory());
+                httpsConnection.setSSLSocketFactory(sslSocketFactory);
             }
 
             return connection;
@@ -64,14 +82,33 @@ public class NetworkingFactory {
 
     }
 
-    private synchronized static void ensureSslContextReady(Context context) throws Exception {
-        if (sslContext == null) {
-            KeyStore keystore = loadKeystore(context);
-            TrustManagerFactory tmf = TrustManagerFactory.getInstance("X509");
-            tmf.init(keystore);
+    /**
+     * @return the shared socket factory, or null if no connection has been opened yet.
+     */
+    public static TimingSSLSocketFactory getSslSocketFactory() {
+        return sslSocketFactory;
+    }
 
-            sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(null, tmf.getTrustManagers(), null);
+    /**
+     * Create the socket factory trusting the given keystore, with TLS session caching on.
+     */
+    public static TimingSSLSocketFactory createSocketFactory(KeyStore trustedKeystore) throws GeneralSecurityException {
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trustedKeystore);
+
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, tmf.getTrustManagers(), null);
+        SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+        if (sessionContext != null) {
+            sessionContext.setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+            sessionContext.setSessionTimeout(TLS_SESSION_TIMEOUT_SECONDS);
+        }
+        return new TimingSSLSocketFactory(sslContext.getSocketFactory());
+    }
+
+    private synchronized static void ensureSslContextReady(Context context) throws Exception {
+        if (sslSocketFactory == null) {
+            sslSocketFactory = createSocketFactory(loadKeystore(context));
         }
     }
 
@@ -0,0 +1,115 @@
+package com.augmentari.roadworks.sensorlogger.net.ssl;
+
+import com.augmentari.roadworks.sensorlogger.net.RequestTimings;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SSL socket factory which reports new sockets and their handshakes to the {@link RequestTimings} of the calling
+ * thread. It is created once and shared: HttpURLConnection only pools connections made by the same factory instance.
+ * <p/>
+ * The handshake is not started here -- HttpURLConnection configures the socket (SNI and such) before starting it --
+ * so it is timed from the socket creation to the completion event.
+ */
+public class TimingSSLSocketFactory extends SSLSocketFactory {
+
+    private final SSLSocketFactory delegate;
+    private final AtomicInteger socketsCreated = new AtomicInteger();
+    private final AtomicInteger handshakesCompleted = new AtomicInteger();
+    private final AtomicInteger sessionsResumed = new AtomicInteger();
+
+    public TimingSSLSocketFactory(SSLSocketFactory delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @return number of sockets created, i.e. of connections not taken from the pool.
+     */
+    public int getSocketsCreated() {
+        return socketsCreated.get();
+    }
+
+    public int getHandshakesCompleted() {
+        return handshakesCompleted.get();
+    }
+
+    /**
+     * @return number of handshakes which resumed an earlier TLS session.
+     */
+    public int getSessionsResumed() {
+        return sessionsResumed.get();
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+        // the usual way: TLS layered over a TCP connection HttpURLConnection has already made
+        return timed(delegate.createSocket(s, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return timed(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return timed(delegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return timed(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+            throws IOException {
+        return timed(delegate.createSocket(address, port, localAddress, localPort));
+    }
+
+    private Socket timed(Socket socket) {
+        socketsCreated.incrementAndGet();
+        final RequestTimings timings = RequestTimings.current();
+        if (timings != null) {
+            timings.markConnected();
+        }
+        if (!(socket instanceof SSLSocket)) {
+            return socket;
+        }
+
+        final long createdNanos = System.nanoTime();
+        final long createdMillis = System.currentTimeMillis();
+        ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+            @Override
+            public void handshakeCompleted(HandshakeCompletedEvent event) {
+                // a resumed session is one created before this socket
+                boolean resumed = event.getSession().getCreationTime() < createdMillis;
+                handshakesCompleted.incrementAndGet();
+                if (resumed) {
+                    sessionsResumed.incrementAndGet();
+                }
+                if (timings != null) {
+                    timings.markHandshakeDone(System.nanoTime() - createdNanos, resumed);
+                }
+            }
+        });
+        return socket;
+    }
+}
@@ -3,9 +3,12 @@ package com.augmentari.roadworks.sensorlogger.receiver;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.preference.PreferenceManager;
 import com.augmentari.roadworks.sensorlogger.service.DataUploaderService;
+import com.augmentari.roadworks.sensorlogger.service.SessionCompressionService;
 
 
 /**
@@ -18,8 +21,12 @@ public class SystemEventReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
         if (Intent.ACTION_POWER_CONNECTED.equals(intent.getAction())) {
-            //TODO: Here we should a) check for preference b) if PROCESS_ON_AC_ONLY is there, start processsing data chunks
-//            Toast.makeText(context, "CONNECTED!", Toast.LENGTH_SHORT).show();
+            SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+            // only the raw session upload sends the data files; the merged defects upload deletes them unsent
+            if (preferences.getBoolean(DataUploaderService.PREF_UPLOAD_RAW_SESSIONS, false)
+                    && preferences.getBoolean(SessionCompressionService.PREF_PRECOMPRESS_ON_CHARGE, true)) {
+                context.startService(new Intent(context, SessionCompressionService.class));
+            }
         }
         if (Intent.ACTION_POWER_DISCONNECTED.equals(intent.getAction())) {
             //TODO: We may also interrupt/freeze processing of the data if AC power disconnected.
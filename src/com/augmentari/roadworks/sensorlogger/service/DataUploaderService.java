@@ -6,6 +6,7 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.AsyncTask;
 import android.os.IBinder;
 import android.preference.PreferenceManager;
@@ -15,16 +16,20 @@ import com.augmentari.roadworks.sensorlogger.R;
 import com.augmentari.roadworks.sensorlogger.activity.PreferencesActivity;
 import com.augmentari.roadworks.sensorlogger.activity.SessionListActivity;
 import com.augmentari.roadworks.sensorlogger.dao.RecordingSessionDAO;
+import com.augmentari.roadworks.sensorlogger.format.SessionFileCompressor;
+import com.augmentari.roadworks.sensorlogger.net.ClusterDeltaUploader;
+import com.augmentari.roadworks.sensorlogger.net.RequestTimingStatistics;
+import com.augmentari.roadworks.sensorlogger.net.ResumableSessionUploader;
+import com.augmentari.roadworks.sensorlogger.net.UploadEngine;
+import com.augmentari.roadworks.sensorlogger.net.ssl.NetworkingException;
 import com.augmentari.roadworks.sensorlogger.net.ssl.NetworkingFactory;
 import com.augmentari.roadworks.sensorlogger.util.CloseUtils;
 import com.augmentari.roadworks.sensorlogger.util.Constants;
 import com.augmentari.roadworks.sensorlogger.util.Log;
-import org.json.JSONArray;
 
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.net.HttpURLConnection;
-import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -32,6 +37,18 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class DataUploaderService extends Service {
 
+    public static final String PREF_UPLOAD_CONNECTIONS = "pref_upload_connections";
+    private static final int DEFAULT_UPLOAD_CONNECTIONS = 2;
+
+    /**
+     * Whether to upload the data files of the sessions too, or only the defect cluster deltas.
+     */
+    public static final String PREF_UPLOAD_RAW_SESSIONS = "pref_upload_raw_sessions";
+
+    private static final int UPLOAD_ATTEMPTS = 5;
+    private static final long UPLOAD_INITIAL_BACKOFF = 1000;
+    private static final long UPLOAD_MAX_BACKOFF = 30 * 1000;
+
     private AtomicBoolean isDataUploadRunning = new AtomicBoolean(false);
 
     @Override
@@ -61,7 +78,7 @@ public class DataUploaderService extends Service {
      * Task for data upload.
      */
     private class DataUploadTask extends AsyncTask<Void, Integer, Void> {
-        private Exception ex = null;
+        private volatile Exception ex = null;
         private final int serviceStartId;
         private int sessionsUploaded = 0;
 
@@ -72,53 +89,89 @@ public class DataUploaderService extends Service {
         @Override
         protected Void doInBackground(Void... params) {
             ex = null;
-            InputStream is = null;
-            OutputStream os = null;
-            HttpURLConnection connection = null;
             RecordingSessionDAO dao = null;
 
             try {
-                Context context = DataUploaderService.this;
-                String realUrl = PreferenceManager.getDefaultSharedPreferences(context).getString(PreferencesActivity.KEY_PREF_API_BASE_URL, "") + "api/helloworld";
-                connection = NetworkingFactory.openConnection(realUrl, context);
-                connection.setDoOutput(true);
-                connection.setConnectTimeout(5000);
-                connection.setRequestMethod("POST");
-
-                dao = new RecordingSessionDAO(DataUploaderService.this);
-                dao.openRead();
-                JSONArray jsonArray = new JSONArray();
-
-                List<RecordingSession> sessions = dao.getRecordingSessionsToUpload();
-                long[] ids = new long[sessions.size()];
-                int idIdx = 0;
-                for (RecordingSession session : sessions) {
-                    jsonArray.put(RecordingSessionDAO.sessionToJSONObject(session));
-                    ids[idIdx++] = session.getId();
+                final Context context = DataUploaderService.this;
+                SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+                String baseUrl = preferences.getString(PreferencesActivity.KEY_PREF_API_BASE_URL, "");
+                int connections = DEFAULT_UPLOAD_CONNECTIONS;
+                try {
+                    connections = Integer.parseInt(preferences.getString(PREF_UPLOAD_CONNECTIONS, ""));
+                    connections = Math.max(1, Math.min(UploadEngine.MAX_CONNECTIONS, connections));
+                } catch (NumberFormatException e) {
+                    Log.w("Wrong setting for upload connections, defaulting to " + connections);
                 }
 
-                byte[] jsonString = jsonArray.toString().getBytes();
-                connection.setRequestProperty("Content-Type", "application/json");
-                connection.setRequestProperty("Accept", "application/json");
-                connection.setRequestProperty("Content-Length", Integer.toString(jsonString.length));
-
-                os = connection.getOutputStream();
-                os.write(jsonString);
-
-                is = connection.getInputStream();
+                ResumableSessionUploader.ConnectionFactory connectionFactory =
+                        new ResumableSessionUploader.ConnectionFactory() {
+                            @Override
+                            public HttpURLConnection open(String url) throws IOException {
+                                try {
+                                    return NetworkingFactory.openConnection(url, context);
+                                } catch (NetworkingException e) {
+                                    throw new IOException("Could not open connection to " + url, e);
+                                }
+                            }
+                        };
+
+                dao = new RecordingSessionDAO(context);
+                dao.open();
+
+                // the defect clusters first: with the raw upload off, they are all the server gets
+                long mergedUpTo = 0;
+                try {
+                    SessionMergeService.merge(context);
+                    mergedUpTo = SessionMergeService.uploadDeltas(context,
+                            new ClusterDeltaUploader(baseUrl, connectionFactory));
+                } catch (IOException e) {
+                    ex = e;
+                    Log.e("Error uploading defect clusters, will retry later", e);
+                }
+                if (!preferences.getBoolean(PREF_UPLOAD_RAW_SESSIONS, false)) {
+                    for (RecordingSession session : dao.getRecordingSessionsToUpload()) {
+                        if (session.getId() <= mergedUpTo) {
+                            dao.markUploaded(new long[]{session.getId()});
+                            SessionFileCompressor.deleteCompressed(new File(session.getDataFileFullPath()));
+                            sessionsUploaded++;
+                        }
+                    }
+                    return null;
+                }
 
-                dao.markUploaded(ids);
-                sessionsUploaded = ids.length;
-                dao.close();
+                UploadEngine engine = new UploadEngine(baseUrl, connectionFactory, connections,
+                        ResumableSessionUploader.DEFAULT_CHUNK_SIZE, UPLOAD_ATTEMPTS, UPLOAD_INITIAL_BACKOFF,
+                        UPLOAD_MAX_BACKOFF);
+                RequestTimingStatistics statistics = new RequestTimingStatistics();
+                engine.setStatistics(statistics);
+
+                final RecordingSessionDAO listenerDao = dao;
+                // sessions go on their own, so one failure does not hold the rest back
+                sessionsUploaded += engine.uploadAll(dao.getRecordingSessionsToUpload(), new UploadEngine.Listener() {
+                    @Override
+                    public void onAcknowledged(RecordingSession session, long offset) {
+                        listenerDao.updateUploadOffset(session.getId(), offset);
+                    }
+
+                    @Override
+                    public void onUploaded(RecordingSession session) {
+                        listenerDao.markUploaded(new long[]{session.getId()});
+                        SessionFileCompressor.deleteCompressed(new File(session.getDataFileFullPath()));
+                    }
+
+                    @Override
+                    public void onFailed(RecordingSession session, IOException e) {
+                        ex = e;
+                        Log.e("Error uploading session " + session.getId() + ", will resume later", e);
+                    }
+                });
+                Log.i("Upload finished: " + statistics);
             } catch (Exception e) {
                 ex = e;
                 e.printStackTrace();
                 Log.e("Error in DataUploadTask (async): " + e.getMessage() + " " + e.getClass());
             } finally {
                 CloseUtils.closeDao(dao);
-                CloseUtils.closeStream(is);
-                CloseUtils.closeStream(os);
-                CloseUtils.closeConnection(connection);
             }
             return null;
         }
@@ -141,7 +194,7 @@ public class DataUploaderService extends Service {
             String text;
             int ticker;
             Class activityClassToOpen;
-            if (ex == null && sessionsUploaded > 0) {
+            if (sessionsUploaded > 0) {
                 text = String.format(getString(R.string.data_upload_service_success_text), sessionsUploaded);
                 ticker = R.string.data_upload_service_success_ticker;
                 activityClassToOpen = SessionListActivity.class;
@@ -0,0 +1,62 @@
+package com.augmentari.roadworks.sensorlogger.service;
+
+import android.location.Location;
+import android.os.Build;
+import android.os.SystemClock;
+import com.augmentari.roadworks.sensorlogger.util.Log;
+
+import java.lang.reflect.Method;
+
+/**
+ * When a location fix was taken, on the wall clock the sensor samples are mapped to (see SensorClock). The fix time
+ * of the GPS itself is on the satellites' clock, which the device clock may be seconds off; what is taken instead is
+ * the delivery time, less the age of the fix where the device can tell it.
+ * <p/>
+ * The age came with API 17 (Jelly Bean MR1), as the elapsed realtime of the fix, and we compile against an older one,
+ * so the calls are made through reflection. Everywhere else the fix is taken to be as old as its delivery.
+ */
+final class FixTime {
+
+    // Build.VERSION_CODES.JELLY_BEAN_MR1
+    private static final int ELAPSED_REALTIME_SDK_VERSION = 17;
+
+    private static final long NANOS_PER_MILLI = 1000 * 1000;
+
+    private static Method getElapsedRealtimeNanos;
+    private static Method elapsedRealtimeNanos;
+
+    static {
+        if (Build.VERSION.SDK_INT >= ELAPSED_REALTIME_SDK_VERSION) {
+            try {
+                getElapsedRealtimeNanos = Location.class.getMethod("getElapsedRealtimeNanos");
+                elapsedRealtimeNanos = SystemClock.class.getMethod("elapsedRealtimeNanos");
+            } catch (NoSuchMethodException e) {
+                Log.w("Location fix age not available: " + e);
+                getElapsedRealtimeNanos = null;
+                elapsedRealtimeNanos = null;
+            }
+        }
+    }
+
+    private FixTime() {
+    }
+
+    /**
+     * @param deliveryWallMillis wall clock at the delivery of the fix, System.currentTimeMillis().
+     * @return wall clock milliseconds of the moment the fix was taken.
+     */
+    static long toWallMillis(Location location, long deliveryWallMillis) {
+        if (getElapsedRealtimeNanos == null) {
+            return deliveryWallMillis;
+        }
+        try {
+            long fixNanos = (Long) getElapsedRealtimeNanos.invoke(location);
+            long ageNanos = (Long) elapsedRealtimeNanos.invoke(null) - fixNanos;
+            // 0 if the provider did not set it
+            return fixNanos > 0 && ageNanos > 0 ? deliveryWallMillis - ageNanos / NANOS_PER_MILLI : deliveryWallMillis;
+        } catch (Exception e) {
+            Log.w("Could not get the location fix age: " + e);
+            return deliveryWallMillis;
+        }
+    }
+}
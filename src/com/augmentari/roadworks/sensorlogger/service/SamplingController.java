@@ -0,0 +1,174 @@
+package com.augmentari.roadworks.sensorlogger.service;
+
+/**
+ * Decides how often to sample the accelerometer and GPS, from the speed, from whether the car is standing still and
+ * from the battery state. Parked or stuck in traffic there is nothing to detect, so the sensors are slowed down until
+ * the car moves again; on a low battery (and not charging) the rates are lowered altogether.
+ * <p/>
+ * The car is taken as stationary when the variance of the accelerometer magnitude stays below
+ * {@link #STILL_VARIANCE} for {@link #STATIONARY_AFTER_NANOS} while the speed is low. It is back to moving as soon as
+ * either a window of the variance goes over {@link #MOVING_VARIANCE} or the speed over {@link #MOVING_SPEED}, so no
+ * road is missed at the start of a drive. The gaps between the thresholds are the hysteresis which keeps the mode from
+ * flapping on values close to a threshold; the same goes for the battery level.
+ * <p/>
+ * Pure decision logic: the caller feeds in the readings and applies the mode when an update method reports a change.
+ * Times are the sensor event timestamps. Thread safe.
+ */
+public class SamplingController {
+
+    /**
+     * What to sample at. Accelerometer delays are in microseconds, as taken by SensorManager.registerListener; 0 is
+     * the fastest rate of the sensor.
+     */
+    public enum Mode {
+        DRIVING(0, 1000),
+        DRIVING_POWER_SAVING(20 * 1000, 2000),
+        STATIONARY(50 * 1000, 10 * 1000),
+        STATIONARY_POWER_SAVING(100 * 1000, 30 * 1000);
+
+        private final int accelerometerDelayMicros;
+        private final long gpsIntervalMillis;
+
+        Mode(int accelerometerDelayMicros, long gpsIntervalMillis) {
+            this.accelerometerDelayMicros = accelerometerDelayMicros;
+            this.gpsIntervalMillis = gpsIntervalMillis;
+        }
+
+        public int getAccelerometerDelayMicros() {
+            return accelerometerDelayMicros;
+        }
+
+        public long getGpsIntervalMillis() {
+            return gpsIntervalMillis;
+        }
+    }
+
+    // accelerometer variance is taken over windows of that length; 10-20 samples at the stationary rates, fewer would
+    // make the variance too noisy to tell a parked car from a moving one
+    public static final long WINDOW_NANOS = 1000L * 1000 * 1000;
+    // (m/s^2)^2, of the magnitude. An idling engine stays well below, any road well above.
+    public static final float STILL_VARIANCE = 0.05f;
+    public static final float MOVING_VARIANCE = 0.2f;
+    public static final long STATIONARY_AFTER_NANOS = 20 * WINDOW_NANOS;
+
+    // m/s; GPS speed is noisy when standing, so "stopped" is anything below walking pace
+    public static final float STOPPED_SPEED = 1f;
+    public static final float MOVING_SPEED = 3f;
+
+    public static final int LOW_BATTERY_PERCENT = 20;
+    public static final int BATTERY_RECOVERED_PERCENT = 25;
+
+    private Mode mode = Mode.DRIVING;
+    private long transitionCount = 0;
+
+    private boolean stationary = false;
+    private boolean powerSaving = false;
+    private float speed = 0;
+
+    // current variance window
+    private boolean windowStarted = false;
+    private long windowStartNanos;
+    private int windowCount;
+    private double windowSum;
+    private double windowSumOfSquares;
+
+    // start of the current run of still windows, if there is one
+    private boolean stillRun = false;
+    private long stillSinceNanos;
+
+    public synchronized Mode getMode() {
+        return mode;
+    }
+
+    public synchronized long getTransitionCount() {
+        return transitionCount;
+    }
+
+    /**
+     * @return true if the mode has changed.
+     */
+    public synchronized boolean onAccelerometerSamples(long[] timestamps, float[] xs, float[] ys, float[] zs,
+                                                       int count) {
+        for (int i = 0; i < count; i++) {
+            long timestamp = timestamps[i];
+            if (windowStarted && timestamp - windowStartNanos >= WINDOW_NANOS) {
+                onWindowClosed(timestamp);
+                windowStarted = false;
+            }
+            if (!windowStarted) {
+                windowStarted = true;
+                windowStartNanos = timestamp;
+                windowCount = 0;
+                windowSum = 0;
+                windowSumOfSquares = 0;
+            }
+            double magnitude = Math.sqrt(xs[i] * xs[i] + ys[i] * ys[i] + zs[i] * zs[i]);
+            windowCount++;
+            windowSum += magnitude;
+            windowSumOfSquares += magnitude * magnitude;
+        }
+        return update();
+    }
+
+    private void onWindowClosed(long nowNanos) {
+        if (windowCount < 2) {
+            return;
+        }
+        double mean = windowSum / windowCount;
+        double variance = windowSumOfSquares / windowCount - mean * mean;
+        if (variance < STILL_VARIANCE) {
+            if (!stillRun) {
+                stillRun = true;
+                stillSinceNanos = windowStartNanos;
+            }
+            if (!stationary && speed < STOPPED_SPEED && nowNanos - stillSinceNanos >= STATIONARY_AFTER_NANOS) {
+                stationary = true;
+            }
+        } else {
+            stillRun = false;
+            if (variance > MOVING_VARIANCE) {
+                stationary = false;
+            }
+        }
+    }
+
+    /**
+     * @param metersPerSecond speed of the latest location fix.
+     * @return true if the mode has changed.
+     */
+    public synchronized boolean onSpeed(float metersPerSecond) {
+        speed = metersPerSecond;
+        if (metersPerSecond > MOVING_SPEED) {
+            stillRun = false;
+            stationary = false;
+        }
+        return update();
+    }
+
+    /**
+     * @return true if the mode has changed.
+     */
+    public synchronized boolean onBatteryChanged(int levelPercent, boolean charging) {
+        if (charging || levelPercent >= BATTERY_RECOVERED_PERCENT) {
+            powerSaving = false;
+        } else if (levelPercent <= LOW_BATTERY_PERCENT) {
+            powerSaving = true;
+        }
+        return update();
+    }
+
+    private boolean update() {
+        Mode newMode;
+        if (stationary) {
+            newMode = powerSaving ? Mode.STATIONARY_POWER_SAVING : Mode.STATIONARY;
+        } else {
+            newMode = powerSaving ? Mode.DRIVING_POWER_SAVING : Mode.DRIVING;
+        }
+        if (newMode == mode) {
+            return false;
+        }
+        mode = newMode;
+        transitionCount++;
+        return true;
+    }
+}
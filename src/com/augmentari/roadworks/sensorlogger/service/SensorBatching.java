@@ -0,0 +1,81 @@
+package com.augmentari.roadworks.sensorlogger.service;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Build;
+import com.augmentari.roadworks.sensorlogger.util.Log;
+
+import java.lang.reflect.Method;
+
+/**
+ * Registration of sensor listeners with hardware batching: the sensor keeps the events in its FIFO and reports them
+ * in bursts up to the given latency late, instead of waking the application processor for every event. The events
+ * keep their timestamps, so they are processed the same way as ones delivered one by one.
+ * <p/>
+ * Batching came with API 19 (KitKat), and we compile against an older one, so the calls are made through reflection.
+ * Everywhere else, or when the sensor has no FIFO, the listener is registered the plain way.
+ */
+public final class SensorBatching {
+
+    // Build.VERSION_CODES.KITKAT
+    private static final int BATCHING_SDK_VERSION = 19;
+
+    private static Method registerListenerWithLatency;
+    private static Method getFifoMaxEventCount;
+
+    static {
+        if (Build.VERSION.SDK_INT >= BATCHING_SDK_VERSION) {
+            try {
+                registerListenerWithLatency = SensorManager.class.getMethod("registerListener",
+                        SensorEventListener.class, Sensor.class, int.class, int.class);
+                getFifoMaxEventCount = Sensor.class.getMethod("getFifoMaxEventCount");
+            } catch (NoSuchMethodException e) {
+                Log.w("Sensor batching not available: " + e);
+                registerListenerWithLatency = null;
+                getFifoMaxEventCount = null;
+            }
+        }
+    }
+
+    private SensorBatching() {
+    }
+
+    /**
+     * @return number of events the sensor may batch; 0 if it does not batch at all.
+     */
+    public static int getFifoSize(Sensor sensor) {
+        if (getFifoMaxEventCount == null) {
+            return 0;
+        }
+        try {
+            return (Integer) getFifoMaxEventCount.invoke(sensor);
+        } catch (Exception e) {
+            Log.w("Could not get the sensor FIFO size: " + e);
+            return 0;
+        }
+    }
+
+    /**
+     * Register the listener, with batching if the sensor supports it.
+     *
+     * @param delayMicros            sampling delay, as for SensorManager.registerListener.
+     * @param maxReportLatencyMicros how late the events may be reported; 0 to have them as they come.
+     * @return true if the events are going to be batched.
+     */
+    public static boolean registerListener(SensorManager sensorManager, SensorEventListener listener, Sensor sensor,
+                                           int delayMicros, int maxReportLatencyMicros) {
+        if (maxReportLatencyMicros > 0 && getFifoSize(sensor) > 0) {
+            try {
+                if ((Boolean) registerListenerWithLatency.invoke(sensorManager, listener, sensor, delayMicros,
+                        maxReportLatencyMicros)) {
+                    return true;
+                }
+            } catch (Exception e) {
+                Log.w("Could not register for batched sensor events: " + e);
+            }
+        }
+        sensorManager.registerListener(listener, sensor, delayMicros);
+        return false;
+    }
+}
@@ -4,7 +4,10 @@ import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
@@ -12,28 +15,50 @@ import android.hardware.SensorManager;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
+import android.os.BatteryManager;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.PowerManager;
 import android.preference.PreferenceManager;
 import android.widget.Toast;
 import com.augmentari.roadworks.sensorlogger.R;
 import com.augmentari.roadworks.sensorlogger.activity.MainActivity;
-import com.augmentari.roadworks.sensorlogger.component.CircularBuffer;
+import com.augmentari.roadworks.sensorlogger.component.LocationTrack;
+import com.augmentari.roadworks.sensorlogger.component.Resampler;
+import com.augmentari.roadworks.sensorlogger.component.RoughnessFilter;
+import com.augmentari.roadworks.sensorlogger.component.SampleBuffer;
+import com.augmentari.roadworks.sensorlogger.component.SensorClock;
+import com.augmentari.roadworks.sensorlogger.component.SensorSampleQueue;
 import com.augmentari.roadworks.sensorlogger.util.Constants;
+import com.augmentari.roadworks.sensorlogger.util.ListenerRegistry;
 import com.augmentari.roadworks.sensorlogger.util.Log;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-
 /**
  * Sample service -- will be doing 2 things later:
  * 1) collecting data from various sources (accelerometer, GPS, maybe microphone)
  * 2) packing it, preparing and sending to the rest (server)
  */
-public class SensorLoggerService extends Service implements SensorEventListener, LocationListener {
+public class SensorLoggerService extends Service implements SensorEventListener, LocationListener,
+        SensorProcessingThread.SampleBatchHandler {
+
+    // ~20 seconds of samples at the fastest rate, should be plenty for the processing thread to catch up
+    private static final int SAMPLE_QUEUE_CAPACITY = 4096;
+
+    public static final String PREF_ADAPTIVE_SAMPLING = "pref_adaptive_sampling";
+    public static final String PREF_SENSOR_BATCHING = "pref_sensor_batching";
+
+    // with nobody looking at the screen, accelerometer events may come in batches that late. A batch at the fastest
+    // rate still fits the sample queue with plenty to spare.
+    private static final int MAX_REPORT_LATENCY_MICROS = 5 * 1000 * 1000;
+
+    // everything past the sensor callback works on samples of that period (200 Hz), whatever the device delivers
+    private static final long SAMPLE_PERIOD_NANOS = 5 * 1000 * 1000;
+    // longer gaps between sensor events are not interpolated over; the slowest sampling mode is 10 Hz
+    private static final long MAX_SAMPLE_GAP_NANOS = 250 * 1000 * 1000;
+    // of the low-pass filter tracking gravity; gives the alpha of 0.8 the filter was tuned with at 200 Hz
+    private static final double GRAVITY_TIME_CONSTANT_SECONDS = 0.02;
 
     private boolean isStarted = false;
 
@@ -47,36 +72,94 @@ public class SensorLoggerService extends Service implements SensorEventListener,
     private long startTimeMillis;
 
     private boolean hasLocation = false;
-    private double latitude = 0;
-    private double longitude = 0;
-    private float speed = 0;
+    // fixes added on the main thread, looked up for every sample on the processing thread. Unlike hasLocation, it is
+    // not faked when the GPS is bypassed: samples have no fix until there has been a real one
+    private final LocationTrack locationTrack = new LocationTrack();
+    private final LocationTrack.Position samplePosition = new LocationTrack.Position();
 
-    int pointer = 0;
     private int filterFactor = 1;
-    float normalizer1[] = null;
-    float normalizer2[] = null;
-    float normalizer3[] = null;
+    private RoughnessFilter roughnessFilter = null;
     private float[] gravity = new float[3];
-    private CircularBuffer buffer = new CircularBuffer();
+    private final Resampler resampler = new Resampler(SAMPLE_PERIOD_NANOS, MAX_SAMPLE_GAP_NANOS);
+    private final float gravityAlpha = Resampler.lowPassAlpha(GRAVITY_TIME_CONSTANT_SECONDS, SAMPLE_PERIOD_NANOS);
+    // full history of the processed samples, shared with the listeners
+    private final SampleBuffer history = new SampleBuffer();
+    private final float[] batchValues = new float[SensorProcessingThread.BATCH_SIZE];
+    private final long[] batchTimestamps = new long[SensorProcessingThread.BATCH_SIZE];
+
+    // hand-off of raw samples from the sensor callback to the processing thread
+    private final SensorSampleQueue sampleQueue = new SensorSampleQueue(SAMPLE_QUEUE_CAPACITY);
+    private SensorProcessingThread processingThread = null;
+
+    // event timestamps to wall clock, whether the events come one by one or in batches
+    private final SensorClock sensorClock = new SensorClock();
+    private boolean sensorBatching = true;
+    // an activity is bound: the graph and sounds want the events as they come
+    private boolean bound = false;
+    private boolean batched = false;
+
+    // sensor rates follow the speed, standing still and the battery; the mode is only applied on the main thread
+    private final SamplingController samplingController = new SamplingController();
+    private boolean adaptiveSampling = true;
+    private SamplingController.Mode appliedMode = null;
+    private Handler mainHandler;
+    private final Runnable applySamplingModeTask = new Runnable() {
+        @Override
+        public void run() {
+            applySamplingMode();
+        }
+    };
+    private final BroadcastReceiver batteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            onBatteryChanged(intent);
+        }
+    };
 
     // A Wake Lock object. Lock is acquired when the application asks the service to start listening to events, and
     // is releaserd when the service is actually stopped. As this wake lock is a PARTIAL one, screen may go off but the
     // processor should remain running in the background
     private PowerManager.WakeLock wakeLock = null;
 
-    private List<AccelerometerChangeListener> listeners = new ArrayList<AccelerometerChangeListener>();
+    private final ListenerRegistry<AccelerometerChangeListener> listeners = new ListenerRegistry<AccelerometerChangeListener>();
+    private final ListenerRegistry<RawSampleListener> rawListeners = new ListenerRegistry<RawSampleListener>();
 
     @Override
     public IBinder onBind(Intent intent) {
+        setBound(true);
         return new SessionLoggerServiceBinder();
     }
 
+    @Override
+    public void onRebind(Intent intent) {
+        setBound(true);
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        setBound(false);
+        // to get onRebind() when the activity is back
+        return true;
+    }
+
+    private void setBound(boolean bound) {
+        if (this.bound == bound) {
+            return;
+        }
+        this.bound = bound;
+        if (isStarted && accelerometer != null) {
+            sensorManager.unregisterListener(this, accelerometer);
+            registerAccelerometer(appliedMode.getAccelerometerDelayMicros());
+        }
+    }
+
     @Override
     public void onCreate() {
         sensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
         locationManager = (LocationManager) getSystemService(LOCATION_SERVICE);
         notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
         powerManager = (PowerManager) getSystemService(POWER_SERVICE);
+        mainHandler = new Handler();
 
         super.onCreate();
     }
@@ -98,24 +181,28 @@ public class SensorLoggerService extends Service implements SensorEventListener,
         }
 
         boolean bypassGps = PreferenceManager.getDefaultSharedPreferences(this).getBoolean("pref_bypass_GPS", false);
+        adaptiveSampling = PreferenceManager.getDefaultSharedPreferences(this).getBoolean(PREF_ADAPTIVE_SAMPLING, true);
+        sensorBatching = PreferenceManager.getDefaultSharedPreferences(this).getBoolean(PREF_SENSOR_BATCHING, true);
 
-        try {
-            normalizer1 = new float[filterFactor];
-            normalizer2 = new float[filterFactor];
-            normalizer3 = new float[filterFactor];
+        roughnessFilter = new RoughnessFilter(filterFactor);
 
-            Arrays.fill(normalizer1, 0.0f);
-            Arrays.fill(normalizer2, 0.0f);
-            Arrays.fill(normalizer3, 0.0f);
-        } catch (NumberFormatException ex) {
-            Toast.makeText(this, "Wrong setting for filter factor - defaulting to 10. Prefs.", Toast.LENGTH_LONG).show();
+        if (processingThread == null) {
+            processingThread = new SensorProcessingThread(sampleQueue, this);
+            processingThread.start();
         }
 
         wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "My Tag");
         wakeLock.acquire();
 
         hasLocation = false;
-        locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, this);
+        locationTrack.clear();
+        appliedMode = samplingController.getMode();
+        locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, appliedMode.getGpsIntervalMillis(), 0,
+                this);
+        if (adaptiveSampling) {
+            // sticky, so the current battery state comes in straight away
+            onBatteryChanged(registerReceiver(batteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED)));
+        }
 
         Notification notification = getNotification(
                 getString(R.string.notification_title),
@@ -158,14 +245,38 @@ public class SensorLoggerService extends Service implements SensorEventListener,
         stopForeground(true);
         sensorManager.unregisterListener(this);
         locationManager.removeUpdates(this);
+        if (adaptiveSampling) {
+            unregisterReceiver(batteryReceiver);
+        }
+        mainHandler.removeCallbacks(applySamplingModeTask);
+
+        // let the processing thread go through whatever is still queued before closing the session
+        try {
+            processingThread.shutdown();
+        } catch (InterruptedException e) {
+            Log.e("Interrupted waiting for the sensor processing thread", e);
+        }
+        if (sampleQueue.getOverflowCount() > 0) {
+            Log.w("Sensor samples dropped due to processing lag: " + sampleQueue.getOverflowCount());
+        }
 
         if (wakeLock != null) {
             wakeLock.release();
         }
-
+        Log.i("Sampling mode transitions: " + samplingController.getTransitionCount());
+        Log.i("Longest sensor event delivery delay, ms: " + sensorClock.getMaxDeliveryLatencyNanos() / 1000000);
+        Log.i("Sensor gaps not resampled over: " + resampler.getGapCount()
+                + ", samples out of order: " + resampler.getDroppedCount());
+
+        ListenerRegistry.Entry<RawSampleListener>[] currentRawListeners = rawListeners.snapshot();
+        for (int i = 0; i < currentRawListeners.length; i++) {
+            Log.i("Raw sample listener timing: " + currentRawListeners[i]);
+        }
+        ListenerRegistry.Entry<AccelerometerChangeListener>[] currentListeners = listeners.snapshot();
         try {
-            for (AccelerometerChangeListener listener : listeners) {
-                listener.onSessionClosed();
+            for (int i = 0; i < currentListeners.length; i++) {
+                Log.i("Listener timing: " + currentListeners[i]);
+                currentListeners[i].getListener().onSessionClosed();
             }
         } finally {
             super.onDestroy();
@@ -175,44 +286,71 @@ public class SensorLoggerService extends Service implements SensorEventListener,
 
     @Override
     public void onSensorChanged(SensorEvent sensorEvent) {
+        // sensor callback thread: only copy the primitives out, everything else is done on the processing thread
         final float[] readings = sensorEvent.values;
-        assert readings.length == 3;
-
-        // removing gravity
-        final float alpha = 0.8f;
-
-        gravity[0] = alpha * gravity[0] + (1 - alpha) * readings[0];
-        gravity[1] = alpha * gravity[1] + (1 - alpha) * readings[1];
-        gravity[2] = alpha * gravity[2] + (1 - alpha) * readings[2];
+        sampleQueue.offer(sensorEvent.timestamp, readings[0], readings[1], readings[2]);
+        sensorClock.observe(sensorEvent.timestamp, System.currentTimeMillis());
+    }
 
-        float x = readings[0] - gravity[0];
-        float y = readings[1] - gravity[1];
-        float z = readings[2] - gravity[2];
+    @Override
+    public void onSampleBatch(long[] timestamps, float[] xs, float[] ys, float[] zs, int count) {
+        // standing still is told from the samples as they come: interpolated ones would smooth the variance down
+        if (adaptiveSampling && samplingController.onAccelerometerSamples(timestamps, xs, ys, zs, count)) {
+            mainHandler.post(applySamplingModeTask);
+        }
 
-        // filtering
+        ListenerRegistry.Entry<RawSampleListener>[] currentRawListeners = rawListeners.snapshot();
+        for (int j = 0; j < currentRawListeners.length; j++) {
+            long startNanos = System.nanoTime();
+            currentRawListeners[j].getListener().onRawSamples(timestamps, xs, ys, zs, count);
+            currentRawListeners[j].recordTiming(System.nanoTime() - startNanos);
+        }
 
-        // current differential value to go to the LPF buffer
-        normalizer1[pointer] = x;
-        normalizer2[pointer] = y;
-        normalizer3[pointer] = z;
+        // when the sensor is slower than the resampled rate there are more samples out than in
+        int resampled = resampler.resample(timestamps, xs, ys, zs, count);
+        for (int from = 0; from < resampled; from += SensorProcessingThread.BATCH_SIZE) {
+            processResampled(from, Math.min(SensorProcessingThread.BATCH_SIZE, resampled - from));
+        }
+    }
 
-        float valueSum = 0;
-        for (int j = 1; j < filterFactor; j++) {
-            valueSum += Math.abs(normalizer1[j] - normalizer1[j - 1])
-                    + Math.abs(normalizer2[j] - normalizer2[j - 1])
-                    + Math.abs(normalizer3[j] - normalizer3[j - 1]);
+    private void processResampled(int from, int count) {
+        long[] timestamps = resampler.getTimestamps();
+        float[] xs = resampler.getXs();
+        float[] ys = resampler.getYs();
+        float[] zs = resampler.getZs();
+
+        for (int i = 0; i < count; i++) {
+            int j = from + i;
+            // removing gravity
+            gravity[0] = gravityAlpha * gravity[0] + (1 - gravityAlpha) * xs[j];
+            gravity[1] = gravityAlpha * gravity[1] + (1 - gravityAlpha) * ys[j];
+            gravity[2] = gravityAlpha * gravity[2] + (1 - gravityAlpha) * zs[j];
+
+            float x = xs[j] - gravity[0];
+            float y = ys[j] - gravity[1];
+            float z = zs[j] - gravity[2];
+
+            // filtering
+            batchValues[i] = roughnessFilter.filter(x, y, z);
+            batchTimestamps[i] = timestamps[j];
+
+            // batched samples may be seconds older than the newest fix: the position of the moment of the sample
+            locationTrack.positionAt(sensorClock.toWallMillis(timestamps[j]), samplePosition);
+            history.append(timestamps[j], xs[j], ys[j], zs[j], batchValues[i], samplePosition.hasFix(),
+                    samplePosition.getLatitude(), samplePosition.getLongitude(), samplePosition.getSpeed(),
+                    samplePosition.getBearing());
         }
-        float value = valueSum / filterFactor / 3;
-        pointer = (pointer + 1) % filterFactor;
 
-        buffer.append(value);
+        // one snapshot per batch; listeners added or removed meanwhile will be picked up with the next batch
+        ListenerRegistry.Entry<AccelerometerChangeListener>[] currentListeners = listeners.snapshot();
 
-        for (AccelerometerChangeListener listener : listeners) {
-            listener.onAccelerometerChanged(value, buffer, latitude, longitude, speed);
+        for (int j = 0; j < currentListeners.length; j++) {
+            long startNanos = System.nanoTime();
+            currentListeners[j].getListener().onAccelerometerBatch(batchValues, batchTimestamps, count, history);
+            currentListeners[j].recordTiming(System.nanoTime() - startNanos);
         }
     }
 
-
     @Override
     public void onAccuracyChanged(Sensor sensor, int i) {
         Log.i("onAccuracyChanged");
@@ -236,20 +374,71 @@ public class SensorLoggerService extends Service implements SensorEventListener,
         }
 
         // and now triggering the actual accel updates, which will push data to the file.
-        latitude = location.getLatitude();
-        longitude = location.getLongitude();
-        speed = location.getSpeed();
+        // no bearing when standing still, or too slow for the GPS to tell
+        float bearing = location.hasBearing() ? location.getBearing() : Float.NaN;
+        locationTrack.add(FixTime.toWallMillis(location, System.currentTimeMillis()), location.getLatitude(),
+                location.getLongitude(), location.getSpeed(), bearing);
+
+        if (adaptiveSampling && location.hasSpeed() && samplingController.onSpeed(location.getSpeed())) {
+            applySamplingMode();
+        }
+    }
+
+    private void onBatteryChanged(Intent batteryStatus) {
+        if (batteryStatus == null) {
+            return;
+        }
+        int level = batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = batteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        boolean charging = batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        if (level >= 0 && scale > 0 && samplingController.onBatteryChanged(level * 100 / scale, charging)) {
+            applySamplingMode();
+        }
+    }
+
+    /**
+     * Re-register the sensor listeners with the rates of the current sampling mode, if it has changed. Main thread
+     * only, as the location updates are bound to its looper.
+     */
+    private void applySamplingMode() {
+        SamplingController.Mode mode = samplingController.getMode();
+        if (!isStarted || mode == appliedMode) {
+            return;
+        }
+        Log.i("Sampling mode " + appliedMode + " -> " + mode);
+        appliedMode = mode;
+        if (accelerometer != null) {
+            sensorManager.unregisterListener(this, accelerometer);
+            registerAccelerometer(mode.getAccelerometerDelayMicros());
+        }
+        // replaces the previous request of the same listener
+        locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, mode.getGpsIntervalMillis(), 0, this);
     }
 
     private void subscribeToAccelerometerEvents() {
         if (accelerometer == null) {
             accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-            sensorManager.registerListener(this, accelerometer, SensorManager.SENSOR_DELAY_FASTEST);
+            registerAccelerometer(appliedMode.getAccelerometerDelayMicros());
 
             startTimeMillis = System.currentTimeMillis();
         }
-        for (AccelerometerChangeListener listener : listeners) {
-            listener.onNewSessionStarted();
+        ListenerRegistry.Entry<AccelerometerChangeListener>[] currentListeners = listeners.snapshot();
+        for (int i = 0; i < currentListeners.length; i++) {
+            currentListeners[i].getListener().onNewSessionStarted();
+        }
+    }
+
+    /**
+     * Register for the accelerometer events, batched when running in the background and the sensor can do it.
+     */
+    private void registerAccelerometer(int delayMicros) {
+        int maxReportLatencyMicros = sensorBatching && !bound ? MAX_REPORT_LATENCY_MICROS : 0;
+        boolean wasBatched = batched;
+        batched = SensorBatching.registerListener(sensorManager, this, accelerometer, delayMicros,
+                maxReportLatencyMicros);
+        if (batched != wasBatched) {
+            Log.i(batched ? "Accelerometer events batched, FIFO of " + SensorBatching.getFifoSize(accelerometer)
+                    : "Accelerometer events delivered one by one");
         }
     }
 
@@ -272,17 +461,63 @@ public class SensorLoggerService extends Service implements SensorEventListener,
      * Interface, whose methods get invoked when new data comes from Accelerometer.
      */
     public interface AccelerometerChangeListener {
-        public void onAccelerometerChanged(final float lastAccelFilteredDiffValue,
-                                           final CircularBuffer wholeBuffer,
-                                           final double latitude,
-                                           final double longitude,
-                                           final double speed);
+        /**
+         * Invoked on the processing thread with a batch of filtered values, oldest first. The arrays are reused for the
+         * next batch, so only the first count elements are valid and they should not be kept after the call returns.
+         * <p/>
+         * Samples are resampled to a constant rate (200 Hz) whatever the sensor delivers, so the timestamps are evenly
+         * spaced, apart from the gaps in the sensor events too long to interpolate over.
+         * <p/>
+         * history already contains all the samples of the batch: values[i] corresponds to history index (count - 1 - i).
+         * It may be read within the call only.
+         */
+        public void onAccelerometerBatch(final float[] values,
+                                         final long[] timestamps,
+                                         final int count,
+                                         final SampleBuffer history);
 
         public void onNewSessionStarted();
 
         public void onSessionClosed();
     }
 
+    /**
+     * Interface for the listeners which want the accelerometer samples as the sensor delivered them: before the
+     * resampling and the filters, at whatever rate the sensor runs.
+     */
+    public interface RawSampleListener {
+        /**
+         * Invoked on the processing thread with a batch of samples, oldest first, ahead of the
+         * {@link AccelerometerChangeListener}s getting them resampled. The arrays are reused for the next batch, so only
+         * the first count elements are valid and they should not be kept after the call returns.
+         */
+        public void onRawSamples(final long[] timestamps,
+                                 final float[] xs,
+                                 final float[] ys,
+                                 final float[] zs,
+                                 final int count);
+    }
+
+    /**
+     * Adapter for listeners only interested in one sample at a time: unrolls the batch into separate calls.
+     */
+    public static abstract class SingleSampleAccelerometerListener implements AccelerometerChangeListener {
+        @Override
+        public void onAccelerometerBatch(float[] values, long[] timestamps, int count, SampleBuffer history) {
+            for (int i = 0; i < count; i++) {
+                int historyIndex = count - 1 - i;
+                onAccelerometerChanged(values[i], history, history.getLatitude(historyIndex),
+                        history.getLongitude(historyIndex), history.getSpeed(historyIndex));
+            }
+        }
+
+        public abstract void onAccelerometerChanged(final float lastAccelFilteredDiffValue,
+                                                    final SampleBuffer history,
+                                                    final double latitude,
+                                                    final double longitude,
+                                                    final double speed);
+    }
+
     /**
      * A Binder interface to this service, providing some communication to the outside world.
      */
@@ -300,13 +535,27 @@ public class SensorLoggerService extends Service implements SensorEventListener,
         }
 
         public void addAccelChangedListener(AccelerometerChangeListener listener) {
-            if (listeners.contains(listener)) return;
             listeners.add(listener);
         }
 
         public void removeAccelChangedListener(AccelerometerChangeListener listener) {
             listeners.remove(listener);
         }
+
+        public void addRawSampleListener(RawSampleListener listener) {
+            rawListeners.add(listener);
+        }
+
+        public void removeRawSampleListener(RawSampleListener listener) {
+            rawListeners.remove(listener);
+        }
+
+        /**
+         * @return mapping of the sample timestamps passed to the listeners to wall clock time.
+         */
+        public SensorClock getSensorClock() {
+            return sensorClock;
+        }
     }
 
 }
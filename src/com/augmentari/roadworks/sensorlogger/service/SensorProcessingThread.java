@@ -0,0 +1,102 @@
+package com.augmentari.roadworks.sensorlogger.service;
+
+import com.augmentari.roadworks.sensorlogger.component.SensorSampleQueue;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Thread draining the {@link SensorSampleQueue} in batches and handing them over to a {@link SampleBatchHandler}. This
+ * keeps all the processing (filtering, listeners, file writes, sounds) away from the sensor callback thread.
+ * <p/>
+ * The thread does not poll: it stays parked while the queue is empty and gets woken up by the producer, so it wakes
+ * about as often as the batches are dispatched, whatever the sensor rate and however the events are delivered.
+ */
+public class SensorProcessingThread extends Thread {
+
+    // max number of samples handed to the handler at once
+    public static final int BATCH_SIZE = 256;
+
+    // we try to collect a full batch, to amortize the per-batch costs of the listeners and the wake-ups of this
+    // thread, but do not hold samples back for longer than that, so that sounds and graphs still react in time
+    private static final long MAX_BATCH_DELAY_NANOS = 100 * 1000 * 1000;
+
+    private final SensorSampleQueue queue;
+    private final SampleBatchHandler handler;
+
+    private final long[] timestamps = new long[BATCH_SIZE];
+    private final float[] xs = new float[BATCH_SIZE];
+    private final float[] ys = new float[BATCH_SIZE];
+    private final float[] zs = new float[BATCH_SIZE];
+
+    private volatile boolean running = true;
+    private volatile long wakeUpCount = 0;
+
+    public SensorProcessingThread(SensorSampleQueue queue, SampleBatchHandler handler) {
+        super("Sensor processing thread");
+        this.queue = queue;
+        this.handler = handler;
+        queue.setConsumer(this, BATCH_SIZE);
+    }
+
+    @Override
+    public void run() {
+        // when the oldest sample still waiting for a batch to fill up was first seen
+        boolean waiting = false;
+        long waitStartNanos = 0;
+        // keep going after shutdown was requested until whatever is queued has been processed
+        while (running || !queue.isEmpty()) {
+            int size = queue.size();
+            if (running && size < BATCH_SIZE) {
+                if (size == 0) {
+                    // the producer wakes us up with the next sample
+                    waiting = false;
+                    LockSupport.park(this);
+                    wakeUpCount++;
+                    continue;
+                }
+                long now = System.nanoTime();
+                if (!waiting) {
+                    waiting = true;
+                    waitStartNanos = now;
+                }
+                long remaining = MAX_BATCH_DELAY_NANOS - (now - waitStartNanos);
+                if (remaining > 0) {
+                    // woken up earlier if the batch fills up
+                    LockSupport.parkNanos(this, remaining);
+                    wakeUpCount++;
+                    continue;
+                }
+            }
+
+            waiting = false;
+            int count = queue.drainTo(timestamps, xs, ys, zs, BATCH_SIZE);
+            if (count > 0) {
+                handler.onSampleBatch(timestamps, xs, ys, zs, count);
+            }
+        }
+    }
+
+    /**
+     * @return number of times the thread has woken up from waiting for samples.
+     */
+    public long getWakeUpCount() {
+        return wakeUpCount;
+    }
+
+    /**
+     * Ask the thread to stop once the queue is drained, and wait for it to finish.
+     */
+    public void shutdown() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(this);
+        join();
+    }
+
+    /**
+     * Receiver of the sample batches; invoked on the processing thread. The arrays are reused between invocations, so
+     * only the first count elements are valid and they should not be kept after the call returns.
+     */
+    public interface SampleBatchHandler {
+        public void onSampleBatch(long[] timestamps, float[] xs, float[] ys, float[] zs, int count);
+    }
+}
@@ -0,0 +1,56 @@
+package com.augmentari.roadworks.sensorlogger.service;
+
+import android.app.IntentService;
+import android.content.Intent;
+import com.augmentari.roadworks.model.RecordingSession;
+import com.augmentari.roadworks.sensorlogger.dao.RecordingSessionDAO;
+import com.augmentari.roadworks.sensorlogger.format.SessionFileCompressor;
+import com.augmentari.roadworks.sensorlogger.util.CloseUtils;
+import com.augmentari.roadworks.sensorlogger.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Compresses the data files of the sessions waiting for upload, so that the upload itself is pure I/O. Started when
+ * the device gets connected to power (see SystemEventReceiver), as compression is what costs battery, and only if
+ * the data files get uploaded at all (DataUploaderService.PREF_UPLOAD_RAW_SESSIONS).
+ */
+public class SessionCompressionService extends IntentService {
+
+    public static final String PREF_PRECOMPRESS_ON_CHARGE = "pref_precompress_on_charge";
+
+    public SessionCompressionService() {
+        super("SessionCompressionService");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        RecordingSessionDAO dao = null;
+        List<RecordingSession> sessions;
+        try {
+            dao = new RecordingSessionDAO(this);
+            dao.openRead();
+            sessions = dao.getRecordingSessionsToUpload();
+        } finally {
+            CloseUtils.closeDao(dao);
+        }
+
+        int compressed = 0;
+        for (RecordingSession session : sessions) {
+            File dataFile = new File(session.getDataFileFullPath());
+            if (!dataFile.isFile() || SessionFileCompressor.isCompressed(dataFile)) {
+                continue;
+            }
+            try {
+                File compressedFile = SessionFileCompressor.compress(dataFile);
+                Log.i("Compressed " + dataFile.getName() + ": " + dataFile.length() + " -> " + compressedFile.length());
+                compressed++;
+            } catch (IOException e) {
+                Log.e("Error compressing data of the session " + session.getId(), e);
+            }
+        }
+        Log.i("Sessions compressed for upload: " + compressed);
+    }
+}
@@ -0,0 +1,124 @@
+package com.augmentari.roadworks.sensorlogger.service;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import com.augmentari.roadworks.model.RecordingSession;
+import com.augmentari.roadworks.sensorlogger.dao.RecordingSessionDAO;
+import com.augmentari.roadworks.sensorlogger.format.SessionFileReader;
+import com.augmentari.roadworks.sensorlogger.net.ClusterDeltaUploader;
+import com.augmentari.roadworks.sensorlogger.spatial.DefectCluster;
+import com.augmentari.roadworks.sensorlogger.spatial.DefectClusterer;
+import com.augmentari.roadworks.sensorlogger.util.CloseUtils;
+import com.augmentari.roadworks.sensorlogger.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Merges the events of the newly logged sessions into the defect clusters of the device (see DefectClusterer), so
+ * that a defect driven over every day is uploaded as one cluster getting counts added rather than as dozens of
+ * events. Started when a session is closed; the uploader runs the merge too before uploading the cluster deltas.
+ * <p/>
+ * The clusters are kept in a file next to the session files, rewritten after every merge and every upload.
+ */
+public class SessionMergeService extends IntentService {
+
+    public static final String CLUSTERS_FILE_NAME = "clusters.bin";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public SessionMergeService() {
+        super("SessionMergeService");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        try {
+            int merged = merge(this);
+            Log.i("Sessions merged into defect clusters: " + merged);
+        } catch (IOException e) {
+            Log.e("Error merging sessions into defect clusters", e);
+        }
+    }
+
+    /**
+     * Merge the sessions logged since the last merge.
+     *
+     * @return number of sessions merged.
+     */
+    public static synchronized int merge(Context context) throws IOException {
+        File clustersFile = new File(context.getFilesDir(), CLUSTERS_FILE_NAME);
+        DefectClusterer clusterer = DefectClusterer.load(clustersFile);
+
+        RecordingSessionDAO dao = null;
+        List<RecordingSession> sessions;
+        try {
+            dao = new RecordingSessionDAO(context);
+            dao.openRead();
+            sessions = dao.getRecordingSessionsToMerge(clusterer.getLastMergedSessionId());
+        } finally {
+            CloseUtils.closeDao(dao);
+        }
+
+        int merged = 0;
+        for (RecordingSession session : sessions) {
+            File dataFile = new File(session.getDataFileFullPath());
+            if (!dataFile.isFile()) {
+                // never coming back: fail it, or it would pass for uploaded once the sessions after it are merged
+                Log.w("No data file for the session " + session.getId() + ", marked failed");
+                markFailed(context, session.getId());
+                continue;
+            }
+            SessionFileReader reader = null;
+            try {
+                reader = new SessionFileReader(new BufferedInputStream(new FileInputStream(dataFile), BUFFER_SIZE));
+                clusterer.addSession(session.getId(), reader);
+                merged++;
+            } catch (IOException e) {
+                // the ones after it wait, so that the sessions still go in order
+                Log.e("Error merging the session " + session.getId() + ", will retry later", e);
+                break;
+            } finally {
+                CloseUtils.closeStream(reader);
+            }
+        }
+        if (merged > 0) {
+            clusterer.save(clustersFile);
+        }
+        return merged;
+    }
+
+    private static void markFailed(Context context, long sessionId) {
+        RecordingSessionDAO dao = null;
+        try {
+            dao = new RecordingSessionDAO(context);
+            dao.open();
+            dao.markFailed(sessionId);
+        } finally {
+            CloseUtils.closeDao(dao);
+        }
+    }
+
+    /**
+     * Upload the changes of the clusters since the last upload.
+     *
+     * @return id of the newest session whose events the server now has.
+     * @throws IOException if the upload fails; it is all sent again next time.
+     */
+    public static synchronized long uploadDeltas(Context context, ClusterDeltaUploader uploader) throws IOException {
+        File clustersFile = new File(context.getFilesDir(), CLUSTERS_FILE_NAME);
+        DefectClusterer clusterer = DefectClusterer.load(clustersFile);
+        List<DefectCluster> changed = clusterer.getChangedClusters();
+        if (!changed.isEmpty()) {
+            uploader.upload(changed);
+            clusterer.markUploaded(changed);
+            clusterer.save(clustersFile);
+            Log.i("Defect clusters uploaded: " + changed.size());
+        }
+        return clusterer.getLastMergedSessionId();
+    }
+}
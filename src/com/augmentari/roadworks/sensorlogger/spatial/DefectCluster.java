@@ -0,0 +1,135 @@
+package com.augmentari.roadworks.sensorlogger.spatial;
+
+/**
+ * One road defect as seen over many passes: the detections merged into it by {@link DefectClusterer}, summed up. The
+ * position is the mean of the detections, the heading the circular mean of the known headings.
+ * <p/>
+ * Also remembers how much of it the server has been told about, so that only the difference gets uploaded.
+ */
+public class DefectCluster {
+
+    private final long id;
+    private double latitude;
+    private double longitude;
+    private double headingSin = 0d;
+    private double headingCos = 0d;
+    private int count = 0;
+    private double severitySum = 0d;
+    private float severityMax = 0f;
+    private long firstSeen;
+    private long lastSeen;
+
+    private int uploadedCount = 0;
+    private double uploadedSeveritySum = 0d;
+
+    DefectCluster(long id) {
+        this.id = id;
+    }
+
+    void add(double latitude, double longitude, double heading, float severity, long timeMillis) {
+        count++;
+        if (count == 1) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            firstSeen = timeMillis;
+        } else {
+            this.latitude += (latitude - this.latitude) / count;
+            this.longitude += (longitude - this.longitude) / count;
+        }
+        if (!Double.isNaN(heading)) {
+            headingSin += Math.sin(Math.toRadians(heading));
+            headingCos += Math.cos(Math.toRadians(heading));
+        }
+        severitySum += severity;
+        severityMax = Math.max(severityMax, severity);
+        firstSeen = Math.min(firstSeen, timeMillis);
+        lastSeen = Math.max(lastSeen, timeMillis);
+    }
+
+    void markUploaded() {
+        uploadedCount = count;
+        uploadedSeveritySum = severitySum;
+    }
+
+    void restore(double latitude, double longitude, double headingSin, double headingCos, int count,
+                 double severitySum, float severityMax, long firstSeen, long lastSeen,
+                 int uploadedCount, double uploadedSeveritySum) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.headingSin = headingSin;
+        this.headingCos = headingCos;
+        this.count = count;
+        this.severitySum = severitySum;
+        this.severityMax = severityMax;
+        this.firstSeen = firstSeen;
+        this.lastSeen = lastSeen;
+        this.uploadedCount = uploadedCount;
+        this.uploadedSeveritySum = uploadedSeveritySum;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    /**
+     * @return direction of travel in degrees clockwise from north, 0..360; NaN if not known.
+     */
+    public double getHeading() {
+        if (headingSin == 0d && headingCos == 0d) {
+            return Double.NaN;
+        }
+        double heading = Math.toDegrees(Math.atan2(headingSin, headingCos));
+        return heading < 0 ? heading + 360 : heading;
+    }
+
+    double getHeadingSin() {
+        return headingSin;
+    }
+
+    double getHeadingCos() {
+        return headingCos;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public double getSeveritySum() {
+        return severitySum;
+    }
+
+    public float getSeverityMax() {
+        return severityMax;
+    }
+
+    public long getFirstSeen() {
+        return firstSeen;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    public int getUploadedCount() {
+        return uploadedCount;
+    }
+
+    public double getUploadedSeveritySum() {
+        return uploadedSeveritySum;
+    }
+
+    /**
+     * @return whether there are detections the server has not been told about.
+     */
+    public boolean isChanged() {
+        return count != uploadedCount;
+    }
+}
@@ -0,0 +1,306 @@
+package com.augmentari.roadworks.sensorlogger.spatial;
+
+import com.augmentari.roadworks.sensorlogger.format.SessionFileReader;
+import com.augmentari.roadworks.sensorlogger.util.CloseUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges the events of many sessions into {@link DefectCluster}s: an event within {@link #MERGE_RADIUS_METERS} of a
+ * cluster, and going about the same way, is the same defect seen again. The direction is what keeps the two sides of
+ * a road apart: it is the GPS bearing logged with the event. Events without one (logged by the older versions, or the
+ * GPS had none) take the direction from the previous event of the same session (the next one for the first), and an
+ * event without that either (too far from both) matches either direction. Events at 0,0 are the ones logged without
+ * a location fix (the GPS bypassed or not there yet) and are left out.
+ * <p/>
+ * Incremental: sessions are merged one at a time as they get logged, and the clusterer remembers the newest session
+ * merged, so a session is never counted twice. Clusters are looked up in a grid of {@link #CELL_DEGREES} cells, so
+ * merging an event costs the same however many clusters there are.
+ * <p/>
+ * Not thread safe.
+ */
+public class DefectClusterer {
+
+    public static final double MERGE_RADIUS_METERS = 12;
+    public static final double MAX_HEADING_DIFFERENCE_DEGREES = 45;
+
+    /**
+     * Grid cell: about 110 m, much larger than the merge radius, so the 3 by 3 cells around an event cover it.
+     */
+    static final double CELL_DEGREES = 0.001;
+
+    // events closer than this are too close for the GPS to tell the direction; farther, the road may have turned
+    static final double MIN_HEADING_STEP_METERS = 3;
+    static final double MAX_HEADING_STEP_METERS = 200;
+
+    static final int MAGIC = 0x52574443; // "RWDC"
+    static final int VERSION = 1;
+
+    private static final GeoGrid GRID = new GeoGrid(CELL_DEGREES);
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final Map<Long, List<DefectCluster>> cells = new HashMap<Long, List<DefectCluster>>();
+    private final List<DefectCluster> clusters = new ArrayList<DefectCluster>();
+    private long nextId = 1;
+    private long lastMergedSessionId = 0;
+
+    /**
+     * Merge a single event.
+     *
+     * @param heading direction of travel in degrees clockwise from north; NaN if not known.
+     * @return the cluster the event went into.
+     */
+    public DefectCluster add(double latitude, double longitude, double heading, float severity, long timeMillis) {
+        DefectCluster cluster = findNearest(latitude, longitude, heading);
+        if (cluster == null) {
+            cluster = new DefectCluster(nextId++);
+            put(cluster, latitude, longitude);
+        }
+        cluster.add(latitude, longitude, heading, severity, timeMillis);
+        return cluster;
+    }
+
+    /**
+     * Merge all the events of a session file. Sessions must come in the order of their ids.
+     *
+     * @return number of events merged; 0 if the session has been merged already.
+     */
+    public int addSession(long sessionId, SessionFileReader reader) throws IOException {
+        if (isMerged(sessionId)) {
+            return 0;
+        }
+        int events = 0;
+        // every event waits for the next one, which gives the heading to the ones without a bearing or a previous
+        boolean pending = false;
+        double pendingLatitude = 0, pendingLongitude = 0, pendingHeading = Double.NaN;
+        float pendingSeverity = 0;
+        long pendingTime = 0;
+        while (reader.next()) {
+            double latitude = reader.getLatitude();
+            double longitude = reader.getLongitude();
+            if (latitude == 0 && longitude == 0) {
+                continue;
+            }
+            double heading = Double.NaN;
+            if (pending) {
+                heading = stepHeading(pendingLatitude, pendingLongitude, latitude, longitude);
+                add(pendingLatitude, pendingLongitude, Double.isNaN(pendingHeading) ? heading : pendingHeading,
+                        pendingSeverity, pendingTime);
+                events++;
+            }
+            pending = true;
+            pendingLatitude = latitude;
+            pendingLongitude = longitude;
+            float bearing = reader.getBearing();
+            pendingHeading = Float.isNaN(bearing) ? heading : bearing;
+            pendingSeverity = reader.getSeverity();
+            pendingTime = reader.getTimeMillis();
+        }
+        if (pending) {
+            add(pendingLatitude, pendingLongitude, pendingHeading, pendingSeverity, pendingTime);
+            events++;
+        }
+        lastMergedSessionId = sessionId;
+        return events;
+    }
+
+    public boolean isMerged(long sessionId) {
+        return sessionId <= lastMergedSessionId;
+    }
+
+    public long getLastMergedSessionId() {
+        return lastMergedSessionId;
+    }
+
+    public int size() {
+        return clusters.size();
+    }
+
+    public List<DefectCluster> getClusters() {
+        return new ArrayList<DefectCluster>(clusters);
+    }
+
+    /**
+     * @return the clusters with detections not uploaded yet.
+     */
+    public List<DefectCluster> getChangedClusters() {
+        List<DefectCluster> changed = new ArrayList<DefectCluster>();
+        for (DefectCluster cluster : clusters) {
+            if (cluster.isChanged()) {
+                changed.add(cluster);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Record the server has got the clusters as they are now.
+     */
+    public void markUploaded(List<DefectCluster> uploaded) {
+        for (DefectCluster cluster : uploaded) {
+            cluster.markUploaded();
+        }
+    }
+
+    /**
+     * Write the clusters out, replacing the file only once the whole of it is written.
+     */
+    public void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, BUFFER_SIZE));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(nextId);
+            out.writeLong(lastMergedSessionId);
+            out.writeInt(clusters.size());
+            for (DefectCluster cluster : clusters) {
+                out.writeLong(cluster.getId());
+                out.writeDouble(cluster.getLatitude());
+                out.writeDouble(cluster.getLongitude());
+                out.writeDouble(cluster.getHeadingSin());
+                out.writeDouble(cluster.getHeadingCos());
+                out.writeInt(cluster.getCount());
+                out.writeDouble(cluster.getSeveritySum());
+                out.writeFloat(cluster.getSeverityMax());
+                out.writeLong(cluster.getFirstSeen());
+                out.writeLong(cluster.getLastSeen());
+                out.writeInt(cluster.getUploadedCount());
+                out.writeDouble(cluster.getUploadedSeveritySum());
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            CloseUtils.closeStream(out);
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * @return the clusters saved in the file; empty clusterer if there is no file.
+     * @throws IOException if the file cannot be read, or is not a clusters file.
+     */
+    public static DefectClusterer load(File file) throws IOException {
+        DefectClusterer clusterer = new DefectClusterer();
+        if (!file.isFile()) {
+            return clusterer;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a clusters file: " + file);
+            }
+            clusterer.nextId = in.readLong();
+            clusterer.lastMergedSessionId = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                DefectCluster cluster = new DefectCluster(in.readLong());
+                cluster.restore(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(), in.readInt(),
+                        in.readDouble(), in.readFloat(), in.readLong(), in.readLong(), in.readInt(), in.readDouble());
+                clusterer.put(cluster, cluster.getLatitude(), cluster.getLongitude());
+            }
+        } finally {
+            CloseUtils.closeStream(in);
+        }
+        return clusterer;
+    }
+
+    private DefectCluster findNearest(double latitude, double longitude, double heading) {
+        int y = GRID.cellY(latitude);
+        int x = GRID.cellX(longitude);
+        DefectCluster nearest = null;
+        double nearestDistance = MERGE_RADIUS_METERS;
+        for (int dy = -1; dy <= 1; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+                List<DefectCluster> cell = cells.get(GeoGrid.key(y + dy, x + dx));
+                if (cell == null) {
+                    continue;
+                }
+                for (DefectCluster cluster : cell) {
+                    double distance = distanceMeters(latitude, longitude, cluster.getLatitude(),
+                            cluster.getLongitude());
+                    if (distance <= nearestDistance
+                            && headingDifference(heading, cluster.getHeading()) <= MAX_HEADING_DIFFERENCE_DEGREES) {
+                        nearest = cluster;
+                        nearestDistance = distance;
+                    }
+                }
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * A cluster stays in the cell it has been created in; its centroid moves less than the merge radius, which the
+     * neighbouring cells cover.
+     */
+    private void put(DefectCluster cluster, double latitude, double longitude) {
+        long key = GRID.key(latitude, longitude);
+        List<DefectCluster> cell = cells.get(key);
+        if (cell == null) {
+            cell = new ArrayList<DefectCluster>(2);
+            cells.put(key, cell);
+        }
+        cell.add(cluster);
+        clusters.add(cluster);
+    }
+
+    /**
+     * @return heading of the move between the points; NaN if it is too short or too long to tell.
+     */
+    private static double stepHeading(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double step = distanceMeters(latitude1, longitude1, latitude2, longitude2);
+        if (step < MIN_HEADING_STEP_METERS || step > MAX_HEADING_STEP_METERS) {
+            return Double.NaN;
+        }
+        return bearingDegrees(latitude1, longitude1, latitude2, longitude2);
+    }
+
+    /**
+     * @return difference of the headings in degrees, 0..180; 0 if either is not known.
+     */
+    static double headingDifference(double heading1, double heading2) {
+        if (Double.isNaN(heading1) || Double.isNaN(heading2)) {
+            return 0;
+        }
+        double difference = Math.abs(heading1 - heading2) % 360;
+        return difference > 180 ? 360 - difference : difference;
+    }
+
+    /**
+     * @return initial bearing from the first point to the second, degrees clockwise from north, 0..360.
+     */
+    static double bearingDegrees(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double lat1 = Math.toRadians(latitude1);
+        double lat2 = Math.toRadians(latitude2);
+        double dLongitude = Math.toRadians(longitude2 - longitude1);
+        double y = Math.sin(dLongitude) * Math.cos(lat2);
+        double x = Math.cos(lat1) * Math.sin(lat2) - Math.sin(lat1) * Math.cos(lat2) * Math.cos(dLongitude);
+        double bearing = Math.toDegrees(Math.atan2(y, x));
+        return bearing < 0 ? bearing + 360 : bearing;
+    }
+
+    /**
+     * Equirectangular distance, exact enough at the distances merged.
+     */
+    static double distanceMeters(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double dy = latitude2 - latitude1;
+        double dx = (longitude2 - longitude1) * Math.cos(Math.toRadians((latitude1 + latitude2) / 2));
+        return Math.sqrt(dx * dx + dy * dy) * GeoGrid.METERS_PER_DEGREE;
+    }
+}
@@ -0,0 +1,177 @@
+package com.augmentari.roadworks.sensorlogger.spatial;
+
+import com.augmentari.roadworks.sensorlogger.format.SessionFileFormat;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory spatial index of the detected road defects, answering "what is near me" without going through the session
+ * files. The globe is cut into fixed tiles of {@link #TILE_DEGREES} by {@link #TILE_DEGREES}; a query only looks at the
+ * tiles its bounding box touches, so it costs the same however many defects there are elsewhere.
+ * <p/>
+ * Every tile keeps its defects in primitive arrays (struct of arrays, coordinates in the fixed point of the session
+ * files), so there is no object per defect and adding one rarely allocates.
+ * <p/>
+ * Thread safe: the detector adds on the processing thread while the UI may query.
+ */
+public class DefectIndex {
+
+    /**
+     * Tile size: about 1.1 km north to south, less east to west away from the equator.
+     */
+    public static final double TILE_DEGREES = 0.01;
+
+    private static final GeoGrid GRID = new GeoGrid(TILE_DEGREES);
+    private static final int INITIAL_TILE_CAPACITY = 16;
+
+    /**
+     * Receives the defects found by a query.
+     */
+    public interface Visitor {
+        void visit(double latitude, double longitude, float severity, long timeMillis);
+    }
+
+    private final Map<Long, Tile> tiles = new HashMap<Long, Tile>();
+    private int size = 0;
+
+    public synchronized void add(double latitude, double longitude, float severity, long timeMillis) {
+        long key = GRID.key(latitude, longitude);
+        Tile tile = tiles.get(key);
+        if (tile == null) {
+            tile = new Tile();
+            tiles.put(key, tile);
+        }
+        tile.add(SessionFileFormat.toFixedPoint(latitude), SessionFileFormat.toFixedPoint(longitude), severity,
+                timeMillis);
+        size++;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized int getTileCount() {
+        return tiles.size();
+    }
+
+    /**
+     * Visit the defects within the bounding box, borders included. The box must not cross the 180th meridian.
+     *
+     * @return number of defects visited.
+     */
+    public synchronized int queryBox(double minLatitude, double minLongitude, double maxLatitude,
+                                     double maxLongitude, Visitor visitor) {
+        return query(minLatitude, minLongitude, maxLatitude, maxLongitude, Double.NaN, 0, 0, visitor);
+    }
+
+    /**
+     * Visit the defects within radiusMeters of the point. Distances are taken on the local plane (equirectangular),
+     * which is within a fraction of a percent of the great circle distance at the radii of a few kilometers.
+     *
+     * @return number of defects visited.
+     */
+    public synchronized int queryRadius(double latitude, double longitude, double radiusMeters, Visitor visitor) {
+        double latitudeDelta = radiusMeters / GeoGrid.METERS_PER_DEGREE;
+        double longitudeDelta = latitudeDelta / Math.max(Math.cos(Math.toRadians(latitude)), 1e-6);
+        return query(latitude - latitudeDelta, longitude - longitudeDelta,
+                latitude + latitudeDelta, longitude + longitudeDelta,
+                latitude, longitude, radiusMeters, visitor);
+    }
+
+    private int query(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude,
+                      double centerLatitude, double centerLongitude, double radiusMeters, Visitor visitor) {
+        int minLat = SessionFileFormat.toFixedPoint(minLatitude);
+        int maxLat = SessionFileFormat.toFixedPoint(maxLatitude);
+        int minLon = SessionFileFormat.toFixedPoint(minLongitude);
+        int maxLon = SessionFileFormat.toFixedPoint(maxLongitude);
+
+        // radius check in fixed point units, so that the scan does no conversions
+        boolean circle = !Double.isNaN(centerLatitude);
+        double centerLat = 0, centerLon = 0, lonScale = 0, radiusSquared = 0;
+        if (circle) {
+            centerLat = SessionFileFormat.toFixedPoint(centerLatitude);
+            centerLon = SessionFileFormat.toFixedPoint(centerLongitude);
+            lonScale = Math.cos(Math.toRadians(centerLatitude));
+            double radius = radiusMeters / GeoGrid.METERS_PER_DEGREE * SessionFileFormat.COORDINATE_SCALE;
+            radiusSquared = radius * radius;
+        }
+
+        int minY = GRID.cellY(minLatitude);
+        int maxY = GRID.cellY(maxLatitude);
+        int minX = GRID.cellX(minLongitude);
+        int maxX = GRID.cellX(maxLongitude);
+
+        int found = 0;
+        if ((long) (maxY - minY + 1) * (maxX - minX + 1) > tiles.size()) {
+            // a box larger than the populated area: cheaper to go through the tiles there are
+            for (Map.Entry<Long, Tile> entry : tiles.entrySet()) {
+                int y = GeoGrid.keyY(entry.getKey());
+                int x = GeoGrid.keyX(entry.getKey());
+                if (y >= minY && y <= maxY && x >= minX && x <= maxX) {
+                    found += entry.getValue().scan(minLat, minLon, maxLat, maxLon,
+                            circle, centerLat, centerLon, lonScale, radiusSquared, visitor);
+                }
+            }
+            return found;
+        }
+        for (int y = minY; y <= maxY; y++) {
+            for (int x = minX; x <= maxX; x++) {
+                Tile tile = tiles.get(GeoGrid.key(y, x));
+                if (tile != null) {
+                    found += tile.scan(minLat, minLon, maxLat, maxLon,
+                            circle, centerLat, centerLon, lonScale, radiusSquared, visitor);
+                }
+            }
+        }
+        return found;
+    }
+
+    private static class Tile {
+        int[] latitudes = new int[INITIAL_TILE_CAPACITY];
+        int[] longitudes = new int[INITIAL_TILE_CAPACITY];
+        float[] severities = new float[INITIAL_TILE_CAPACITY];
+        long[] times = new long[INITIAL_TILE_CAPACITY];
+        int count = 0;
+
+        void add(int latitude, int longitude, float severity, long timeMillis) {
+            if (count == latitudes.length) {
+                int capacity = count * 2;
+                latitudes = Arrays.copyOf(latitudes, capacity);
+                longitudes = Arrays.copyOf(longitudes, capacity);
+                severities = Arrays.copyOf(severities, capacity);
+                times = Arrays.copyOf(times, capacity);
+            }
+            latitudes[count] = latitude;
+            longitudes[count] = longitude;
+            severities[count] = severity;
+            times[count] = timeMillis;
+            count++;
+        }
+
+        int scan(int minLat, int minLon, int maxLat, int maxLon,
+                 boolean circle, double centerLat, double centerLon, double lonScale, double radiusSquared,
+                 Visitor visitor) {
+            int found = 0;
+            for (int i = 0; i < count; i++) {
+                int lat = latitudes[i];
+                int lon = longitudes[i];
+                if (lat < minLat || lat > maxLat || lon < minLon || lon > maxLon) {
+                    continue;
+                }
+                if (circle) {
+                    double dy = lat - centerLat;
+                    double dx = (lon - centerLon) * lonScale;
+                    if (dx * dx + dy * dy > radiusSquared) {
+                        continue;
+                    }
+                }
+                visitor.visit(SessionFileFormat.fromFixedPoint(lat), SessionFileFormat.fromFixedPoint(lon),
+                        severities[i], times[i]);
+                found++;
+            }
+            return found;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.augmentari.roadworks.sensorlogger.spatial;
+
+import android.content.Context;
+import com.augmentari.roadworks.sensorlogger.format.SessionFileFormat;
+import com.augmentari.roadworks.sensorlogger.util.CloseUtils;
+import com.augmentari.roadworks.sensorlogger.util.Log;
+import com.augmentari.roadworks.sensorlogger.util.RingSequence;
+import com.augmentari.roadworks.sensorlogger.util.RingWriterThread;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * The {@link DefectIndex} of all the sessions recorded on the device, persisted incrementally: every defect added is
+ * appended to a log file, which is read back into the index when the store is opened. A record is fixed size, so a
+ * record cut short by a crash is simply dropped on the next open.
+ * <p/>
+ * The log is written on a thread of its own, so that adding a defect on the processing thread never waits for the
+ * storage: records are handed over through a bounded single-producer queue, and written and flushed whenever some
+ * have come in. When the writer falls too far behind, records are dropped from the log (never from the index) and
+ * counted.
+ * <p/>
+ * Log layout: magic, version, then records of latitude and longitude (fixed point, see SessionFileFormat), severity
+ * and time.
+ */
+public class DefectStore {
+
+    public static final String FILE_NAME = "defects.idx";
+
+    static final int MAGIC = 0x52574458; // "RWDX"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int RECORD_SIZE = 4 + 4 + 4 + 8;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int QUEUE_CAPACITY = 1024;
+
+    private static DefectStore shared;
+
+    private final DefectIndex index = new DefectIndex();
+    private final File file;
+    private final DataOutputStream out;
+
+    private final RingSequence sequence = new RingSequence(QUEUE_CAPACITY);
+    private final int[] latitudes = new int[QUEUE_CAPACITY];
+    private final int[] longitudes = new int[QUEUE_CAPACITY];
+    private final float[] severities = new float[QUEUE_CAPACITY];
+    private final long[] times = new long[QUEUE_CAPACITY];
+
+    private final RingWriterThread writerThread;
+    // written on the writer thread only
+    private boolean unflushed = false;
+
+    /**
+     * @return the store of the app, opened on first use -- which reads the whole log, so not on the UI thread.
+     */
+    public static synchronized DefectStore get(Context context) throws IOException {
+        if (shared == null) {
+            shared = new DefectStore(new File(context.getFilesDir(), FILE_NAME));
+        }
+        return shared;
+    }
+
+    /**
+     * Open the store, loading the defects logged so far into the index.
+     */
+    public DefectStore(File file) throws IOException {
+        this.file = file;
+        long validLength = load();
+
+        RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+        try {
+            // drop a partial record, so the next ones are aligned again
+            truncate.setLength(validLength);
+        } finally {
+            truncate.close();
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE));
+        if (validLength == 0) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        writerThread = new RingWriterThread("Defect log writer thread", sequence, QUEUE_CAPACITY / 2,
+                new RingWriterThread.Sink() {
+                    @Override
+                    public void write(int slot) throws IOException {
+                        out.writeInt(latitudes[slot]);
+                        out.writeInt(longitudes[slot]);
+                        out.writeFloat(severities[slot]);
+                        out.writeLong(times[slot]);
+                        unflushed = true;
+                    }
+
+                    @Override
+                    public void afterBatch(int count) throws IOException {
+                        if (count == 0 && unflushed) {
+                            // caught up: one write for the whole burst
+                            out.flush();
+                            unflushed = false;
+                        }
+                    }
+
+                    @Override
+                    public long getIdleParkNanos() {
+                        return RingWriterThread.PARK_UNTIL_SIGNALLED;
+                    }
+                });
+        writerThread.start();
+    }
+
+    public DefectIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Add the defect to the index, and queue it for the log. Exactly one thread may add.
+     *
+     * @throws IOException the error writing the log has stopped on; the defect is in the index all the same.
+     */
+    public void add(double latitude, double longitude, float severity, long timeMillis) throws IOException {
+        index.add(latitude, longitude, severity, timeMillis);
+        IOException error = writerThread.getError();
+        if (error != null) {
+            writerThread.countDropped();
+            throw error;
+        }
+        long write = sequence.claim();
+        if (write < 0) {
+            writerThread.countDropped();
+            return;
+        }
+        int slot = sequence.index(write);
+        latitudes[slot] = SessionFileFormat.toFixedPoint(latitude);
+        longitudes[slot] = SessionFileFormat.toFixedPoint(longitude);
+        severities[slot] = severity;
+        times[slot] = timeMillis;
+        sequence.publish(write);
+    }
+
+    /**
+     * Have the records queued so far written out without waiting; called at the end of every session. The writer
+     * thread flushes whenever it has caught up anyway, so this only matters if it has not been woken up yet.
+     */
+    public void flush() {
+        writerThread.wakeUp();
+    }
+
+    /**
+     * Write out whatever is queued, stop the writer thread and close the log.
+     */
+    public void close() {
+        writerThread.stop();
+        CloseUtils.closeStream(out);
+    }
+
+    /**
+     * @return number of defects not written to the log: because the queue was full, or because of a write error.
+     */
+    public long getRecordsDropped() {
+        return writerThread.getDropped();
+    }
+
+    /**
+     * @return length of the valid part of the log.
+     */
+    private long load() throws IOException {
+        if (!file.isFile() || file.length() < HEADER_SIZE) {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                // the defects in it are lost to the index, but that is better than failing every session from now on
+                Log.w("Not a defect log, starting a new one: " + file);
+                return 0;
+            }
+            long records = (file.length() - HEADER_SIZE) / RECORD_SIZE;
+            for (long i = 0; i < records; i++) {
+                double latitude = SessionFileFormat.fromFixedPoint(in.readInt());
+                double longitude = SessionFileFormat.fromFixedPoint(in.readInt());
+                index.add(latitude, longitude, in.readFloat(), in.readLong());
+            }
+            return HEADER_SIZE + records * RECORD_SIZE;
+        } catch (EOFException e) {
+            throw new IOException("Defect log changed while loading: " + file);
+        } finally {
+            CloseUtils.closeStream(in);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.augmentari.roadworks.sensorlogger.spatial;
+
+/**
+ * Fixed grid of square cells over the globe, by latitude and longitude, which the spatial lookups of the package bucket
+ * their points into. A cell is addressed by its row (y, from the south pole) and column (x, from the 180th meridian
+ * eastwards), packed into a single long key for the hash maps.
+ */
+final class GeoGrid {
+
+    /**
+     * Length of a degree of latitude (and of longitude on the equator), on the mean Earth radius.
+     */
+    static final double METERS_PER_DEGREE = 111195d;
+
+    private final double cellDegrees;
+    private final int cellsPerCircle;
+
+    GeoGrid(double cellDegrees) {
+        this.cellDegrees = cellDegrees;
+        this.cellsPerCircle = (int) Math.round(360 / cellDegrees);
+    }
+
+    int cellY(double latitude) {
+        return (int) Math.floor((latitude + 90) / cellDegrees);
+    }
+
+    int cellX(double longitude) {
+        // longitude 180 goes to the last column rather than to one of its own
+        return Math.min((int) Math.floor((longitude + 180) / cellDegrees), cellsPerCircle - 1);
+    }
+
+    long key(double latitude, double longitude) {
+        return key(cellY(latitude), cellX(longitude));
+    }
+
+    static long key(int y, int x) {
+        return ((long) y << 32) | (x & 0xFFFFFFFFL);
+    }
+
+    static int keyY(long key) {
+        return (int) (key >> 32);
+    }
+
+    static int keyX(long key) {
+        return (int) key;
+    }
+}
@@ -2,6 +2,7 @@ package com.augmentari.roadworks.sensorlogger.util;
 
 import com.augmentari.roadworks.sensorlogger.dao.RecordingSessionDAO;
 
+import java.io.Closeable;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Writer;
@@ -40,6 +41,15 @@ public class CloseUtils {
         }
     }
 
+    public static void closeStream(Closeable s) {
+        if (s == null) return;
+        try {
+            s.close();
+        } catch (Exception e) {
+            Log.e("Error closing stream", e);
+        }
+    }
+
     public static void closeDao(RecordingSessionDAO dao) {
         if (dao == null) return;
         try {
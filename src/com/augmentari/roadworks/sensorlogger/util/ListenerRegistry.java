@@ -0,0 +1,133 @@
+package com.augmentari.roadworks.sensorlogger.util;
+
+import java.util.Arrays;
+
+/**
+ * Copy-on-write registry of listeners. Adding and removing listeners (rare, any thread) creates a new array; publishing
+ * (frequent, single thread) takes a snapshot of the current array and iterates it by index, so there is no iterator
+ * allocation and no ConcurrentModificationException.
+ * <p/>
+ * Every listener is wrapped into an {@link Entry}, which also collects invocation timings, so it's possible to see
+ * which listener is eating up the time budget.
+ *
+ * @param <T> listener type.
+ */
+public class ListenerRegistry<T> {
+
+    private volatile Entry<T>[] entries = newEntries(0);
+
+    /**
+     * Register a listener; does nothing if it has already been registered.
+     *
+     * @return true if the listener has been added.
+     */
+    public synchronized boolean add(T listener) {
+        if (indexOf(listener) >= 0) {
+            return false;
+        }
+        Entry<T>[] current = entries;
+        Entry<T>[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = new Entry<T>(listener);
+        entries = updated;
+        return true;
+    }
+
+    /**
+     * Unregister a listener. Note that a publisher which took its snapshot before this call may still invoke the
+     * listener once.
+     *
+     * @return true if the listener has been removed.
+     */
+    public synchronized boolean remove(T listener) {
+        int index = indexOf(listener);
+        if (index < 0) {
+            return false;
+        }
+        Entry<T>[] current = entries;
+        Entry<T>[] updated = newEntries(current.length - 1);
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+        entries = updated;
+        return true;
+    }
+
+    /**
+     * @return current listeners. The returned array is never modified, so it is safe to iterate it while listeners
+     * are being added or removed.
+     */
+    public Entry<T>[] snapshot() {
+        return entries;
+    }
+
+    public int size() {
+        return entries.length;
+    }
+
+    // generic arrays cannot be created directly; the unchecked cast is safe as Entry<T>[] never leaves as anything else
+    @SuppressWarnings("unchecked")
+    private static <T> Entry<T>[] newEntries(int length) {
+        return (Entry<T>[]) new Entry<?>[length];
+    }
+
+    private int indexOf(T listener) {
+        Entry<T>[] current = entries;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].listener.equals(listener)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Registered listener along with its timing statistics. Timings are expected to be recorded by the single
+     * publishing thread; reading them from other threads is fine, though values may be slightly out of date.
+     */
+    public static final class Entry<T> {
+        private final T listener;
+
+        private volatile long invocations = 0;
+        private volatile long totalNanos = 0;
+        private volatile long maxNanos = 0;
+
+        Entry(T listener) {
+            this.listener = listener;
+        }
+
+        public T getListener() {
+            return listener;
+        }
+
+        /**
+         * Timing hook: account for a single invocation of the listener.
+         *
+         * @param nanos how long did the invocation take.
+         */
+        public void recordTiming(long nanos) {
+            invocations++;
+            totalNanos += nanos;
+            if (nanos > maxNanos) {
+                maxNanos = nanos;
+            }
+        }
+
+        public long getInvocations() {
+            return invocations;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            long count = invocations;
+            return listener.getClass().getSimpleName() + ": " + count + " calls, avg "
+                    + (count == 0 ? 0 : totalNanos / count) + "ns, max " + maxNanos + "ns";
+        }
+    }
+}
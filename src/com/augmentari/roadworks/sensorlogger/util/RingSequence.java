@@ -0,0 +1,134 @@
+package com.augmentari.roadworks.sensorlogger.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sequencing of a lock-free single-producer/single-consumer ring. The ring itself -- preallocated arrays, one per
+ * column -- belongs to the user, who reads and writes the slots at {@link #index(long)} of the sequences given out
+ * here; this class only keeps the producer and the consumer off each other's slots and wakes the consumer up.
+ * <p/>
+ * Producer: {@link #claim()} a slot, fill it, {@link #publish(long)} it. Consumer: take {@link #available(int)} slots
+ * from {@link #getReadSequence()} on, copy them out, {@link #release(int)} them. Exactly one thread may act as each.
+ * <p/>
+ * The consumer does not need to poll: see {@link #setConsumer(Thread, int)}.
+ */
+public class RingSequence {
+
+    private final int capacity;
+    private final int mask;
+
+    // sequence of the next slot to be written; only advanced by the producer
+    private final AtomicLong writeSequence = new AtomicLong(0);
+    // sequence of the next slot to be read; only advanced by the consumer
+    private final AtomicLong readSequence = new AtomicLong(0);
+    // producer-local copy of readSequence, refreshed only when the ring looks full
+    private long cachedReadSequence = 0;
+
+    // parked consumer to wake up when there is something for it, see setConsumer()
+    private volatile Thread consumer = null;
+    private volatile int wakeUpSize = 1;
+
+    /**
+     * @param capacity number of slots of the ring, should be a power of 2.
+     */
+    public RingSequence(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity should be a positive power of 2, got " + capacity);
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Have the producer unpark the consumer thread when the ring stops being empty, and again when it reaches the
+     * given size. In between the consumer may park for as long as it likes to wait for a batch, and when the ring is
+     * empty it may park until woken up.
+     */
+    public void setConsumer(Thread consumer, int wakeUpSize) {
+        this.wakeUpSize = wakeUpSize;
+        this.consumer = consumer;
+    }
+
+    /**
+     * Producer thread only.
+     *
+     * @return sequence of the slot to fill, or -1 if the ring is full.
+     */
+    public long claim() {
+        long write = writeSequence.get();
+        if (write - cachedReadSequence >= capacity) {
+            cachedReadSequence = readSequence.get();
+            if (write - cachedReadSequence >= capacity) {
+                return -1;
+            }
+        }
+        return write;
+    }
+
+    /**
+     * Hand the filled slot over to the consumer, waking it up if needed. Producer thread only.
+     */
+    public void publish(long sequence) {
+        // publishes the slot contents with the new sequence. A full volatile store rather than an ordered one: the
+        // consumer may be checking the ring to park, and one of us has to see the other's sequence
+        writeSequence.set(sequence + 1);
+
+        Thread waiting = consumer;
+        if (waiting != null) {
+            long size = sequence + 1 - readSequence.get();
+            if (size == 1 || size == wakeUpSize) {
+                LockSupport.unpark(waiting);
+            }
+        }
+    }
+
+    /**
+     * Consumer thread only.
+     *
+     * @return sequence of the oldest slot not yet released.
+     */
+    public long getReadSequence() {
+        return readSequence.get();
+    }
+
+    /**
+     * Consumer thread only.
+     *
+     * @return number of published slots from the read sequence on, at most maxCount.
+     */
+    public int available(int maxCount) {
+        return (int) Math.min(writeSequence.get() - readSequence.get(), maxCount);
+    }
+
+    /**
+     * Give the count oldest slots back to the producer, once they have been copied out. Consumer thread only.
+     */
+    public void release(int count) {
+        // volatile store, see publish()
+        readSequence.set(readSequence.get() + count);
+    }
+
+    public int index(long sequence) {
+        return (int) (sequence & mask);
+    }
+
+    /**
+     * @return number of slots published so far.
+     */
+    public long getPublishedCount() {
+        return writeSequence.get();
+    }
+
+    public boolean isEmpty() {
+        return writeSequence.get() == readSequence.get();
+    }
+
+    public int size() {
+        return (int) (writeSequence.get() - readSequence.get());
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,185 @@
+package com.augmentari.roadworks.sensorlogger.util;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Consumer of a {@link RingSequence} on a thread of its own, for the writers which must never keep the producer
+ * waiting for the storage. The thread takes the published slots in batches and hands them to the {@link Sink} one by
+ * one; in between it is parked, until the producer signals, or for as long as the sink allows.
+ * <p/>
+ * The first write error stops the writing for good: the slots coming in after it are released unwritten. These count
+ * as dropped, along with the ones the producer could not queue, see {@link #countDropped()}.
+ */
+public class RingWriterThread {
+
+    /**
+     * See {@link Sink#getIdleParkNanos()}.
+     */
+    public static final long PARK_UNTIL_SIGNALLED = Long.MAX_VALUE;
+
+    /**
+     * Where the slots go. Called on the writer thread only.
+     */
+    public interface Sink {
+
+        /**
+         * Write the slot at the given index of the ring.
+         */
+        void write(int index) throws IOException;
+
+        /**
+         * Called after every batch taken, and with count 0 when the ring has been found empty: the time to flush or
+         * sync. Not called anymore once there has been an error.
+         */
+        void afterBatch(int count) throws IOException;
+
+        /**
+         * @return how long the thread may park when there is nothing queued, in nanoseconds; or
+         * PARK_UNTIL_SIGNALLED.
+         */
+        long getIdleParkNanos();
+    }
+
+    private final RingSequence sequence;
+    private final int batchSize;
+    private final Sink sink;
+    private final Thread thread;
+
+    private volatile boolean running = true;
+    private volatile IOException error = null;
+    private volatile long written = 0;
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    /**
+     * @param batchSize most slots to take at once; the producer also signals when this many are queued.
+     */
+    public RingWriterThread(String name, RingSequence sequence, int batchSize, Sink sink) {
+        this.sequence = sequence;
+        this.batchSize = batchSize;
+        this.sink = sink;
+        thread = new Thread(name) {
+            @Override
+            public void run() {
+                runWriter();
+            }
+        };
+        sequence.setConsumer(thread, batchSize);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Have the thread look at the ring and the sink again without waiting for the producer to signal.
+     */
+    public void wakeUp() {
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Write out whatever is queued and stop the thread; returns when it has finished.
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Account for a slot the producer could not queue.
+     */
+    public void countDropped() {
+        dropped.incrementAndGet();
+    }
+
+    /**
+     * Record an error the owner ran into outside of the thread, e.g. on closing; the first error is the one kept.
+     */
+    public void fail(IOException e) {
+        if (error == null) {
+            error = e;
+        }
+    }
+
+    /**
+     * @return the error writing has stopped on; null if there was none.
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    /**
+     * @return number of slots written to the sink so far.
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * @return number of slots dropped: because the ring was full, or because of a write error.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void runWriter() {
+        // keep going after stop was requested until whatever is queued has been written
+        while (running || !sequence.isEmpty()) {
+            int count = writeBatch();
+            if (error == null) {
+                try {
+                    sink.afterBatch(count);
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            if (count == 0 && running) {
+                long parkNanos = error == null ? sink.getIdleParkNanos() : PARK_UNTIL_SIGNALLED;
+                if (parkNanos == PARK_UNTIL_SIGNALLED) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, parkNanos);
+                }
+            }
+        }
+    }
+
+    private int writeBatch() {
+        long read = sequence.getReadSequence();
+        int count = sequence.available(batchSize);
+        if (count <= 0) {
+            return 0;
+        }
+        if (error != null) {
+            // nowhere to write to anymore; keep the ring moving so that the counters stay true
+            dropped.addAndGet(count);
+        } else {
+            int done = 0;
+            try {
+                for (; done < count; done++) {
+                    sink.write(sequence.index(read + done));
+                }
+            } catch (IOException e) {
+                error = e;
+                dropped.addAndGet(count - done);
+            }
+            written += done;
+        }
+        // slots are free for the producer only after they have been written out
+        sequence.release(count);
+        return count;
+    }
+}
@@ -0,0 +1,142 @@
+package com.augmentari.roadworks.model;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests of the running session statistics on synthetic event streams and tracks.
+ */
+public class SessionStatisticsTest {
+
+    @Test
+    public void shouldBeZeroWhenEmpty() {
+        SessionStatistics statistics = new SessionStatistics();
+        Assert.assertEquals(0, statistics.getCount());
+        Assert.assertEquals(0d, statistics.getMeanSeverity());
+        Assert.assertEquals(0d, statistics.getEventsPerKm());
+        Assert.assertEquals(0d, statistics.getMeanSpeed(0));
+        Assert.assertEquals("0,0,0,0,0,0", statistics.encodeHistogram());
+    }
+
+    @Test
+    public void shouldAggregateSeverities() {
+        Random random = new Random(1);
+        SessionStatistics statistics = new SessionStatistics();
+        double sum = 0;
+        double max = 0;
+        int[] histogram = new int[SessionStatistics.BUCKETS];
+        for (int i = 0; i < 10000; i++) {
+            double severity = 2 + random.nextDouble() * random.nextDouble() * 200;
+            statistics.addEvent(severity);
+            sum += severity;
+            max = Math.max(max, severity);
+            histogram[bucketByScan(severity)]++;
+        }
+
+        Assert.assertEquals(10000, statistics.getCount());
+        Assert.assertEquals(sum, statistics.getSeveritySum(), 1e-6);
+        Assert.assertEquals(max, statistics.getSeverityMax());
+        Assert.assertEquals(sum / 10000, statistics.getMeanSeverity(), 1e-9);
+        Assert.assertTrue(Arrays.equals(histogram, statistics.getHistogram()));
+    }
+
+    @Test
+    public void shouldBucketByPowersOfTwo() {
+        Assert.assertEquals(0, SessionStatistics.bucket(2));
+        Assert.assertEquals(0, SessionStatistics.bucket(3.99));
+        Assert.assertEquals(1, SessionStatistics.bucket(4));
+        Assert.assertEquals(2, SessionStatistics.bucket(8));
+        Assert.assertEquals(4, SessionStatistics.bucket(63.9));
+        Assert.assertEquals(5, SessionStatistics.bucket(64));
+        Assert.assertEquals(5, SessionStatistics.bucket(1e9));
+    }
+
+    @Test
+    public void shouldMeasureKnownDistances() {
+        // a degree of latitude, and a degree of longitude on the equator: 2 * PI * R / 360
+        Assert.assertEquals(111195, SessionStatistics.haversineMeters(50, 30, 51, 30), 1);
+        Assert.assertEquals(111195, SessionStatistics.haversineMeters(0, 0, 0, 1), 1);
+        // Kyiv - Lviv, about 468 km
+        Assert.assertEquals(468000, SessionStatistics.haversineMeters(50.4501, 30.5234, 49.8397, 24.0297), 2000);
+    }
+
+    @Test
+    public void shouldSumDistanceDriven() {
+        SessionStatistics statistics = new SessionStatistics();
+        // 10 km straight north, a position every ~11 m
+        for (int i = 0; i <= 900; i++) {
+            statistics.addPosition(50 + i * 0.0001, 30);
+        }
+        Assert.assertEquals(10007.5, statistics.getDistanceMeters(), 1);
+        Assert.assertEquals(10007.5 / 600, statistics.getMeanSpeed(600000), 0.01);
+    }
+
+    @Test
+    public void shouldCountDistanceFromFirstFix() {
+        SessionStatistics statistics = new SessionStatistics();
+        // GPS bypassed: the positions are 0,0 until the first fix comes in, thousands of km away
+        for (int i = 0; i < 100; i++) {
+            statistics.addPosition(0, 0, false);
+        }
+        Assert.assertEquals(0d, statistics.getDistanceMeters());
+        for (int i = 0; i <= 900; i++) {
+            statistics.addPosition(50 + i * 0.0001, 30, true);
+        }
+        Assert.assertEquals(10007.5, statistics.getDistanceMeters(), 1);
+    }
+
+    @Test
+    public void shouldIgnoreJitterWhileStanding() {
+        Random random = new Random(1);
+        SessionStatistics statistics = new SessionStatistics();
+        for (int i = 0; i < 10000; i++) {
+            // within about 3 m around the same spot
+            statistics.addPosition(50 + (random.nextDouble() - 0.5) * 0.00005, 30 + (random.nextDouble() - 0.5) * 0.00005);
+        }
+        Assert.assertEquals(0d, statistics.getDistanceMeters());
+    }
+
+    @Test
+    public void shouldCountEventsPerKm() {
+        SessionStatistics statistics = new SessionStatistics();
+        statistics.addPosition(50, 30);
+        statistics.addPosition(50.018, 30);
+        for (int i = 0; i < 6; i++) {
+            statistics.addEvent(5);
+        }
+        Assert.assertEquals(6 / 2.0015, statistics.getEventsPerKm(), 0.01);
+    }
+
+    @Test
+    public void shouldRestoreStored() {
+        SessionStatistics statistics = new SessionStatistics();
+        statistics.addEvent(3);
+        statistics.addEvent(10);
+        statistics.addEvent(100);
+        statistics.addPosition(50, 30);
+        statistics.addPosition(50.01, 30);
+
+        SessionStatistics restored = SessionStatistics.restore(statistics.getCount(), statistics.getSeveritySum(),
+                statistics.getSeverityMax(), statistics.encodeHistogram(), statistics.getDistanceMeters());
+        Assert.assertEquals(3, restored.getCount());
+        Assert.assertEquals(113d, restored.getSeveritySum());
+        Assert.assertEquals(100d, restored.getSeverityMax());
+        Assert.assertEquals("1,0,1,0,0,1", restored.encodeHistogram());
+        Assert.assertEquals(statistics.getDistanceMeters(), restored.getDistanceMeters());
+
+        Assert.assertEquals("0,0,0,0,0,0", SessionStatistics.restore(0, 0, 0, null, 0).encodeHistogram());
+    }
+
+    private static int bucketByScan(double severity) {
+        double[] limits = {4, 8, 16, 32, 64};
+        for (int i = 0; i < limits.length; i++) {
+            if (severity < limits[i]) {
+                return i;
+            }
+        }
+        return limits.length;
+    }
+}
@@ -1,7 +1,9 @@
 package com.augmentari.roadworks.sensorlogger.component;
 
 import junit.framework.Assert;
-//import org.junit.Test;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created with IntelliJ IDEA.
@@ -12,49 +14,156 @@ import junit.framework.Assert;
  */
 public class CircularBufferTest {
 
-    //    @Test
-//    public void shoudSizeWorkCorrectly() {
-//        CircularBuffer buffer = new CircularBuffer(3);
-//        Assert.assertEquals(0, buffer.getActualSize());
-//        buffer.append(0, 0, 0);
-//        Assert.assertEquals(1, buffer.getActualSize());
-//        buffer.append(0, 0, 0);
-//        Assert.assertEquals(2, buffer.getActualSize());
-//        buffer.append(0, 0, 0);
-//        Assert.assertEquals(3, buffer.getActualSize());
-//        buffer.append(0, 0, 0);
-//        Assert.assertEquals(3, buffer.getActualSize());
-//        buffer.append(0, 0, 0);
-//        Assert.assertEquals(3, buffer.getActualSize());
-//        buffer.append(0, 0, 0);
-//        Assert.assertEquals(3, buffer.getActualSize());
-//    }
-
-    //    @Test
-//    public void shouldCircularWorkCorrectly() {
-//        CircularBuffer buffer = new CircularBuffer(3);
-//
-//        buffer.append(0, 0, 0);
-//        buffer.append(1, 0, 0);
-//        buffer.append(2, 0, 0);
-//
-//        Assert.assertEquals(2, buffer.getValue(0), 0.00001);
-//        Assert.assertEquals(1, buffer.getValue(1), 0.00001);
-//        Assert.assertEquals(0, buffer.getValue(2), 0.00001);
-//
-//        for (int i = 0; i < 10; i++) {
-//            buffer.append(3 + i, 0, 0);
-//
-//            Assert.assertEquals(3 + i, buffer.getValue(0), 0.00001);
-//            Assert.assertEquals(3 + i - 1, buffer.getValue(1), 0.00001);
-//            Assert.assertEquals(3 + i - 2, buffer.getValue(2), 0.00001);
-//        }
-//
-//        buffer.append(0, 0, 0);
-//        Assert.assertEquals(3, buffer.getActualSize());
-//        buffer.append(0, 0, 0);
-//        Assert.assertEquals(3, buffer.getActualSize());
-//        buffer.append(0, 0, 0);
-//        Assert.assertEquals(3, buffer.getActualSize());
-//    }
+    @Test
+    public void shoudSizeWorkCorrectly() {
+        CircularBuffer buffer = new CircularBuffer(3);
+        Assert.assertEquals(0, buffer.getActualSize());
+        buffer.append(0);
+        Assert.assertEquals(1, buffer.getActualSize());
+        buffer.append(0);
+        Assert.assertEquals(2, buffer.getActualSize());
+        buffer.append(0);
+        Assert.assertEquals(3, buffer.getActualSize());
+        buffer.append(0);
+        Assert.assertEquals(3, buffer.getActualSize());
+        buffer.append(0);
+        Assert.assertEquals(3, buffer.getActualSize());
+        buffer.append(0);
+        Assert.assertEquals(3, buffer.getActualSize());
+    }
+
+    @Test
+    public void shouldCircularWorkCorrectly() {
+        CircularBuffer buffer = new CircularBuffer(3);
+
+        buffer.append(0);
+        buffer.append(1);
+        buffer.append(2);
+
+        Assert.assertEquals(2, buffer.getValue(0), 0.00001);
+        Assert.assertEquals(1, buffer.getValue(1), 0.00001);
+        Assert.assertEquals(0, buffer.getValue(2), 0.00001);
+
+        for (int i = 0; i < 10; i++) {
+            buffer.append(3 + i);
+
+            Assert.assertEquals(3 + i, buffer.getValue(0), 0.00001);
+            Assert.assertEquals(3 + i - 1, buffer.getValue(1), 0.00001);
+            Assert.assertEquals(3 + i - 2, buffer.getValue(2), 0.00001);
+        }
+
+        buffer.append(0);
+        Assert.assertEquals(3, buffer.getActualSize());
+        buffer.append(0);
+        Assert.assertEquals(3, buffer.getActualSize());
+        buffer.append(0);
+        Assert.assertEquals(3, buffer.getActualSize());
+    }
+
+    @Test
+    public void shouldAppendAllAndSnapshot() {
+        CircularBuffer buffer = new CircularBuffer(4);
+        float[] values = {10, 1, 2, 3, 4, 5, 6, 20};
+
+        buffer.appendAll(values, 1, 2);
+        float[] snapshot = new float[8];
+        Assert.assertEquals(2, buffer.snapshot(snapshot, 8));
+        Assert.assertEquals(2, snapshot[0], 0.00001);
+        Assert.assertEquals(1, snapshot[1], 0.00001);
+
+        // more than the capacity: only the last 4 remain
+        buffer.appendAll(values, 1, 6);
+        Assert.assertEquals(4, buffer.getActualSize());
+        Assert.assertEquals(3, buffer.snapshot(snapshot, 3));
+        Assert.assertEquals(6, snapshot[0], 0.00001);
+        Assert.assertEquals(5, snapshot[1], 0.00001);
+        Assert.assertEquals(4, snapshot[2], 0.00001);
+
+        Assert.assertEquals(4, buffer.snapshot(snapshot, 8));
+        Assert.assertEquals(3, snapshot[3], 0.00001);
+        Assert.assertEquals(6, buffer.getValue(0), 0.00001);
+    }
+
+    @Test
+    public void shouldReadersAlwaysSeeConsistentWindow() throws Exception {
+        final CircularBuffer buffer = new CircularBuffer(1024);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final int readers = 3;
+        final String[] errors = new String[readers];
+        final long[] snapshotsTaken = new long[readers];
+
+        Thread[] readerThreads = new Thread[readers];
+        for (int r = 0; r < readers; r++) {
+            final int readerIndex = r;
+            readerThreads[r] = new Thread() {
+                @Override
+                public void run() {
+                    float[] snapshot = new float[1024];
+                    while (writing.get() && errors[readerIndex] == null) {
+                        int count = buffer.snapshot(snapshot, snapshot.length);
+                        // writer appends consecutive numbers, so a consistent window is a descending sequence
+                        for (int i = 1; i < count; i++) {
+                            if (snapshot[i] != snapshot[i - 1] - 1) {
+                                errors[readerIndex] = "Inconsistent values at " + i + ": "
+                                        + snapshot[i - 1] + ", " + snapshot[i];
+                                break;
+                            }
+                        }
+                        snapshotsTaken[readerIndex]++;
+                    }
+                }
+            };
+            readerThreads[r].start();
+        }
+
+        // values stay below 2^24 so that they're exact as floats
+        float[] batch = new float[100];
+        int next = 0;
+        for (int round = 0; round < 100000; round++) {
+            if (round % 2 == 0) {
+                buffer.append(next++);
+            } else {
+                for (int i = 0; i < batch.length; i++) {
+                    batch[i] = next++;
+                }
+                buffer.appendAll(batch, 0, batch.length);
+            }
+        }
+        writing.set(false);
+        for (Thread reader : readerThreads) {
+            reader.join();
+        }
+
+        for (int r = 0; r < readers; r++) {
+            Assert.assertNull(errors[r], errors[r]);
+            Assert.assertTrue(snapshotsTaken[r] > 0);
+        }
+        Assert.assertEquals(next - 1, buffer.getValue(0), 0.00001);
+    }
+
+    @Test
+    public void shouldAppendFast() {
+        CircularBuffer buffer = new CircularBuffer();
+        float[] batch = new float[256];
+        float[] snapshot = new float[1024];
+        int values = 20 * 1000 * 1000;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < values; i += batch.length) {
+            buffer.appendAll(batch, 0, batch.length);
+        }
+        long appendNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int snapshots = 10000;
+        for (int i = 0; i < snapshots; i++) {
+            buffer.snapshot(snapshot, snapshot.length);
+        }
+        long snapshotNanos = System.nanoTime() - start;
+
+        System.out.println("CircularBuffer: " + (double) appendNanos / values + " ns/value appended, "
+                + snapshotNanos / snapshots + " ns per 1024-value snapshot");
+        // several orders of magnitude above the fastest sensor rate, even on a slow machine
+        Assert.assertTrue(appendNanos / values < 1000);
+    }
 }
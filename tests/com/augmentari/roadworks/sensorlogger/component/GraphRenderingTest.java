@@ -0,0 +1,104 @@
+package com.augmentari.roadworks.sensorlogger.component;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of the graph frame building blocks: the segment arrays of {@link GraphLines} and the pacing and counters of
+ * {@link FramePacer}.
+ */
+public class GraphRenderingTest {
+
+    private static final long MILLIS = 1000 * 1000;
+
+    @Test
+    public void shouldSplitSegmentsByThreshold() {
+        GraphLines lines = new GraphLines();
+        // newest first: the second and the fourth values are over the threshold of 2
+        float[] values = {1, 3, 1, 4, 1};
+        lines.build(values, values.length, 100, 50, 10, 2);
+
+        Assert.assertEquals(2 * 4, lines.getNormalCount());
+        Assert.assertEquals(2 * 4, lines.getOverThresholdCount());
+        Assert.assertEquals(2 * 4, lines.getFillCount());
+
+        float[] over = lines.getOverThreshold();
+        // from the newest value at the right edge one pixel left, up to the value over the threshold
+        assertSegment(over, 0, 100, 40, 99, 20);
+        assertSegment(over, 4, 98, 40, 97, 10);
+        float[] normal = lines.getNormal();
+        assertSegment(normal, 0, 99, 20, 98, 40);
+        assertSegment(normal, 4, 97, 10, 96, 40);
+        // the fill goes down to the threshold line
+        assertSegment(lines.getFill(), 0, 99, 40, 99, 29);
+    }
+
+    @Test
+    public void shouldReuseArrays() {
+        GraphLines lines = new GraphLines();
+        float[] values = new float[480];
+        lines.build(values, values.length, 480, 100, 10, 2);
+        float[] normal = lines.getNormal();
+        Assert.assertEquals(479 * 4, lines.getNormalCount());
+
+        lines.build(values, 100, 480, 100, 10, 2);
+        Assert.assertSame(normal, lines.getNormal());
+        Assert.assertEquals(99 * 4, lines.getNormalCount());
+
+        lines.build(values, 1, 480, 100, 10, 2);
+        Assert.assertEquals(0, lines.getNormalCount());
+    }
+
+    @Test
+    public void shouldPaceToFrameRate() {
+        FramePacer pacer = new FramePacer(20);
+        long now = 1000 * MILLIS;
+        Assert.assertEquals(0, pacer.getDelayNanos(now));
+
+        pacer.onFrameDrawn(now, now + 5 * MILLIS);
+        Assert.assertEquals(45 * MILLIS, pacer.getDelayNanos(now + 5 * MILLIS));
+        Assert.assertEquals(0, pacer.getDelayNanos(now + 50 * MILLIS));
+
+        // a quiet second: nothing drawn, nothing dropped
+        now += 1000 * MILLIS;
+        Assert.assertEquals(0, pacer.getDelayNanos(now));
+        pacer.onFrameDrawn(now, now + 10 * MILLIS);
+        Assert.assertEquals(0, pacer.getDroppedFrameCount());
+        Assert.assertEquals(2, pacer.getFrameCount());
+        Assert.assertEquals(10 * MILLIS, pacer.getLastFrameNanos());
+        Assert.assertEquals(7500 * 1000, pacer.getAverageFrameNanos());
+    }
+
+    @Test
+    public void shouldCountSlowFramesAsDropped() {
+        FramePacer pacer = new FramePacer(50);
+        long now = 1000 * MILLIS;
+        // 45 ms at 20 ms a frame: the slot the frame started in, and two more missed
+        pacer.onFrameDrawn(now, now + 45 * MILLIS);
+        Assert.assertEquals(2, pacer.getDroppedFrameCount());
+        // the next frame goes to the next slot boundary
+        Assert.assertEquals(15 * MILLIS, pacer.getDelayNanos(now + 45 * MILLIS));
+    }
+
+    @Test
+    public void shouldStopAtZeroFrameRate() {
+        FramePacer pacer = new FramePacer(15);
+        pacer.setTargetFrameRate(0);
+        Assert.assertEquals(Long.MAX_VALUE, pacer.getDelayNanos(0));
+        pacer.setTargetFrameRate(30);
+        Assert.assertEquals(0, pacer.getDelayNanos(0));
+        try {
+            pacer.setTargetFrameRate(-1);
+            Assert.fail("Negative frame rate accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static void assertSegment(float[] points, int offset, float x0, float y0, float x1, float y1) {
+        Assert.assertEquals(x0, points[offset]);
+        Assert.assertEquals(y0, points[offset + 1]);
+        Assert.assertEquals(x1, points[offset + 2]);
+        Assert.assertEquals(y1, points[offset + 3]);
+    }
+}
@@ -0,0 +1,118 @@
+package com.augmentari.roadworks.sensorlogger.component;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of looking up the positions of the samples by their time.
+ */
+public class LocationTrackTest {
+
+    private static final long MILLI = 1000 * 1000;
+    // 100 km/h due north
+    private static final double SPEED = 100 / 3.6;
+    private static final double DEGREES_PER_METER = 1 / 111195d;
+
+    @Test
+    public void shouldGiveEarlySamplesOfBatchTheEarlierPosition() {
+        LocationTrack track = new LocationTrack();
+        SensorClock clock = new SensorClock();
+        LocationTrack.Position position = new LocationTrack.Position();
+
+        // the sensor clock runs 1000 s behind the wall clock; 200 Hz samples delivered in 5 s batches, a fix a second
+        long wallStart = 1370000000000L;
+        long sensorStart = wallStart * MILLI - 1000000 * MILLI;
+        for (int second = 0; second <= 10; second++) {
+            track.add(wallStart + second * 1000, latitude(second * 1000), 30.52, (float) SPEED, 0);
+            if (second > 0 && second % 5 == 0) {
+                // the batch of the last 5 s, with the newest event delivered 20 ms after it was taken
+                clock.observe(sensorStart + second * 1000 * MILLI, wallStart + second * 1000 + 20);
+
+                for (int i = 0; i < 1000; i++) {
+                    long sampleMillis = (second - 5) * 1000 + i * 5;
+                    track.positionAt(clock.toWallMillis(sensorStart + sampleMillis * MILLI), position);
+                    Assert.assertTrue(position.hasFix());
+                    // within a couple of meters of where the vehicle was, not 140 m ahead
+                    double metersOff = (position.getLatitude() - latitude(sampleMillis)) / DEGREES_PER_METER;
+                    Assert.assertTrue("sample " + i + " of batch " + second + ": " + metersOff + " m off",
+                            Math.abs(metersOff) < 1);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shouldInterpolateBetweenFixes() {
+        LocationTrack track = new LocationTrack();
+        LocationTrack.Position position = new LocationTrack.Position();
+        track.add(1000, 50, 30, 10, 90);
+        track.add(2000, 51, 32, 20, 180);
+
+        track.positionAt(1250, position);
+        Assert.assertEquals(50.25, position.getLatitude(), 1e-9);
+        Assert.assertEquals(30.5, position.getLongitude(), 1e-9);
+        Assert.assertEquals(12.5f, position.getSpeed(), 1e-6f);
+        Assert.assertEquals(90f, position.getBearing());
+
+        track.positionAt(1750, position);
+        Assert.assertEquals(180f, position.getBearing());
+
+        // after the newest fix, the newest fix
+        track.positionAt(5000, position);
+        Assert.assertEquals(51, position.getLatitude(), 1e-9);
+    }
+
+    @Test
+    public void shouldHaveNoFixBeforeFirstOne() {
+        LocationTrack track = new LocationTrack();
+        LocationTrack.Position position = new LocationTrack.Position();
+        track.positionAt(1000, position);
+        Assert.assertFalse(position.hasFix());
+
+        track.add(2000, 50, 30, 10, 90);
+        track.positionAt(1999, position);
+        Assert.assertFalse(position.hasFix());
+        Assert.assertEquals(0d, position.getLatitude());
+        Assert.assertTrue(Float.isNaN(position.getBearing()));
+        track.positionAt(2000, position);
+        Assert.assertTrue(position.hasFix());
+
+        track.clear();
+        track.positionAt(2000, position);
+        Assert.assertFalse(position.hasFix());
+    }
+
+    @Test
+    public void shouldTakeNearerFixOverLongGap() {
+        LocationTrack track = new LocationTrack();
+        LocationTrack.Position position = new LocationTrack.Position();
+        track.add(0, 50, 30, 10, 90);
+        track.add(LocationTrack.MAX_INTERPOLATION_MILLIS + 1000, 51, 30, 10, 90);
+
+        track.positionAt(1000, position);
+        Assert.assertEquals(50, position.getLatitude(), 1e-9);
+        track.positionAt(LocationTrack.MAX_INTERPOLATION_MILLIS, position);
+        Assert.assertEquals(51, position.getLatitude(), 1e-9);
+    }
+
+    @Test
+    public void shouldKeepNewestFixes() {
+        LocationTrack track = new LocationTrack(4);
+        LocationTrack.Position position = new LocationTrack.Position();
+        for (int i = 0; i < 10; i++) {
+            track.add(i * 1000, 50 + i, 30, 10, 0);
+        }
+        // going back in time is ignored
+        track.add(5000, 0, 0, 0, 0);
+
+        Assert.assertEquals(4, track.size());
+        track.positionAt(6000, position);
+        Assert.assertEquals(56, position.getLatitude(), 1e-9);
+        track.positionAt(5500, position);
+        Assert.assertFalse(position.hasFix());
+    }
+
+    private static double latitude(long millis) {
+        return 50.45 + SPEED * millis / 1000 * DEGREES_PER_METER;
+    }
+}
@@ -0,0 +1,67 @@
+package com.augmentari.roadworks.sensorlogger.component;
+
+import java.util.Random;
+
+/**
+ * Plain JVM benchmark of the min/max pyramid: appends per second, and the cost of reducing a window of 1M samples
+ * (about 1.5 hours at 200 Hz) to a screen width of columns, against a scan of the samples.
+ */
+public class MinMaxPyramidBenchmark {
+
+    private static final int CAPACITY = 1024 * 1024;
+    private static final int COLUMNS = 1080;
+    private static final int QUERIES = 2000;
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) {
+        Random random = new Random(7);
+        float[] samples = new float[CAPACITY];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (float) Math.abs(random.nextGaussian());
+        }
+        float[] mins = new float[COLUMNS];
+        float[] maxs = new float[COLUMNS];
+
+        for (int round = 0; round < ROUNDS; round++) {
+            MinMaxPyramid pyramid = new MinMaxPyramid(CAPACITY);
+            long start = System.nanoTime();
+            // in batches, the way the sensor processing thread delivers them
+            for (int i = 0; i < samples.length; i += 256) {
+                pyramid.appendAll(samples, i, 256);
+            }
+            double appendsPerSecond = samples.length * 1e9 / (System.nanoTime() - start);
+
+            float checksum = 0;
+            start = System.nanoTime();
+            for (int query = 0; query < QUERIES; query++) {
+                int window = CAPACITY - query;
+                int filled = pyramid.envelope(window, COLUMNS, mins, maxs);
+                checksum += maxs[filled - 1];
+            }
+            double envelopeMicros = (System.nanoTime() - start) / 1e3 / QUERIES;
+
+            // the alternative: min/max over the raw samples of every column
+            int scanQueries = QUERIES / 100;
+            start = System.nanoTime();
+            for (int query = 0; query < scanQueries; query++) {
+                int perColumn = (CAPACITY - query) / COLUMNS;
+                for (int column = 0; column < COLUMNS; column++) {
+                    float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+                    int end = CAPACITY - column * perColumn;
+                    for (int i = end - perColumn; i < end; i++) {
+                        min = Math.min(min, samples[i]);
+                        max = Math.max(max, samples[i]);
+                    }
+                    mins[column] = min;
+                    maxs[column] = max;
+                }
+                checksum += maxs[COLUMNS - 1];
+            }
+            double scanMicros = (System.nanoTime() - start) / 1e3 / scanQueries;
+
+            System.out.printf("round %d: %d levels, %.0f appends/s; 1M-sample window to %d columns: "
+                    + "pyramid %.1f us, scan %.0f us (%.1f)%n",
+                    round, pyramid.getLevelCount(), appendsPerSecond, COLUMNS, envelopeMicros, scanMicros, checksum);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.augmentari.roadworks.sensorlogger.component;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Tests of the min/max pyramid against a scan of the raw samples.
+ */
+public class MinMaxPyramidTest {
+
+    private static final int CAPACITY = 16 * 1024;
+
+    @Test
+    public void shouldMatchScanAtEveryZoom() {
+        Random random = new Random(1);
+        MinMaxPyramid pyramid = new MinMaxPyramid(CAPACITY);
+        Assert.assertEquals(3, pyramid.getLevelCount());
+        // more than the capacity, so that all the rings have wrapped around
+        float[] all = new float[CAPACITY * 3 + 1234];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = (float) (random.nextGaussian() + (i % 5000 == 0 ? 10 : 0));
+        }
+        pyramid.appendAll(all, 0, all.length);
+
+        float[] mins = new float[500];
+        float[] maxs = new float[500];
+        for (int window : new int[]{1, 100, 480, 1000, 4000, 10000, CAPACITY, CAPACITY * 2}) {
+            for (int columns : new int[]{1, 37, 480}) {
+                int filled = pyramid.envelope(window, columns, mins, maxs);
+                assertEnvelope(all, pyramid.getLevelCount(), window, columns, filled, mins, maxs);
+            }
+        }
+    }
+
+    @Test
+    public void shouldGiveRawValuesAtOneSamplePerColumn() {
+        MinMaxPyramid pyramid = new MinMaxPyramid(CAPACITY);
+        for (int i = 0; i < 10; i++) {
+            pyramid.append(i);
+        }
+        float[] mins = new float[20];
+        float[] maxs = new float[20];
+        Assert.assertEquals(10, pyramid.envelope(20, 20, mins, maxs));
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(9f - i, mins[i]);
+            Assert.assertEquals(9f - i, maxs[i]);
+        }
+        Assert.assertEquals(0, new MinMaxPyramid(CAPACITY).envelope(100, 10, mins, maxs));
+    }
+
+    @Test
+    public void shouldKeepSpikesAtAnyZoom() {
+        MinMaxPyramid pyramid = new MinMaxPyramid(CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) {
+            pyramid.append(i == CAPACITY / 2 ? 9f : 1f);
+        }
+        float[] mins = new float[100];
+        float[] maxs = new float[100];
+        int filled = pyramid.envelope(CAPACITY, 100, mins, maxs);
+        float max = 0;
+        for (int i = 0; i < filled; i++) {
+            max = Math.max(max, maxs[i]);
+            Assert.assertEquals(1f, mins[i]);
+        }
+        Assert.assertEquals(9f, max);
+    }
+
+    /**
+     * Check every column against a scan of the samples it stands for: whole blocks of the coarsest level with at least
+     * one block per column, spread evenly over the columns.
+     */
+    private static void assertEnvelope(float[] all, int levels, int window, int columns, int filled,
+                                       float[] mins, float[] maxs) {
+        long kept = Math.min(window, Math.min(all.length, CAPACITY));
+        int level = 0;
+        while (level < levels && pow(level + 1) <= kept / columns) {
+            level++;
+        }
+        long blockSize = pow(level);
+        long end = all.length / blockSize * blockSize;
+        long blocks = Math.min(kept / blockSize, all.length / blockSize);
+        Assert.assertEquals(Math.min(columns, blocks), filled);
+        for (int column = 0; column < filled; column++) {
+            long from = end - (column + 1) * blocks / filled * blockSize;
+            long to = end - column * blocks / filled * blockSize;
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            for (long i = from; i < to; i++) {
+                min = Math.min(min, all[(int) i]);
+                max = Math.max(max, all[(int) i]);
+            }
+            Assert.assertEquals("window " + window + ", column " + column, min, mins[column]);
+            Assert.assertEquals("window " + window + ", column " + column, max, maxs[column]);
+        }
+    }
+
+    private static long pow(int level) {
+        long result = 1;
+        for (int i = 0; i < level; i++) {
+            result *= MinMaxPyramid.FANOUT;
+        }
+        return result;
+    }
+}
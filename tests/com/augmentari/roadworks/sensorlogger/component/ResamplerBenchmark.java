@@ -0,0 +1,63 @@
+package com.augmentari.roadworks.sensorlogger.component;
+
+import java.util.Random;
+
+/**
+ * Plain JVM benchmark of the {@link Resampler}: nanoseconds per input sample when resampling jittered streams of
+ * different rates to 200 Hz, in batches the size the processing thread hands over.
+ */
+public class ResamplerBenchmark {
+
+    private static final int[] RATES = {50, 100, 200, 400};
+    private static final int BATCH = 256;
+    // about 10M, in whole batches
+    private static final int SAMPLES = 40 * 1000 * BATCH;
+    private static final int ROUNDS = 5;
+    private static final long PERIOD_NANOS = 5 * 1000 * 1000;
+
+    public static void main(String[] args) {
+        float sink = 0;
+        for (int rate : RATES) {
+            // pre-generate input so we measure the resampler and not the random generator
+            Random random = new Random(42);
+            long inputPeriod = 1000L * 1000 * 1000 / rate;
+            long[] timestamps = new long[SAMPLES];
+            float[] xs = new float[SAMPLES];
+            float[] ys = new float[SAMPLES];
+            float[] zs = new float[SAMPLES];
+            for (int i = 0; i < SAMPLES; i++) {
+                timestamps[i] = i * inputPeriod + (long) (random.nextDouble() * inputPeriod / 4);
+                xs[i] = random.nextFloat();
+                ys[i] = random.nextFloat();
+                zs[i] = 9.81f + random.nextFloat();
+            }
+
+            long[] batchTimestamps = new long[BATCH];
+            float[] batchXs = new float[BATCH];
+            float[] batchYs = new float[BATCH];
+            float[] batchZs = new float[BATCH];
+            long best = Long.MAX_VALUE;
+            long output = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                Resampler resampler = new Resampler(PERIOD_NANOS, 250 * 1000 * 1000);
+                output = 0;
+                long start = System.nanoTime();
+                for (int from = 0; from < SAMPLES; from += BATCH) {
+                    // the copy stands for the drain of the sample queue
+                    System.arraycopy(timestamps, from, batchTimestamps, 0, BATCH);
+                    System.arraycopy(xs, from, batchXs, 0, BATCH);
+                    System.arraycopy(ys, from, batchYs, 0, BATCH);
+                    System.arraycopy(zs, from, batchZs, 0, BATCH);
+                    int count = resampler.resample(batchTimestamps, batchXs, batchYs, batchZs, BATCH);
+                    output += count;
+                    sink += count > 0 ? resampler.getZs()[count - 1] : 0;
+                }
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.printf("%3d Hz -> 200 Hz: %6.2f ns/input sample, %6.2f ns/output sample, %.0f samples/s%n",
+                    rate, (double) best / SAMPLES, (double) best / output, SAMPLES * 1e9 / best);
+        }
+        // keep the JIT from dropping the loop altogether
+        System.out.println("checksum " + sink);
+    }
+}
@@ -0,0 +1,203 @@
+package com.augmentari.roadworks.sensorlogger.component;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Tests of the resampling over jittered synthetic sensor streams.
+ */
+public class ResamplerTest {
+
+    private static final long MILLI = 1000 * 1000;
+    private static final long PERIOD = 5 * MILLI;
+
+    @Test
+    public void shouldGiveEvenlySpacedSamplesOfTheSignal() {
+        Stream stream = new Stream(200, 0.3, 1);
+        Resampler resampler = new Resampler(PERIOD, 250 * MILLI);
+        long previous = -1;
+        int total = 0;
+        for (int batch = 0; batch < 100; batch++) {
+            int count = resampler.resample(stream.timestamps, stream.xs, stream.ys, stream.zs, stream.next(64));
+            for (int i = 0; i < count; i++) {
+                long timestamp = resampler.getTimestamps()[i];
+                Assert.assertEquals(0, timestamp % PERIOD);
+                if (previous >= 0) {
+                    Assert.assertEquals(PERIOD, timestamp - previous);
+                }
+                previous = timestamp;
+                Assert.assertEquals(Stream.x(timestamp), resampler.getXs()[i], 0.01);
+                Assert.assertEquals(Stream.z(timestamp), resampler.getZs()[i], 0.01);
+            }
+            total += count;
+        }
+        // as many out as in, give or take the jitter
+        Assert.assertTrue("Total " + total, Math.abs(total - 6400) < 10);
+        Assert.assertEquals(0, resampler.getGapCount());
+    }
+
+    @Test
+    public void shouldNotDependOnTheBatching() {
+        Stream stream = new Stream(150, 0.5, 2);
+        stream.next(5000);
+        Resampler whole = new Resampler(PERIOD, 250 * MILLI);
+        int wholeCount = whole.resample(stream.timestamps, stream.xs, stream.ys, stream.zs, 5000);
+
+        Resampler batched = new Resampler(PERIOD, 250 * MILLI);
+        Random random = new Random(5);
+        long[] timestamps = new long[100];
+        float[] xs = new float[100];
+        float[] ys = new float[100];
+        float[] zs = new float[100];
+        int output = 0;
+        for (int from = 0; from < 5000; ) {
+            int count = Math.min(random.nextInt(100) + 1, 5000 - from);
+            System.arraycopy(stream.timestamps, from, timestamps, 0, count);
+            System.arraycopy(stream.xs, from, xs, 0, count);
+            System.arraycopy(stream.ys, from, ys, 0, count);
+            System.arraycopy(stream.zs, from, zs, 0, count);
+            int resampled = batched.resample(timestamps, xs, ys, zs, count);
+            for (int i = 0; i < resampled; i++, output++) {
+                Assert.assertEquals(whole.getTimestamps()[output], batched.getTimestamps()[i]);
+                Assert.assertEquals(whole.getXs()[output], batched.getXs()[i]);
+            }
+            from += count;
+        }
+        Assert.assertEquals(wholeCount, output);
+    }
+
+    @Test
+    public void shouldSkipGapsAndDropSamplesGoingBack() {
+        Resampler resampler = new Resampler(PERIOD, 100 * MILLI);
+        long[] timestamps = {1 * MILLI, 6 * MILLI, 6 * MILLI, 4 * MILLI, 11 * MILLI, 511 * MILLI, 520 * MILLI};
+        float[] values = {0, 5, 99, 99, 10, 0, 9};
+        int count = resampler.resample(timestamps, values, values, values, timestamps.length);
+
+        Assert.assertEquals(2, resampler.getDroppedCount());
+        Assert.assertEquals(1, resampler.getGapCount());
+        // before the gap, the mean of 10 is over the part of its period up to 11
+        long[] expectedTimestamps = {5 * MILLI, 10 * MILLI, 515 * MILLI};
+        float[] expectedValues = {4, 8.25f, 4};
+        Assert.assertEquals(expectedTimestamps.length, count);
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals(expectedTimestamps[i], resampler.getTimestamps()[i]);
+            Assert.assertEquals(expectedValues[i], resampler.getXs()[i], 1e-4);
+        }
+
+        // the period of 520 ends past the input; it comes with the next sample
+        long[] next = {525 * MILLI};
+        float[] nextValues = {14};
+        Assert.assertEquals(1, resampler.resample(next, nextValues, nextValues, nextValues, 1));
+        Assert.assertEquals(520 * MILLI, resampler.getTimestamps()[0]);
+        Assert.assertEquals(9, resampler.getXs()[0], 1e-4);
+    }
+
+    @Test
+    public void shouldKeepShortSpikeOfInputFasterThanOutput() {
+        // a pothole hit lasting a single sample of a 500 Hz sensor, at every phase against the output grid
+        for (int offset = 0; offset < 50; offset++) {
+            Stream stream = new Stream(500, 0.3, offset);
+            int inCount = stream.next(200);
+            int spike = 100 + offset / 10;
+            stream.zs[spike] += 20;
+            // area of the spike on top of the signal, interpolated linearly between the samples
+            double spikeArea = 20d * (stream.timestamps[spike + 1] - stream.timestamps[spike - 1]) / 2;
+
+            Resampler resampler = new Resampler(PERIOD, 250 * MILLI);
+            int count = resampler.resample(stream.timestamps, stream.xs, stream.ys, stream.zs, inCount);
+            double area = 0;
+            float peak = 0;
+            for (int i = 0; i < count; i++) {
+                float excess = resampler.getZs()[i] - Stream.z(resampler.getTimestamps()[i]);
+                area += excess * PERIOD;
+                peak = Math.max(peak, excess);
+            }
+            Assert.assertEquals("offset " + offset, spikeArea, area, spikeArea * 0.05);
+            // spread over two output samples at most
+            Assert.assertTrue("offset " + offset + ", peak " + peak, peak > 20 * 0.2 * 0.9);
+        }
+    }
+
+    @Test
+    public void shouldFilterTheSameWhateverTheSensorRate() {
+        // the filters of the service: gravity removal, then roughness over 10 samples
+        int[] rates = {100, 200, 400};
+        float[][] outputs = new float[rates.length][];
+        for (int r = 0; r < rates.length; r++) {
+            Stream stream = new Stream(rates[r], 0.2, 3);
+            stream.next(rates[r] * 10);
+            Resampler resampler = new Resampler(PERIOD, 250 * MILLI);
+            int count = resampler.resample(stream.timestamps, stream.xs, stream.ys, stream.zs, rates[r] * 10);
+
+            float alpha = Resampler.lowPassAlpha(0.02, PERIOD);
+            RoughnessFilter roughness = new RoughnessFilter(10);
+            float[] gravity = new float[3];
+            // one value per 100ms, for the same moments whatever the rate
+            outputs[r] = new float[90];
+            for (int i = 0; i < count; i++) {
+                long timestamp = resampler.getTimestamps()[i];
+                float[] in = {resampler.getXs()[i], resampler.getYs()[i], resampler.getZs()[i]};
+                for (int axis = 0; axis < 3; axis++) {
+                    gravity[axis] = alpha * gravity[axis] + (1 - alpha) * in[axis];
+                    in[axis] -= gravity[axis];
+                }
+                float value = roughness.filter(in[0], in[1], in[2]);
+                if (timestamp % (100 * MILLI) == 0 && timestamp >= 1000 * MILLI && timestamp < 10000 * MILLI) {
+                    outputs[r][(int) (timestamp / (100 * MILLI)) - 10] = value;
+                }
+            }
+        }
+        for (int i = 0; i < outputs[0].length; i++) {
+            Assert.assertTrue(outputs[1][i] > 0);
+            Assert.assertEquals("at " + i, outputs[1][i], outputs[0][i], outputs[1][i] * 0.25);
+            Assert.assertEquals("at " + i, outputs[1][i], outputs[2][i], outputs[1][i] * 0.25);
+        }
+        Assert.assertEquals(0.8f, Resampler.lowPassAlpha(0.02, PERIOD), 1e-6);
+    }
+
+    /**
+     * Accelerometer readings of a smooth bumpy road, sampled at a given rate with a jitter of the timestamps.
+     */
+    private static class Stream {
+        final long[] timestamps = new long[16 * 1024];
+        final float[] xs = new float[timestamps.length];
+        final float[] ys = new float[timestamps.length];
+        final float[] zs = new float[timestamps.length];
+
+        private final long periodNanos;
+        private final double jitter;
+        private final Random random;
+        private long time = 0;
+
+        Stream(int rate, double jitter, long seed) {
+            periodNanos = 1000 * MILLI / rate;
+            this.jitter = jitter;
+            random = new Random(seed);
+        }
+
+        /**
+         * @return count of the samples put to the beginning of the arrays.
+         */
+        int next(int count) {
+            for (int i = 0; i < count; i++) {
+                long timestamp = time + (long) ((random.nextDouble() * 2 - 1) * jitter * periodNanos);
+                timestamps[i] = Math.max(timestamp, i > 0 ? timestamps[i - 1] + 1 : 0);
+                xs[i] = x(timestamps[i]);
+                ys[i] = 0.3f;
+                zs[i] = z(timestamps[i]);
+                time += periodNanos;
+            }
+            return count;
+        }
+
+        static float x(long nanos) {
+            return (float) Math.sin(2 * Math.PI * 2 * nanos / 1e9);
+        }
+
+        static float z(long nanos) {
+            return (float) (9.81 + 0.5 * Math.sin(2 * Math.PI * 7 * nanos / 1e9));
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.augmentari.roadworks.sensorlogger.component;
+
+import java.util.Random;
+
+/**
+ * Plain JVM micro-benchmark for {@link RoughnessFilter}: prints nanoseconds per sample for window sizes from 2 up to
+ * 10000. The per-sample cost is expected to stay flat as the window grows.
+ */
+public class RoughnessFilterBenchmark {
+
+    private static final int[] WINDOW_SIZES = {2, 10, 100, 1000, 10000};
+    private static final int SAMPLES = 10 * 1000 * 1000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        // pre-generate input so we measure the filter and not the random generator
+        Random random = new Random(42);
+        float[] input = new float[4096 * 3];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = random.nextFloat() * 20 - 10;
+        }
+
+        float sink = 0;
+        for (int windowSize : WINDOW_SIZES) {
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                RoughnessFilter filter = new RoughnessFilter(windowSize);
+                long start = System.nanoTime();
+                for (int i = 0; i < SAMPLES; i++) {
+                    int base = (i & 4095) * 3;
+                    sink += filter.filter(input[base], input[base + 1], input[base + 2]);
+                }
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.printf("window %6d: %6.2f ns/sample%n", windowSize, (double) best / SAMPLES);
+        }
+        // keep the JIT from dropping the loop altogether
+        System.out.println("checksum " + sink);
+    }
+}
@@ -0,0 +1,84 @@
+package com.augmentari.roadworks.sensorlogger.component;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Checks the incremental roughness filter against a straightforward re-summing implementation.
+ */
+public class RoughnessFilterTest {
+
+    @Test
+    public void shouldMatchNaiveWindowSum() {
+        int[] windowSizes = {2, 3, 10, 257};
+        for (int windowSize : windowSizes) {
+            RoughnessFilter filter = new RoughnessFilter(windowSize);
+            NaiveFilter naive = new NaiveFilter(windowSize);
+            Random random = new Random(windowSize);
+
+            for (int i = 0; i < windowSize * 20; i++) {
+                float x = random.nextFloat() * 20 - 10;
+                float y = random.nextFloat() * 20 - 10;
+                float z = random.nextFloat() * 20 - 10;
+
+                Assert.assertEquals("window " + windowSize + ", sample " + i,
+                        naive.filter(x, y, z), filter.filter(x, y, z), 0.0001f);
+            }
+        }
+    }
+
+    @Test
+    public void shouldIncludeWrapAroundPair() {
+        RoughnessFilter filter = new RoughnessFilter(3);
+        filter.filter(1, 0, 0);
+        filter.filter(2, 0, 0);
+        filter.filter(3, 0, 0);
+        // window is now {2, 3, 5}: differences 1 and 2, no matter where the ring pointer is
+        Assert.assertEquals(3f / 3 / 3, filter.filter(5, 0, 0), 0.00001f);
+    }
+
+    @Test
+    public void shouldReturnZeroForConstantSignal() {
+        RoughnessFilter filter = new RoughnessFilter(5);
+        for (int i = 0; i < 5; i++) {
+            filter.filter(1, 2, 3);
+        }
+        Assert.assertEquals(0f, filter.filter(1, 2, 3), 0.00001f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectTooSmallWindow() {
+        new RoughnessFilter(1);
+    }
+
+    /**
+     * Reference implementation: keeps the window in ring order and re-sums it for every sample.
+     */
+    private static class NaiveFilter {
+        private final float[][] window;
+        private int next = 0;
+
+        NaiveFilter(int windowSize) {
+            window = new float[windowSize][3];
+        }
+
+        float filter(float x, float y, float z) {
+            window[next][0] = x;
+            window[next][1] = y;
+            window[next][2] = z;
+            next = (next + 1) % window.length;
+
+            float sum = 0;
+            for (int j = 1; j < window.length; j++) {
+                float[] current = window[(next + j) % window.length];
+                float[] previous = window[(next + j - 1) % window.length];
+                sum += Math.abs(current[0] - previous[0])
+                        + Math.abs(current[1] - previous[1])
+                        + Math.abs(current[2] - previous[2]);
+            }
+            return sum / window.length / 3;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.augmentari.roadworks.sensorlogger.component;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the multi-channel {@link SampleBuffer}.
+ */
+public class SampleBufferTest {
+
+    @Test
+    public void shouldKeepAllChannelsOfNewestSamples() {
+        SampleBuffer buffer = new SampleBuffer(3);
+        Assert.assertEquals(0, buffer.getActualSize());
+
+        for (int i = 0; i < 5; i++) {
+            buffer.append(1000L + i, i, i * 2, i * 3, i / 10f, i > 2, 50 + i / 100d, 30 + i / 100d, i, i * 10);
+        }
+
+        Assert.assertEquals(3, buffer.getActualSize());
+        Assert.assertEquals(5, buffer.getTotalAppended());
+
+        Assert.assertEquals(1004L, buffer.getTimestampNanos(0));
+        Assert.assertEquals(4, buffer.getX(0), 0.00001);
+        Assert.assertEquals(8, buffer.getY(0), 0.00001);
+        Assert.assertEquals(12, buffer.getZ(0), 0.00001);
+        Assert.assertEquals(0.4, buffer.getValue(0), 0.00001);
+        Assert.assertTrue(buffer.hasFix(0));
+        Assert.assertEquals(50.04, buffer.getLatitude(0), 0.0000001);
+        Assert.assertEquals(30.04, buffer.getLongitude(0), 0.0000001);
+        Assert.assertEquals(4, buffer.getSpeed(0), 0.00001);
+        Assert.assertEquals(40, buffer.getBearing(0), 0.00001);
+
+        Assert.assertEquals(1002L, buffer.getTimestampNanos(2));
+        Assert.assertEquals(2, buffer.getX(2), 0.00001);
+        Assert.assertFalse(buffer.hasFix(2));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void shouldRejectIndexBeyondActualSize() {
+        SampleBuffer buffer = new SampleBuffer(3);
+        buffer.append(0, 0, 0, 0, 0, false, 0, 0, 0, Float.NaN);
+        buffer.getValue(1);
+    }
+}
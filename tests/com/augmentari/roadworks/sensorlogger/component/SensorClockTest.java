@@ -0,0 +1,123 @@
+package com.augmentari.roadworks.sensorlogger.component;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Tests of the sensor to wall clock mapping over synthetic event streams, delivered one by one and in batches.
+ */
+public class SensorClockTest {
+
+    private static final long MILLI = 1000 * 1000;
+    private static final long SECOND = 1000 * MILLI;
+
+    // the sensor clock counts from boot, the wall clock from the epoch
+    private static final long BOOT_WALL_NANOS = 1400000000000L * MILLI;
+
+    @Test
+    public void shouldStampBatchedEventsWithTheirOwnTime() {
+        SensorClock clock = new SensorClock();
+        Stream stream = new Stream(clock, 2 * SECOND);
+        // events of a batch are delivered together, up to 2 seconds after the oldest of them was taken
+        for (int i = 0; i < 50; i++) {
+            stream.deliverBatch();
+            stream.assertMapping(2);
+        }
+        long latency = clock.getMaxDeliveryLatencyNanos();
+        Assert.assertTrue("Latency " + latency, latency > 1900 * MILLI && latency < 2100 * MILLI);
+    }
+
+    @Test
+    public void shouldStampEventsDeliveredOneByOne() {
+        SensorClock clock = new SensorClock();
+        Stream stream = new Stream(clock, 0);
+        for (int i = 0; i < 20000; i++) {
+            stream.deliverBatch();
+        }
+        stream.assertMapping(2);
+        Assert.assertTrue(clock.getMaxDeliveryLatencyNanos() < 10 * MILLI);
+    }
+
+    @Test
+    public void shouldFollowTheWallClockBeingSet() {
+        SensorClock clock = new SensorClock();
+        Stream stream = new Stream(clock, SECOND);
+        for (int i = 0; i < 20; i++) {
+            stream.deliverBatch();
+        }
+
+        // set back: the very next delivery shows it
+        stream.wallOffsetNanos -= 3600 * SECOND;
+        stream.deliverBatch();
+        stream.assertMapping(2);
+
+        // set forward: followed within two windows
+        stream.wallOffsetNanos += 7200 * SECOND;
+        long setAt = stream.sensorNanos;
+        while (stream.sensorNanos - setAt < 2 * SensorClock.WINDOW_NANOS + 2 * SECOND) {
+            stream.deliverBatch();
+        }
+        stream.assertMapping(2);
+    }
+
+    @Test
+    public void shouldFallBackToWallClockBeforeTheFirstEvent() {
+        SensorClock clock = new SensorClock();
+        Assert.assertFalse(clock.isSynchronized());
+        long before = System.currentTimeMillis();
+        long mapped = clock.toWallMillis(123456789L);
+        Assert.assertTrue(mapped >= before && mapped <= System.currentTimeMillis());
+        clock.observe(5 * SECOND, 1000000);
+        Assert.assertTrue(clock.isSynchronized());
+        Assert.assertEquals(1000000 - 4000, clock.toWallMillis(SECOND));
+    }
+
+    /**
+     * Accelerometer at about 200 Hz, with the jitter of a real one, delivered in batches of a given latency.
+     */
+    private static class Stream {
+        private final SensorClock clock;
+        private final long latencyNanos;
+        private final Random random = new Random(3);
+        private final long[] batch = new long[4096];
+
+        long sensorNanos = 5 * SECOND;
+        long wallOffsetNanos = BOOT_WALL_NANOS;
+        // last event delivered, and when it was taken by the wall clock
+        private long lastEventNanos;
+        private long lastEventWallNanos;
+
+        Stream(SensorClock clock, long latencyNanos) {
+            this.clock = clock;
+            this.latencyNanos = latencyNanos;
+        }
+
+        void deliverBatch() {
+            int count = 0;
+            long first = sensorNanos;
+            do {
+                batch[count++] = sensorNanos;
+                sensorNanos += 5 * MILLI + (long) (random.nextGaussian() * 0.3 * MILLI);
+            } while (sensorNanos - first < latencyNanos);
+
+            // the batch is delivered a bit after its newest event, as it takes the sensor hub a while
+            long deliveryWallNanos = batch[count - 1] + wallOffsetNanos + (long) (random.nextDouble() * 3 * MILLI);
+            for (int i = 0; i < count; i++) {
+                clock.observe(batch[i], deliveryWallNanos / MILLI);
+            }
+            lastEventNanos = batch[count - 1];
+            lastEventWallNanos = lastEventNanos + wallOffsetNanos;
+        }
+
+        void assertMapping(long toleranceMillis) {
+            for (long back = 0; back <= latencyNanos; back += 100 * MILLI) {
+                long expected = (lastEventWallNanos - back) / MILLI;
+                long mapped = clock.toWallMillis(lastEventNanos - back);
+                Assert.assertTrue("Expected " + expected + ", got " + mapped,
+                        Math.abs(mapped - expected) <= toleranceMillis);
+            }
+        }
+    }
+}
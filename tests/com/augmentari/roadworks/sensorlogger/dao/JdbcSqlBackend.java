@@ -0,0 +1,178 @@
+package com.augmentari.roadworks.sensorlogger.dao;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * {@link SqlBackend} on top of the xerial SQLite JDBC driver: the same SQLite engine as on the device, so the DAO
+ * code may be tested and measured on a plain JVM.
+ */
+public class JdbcSqlBackend implements SqlBackend {
+
+    public static final String DRIVER = "org.sqlite.JDBC";
+
+    private final Connection connection;
+    // transactions nest like SQLiteDatabase ones: only the outermost commits, and any inner failure rolls back all
+    private int transactionDepth = 0;
+    private boolean transactionSuccessful;
+    private boolean transactionFailed;
+
+    public JdbcSqlBackend(String path) throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite:" + path);
+    }
+
+    /**
+     * @return true if the driver is on the classpath -- the tests are skipped otherwise.
+     */
+    public static boolean isAvailable() {
+        try {
+            Class.forName(DRIVER);
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public void execSQL(String sql) {
+        try {
+            java.sql.Statement statement = connection.createStatement();
+            try {
+                statement.execute(sql);
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public long queryLong(String sql) {
+        try {
+            java.sql.Statement statement = connection.createStatement();
+            try {
+                ResultSet resultSet = statement.executeQuery(sql);
+                return resultSet.next() ? resultSet.getLong(1) : -1;
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public String queryString(String sql) {
+        try {
+            java.sql.Statement statement = connection.createStatement();
+            try {
+                ResultSet resultSet = statement.executeQuery(sql);
+                return resultSet.next() ? resultSet.getString(1) : null;
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void close() throws SQLException {
+        connection.close();
+    }
+
+    @Override
+    public Statement compileStatement(String sql) {
+        final PreparedStatement statement;
+        try {
+            statement = connection.prepareStatement(sql);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        return new Statement() {
+            @Override
+            public void bindLong(int index, long value) {
+                try {
+                    statement.setLong(index, value);
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public void bindDouble(int index, double value) {
+                try {
+                    statement.setDouble(index, value);
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public void bindString(int index, String value) {
+                try {
+                    statement.setString(index, value);
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public long executeInsert() {
+                executeUpdateDelete();
+                return queryLong("SELECT last_insert_rowid()");
+            }
+
+            @Override
+            public int executeUpdateDelete() {
+                try {
+                    return statement.executeUpdate();
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void beginTransaction() {
+        try {
+            if (transactionDepth++ == 0) {
+                connection.setAutoCommit(false);
+                transactionFailed = false;
+            }
+            transactionSuccessful = false;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        transactionSuccessful = true;
+    }
+
+    @Override
+    public void endTransaction() {
+        try {
+            transactionFailed |= !transactionSuccessful;
+            transactionSuccessful = false;
+            if (--transactionDepth > 0) {
+                return;
+            }
+            if (transactionFailed) {
+                connection.rollback();
+            } else {
+                connection.commit();
+            }
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
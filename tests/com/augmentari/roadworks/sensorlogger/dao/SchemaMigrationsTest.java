@@ -0,0 +1,184 @@
+package com.augmentari.roadworks.sensorlogger.dao;
+
+import com.augmentari.roadworks.model.RecordingSession;
+import com.augmentari.roadworks.model.SessionStatistics;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests of the schema migrations against a local SQLite through JDBC: an installed database of the first version, with
+ * sessions in it, is upgraded to the latest one.
+ */
+public class SchemaMigrationsTest {
+
+    private static final int SESSIONS = 100;
+
+    private File databaseFile;
+    private JdbcSqlBackend backend;
+
+    @Before
+    public void setUp() throws IOException, SQLException {
+        Assume.assumeTrue(JdbcSqlBackend.isAvailable());
+        databaseFile = File.createTempFile("sessions", ".db");
+        backend = new JdbcSqlBackend(databaseFile.getPath());
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        if (backend != null) {
+            backend.close();
+        }
+        if (databaseFile != null) {
+            databaseFile.delete();
+        }
+    }
+
+    @Test
+    public void shouldBeAtLatestVersion() {
+        Assert.assertEquals(SQLiteHelperImpl.DB_VERSION, SchemaMigrations.LATEST_VERSION);
+    }
+
+    @Test
+    public void shouldUpgradePopulatedDatabaseKeepingData() throws SQLException {
+        backend.execSQL(SchemaMigrations.CREATE_V1);
+        RecordingSession.State[] states = RecordingSession.State.values();
+        for (int i = 0; i < SESSIONS; i++) {
+            backend.execSQL("INSERT INTO " + SQLiteHelperImpl.TABLE_SESSIONS + " VALUES (NULL, "
+                    + (1000 + i) + ", " + (2000 + i) + ", '" + states[i % states.length].name() + "', "
+                    + "'/data/data" + i + ".rws', " + i + ")");
+        }
+
+        SchemaMigrations.upgrade(backend, 1, SchemaMigrations.LATEST_VERSION);
+
+        Assert.assertEquals(SESSIONS, backend.queryLong("SELECT count(*) FROM " + SQLiteHelperImpl.TABLE_SESSIONS));
+        for (int i = 0; i < SESSIONS; i++) {
+            long id = i + 1;
+            Assert.assertEquals(1000 + i, column(SQLiteHelperImpl.FIELD_START_TIME, id));
+            Assert.assertEquals(2000 + i, column(SQLiteHelperImpl.FIELD_END_TIME, id));
+            Assert.assertEquals(i, column(SQLiteHelperImpl.FIELD_EVENTS_LOGGED_COUNT, id));
+            Assert.assertEquals(0, column(SQLiteHelperImpl.FIELD_UPLOAD_OFFSET, id));
+            Assert.assertEquals(0, column(SQLiteHelperImpl.FIELD_FILE_SIZE, id));
+            Assert.assertEquals(0, column(SQLiteHelperImpl.FIELD_DISTANCE, id));
+            Assert.assertEquals(states[i % states.length].name(), backend.queryString("SELECT "
+                    + SQLiteHelperImpl.FIELD_STATE + " FROM " + SQLiteHelperImpl.TABLE_SESSIONS
+                    + " WHERE " + SQLiteHelperImpl.FIELD_ID + " = " + id));
+        }
+
+        // the writes of the current version work on the upgraded table
+        SessionWriter writer = new SessionWriter(backend);
+        long id = writer.startSession("/data/new.rws", 5000);
+        Assert.assertEquals(SESSIONS + 1, id);
+        writer.finishSession(id, 6000, 100, "0000abcd", new SessionStatistics());
+        Assert.assertEquals(100, column(SQLiteHelperImpl.FIELD_FILE_SIZE, id));
+    }
+
+    @Test
+    public void shouldUpgradeToSameSchemaAsNewDatabase() throws IOException, SQLException {
+        backend.execSQL(SchemaMigrations.CREATE_V1);
+        SchemaMigrations.upgrade(backend, 1, 2);
+        SchemaMigrations.upgrade(backend, 2, SchemaMigrations.LATEST_VERSION);
+        List<String> upgraded = schema(backend);
+
+        File otherFile = File.createTempFile("sessions", ".db");
+        JdbcSqlBackend other = new JdbcSqlBackend(otherFile.getPath());
+        try {
+            SchemaMigrations.create(other);
+            Assert.assertEquals(schema(other), upgraded);
+        } finally {
+            other.close();
+            otherFile.delete();
+        }
+
+        for (String column : SQLiteHelperImpl.ALL_COLUMNS) {
+            Assert.assertTrue(column, upgraded.contains("column " + column));
+        }
+        Assert.assertTrue(upgraded.contains("index " + SQLiteHelperImpl.INDEX_STATE));
+        Assert.assertTrue(upgraded.contains("index " + SQLiteHelperImpl.INDEX_START_TIME));
+    }
+
+    @Test
+    public void shouldServeUploadQueryFromIndex() throws SQLException {
+        SchemaMigrations.create(backend);
+        String plan = queryPlan(backend, "SELECT * FROM " + SQLiteHelperImpl.TABLE_SESSIONS
+                + " WHERE " + RecordingSessionDAO.UPLOAD_SELECTION + " ORDER BY " + RecordingSessionDAO.UPLOAD_ORDER);
+        Assert.assertTrue(plan, plan.contains(SQLiteHelperImpl.INDEX_STATE));
+    }
+
+    @Test
+    public void shouldLeaveDatabaseUntouchedOnFailedMigration() {
+        backend.execSQL(SchemaMigrations.CREATE_V1);
+        // a column of a later version already there: the 2 -> 3 step fails half way
+        backend.execSQL("ALTER TABLE " + SQLiteHelperImpl.TABLE_SESSIONS + " ADD COLUMN "
+                + SQLiteHelperImpl.FIELD_CHECKSUM + " text");
+        try {
+            SchemaMigrations.upgrade(backend, 1, SchemaMigrations.LATEST_VERSION);
+            Assert.fail("Migration should have failed");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        Assert.assertEquals(0, backend.queryLong("SELECT count(*) FROM sqlite_master WHERE type = 'index' AND name = '"
+                + SQLiteHelperImpl.INDEX_STATE + "'"));
+        try {
+            backend.queryLong("SELECT " + SQLiteHelperImpl.FIELD_UPLOAD_OFFSET + " FROM "
+                    + SQLiteHelperImpl.TABLE_SESSIONS);
+            Assert.fail("Upload offset column should have been rolled back");
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectUnknownVersion() {
+        SchemaMigrations.upgrade(backend, 1, SchemaMigrations.LATEST_VERSION + 1);
+    }
+
+    static String queryPlan(JdbcSqlBackend backend, String sql) throws SQLException {
+        java.sql.Statement statement = backend.getConnection().createStatement();
+        try {
+            ResultSet resultSet = statement.executeQuery("EXPLAIN QUERY PLAN " + sql);
+            StringBuilder plan = new StringBuilder();
+            while (resultSet.next()) {
+                plan.append(resultSet.getString("detail")).append('\n');
+            }
+            return plan.toString();
+        } finally {
+            statement.close();
+        }
+    }
+
+    private long column(String column, long id) {
+        return backend.queryLong("SELECT " + column + " FROM " + SQLiteHelperImpl.TABLE_SESSIONS
+                + " WHERE " + SQLiteHelperImpl.FIELD_ID + " = " + id);
+    }
+
+    private static List<String> schema(JdbcSqlBackend backend) throws SQLException {
+        List<String> schema = new ArrayList<String>();
+        java.sql.Statement statement = backend.getConnection().createStatement();
+        try {
+            ResultSet resultSet = statement.executeQuery("PRAGMA table_info(" + SQLiteHelperImpl.TABLE_SESSIONS + ")");
+            while (resultSet.next()) {
+                schema.add("column " + resultSet.getString("name"));
+                schema.add("type " + resultSet.getString("type") + " " + resultSet.getString("dflt_value"));
+            }
+            resultSet = statement.executeQuery("SELECT name, sql FROM sqlite_master WHERE type = 'index'"
+                    + " AND sql IS NOT NULL ORDER BY name");
+            while (resultSet.next()) {
+                schema.add("index " + resultSet.getString(1));
+                schema.add(resultSet.getString(2));
+            }
+        } finally {
+            statement.close();
+        }
+        return schema;
+    }
+}
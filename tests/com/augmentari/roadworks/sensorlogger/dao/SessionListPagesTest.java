@@ -0,0 +1,99 @@
+package com.augmentari.roadworks.sensorlogger.dao;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests of the keyset paging of the session list and of merging the changed sessions in.
+ */
+public class SessionListPagesTest {
+
+    @Test
+    public void shouldAppendPagesTillShortOne() {
+        SessionListPages pages = new SessionListPages();
+        Assert.assertEquals(Long.MAX_VALUE, pages.getNextPageBeforeId());
+
+        pages.addPage(rows(100, 91), 10);
+        Assert.assertFalse(pages.isComplete());
+        Assert.assertEquals(91, pages.getNextPageBeforeId());
+
+        pages.addPage(rows(90, 81), 10);
+        pages.addPage(rows(80, 76), 10);
+        Assert.assertTrue(pages.isComplete());
+        Assert.assertEquals(25, pages.size());
+        assertIds(pages, 100, 76);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectPageNotOlder() {
+        SessionListPages pages = new SessionListPages();
+        pages.addPage(rows(100, 91), 10);
+        pages.addPage(rows(95, 86), 10);
+    }
+
+    @Test
+    public void shouldMergeChangedAndNewSessions() {
+        SessionListPages pages = new SessionListPages();
+        pages.addPage(rows(100, 91), 10);
+
+        List<Object[]> changed = new ArrayList<Object[]>();
+        changed.add(row(102, "LOGGING"));
+        changed.add(row(101, "LOGGED"));
+        changed.add(row(95, "UPLOADED"));
+        pages.merge(changed);
+
+        Assert.assertEquals(12, pages.size());
+        assertIds(pages, 102, 91);
+        Assert.assertEquals("UPLOADED", pages.get(pages.indexOf(95))[3]);
+        Assert.assertEquals("LOGGING", pages.get(0)[3]);
+        Assert.assertTrue(pages.isLoaded(95));
+        Assert.assertFalse(pages.isLoaded(90));
+    }
+
+    @Test
+    public void shouldRemoveSessions() {
+        SessionListPages pages = new SessionListPages();
+        pages.addPage(rows(10, 1), 20);
+        pages.remove(5);
+        pages.remove(42);
+
+        Assert.assertEquals(9, pages.size());
+        Assert.assertTrue(pages.indexOf(5) < 0);
+        Assert.assertEquals(5, pages.indexOf(4));
+    }
+
+    @Test
+    public void shouldKeepCompletenessOnReplace() {
+        SessionListPages pages = new SessionListPages();
+        pages.addPage(rows(10, 1), 20);
+        pages.replace(rows(12, 1));
+
+        Assert.assertTrue(pages.isComplete());
+        assertIds(pages, 12, 1);
+    }
+
+    private static void assertIds(SessionListPages pages, long newest, long oldest) {
+        Assert.assertEquals(newest - oldest + 1, pages.size());
+        for (int i = 0; i < pages.size(); i++) {
+            Assert.assertEquals(newest - i, pages.get(i)[0]);
+        }
+        Assert.assertEquals(newest, pages.getNewestId());
+        Assert.assertEquals(oldest, pages.getOldestId());
+    }
+
+    private static List<Object[]> rows(long newest, long oldest) {
+        Object[][] rows = new Object[(int) (newest - oldest + 1)][];
+        for (long id = newest; id >= oldest; id--) {
+            rows[(int) (newest - id)] = row(id, "LOGGED");
+        }
+        return Arrays.asList(rows);
+    }
+
+    private static Object[] row(long id, String state) {
+        return new Object[]{id, id * 1000, 10L, state};
+    }
+}
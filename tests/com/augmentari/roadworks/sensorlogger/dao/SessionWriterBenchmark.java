@@ -0,0 +1,68 @@
+package com.augmentari.roadworks.sensorlogger.dao;
+
+import com.augmentari.roadworks.model.RecordingSession;
+import com.augmentari.roadworks.model.SessionStatistics;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * Plain JVM benchmark of marking thousands of sessions uploaded on a local SQLite (through JDBC): one auto-committed
+ * UPDATE per session, the way the DAO used to do single-row writes, against SessionWriter's compiled statement in one
+ * transaction -- with the rollback journal and with WAL. Prints rows per second.
+ */
+public class SessionWriterBenchmark {
+
+    private static final int SESSIONS = 2000;
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws IOException, SQLException {
+        if (!JdbcSqlBackend.isAvailable()) {
+            System.out.println("No SQLite JDBC driver on the classpath");
+            return;
+        }
+        for (int round = 0; round < ROUNDS; round++) {
+            for (String journalMode : new String[]{"DELETE", "WAL"}) {
+                System.out.printf("round %d, journal %s: row by row %.0f rows/s, batched %.0f rows/s%n",
+                        round, journalMode, measure(journalMode, false), measure(journalMode, true));
+            }
+        }
+    }
+
+    private static double measure(String journalMode, boolean batched) throws IOException, SQLException {
+        File databaseFile = File.createTempFile("benchmark", ".db");
+        JdbcSqlBackend backend = new JdbcSqlBackend(databaseFile.getPath());
+        try {
+            backend.queryString("PRAGMA journal_mode=" + journalMode);
+            SchemaMigrations.create(backend);
+            SessionWriter writer = new SessionWriter(backend);
+            long[] ids = new long[SESSIONS];
+            backend.beginTransaction();
+            for (int i = 0; i < SESSIONS; i++) {
+                ids[i] = writer.startSession("/data/data" + i + ".rws", i);
+                writer.finishSession(ids[i], i + 1, i, "00000000", new SessionStatistics());
+            }
+            backend.setTransactionSuccessful();
+            backend.endTransaction();
+
+            long start = System.nanoTime();
+            if (batched) {
+                writer.changeState(ids, RecordingSession.State.UPLOADED);
+            } else {
+                for (long id : ids) {
+                    backend.execSQL("UPDATE " + SQLiteHelperImpl.TABLE_SESSIONS + " SET "
+                            + SQLiteHelperImpl.FIELD_STATE + " = '" + RecordingSession.State.UPLOADED.name()
+                            + "' WHERE " + SQLiteHelperImpl.FIELD_ID + " = " + id);
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            return SESSIONS * 1e9 / nanos;
+        } finally {
+            backend.close();
+            databaseFile.delete();
+            new File(databaseFile.getPath() + "-wal").delete();
+            new File(databaseFile.getPath() + "-shm").delete();
+        }
+    }
+}
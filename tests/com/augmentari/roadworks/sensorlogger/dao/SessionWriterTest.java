@@ -0,0 +1,181 @@
+package com.augmentari.roadworks.sensorlogger.dao;
+
+import com.augmentari.roadworks.model.RecordingSession;
+import com.augmentari.roadworks.model.SessionStatistics;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests of the session writes against a local SQLite through JDBC.
+ */
+public class SessionWriterTest {
+
+    private File databaseFile;
+    private JdbcSqlBackend backend;
+    private SessionWriter writer;
+
+    @Before
+    public void setUp() throws IOException, SQLException {
+        Assume.assumeTrue(JdbcSqlBackend.isAvailable());
+        databaseFile = File.createTempFile("sessions", ".db");
+        backend = new JdbcSqlBackend(databaseFile.getPath());
+        SchemaMigrations.create(backend);
+        writer = new SessionWriter(backend);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        if (backend != null) {
+            backend.close();
+        }
+        if (databaseFile != null) {
+            databaseFile.delete();
+        }
+    }
+
+    @Test
+    public void shouldStartAndFinishSession() {
+        long id = writer.startSession("/data/data1.rws", 1000);
+        Assert.assertEquals(RecordingSession.State.LOGGING.name(), state(id));
+
+        SessionStatistics statistics = new SessionStatistics();
+        for (int i = 0; i < 42; i++) {
+            statistics.addEvent(2 + i);
+        }
+        statistics.addPosition(50.45, 30.52);
+        statistics.addPosition(50.46, 30.52);
+        writer.finishSession(id, 2000, 4096, "cbf43926", statistics);
+        Assert.assertEquals(RecordingSession.State.LOGGED.name(), state(id));
+        Assert.assertEquals(42, column(SQLiteHelperImpl.FIELD_EVENTS_LOGGED_COUNT, id));
+        Assert.assertEquals(2000, column(SQLiteHelperImpl.FIELD_END_TIME, id));
+        Assert.assertEquals(0, column(SQLiteHelperImpl.FIELD_UPLOAD_OFFSET, id));
+        Assert.assertEquals(4096, column(SQLiteHelperImpl.FIELD_FILE_SIZE, id));
+        Assert.assertEquals(43, column(SQLiteHelperImpl.FIELD_SEVERITY_MAX, id));
+        Assert.assertEquals(1111, column(SQLiteHelperImpl.FIELD_DISTANCE, id));
+        Assert.assertEquals(statistics.encodeHistogram(), backend.queryString("SELECT "
+                + SQLiteHelperImpl.FIELD_SEVERITY_HISTOGRAM + " FROM " + SQLiteHelperImpl.TABLE_SESSIONS
+                + " WHERE " + SQLiteHelperImpl.FIELD_ID + " = " + id));
+        Assert.assertEquals("cbf43926", backend.queryString("SELECT " + SQLiteHelperImpl.FIELD_CHECKSUM + " FROM "
+                + SQLiteHelperImpl.TABLE_SESSIONS + " WHERE " + SQLiteHelperImpl.FIELD_ID + " = " + id));
+    }
+
+    @Test
+    public void shouldFailSessionsLeftLogging() {
+        long crashed = writer.startSession("/data/data1.rws", 1000);
+        long next = writer.startSession("/data/data2.rws", 2000);
+
+        Assert.assertTrue(next > crashed);
+        Assert.assertEquals(RecordingSession.State.FAILED.name(), state(crashed));
+        Assert.assertEquals(RecordingSession.State.LOGGING.name(), state(next));
+    }
+
+    @Test
+    public void shouldChangeStateOfManySessions() {
+        long[] ids = new long[1000];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = writer.startSession("/data/data" + i + ".rws", i);
+            writer.finishSession(ids[i], i + 1, i, "00000000", new SessionStatistics());
+        }
+        long[] toUpload = new long[ids.length / 2];
+        for (int i = 0; i < toUpload.length; i++) {
+            toUpload[i] = ids[i * 2];
+        }
+
+        Assert.assertEquals(toUpload.length, writer.changeState(toUpload, RecordingSession.State.UPLOADED));
+        Assert.assertEquals(toUpload.length, backend.queryLong("SELECT count(*) FROM "
+                + SQLiteHelperImpl.TABLE_SESSIONS + " WHERE " + SQLiteHelperImpl.FIELD_STATE + " = 'UPLOADED'"));
+        Assert.assertEquals(RecordingSession.State.LOGGED.name(), state(ids[1]));
+
+        Assert.assertEquals(0, writer.changeState(new long[0], RecordingSession.State.UPLOADED));
+        Assert.assertEquals(0, writer.changeState(null, RecordingSession.State.UPLOADED));
+    }
+
+    @Test
+    public void shouldUpdateUploadOffset() {
+        long id = writer.startSession("/data/data1.rws", 1000);
+        writer.updateUploadOffset(id, 256 * 1024);
+        writer.updateUploadOffset(id, 512 * 1024);
+        Assert.assertEquals(512 * 1024, column(SQLiteHelperImpl.FIELD_UPLOAD_OFFSET, id));
+    }
+
+    @Test
+    public void shouldLinkRawCapture() {
+        long id = writer.startSession("/data/data1.rws", 1000);
+        writer.setRawCapture(id, "/data/raw-session-" + id, "0,segment-00000.raw,3,10,20\n");
+        Assert.assertEquals("/data/raw-session-" + id, backend.queryString("SELECT "
+                + SQLiteHelperImpl.FIELD_RAW_CAPTURE_PATH + " FROM " + SQLiteHelperImpl.TABLE_SESSIONS
+                + " WHERE " + SQLiteHelperImpl.FIELD_ID + " = " + id));
+        Assert.assertEquals("0,segment-00000.raw,3,10,20\n", backend.queryString("SELECT "
+                + SQLiteHelperImpl.FIELD_RAW_SEGMENTS + " FROM " + SQLiteHelperImpl.TABLE_SESSIONS
+                + " WHERE " + SQLiteHelperImpl.FIELD_ID + " = " + id));
+    }
+
+    @Test
+    public void shouldKeepWritesOfConcurrentUploadWorkersApart() throws Exception {
+        final int workers = 4;
+        final int sessionsPerWorker = 25;
+        final long[][] ids = new long[workers][sessionsPerWorker];
+        for (int w = 0; w < workers; w++) {
+            for (int i = 0; i < sessionsPerWorker; i++) {
+                ids[w][i] = writer.startSession("/data/data" + w + "_" + i + ".rws", i);
+                writer.finishSession(ids[w][i], i + 1, 1000, "00000000", new SessionStatistics());
+            }
+        }
+
+        // the way UploadEngine reports: offsets acknowledged chunk by chunk, then the session marked uploaded
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[workers];
+        for (int w = 0; w < workers; w++) {
+            final long[] own = ids[w];
+            threads[w] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (long id : own) {
+                            for (long offset = 1; offset <= 20; offset++) {
+                                writer.updateUploadOffset(id, id * 1000 + offset);
+                            }
+                            writer.changeState(new long[]{id}, RecordingSession.State.UPLOADED);
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[w].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertNull(String.valueOf(error.get()), error.get());
+        for (long[] own : ids) {
+            for (long id : own) {
+                Assert.assertEquals(id * 1000 + 20, column(SQLiteHelperImpl.FIELD_UPLOAD_OFFSET, id));
+                Assert.assertEquals(RecordingSession.State.UPLOADED.name(), state(id));
+            }
+        }
+    }
+
+    private String state(long id) {
+        return backend.queryString("SELECT " + SQLiteHelperImpl.FIELD_STATE + " FROM "
+                + SQLiteHelperImpl.TABLE_SESSIONS + " WHERE " + SQLiteHelperImpl.FIELD_ID + " = " + id);
+    }
+
+    private long column(String column, long id) {
+        return backend.queryLong("SELECT " + column + " FROM " + SQLiteHelperImpl.TABLE_SESSIONS
+                + " WHERE " + SQLiteHelperImpl.FIELD_ID + " = " + id);
+    }
+}
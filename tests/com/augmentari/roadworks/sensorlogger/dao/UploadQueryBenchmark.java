@@ -0,0 +1,95 @@
+package com.augmentari.roadworks.sensorlogger.dao;
+
+import com.augmentari.roadworks.model.RecordingSession;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Plain JVM benchmark of the upload query on a local SQLite (through JDBC) holding years' worth of sessions, nearly all
+ * of them uploaded: the version 2 table, without indexes, against the current one. Prints the query plan and the time
+ * per query.
+ */
+public class UploadQueryBenchmark {
+
+    private static final int SESSIONS = 100000;
+    private static final int TO_UPLOAD = 20;
+    private static final int QUERIES = 200;
+    private static final int ROUNDS = 3;
+
+    private static final String UPLOAD_QUERY = "SELECT * FROM " + SQLiteHelperImpl.TABLE_SESSIONS
+            + " WHERE " + RecordingSessionDAO.UPLOAD_SELECTION + " ORDER BY " + RecordingSessionDAO.UPLOAD_ORDER;
+
+    public static void main(String[] args) throws IOException, SQLException {
+        if (!JdbcSqlBackend.isAvailable()) {
+            System.out.println("No SQLite JDBC driver on the classpath");
+            return;
+        }
+        for (int version = 2; version <= SchemaMigrations.LATEST_VERSION; version++) {
+            File databaseFile = File.createTempFile("benchmark", ".db");
+            JdbcSqlBackend backend = new JdbcSqlBackend(databaseFile.getPath());
+            try {
+                populate(backend, version);
+                System.out.print("version " + version + ": " + SchemaMigrationsTest.queryPlan(backend, UPLOAD_QUERY));
+                for (int round = 0; round < ROUNDS; round++) {
+                    System.out.printf("round %d, version %d: %.3f ms per query%n", round, version, measure(backend));
+                }
+            } finally {
+                backend.close();
+                databaseFile.delete();
+            }
+        }
+    }
+
+    private static void populate(JdbcSqlBackend backend, int version) {
+        backend.execSQL(SchemaMigrations.CREATE_V1);
+        SchemaMigrations.upgrade(backend, 1, version);
+
+        SqlBackend.Statement insert = backend.compileStatement("INSERT INTO " + SQLiteHelperImpl.TABLE_SESSIONS + " ("
+                + SQLiteHelperImpl.FIELD_START_TIME + ", "
+                + SQLiteHelperImpl.FIELD_END_TIME + ", "
+                + SQLiteHelperImpl.FIELD_STATE + ", "
+                + SQLiteHelperImpl.FIELD_DATA_FILE_PATH + ", "
+                + SQLiteHelperImpl.FIELD_EVENTS_LOGGED_COUNT + ") VALUES (?, ?, ?, ?, ?)");
+        backend.beginTransaction();
+        for (int i = 0; i < SESSIONS; i++) {
+            // the sessions still to upload are the latest ones
+            RecordingSession.State state = i < SESSIONS - TO_UPLOAD
+                    ? RecordingSession.State.UPLOADED
+                    : RecordingSession.State.LOGGED;
+            insert.bindLong(1, i * 3600000L);
+            insert.bindLong(2, i * 3600000L + 1800000L);
+            insert.bindString(3, state.name());
+            insert.bindString(4, "/data/data" + i + ".rws");
+            insert.bindLong(5, 1000);
+            insert.executeUpdateDelete();
+        }
+        backend.setTransactionSuccessful();
+        backend.endTransaction();
+    }
+
+    private static double measure(JdbcSqlBackend backend) throws SQLException {
+        PreparedStatement statement = backend.getConnection().prepareStatement(UPLOAD_QUERY);
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < QUERIES; i++) {
+                statement.setString(1, RecordingSession.State.LOGGED.name());
+                ResultSet resultSet = statement.executeQuery();
+                int rows = 0;
+                while (resultSet.next()) {
+                    rows++;
+                }
+                resultSet.close();
+                if (rows != TO_UPLOAD) {
+                    throw new IllegalStateException("Expected " + TO_UPLOAD + " sessions, got " + rows);
+                }
+            }
+            return (System.nanoTime() - start) / 1e6 / QUERIES;
+        } finally {
+            statement.close();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.augmentari.roadworks.sensorlogger.format;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests of the background session writer: counters, the sync policy, and what is left of the file when the process
+ * gets killed in the middle of a session.
+ */
+public class BackgroundSessionWriterTest {
+
+    private static final long SYNC_INTERVAL_MILLIS = 100;
+    private static final long EVENT_INTERVAL_MILLIS = 1;
+    private static final long RUN_MILLIS = 1500;
+
+    @Test
+    public void shouldWriteAllEventsAndCount() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BackgroundSessionWriter writer = new BackgroundSessionWriter(bytes, null, 42, 1024, 60000, Long.MAX_VALUE);
+        int events = 5000;
+        for (int i = 0; i < events; i++) {
+            while (!writer.offer(i, i % 10, 50.45, 30.52, 11, 90)) {
+                Thread.yield();
+            }
+        }
+        writer.close();
+
+        Assert.assertEquals(events, writer.getEventsQueued());
+        Assert.assertEquals(events, writer.getEventsWritten());
+        Assert.assertEquals(events, writer.getEventsSynced());
+        Assert.assertEquals(bytes.size(), writer.getBytesWritten());
+        Assert.assertEquals(events, count(new SessionFileReader(new ByteArrayInputStream(bytes.toByteArray()))));
+    }
+
+    @Test
+    public void shouldDropWhenWriterFallsBehind() throws IOException, InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void flush() {
+                // the storage stalls on the first sync
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        BackgroundSessionWriter writer = new BackgroundSessionWriter(bytes, null, 42, 16, 0, Long.MAX_VALUE);
+        Assert.assertTrue(writer.offer(0, 3, 50.45, 30.52, 11, 90));
+        while (writer.getEventsWritten() == 0) {
+            Thread.sleep(1);
+        }
+        int accepted = 1;
+        for (int i = 1; i < 100; i++) {
+            if (writer.offer(i, 3, 50.45, 30.52, 11, 90)) {
+                accepted++;
+            }
+        }
+        Assert.assertEquals(17, accepted);
+        Assert.assertEquals(accepted, writer.getEventsQueued());
+        Assert.assertEquals(100 - accepted, writer.getEventsDropped());
+
+        release.countDown();
+        writer.close();
+        Assert.assertEquals(accepted, writer.getEventsWritten());
+        Assert.assertEquals(accepted, count(new SessionFileReader(new ByteArrayInputStream(bytes.toByteArray()))));
+    }
+
+    @Test
+    public void shouldStopOnWriteError() throws IOException {
+        OutputStream failing = new OutputStream() {
+            int writes = 0;
+
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("No space left on device");
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                // the header goes through, the first block does not
+                if (writes++ > 0) {
+                    throw new IOException("No space left on device");
+                }
+            }
+        };
+        BackgroundSessionWriter writer = new BackgroundSessionWriter(failing, null, 42, 1024, 0, Long.MAX_VALUE);
+        for (int i = 0; i < 10; i++) {
+            writer.offer(i, 3, 50.45, 30.52, 11, 90);
+        }
+        try {
+            writer.close();
+            Assert.fail("Write error not reported");
+        } catch (IOException e) {
+            Assert.assertSame(writer.getError(), e);
+        }
+        Assert.assertEquals(10, writer.getEventsQueued());
+        Assert.assertEquals(0, writer.getEventsSynced());
+    }
+
+    /**
+     * Record in a separate JVM and kill it without warning; whatever had been offered more than a sync interval
+     * before should be in the file, in order and readable.
+     */
+    @Test
+    public void shouldKeepEventsUpToSyncIntervalWhenKilled() throws IOException, InterruptedException {
+        File file = File.createTempFile("session", ".rws");
+        Process process = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                BackgroundSessionWriterTest.class.getName(),
+                file.getPath()).start();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+            long offered = 0;
+            long start = System.currentTimeMillis();
+            String line;
+            while (System.currentTimeMillis() - start < RUN_MILLIS && (line = reader.readLine()) != null) {
+                offered = Long.parseLong(line);
+            }
+            process.destroy();
+            process.waitFor();
+
+            SessionFileReader sessionReader = new SessionFileReader(new FileInputStream(file));
+            long recovered = 0;
+            while (sessionReader.next()) {
+                Assert.assertEquals(recovered, sessionReader.getTimeMillis());
+                recovered++;
+            }
+            sessionReader.close();
+
+            // a sync interval's worth of events, plus the writer's idle time and some scheduling slack
+            long bound = (SYNC_INTERVAL_MILLIS + 50 + 250) / EVENT_INTERVAL_MILLIS;
+            Assert.assertTrue("offered " + offered + ", recovered " + recovered, offered > 0);
+            Assert.assertTrue("offered " + offered + ", recovered " + recovered, offered - recovered <= bound);
+        } finally {
+            process.destroy();
+            file.delete();
+        }
+    }
+
+    /**
+     * The process killed by the test above: offers an event every millisecond and reports how many it has offered.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        FileOutputStream out = new FileOutputStream(args[0]);
+        BackgroundSessionWriter writer = new BackgroundSessionWriter(out, out.getFD(), 1, 4096,
+                SYNC_INTERVAL_MILLIS, Long.MAX_VALUE);
+        for (long i = 0; ; i++) {
+            writer.offer(i, 3, 50.45, 30.52, 11, 90);
+            if (i % 10 == 0) {
+                System.out.println(i + 1);
+                System.out.flush();
+            }
+            Thread.sleep(EVENT_INTERVAL_MILLIS);
+        }
+    }
+
+    private static int count(SessionFileReader reader) throws IOException {
+        int count = 0;
+        while (reader.next()) {
+            count++;
+        }
+        reader.close();
+        return count;
+    }
+}
@@ -0,0 +1,147 @@
+package com.augmentari.roadworks.sensorlogger.format;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Writes raw samples through {@link RawSampleSegmentWriter} and reads them back.
+ */
+public class RawSampleSegmentTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("rawcapture", "");
+        Assert.assertTrue(directory.delete());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void shouldWriteAndReadBackTenMillionSamples() throws IOException {
+        final int total = 10 * 1000 * 1000;
+        final int segmentSize = 16 * 1024 * 1024;
+
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        RawSampleSegmentWriter writer = new RawSampleSegmentWriter(directory, segmentSize);
+        long allocatedBefore = allocatedBytes(threadMXBean);
+        long start = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            writer.append(1000000000L + i * 5000000L, i, -i, i % 1000);
+        }
+        long writeNanos = System.nanoTime() - start;
+        long allocatedAfter = allocatedBytes(threadMXBean);
+        writer.close();
+
+        System.out.println("Raw capture: " + (double) writeNanos / total + " ns/sample, "
+                + writer.getSegmentCount() + " segments");
+        int samplesPerSegment = (segmentSize - RawSampleFormat.HEADER_SIZE) / RawSampleFormat.RECORD_SIZE;
+        int expectedSegments = (total + samplesPerSegment - 1) / samplesPerSegment;
+        Assert.assertEquals(expectedSegments, writer.getSegmentCount());
+        Assert.assertEquals(total, writer.getTotalSamples());
+        if (allocatedBefore >= 0) {
+            // only the segment roll-overs allocate, nothing per sample
+            Assert.assertTrue("Allocated " + (allocatedAfter - allocatedBefore) + " bytes",
+                    allocatedAfter - allocatedBefore < expectedSegments * 64 * 1024);
+        }
+
+        RawSampleSegmentReader reader = new RawSampleSegmentReader(directory);
+        for (int i = 0; i < total; i++) {
+            Assert.assertTrue(reader.next());
+            if (reader.getTimestampNanos() != 1000000000L + i * 5000000L
+                    || reader.getX() != (float) i || reader.getY() != (float) -i || reader.getZ() != i % 1000) {
+                Assert.fail("Sample " + i + " read back wrong");
+            }
+        }
+        Assert.assertFalse(reader.next());
+        reader.close();
+
+        BufferedReader index = new BufferedReader(new FileReader(new File(directory, RawSampleFormat.INDEX_FILE_NAME)));
+        try {
+            Assert.assertEquals(RawSampleFormat.INDEX_HEADING, index.readLine());
+            long samples = 0;
+            for (int segment = 0; segment < expectedSegments; segment++) {
+                String[] fields = index.readLine().split(",");
+                Assert.assertEquals(segment, Integer.parseInt(fields[0]));
+                Assert.assertEquals(1000000000L + samples * 5000000L, Long.parseLong(fields[3]));
+                samples += Long.parseLong(fields[2]);
+                Assert.assertEquals(1000000000L + (samples - 1) * 5000000L, Long.parseLong(fields[4]));
+            }
+            Assert.assertEquals(total, samples);
+            Assert.assertNull(index.readLine());
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void shouldReadSamplesOfUnfinishedCapture() throws IOException {
+        RawSampleSegmentWriter writer = new RawSampleSegmentWriter(directory, 1024);
+        for (int i = 0; i < 100; i++) {
+            writer.append(i, i, i, i);
+        }
+        // not closed, as if the application had been killed
+
+        RawSampleSegmentReader reader = new RawSampleSegmentReader(directory);
+        int read = 0;
+        while (reader.next()) {
+            Assert.assertEquals(read, reader.getTimestampNanos());
+            read++;
+        }
+        Assert.assertEquals(100, read);
+        writer.close();
+    }
+
+    @Test
+    public void shouldCutLastSegmentToItsSamples() throws IOException {
+        int segmentSize = 1024;
+        int samplesPerSegment = (segmentSize - RawSampleFormat.HEADER_SIZE) / RawSampleFormat.RECORD_SIZE;
+        RawSampleSegmentWriter writer = new RawSampleSegmentWriter(directory, segmentSize);
+        for (int i = 0; i < samplesPerSegment + 7; i++) {
+            writer.append(i, i, i, i);
+        }
+        writer.close();
+
+        Assert.assertEquals(segmentSize, RawSampleFormat.segmentFile(directory, 0).length());
+        Assert.assertEquals(RawSampleFormat.HEADER_SIZE + 7 * RawSampleFormat.RECORD_SIZE,
+                RawSampleFormat.segmentFile(directory, 1).length());
+        Assert.assertEquals("0,segment-00000.raw," + samplesPerSegment + ",0," + (samplesPerSegment - 1) + "\n"
+                + "1,segment-00001.raw,7," + samplesPerSegment + "," + (samplesPerSegment + 6) + "\n",
+                writer.getSegments());
+
+        RawSampleSegmentReader reader = new RawSampleSegmentReader(directory);
+        int read = 0;
+        while (reader.next()) {
+            Assert.assertEquals(read, reader.getTimestampNanos());
+            read++;
+        }
+        Assert.assertEquals(samplesPerSegment + 7, read);
+        reader.close();
+    }
+
+    private static long allocatedBytes(ThreadMXBean threadMXBean) {
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
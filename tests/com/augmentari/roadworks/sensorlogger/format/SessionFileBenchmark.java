@@ -0,0 +1,90 @@
+package com.augmentari.roadworks.sensorlogger.format;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Random;
+
+/**
+ * Plain JVM benchmark comparing the binary session format with the CSV lines FileLoggingDetector used to write:
+ * prints bytes per event and nanoseconds per event for both.
+ */
+public class SessionFileBenchmark {
+
+    private static final int EVENTS = 2 * 1000 * 1000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException {
+        Random random = new Random(7);
+        int distinct = 4096;
+        long[] times = new long[distinct];
+        double[] severities = new double[distinct];
+        double[] latitudes = new double[distinct];
+        double[] longitudes = new double[distinct];
+        double[] speeds = new double[distinct];
+        long time = 1370000000000L;
+        double latitude = 50.45, longitude = 30.52;
+        for (int i = 0; i < distinct; i++) {
+            // a pothole every couple of seconds, a few dozen meters apart
+            time += 500 + random.nextInt(3000);
+            latitude += (random.nextDouble() - 0.5) / 2000;
+            longitude += (random.nextDouble() - 0.5) / 2000;
+            times[i] = time;
+            severities[i] = 2 + random.nextDouble() * 10;
+            latitudes[i] = latitude;
+            longitudes[i] = longitude;
+            speeds[i] = random.nextDouble() * 30;
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            CountingOutputStream csvBytes = new CountingOutputStream();
+            long start = System.nanoTime();
+            PrintWriter csv = new PrintWriter(new BufferedWriter(new OutputStreamWriter(csvBytes), 512 * 1024));
+            csv.println(SessionFileFormat.CSV_HEADING);
+            for (int i = 0; i < EVENTS; i++) {
+                int j = i & (distinct - 1);
+                StringBuilder sb = new StringBuilder();
+                sb.append(times[j] + (long) (i / distinct) * 10000000L)
+                        .append(",").append(severities[j])
+                        .append(",").append(latitudes[j])
+                        .append(",").append(longitudes[j])
+                        .append(",").append(speeds[j]);
+                csv.println(sb.toString());
+            }
+            csv.close();
+            long csvNanos = System.nanoTime() - start;
+
+            CountingOutputStream binaryBytes = new CountingOutputStream();
+            start = System.nanoTime();
+            SessionFileWriter binary = new SessionFileWriter(binaryBytes, 1);
+            for (int i = 0; i < EVENTS; i++) {
+                int j = i & (distinct - 1);
+                binary.write(times[j] + (long) (i / distinct) * 10000000L,
+                        severities[j], latitudes[j], longitudes[j], speeds[j]);
+            }
+            binary.close();
+            long binaryNanos = System.nanoTime() - start;
+
+            System.out.printf("round %d: CSV %.1f bytes/event %.0f ns/event; binary %.1f bytes/event %.0f ns/event%n",
+                    round,
+                    (double) csvBytes.count / EVENTS, (double) csvNanos / EVENTS,
+                    (double) binaryBytes.count / EVENTS, (double) binaryNanos / EVENTS);
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.augmentari.roadworks.sensorlogger.format;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Plain JVM benchmark of the upload compression on representative session data, both the binary format and the CSV
+ * of the older versions: prints compression ratio and compression/decompression throughput for gzip (what
+ * SessionFileCompressor uses) and for raw deflate at the fastest and the best levels.
+ */
+public class SessionFileCompressionBenchmark {
+
+    private static final int EVENTS = 500 * 1000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException {
+        byte[] binary = binarySession();
+        byte[] csv = csvSession();
+        System.out.printf("%d events: binary %d bytes, CSV %d bytes%n", EVENTS, binary.length, csv.length);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            System.out.println("round " + round);
+            measure("binary", binary);
+            measure("CSV", csv);
+        }
+    }
+
+    private static void measure(String name, byte[] data) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length);
+        long start = System.nanoTime();
+        OutputStream os = new GZIPOutputStream(compressed, 64 * 1024);
+        os.write(data);
+        os.close();
+        long compressNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        InputStream is = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()), 64 * 1024);
+        byte[] buffer = new byte[64 * 1024];
+        long decompressedSize = 0;
+        int read;
+        while ((read = is.read(buffer)) >= 0) {
+            decompressedSize += read;
+        }
+        long decompressNanos = System.nanoTime() - start;
+        if (decompressedSize != data.length) {
+            throw new IllegalStateException("Round trip lost data");
+        }
+        print(name + " gzip", data.length, compressed.size(), compressNanos, decompressNanos);
+
+        for (int level : new int[]{Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION}) {
+            compressed.reset();
+            start = System.nanoTime();
+            Deflater deflater = new Deflater(level, true);
+            os = new DeflaterOutputStream(compressed, deflater, 64 * 1024);
+            os.write(data);
+            os.close();
+            deflater.end();
+            print(name + " deflate level " + level, data.length, compressed.size(), System.nanoTime() - start, -1);
+        }
+    }
+
+    private static void print(String name, int size, int compressedSize, long compressNanos, long decompressNanos) {
+        System.out.printf("  %-26s ratio %5.2f  compress %6.1f MB/s%s%n", name, (double) size / compressedSize,
+                size * 1000.0 / compressNanos,
+                decompressNanos < 0 ? "" : String.format("  decompress %6.1f MB/s", size * 1000.0 / decompressNanos));
+    }
+
+    private static byte[] binarySession() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SessionFileWriter writer = new SessionFileWriter(bytes, 1);
+        EventSource source = new EventSource();
+        for (int i = 0; i < EVENTS; i++) {
+            source.next();
+            writer.write(source.time, source.severity, source.latitude, source.longitude, source.speed);
+        }
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] csvSession() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(bytes));
+        writer.println(SessionFileFormat.CSV_HEADING);
+        EventSource source = new EventSource();
+        for (int i = 0; i < EVENTS; i++) {
+            source.next();
+            writer.println(source.time + "," + source.severity + "," + source.latitude + "," + source.longitude
+                    + "," + source.speed);
+        }
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A drive: a pothole every couple of seconds, a few dozen meters apart.
+     */
+    private static class EventSource {
+        final Random random = new Random(7);
+        long time = 1370000000000L;
+        double severity;
+        double latitude = 50.45;
+        double longitude = 30.52;
+        double speed;
+
+        void next() {
+            time += 500 + random.nextInt(3000);
+            latitude += (random.nextDouble() - 0.5) / 2000;
+            longitude += (random.nextDouble() - 0.5) / 2000;
+            severity = 2 + random.nextDouble() * 10;
+            speed = random.nextDouble() * 30;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.augmentari.roadworks.sensorlogger.format;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Round-trip tests for the binary session file writer/reader and the CSV converter.
+ */
+public class SessionFileTest {
+
+    @Test
+    public void shouldReadBackWhatWasWritten() throws IOException {
+        int events = SessionFileFormat.BLOCK_CAPACITY * 3 + 17;
+        Random random = new Random(1);
+        long[] times = new long[events];
+        double[] severities = new double[events];
+        double[] latitudes = new double[events];
+        double[] longitudes = new double[events];
+        double[] speeds = new double[events];
+        float[] bearings = new float[events];
+
+        long time = 1370000000000L;
+        double latitude = 50.45, longitude = 30.52;
+        for (int i = 0; i < events; i++) {
+            time += random.nextInt(5000);
+            latitude += (random.nextDouble() - 0.5) / 1000;
+            longitude += (random.nextDouble() - 0.5) / 1000;
+            times[i] = time;
+            severities[i] = 2 + random.nextDouble() * 10;
+            latitudes[i] = latitude;
+            longitudes[i] = longitude;
+            speeds[i] = random.nextDouble() * 30;
+            bearings[i] = i % 10 == 0 ? Float.NaN : random.nextFloat() * 360;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SessionFileWriter writer = new SessionFileWriter(bytes, 42);
+        for (int i = 0; i < events; i++) {
+            writer.write(times[i], severities[i], latitudes[i], longitudes[i], speeds[i], bearings[i]);
+            if (i == 100) {
+                // partial blocks in the middle of the file are fine too
+                writer.flush();
+            }
+        }
+        writer.close();
+        Assert.assertEquals(events, writer.getEventsWritten());
+        Assert.assertEquals(bytes.size(), writer.getBytesWritten());
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes.toByteArray());
+        Assert.assertEquals(crc32.getValue(), writer.getChecksum());
+
+        SessionFileReader reader = new SessionFileReader(new ByteArrayInputStream(bytes.toByteArray()));
+        Assert.assertEquals(42, reader.getSessionId());
+        Assert.assertEquals(SessionFileFormat.VERSION, reader.getVersion());
+        for (int i = 0; i < events; i++) {
+            Assert.assertTrue(reader.next());
+            Assert.assertEquals(times[i], reader.getTimeMillis());
+            Assert.assertEquals(severities[i], reader.getSeverity(), 0.00001);
+            Assert.assertEquals(latitudes[i], reader.getLatitude(), 0.0000001);
+            Assert.assertEquals(longitudes[i], reader.getLongitude(), 0.0000001);
+            Assert.assertEquals(speeds[i], reader.getSpeed(), 0.00001);
+            Assert.assertEquals(bearings[i], reader.getBearing(), 0f);
+        }
+        Assert.assertFalse(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void shouldStopAtTruncatedBlock() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SessionFileWriter writer = new SessionFileWriter(bytes, 1);
+        writer.write(1000, 3, 50, 30, 10);
+        writer.flush();
+        writer.write(2000, 4, 50, 30, 10);
+        writer.close();
+
+        byte[] truncated = Arrays.copyOf(bytes.toByteArray(), bytes.size() - 3);
+        SessionFileReader reader = new SessionFileReader(new ByteArrayInputStream(truncated));
+        Assert.assertTrue(reader.next());
+        Assert.assertEquals(1000, reader.getTimeMillis());
+        Assert.assertFalse(reader.next());
+    }
+
+    @Test
+    public void shouldReadVersion1WithoutBearings() throws IOException {
+        ByteBuffer file = ByteBuffer.allocate(SessionFileFormat.HEADER_SIZE + SessionFileFormat.BLOCK_HEADER_SIZE + 24)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        file.putInt(SessionFileFormat.MAGIC).putShort((short) 1).putShort((short) 0).putLong(7);
+        file.putInt(1).putInt(24);
+        file.putLong(1370000000000L).putFloat(2.5f).putInt(504500000).putInt(305200000).putFloat(12.25f);
+
+        SessionFileReader reader = new SessionFileReader(new ByteArrayInputStream(file.array()));
+        Assert.assertEquals(1, reader.getVersion());
+        Assert.assertTrue(reader.next());
+        Assert.assertEquals(50.45, reader.getLatitude(), 0.0000001);
+        Assert.assertEquals(12.25f, reader.getSpeed());
+        Assert.assertTrue(Float.isNaN(reader.getBearing()));
+        Assert.assertFalse(reader.next());
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectCsvFile() throws IOException {
+        new SessionFileReader(new ByteArrayInputStream("Time, Severity, Lat, Lon, Speed\n".getBytes()));
+    }
+
+    @Test
+    public void shouldConvertToCsv() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SessionFileWriter writer = new SessionFileWriter(bytes, 1);
+        writer.write(1370000000000L, 2.5, 50.4501234, 30.5234567, 12.25);
+        writer.write(1370000001000L, 3.75, -0.0000005, -122.4, 0);
+        writer.close();
+
+        StringWriter csv = new StringWriter();
+        long converted = SessionCsvConverter.convert(
+                new SessionFileReader(new ByteArrayInputStream(bytes.toByteArray())), csv);
+
+        Assert.assertEquals(2, converted);
+        Assert.assertEquals("Time, Severity, Lat, Lon, Speed\n"
+                + "1370000000000,2.5,50.4501234,30.5234567,12.25\n"
+                + "1370000001000,3.75,-0.0000005,-122.4000000,0.0\n", csv.toString());
+    }
+}
@@ -0,0 +1,284 @@
+package com.augmentari.roadworks.sensorlogger.net;
+
+import com.augmentari.roadworks.model.RecordingSession;
+import com.augmentari.roadworks.sensorlogger.format.SessionFileCompressor;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Tests of the resumable upload against a local stand-in server which drops connections in the middle of the body,
+ * or after storing the chunk but before acknowledging it, or does not accept compressed bodies.
+ */
+public class ResumableSessionUploaderTest {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int FILE_SIZE = 40 * CHUNK_SIZE + 123;
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+    private File dataFile;
+    private byte[] data;
+    private HttpServer server;
+    private StandInHandler handler;
+    private ResumableSessionUploader uploader;
+
+    @Before
+    public void setUp() throws IOException {
+        data = new byte[FILE_SIZE];
+        new Random(1).nextBytes(data);
+        dataFile = File.createTempFile("session", ".rws");
+        OutputStream os = new FileOutputStream(dataFile);
+        os.write(data);
+        os.close();
+
+        handler = new StandInHandler();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/sessions/", handler);
+        server.start();
+
+        uploader = new ResumableSessionUploader("http://127.0.0.1:" + server.getAddress().getPort() + "/",
+                new ResumableSessionUploader.ConnectionFactory() {
+                    @Override
+                    public HttpURLConnection open(String url) throws IOException {
+                        return (HttpURLConnection) new URL(url).openConnection();
+                    }
+                }, CHUNK_SIZE);
+        uploader.setCompressionEnabled(false);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        dataFile.delete();
+        SessionFileCompressor.deleteCompressed(dataFile);
+    }
+
+    @Test
+    public void shouldUploadInChunks() throws IOException {
+        RecordingCheckpoint checkpoint = new RecordingCheckpoint();
+        uploader.upload(session(), 0, checkpoint);
+
+        Assert.assertTrue(Arrays.equals(data, handler.received.toByteArray()));
+        Assert.assertEquals(FILE_SIZE, checkpoint.offset);
+        Assert.assertEquals(41, handler.requests);
+        Assert.assertEquals(FILE_SIZE, handler.bytesReceived);
+    }
+
+    @Test
+    public void shouldResumeAfterDroppedConnections() throws IOException {
+        // every 4th request is cut in the middle of the body, every 7th is stored but never acknowledged
+        handler.dropMidBodyEvery = 4;
+        handler.dropBeforeResponseEvery = 7;
+
+        RecordingCheckpoint checkpoint = new RecordingCheckpoint();
+        int failures = 0;
+        while (true) {
+            try {
+                // a new run starts from the persisted offset only
+                uploader.upload(session(), checkpoint.offset, checkpoint);
+                break;
+            } catch (IOException e) {
+                failures++;
+                Assert.assertTrue("Upload never completes", failures < 100);
+            }
+        }
+
+        Assert.assertTrue(failures > 0);
+        Assert.assertTrue(Arrays.equals(data, handler.received.toByteArray()));
+        Assert.assertEquals(FILE_SIZE, checkpoint.offset);
+        // every failure costs one chunk at most, not the whole file
+        Assert.assertTrue(handler.bytesReceived <= FILE_SIZE + failures * CHUNK_SIZE);
+    }
+
+    @Test
+    public void shouldContinueFromServerOffset() throws IOException {
+        // server already has a part, but the checkpoint was lost
+        handler.received.write(data, 0, 5 * CHUNK_SIZE + 10);
+
+        RecordingCheckpoint checkpoint = new RecordingCheckpoint();
+        uploader.upload(session(), 0, checkpoint);
+
+        Assert.assertTrue(Arrays.equals(data, handler.received.toByteArray()));
+        // the first chunk is re-sent, then the server tells where to go on from
+        Assert.assertEquals(FILE_SIZE - 5 * CHUNK_SIZE - 10 + CHUNK_SIZE, handler.bytesReceived);
+    }
+
+    @Test
+    public void shouldUploadEmptyFile() throws IOException {
+        new FileOutputStream(dataFile).close();
+
+        RecordingCheckpoint checkpoint = new RecordingCheckpoint();
+        uploader.upload(session(), 0, checkpoint);
+
+        Assert.assertEquals(1, handler.requests);
+        Assert.assertEquals(0, checkpoint.offset);
+    }
+
+    @Test
+    public void shouldUploadCompressed() throws IOException {
+        // compressible content, like the real session files
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('0' + (i % 7) + (i % 3));
+        }
+        OutputStream os = new FileOutputStream(dataFile);
+        os.write(data);
+        os.close();
+        uploader.setCompressionEnabled(true);
+
+        RecordingCheckpoint checkpoint = new RecordingCheckpoint();
+        uploader.upload(session(), 0, checkpoint);
+
+        Assert.assertEquals("application/gzip", handler.contentType);
+        Assert.assertEquals("gzip", handler.sessionEncoding);
+        Assert.assertTrue(handler.bytesReceived < FILE_SIZE / 10);
+        byte[] decompressed = readAll(new GZIPInputStream(new ByteArrayInputStream(handler.received.toByteArray())));
+        Assert.assertTrue(Arrays.equals(data, decompressed));
+        Assert.assertTrue(SessionFileCompressor.isCompressed(dataFile));
+    }
+
+    @Test
+    public void shouldFallBackToIdentityEncoding() throws IOException {
+        handler.rejectEncoding = true;
+        uploader.setCompressionEnabled(true);
+
+        RecordingCheckpoint checkpoint = new RecordingCheckpoint();
+        uploader.upload(session(), 0, checkpoint);
+
+        Assert.assertFalse(uploader.isCompressionEnabled());
+        Assert.assertEquals("application/octet-stream", handler.contentType);
+        Assert.assertEquals("identity", handler.sessionEncoding);
+        Assert.assertTrue(Arrays.equals(data, handler.received.toByteArray()));
+    }
+
+    @Test
+    public void shouldNotTakePlainConnectionsForReused() throws IOException {
+        RequestTimingStatistics statistics = new RequestTimingStatistics();
+        uploader.setStatistics(statistics);
+        uploader.upload(session(), 0, new RecordingCheckpoint());
+
+        // no socket factory to see the connections of plain HTTP
+        Assert.assertEquals(handler.requests, statistics.getRequests());
+        Assert.assertEquals(0, statistics.getConnectionsObserved());
+        Assert.assertEquals(0, statistics.getConnectionsReused());
+    }
+
+    private RecordingSession session() {
+        RecordingSession session = new RecordingSession();
+        session.setId(42);
+        session.setStartTime(new Date(1370000000000L));
+        session.setEndTime(new Date(1370000600000L));
+        session.setEventsLogged(1000);
+        session.setDataFileFullPath(dataFile.getAbsolutePath());
+        return session;
+    }
+
+    private static class RecordingCheckpoint implements ResumableSessionUploader.Checkpoint {
+        long offset = 0;
+
+        @Override
+        public void onAcknowledged(RecordingSession session, long offset) {
+            Assert.assertEquals(42, session.getId());
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Keeps the bytes of one session in memory; appends whatever follows the bytes it already has.
+     */
+    private static class StandInHandler implements HttpHandler {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        int requests = 0;
+        long bytesReceived = 0;
+        int dropMidBodyEvery = 0;
+        int dropBeforeResponseEvery = 0;
+        boolean rejectEncoding = false;
+        String contentType;
+        String sessionEncoding;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            requests++;
+            Assert.assertEquals("1000", exchange.getRequestHeaders().getFirst("X-Session-Events-Logged"));
+            String contentRange = exchange.getRequestHeaders().getFirst("Content-Range");
+            // chunks of the compressed artifact are slices of a gzip stream, not gzip bodies each
+            Assert.assertNull(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+            contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            sessionEncoding = exchange.getRequestHeaders().getFirst("X-Session-Encoding");
+            if (rejectEncoding && "application/gzip".equals(contentType)) {
+                readAll(exchange.getRequestBody());
+                respond(exchange, 415);
+                return;
+            }
+            InputStream is = exchange.getRequestBody();
+
+            if (dropMidBodyEvery > 0 && requests % dropMidBodyEvery == 0) {
+                is.read(new byte[100]);
+                // no response at all: the client sees the connection closed
+                throw new IOException("Dropping connection");
+            }
+
+            byte[] body = readAll(is);
+            bytesReceived += body.length;
+            Matcher matcher = CONTENT_RANGE.matcher(contentRange);
+            if (matcher.matches()) {
+                long first = Long.parseLong(matcher.group(1));
+                if (first > received.size()) {
+                    respond(exchange, 416);
+                    return;
+                }
+                long skip = received.size() - first;
+                if (skip < body.length) {
+                    received.write(body, (int) skip, body.length - (int) skip);
+                }
+            } else {
+                Assert.assertEquals("bytes */0", contentRange);
+            }
+
+            if (dropBeforeResponseEvery > 0 && requests % dropBeforeResponseEvery == 0) {
+                throw new IOException("Dropping connection after storing");
+            }
+            respond(exchange, 200);
+        }
+
+        private void respond(HttpExchange exchange, int code) throws IOException {
+            if (received.size() > 0) {
+                exchange.getResponseHeaders().add("Range", "bytes=0-" + (received.size() - 1));
+            }
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+        }
+
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = is.read(buffer)) >= 0) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+}
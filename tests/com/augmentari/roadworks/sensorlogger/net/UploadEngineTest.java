@@ -0,0 +1,237 @@
+package com.augmentari.roadworks.sensorlogger.net;
+
+import com.augmentari.roadworks.model.RecordingSession;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests of the parallel upload engine against a local stand-in server with injected latency.
+ */
+public class UploadEngineTest {
+
+    private static final int SESSIONS = 12;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int FILE_SIZE = 4 * CHUNK_SIZE;
+    private static final long LATENCY_MILLIS = 40;
+
+    private final List<RecordingSession> sessions = new ArrayList<RecordingSession>();
+    private HttpServer server;
+    private StandInHandler handler;
+
+    @Before
+    public void setUp() throws IOException {
+        Random random = new Random(1);
+        byte[] data = new byte[FILE_SIZE];
+        for (int i = 0; i < SESSIONS; i++) {
+            random.nextBytes(data);
+            File file = File.createTempFile("session", ".rws");
+            OutputStream os = new FileOutputStream(file);
+            os.write(data);
+            os.close();
+
+            RecordingSession session = new RecordingSession();
+            session.setId(i);
+            session.setStartTime(new Date(1370000000000L));
+            session.setEndTime(new Date(1370000600000L));
+            session.setDataFileFullPath(file.getAbsolutePath());
+            sessions.add(session);
+        }
+
+        handler = new StandInHandler();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/sessions/", handler);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        for (RecordingSession session : sessions) {
+            new File(session.getDataFileFullPath()).delete();
+        }
+    }
+
+    @Test
+    public void shouldScaleWithConnections() throws InterruptedException {
+        long[] millis = new long[3];
+        int[] connections = {1, 2, 4};
+        for (int i = 0; i < connections.length; i++) {
+            handler.reset();
+            RecordingListener listener = new RecordingListener();
+            long start = System.nanoTime();
+            int uploaded = engine(connections[i], 1).uploadAll(sessions, listener);
+            millis[i] = (System.nanoTime() - start) / 1000000;
+
+            Assert.assertEquals(SESSIONS, uploaded);
+            Assert.assertEquals(SESSIONS, listener.uploaded.get());
+            Assert.assertEquals(SESSIONS * (long) FILE_SIZE, handler.bytesReceived.get());
+            Assert.assertTrue(handler.maxConcurrent.get() <= connections[i]);
+            Assert.assertTrue(handler.maxChunk.get() <= CHUNK_SIZE);
+            System.out.println(String.format("%d connection(s): %d ms, %d requests", connections[i], millis[i],
+                    handler.requests.get()));
+        }
+        // latency dominates, so the time should go down about linearly
+        Assert.assertTrue(millis[1] < millis[0] * 2 / 3);
+        Assert.assertTrue(millis[2] < millis[1] * 2 / 3);
+    }
+
+    @Test
+    public void shouldRetryWithBackoff() throws InterruptedException {
+        handler.failuresPerSession = 3;
+
+        RecordingListener listener = new RecordingListener();
+        int uploaded = engine(3, 4).uploadAll(sessions, listener);
+
+        Assert.assertEquals(SESSIONS, uploaded);
+        Assert.assertEquals(SESSIONS * (4 + 3), handler.requests.get());
+        Assert.assertEquals(0, listener.failed.get());
+        for (RecordingSession session : sessions) {
+            Assert.assertEquals(FILE_SIZE, (long) listener.offsets.get(session.getId()));
+        }
+    }
+
+    @Test
+    public void shouldGiveUpAfterMaxAttempts() throws InterruptedException {
+        handler.failuresPerSession = Integer.MAX_VALUE;
+
+        RecordingListener listener = new RecordingListener();
+        int uploaded = engine(2, 3).uploadAll(sessions, listener);
+
+        Assert.assertEquals(0, uploaded);
+        Assert.assertEquals(SESSIONS, listener.failed.get());
+        Assert.assertEquals(SESSIONS * 3, handler.requests.get());
+    }
+
+    @Test
+    public void shouldGrowBackoffExponentially() {
+        UploadEngine engine = engine(1, 1);
+        Assert.assertEquals(1, engine.backoffMillis(1));
+        Assert.assertEquals(2, engine.backoffMillis(2));
+        Assert.assertEquals(8, engine.backoffMillis(4));
+        Assert.assertEquals(50, engine.backoffMillis(10));
+        Assert.assertEquals(50, engine.backoffMillis(100));
+    }
+
+    private UploadEngine engine(int connections, int attempts) {
+        UploadEngine engine = new UploadEngine("http://127.0.0.1:" + server.getAddress().getPort() + "/",
+                new ResumableSessionUploader.ConnectionFactory() {
+                    @Override
+                    public HttpURLConnection open(String url) throws IOException {
+                        return (HttpURLConnection) new URL(url).openConnection();
+                    }
+                }, connections, CHUNK_SIZE, attempts, 1, 50);
+        engine.setCompressionEnabled(false);
+        return engine;
+    }
+
+    private static class RecordingListener implements UploadEngine.Listener {
+        final Map<Long, Long> offsets = new ConcurrentHashMap<Long, Long>();
+        final AtomicInteger uploaded = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+
+        @Override
+        public void onAcknowledged(RecordingSession session, long offset) {
+            offsets.put(session.getId(), offset);
+        }
+
+        @Override
+        public void onUploaded(RecordingSession session) {
+            uploaded.incrementAndGet();
+        }
+
+        @Override
+        public void onFailed(RecordingSession session, IOException e) {
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Accepts every chunk after a fixed delay, counting bytes and concurrent requests; optionally fails the first
+     * requests of every session with 503.
+     */
+    private static class StandInHandler implements HttpHandler {
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        final AtomicLong bytesReceived = new AtomicLong();
+        final AtomicInteger maxChunk = new AtomicInteger();
+        final ConcurrentMap<String, AtomicInteger> sessionRequests = new ConcurrentHashMap<String, AtomicInteger>();
+        volatile int failuresPerSession = 0;
+
+        void reset() {
+            requests.set(0);
+            maxConcurrent.set(0);
+            bytesReceived.set(0);
+            maxChunk.set(0);
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            String path = exchange.getRequestURI().getPath();
+            sessionRequests.putIfAbsent(path, new AtomicInteger());
+            int sessionRequest = sessionRequests.get(path).incrementAndGet();
+            int now = concurrent.incrementAndGet();
+            int code;
+            try {
+                updateMax(maxConcurrent, now);
+                InputStream is = exchange.getRequestBody();
+                byte[] buffer = new byte[8192];
+                int chunk = 0;
+                int read;
+                while ((read = is.read(buffer)) >= 0) {
+                    chunk += read;
+                }
+                updateMax(maxChunk, chunk);
+                Thread.sleep(LATENCY_MILLIS);
+
+                if (sessionRequest <= failuresPerSession) {
+                    code = 503;
+                } else {
+                    bytesReceived.addAndGet(chunk);
+                    code = 200;
+                }
+            } catch (InterruptedException e) {
+                exchange.close();
+                throw new IOException(e);
+            } finally {
+                // before responding: the client sends its next request on the same connection right away
+                concurrent.decrementAndGet();
+            }
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+        }
+
+        private static void updateMax(AtomicInteger max, int value) {
+            int current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // retry
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.augmentari.roadworks.sensorlogger.net.ssl;
+
+import com.augmentari.roadworks.model.RecordingSession;
+import com.augmentari.roadworks.sensorlogger.net.RequestTimingStatistics;
+import com.augmentari.roadworks.sensorlogger.net.ResumableSessionUploader;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+import junit.framework.Assert;
+import org.apache.http.conn.ssl.StrictHostnameVerifier;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.KeyStore;
+import java.util.Date;
+
+/**
+ * Tests of connection pooling and TLS session resumption against a local TLS stand-in server. The server keystore is
+ * generated with keytool, in the same shape as the bundled interserver one: a self-signed certificate which the client
+ * trusts through a keystore holding just that certificate.
+ */
+public class NetworkingFactoryTest {
+
+    private static final String PASSWORD = "tomcat";
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int CHUNKS = 8;
+
+    // HttpURLConnection only reuses connections made with the same factory and verifier
+    private static final HostnameVerifier HOSTNAME_VERIFIER = new StrictHostnameVerifier();
+
+    private File directory;
+    private File dataFile;
+    private KeyStore trustedKeystore;
+    private HttpsServer server;
+    private volatile boolean closeConnections = false;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("tls", "");
+        Assert.assertTrue(directory.delete());
+        Assert.assertTrue(directory.mkdirs());
+
+        File serverKeystoreFile = new File(directory, "server.p12");
+        Assume.assumeTrue(generateKeystore(serverKeystoreFile));
+        KeyStore serverKeystore = KeyStore.getInstance("PKCS12");
+        InputStream is = new FileInputStream(serverKeystoreFile);
+        serverKeystore.load(is, PASSWORD.toCharArray());
+        is.close();
+
+        trustedKeystore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustedKeystore.load(null, PASSWORD.toCharArray());
+        trustedKeystore.setCertificateEntry("interserver", serverKeystore.getCertificate("server"));
+
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(serverKeystore, PASSWORD.toCharArray());
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(kmf.getKeyManagers(), null, null);
+
+        server = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(serverContext) {
+            @Override
+            public void configure(HttpsParameters params) {
+                // what the Android versions we run on speak
+                params.setProtocols(new String[]{"TLSv1.2"});
+            }
+        });
+        server.createContext("/api/sessions/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream body = exchange.getRequestBody();
+                byte[] buffer = new byte[8192];
+                while (body.read(buffer) >= 0) {
+                    // just consume
+                }
+                if (closeConnections) {
+                    exchange.getResponseHeaders().add("Connection", "close");
+                }
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+
+        dataFile = new File(directory, "data.rws");
+        OutputStream os = new FileOutputStream(dataFile);
+        os.write(new byte[CHUNKS * CHUNK_SIZE]);
+        os.close();
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop(0);
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void shouldReuseConnections() throws Exception {
+        TimingSSLSocketFactory factory = NetworkingFactory.createSocketFactory(trustedKeystore);
+        RequestTimingStatistics statistics = new RequestTimingStatistics();
+        upload(sharedFactory(factory), statistics);
+
+        System.out.println("Pooled: " + statistics);
+        Assert.assertEquals(CHUNKS, statistics.getRequests());
+        Assert.assertEquals(1, factory.getSocketsCreated());
+        Assert.assertEquals(CHUNKS - 1, statistics.getConnectionsReused());
+    }
+
+    @Test
+    public void shouldResumeTlsSessions() throws Exception {
+        closeConnections = true;
+        TimingSSLSocketFactory factory = NetworkingFactory.createSocketFactory(trustedKeystore);
+        RequestTimingStatistics statistics = new RequestTimingStatistics();
+        upload(sharedFactory(factory), statistics);
+
+        System.out.println("New connections, resumed sessions: " + statistics);
+        Assert.assertEquals(CHUNKS, factory.getSocketsCreated());
+        Assert.assertEquals(0, statistics.getConnectionsReused());
+        // handshake completion is reported from another thread
+        long deadline = System.currentTimeMillis() + 2000;
+        while (factory.getSessionsResumed() < CHUNKS - 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(CHUNKS, factory.getHandshakesCompleted());
+        Assert.assertEquals(CHUNKS - 1, factory.getSessionsResumed());
+    }
+
+    @Test
+    public void shouldDoFullHandshakesWithoutSharedFactory() throws Exception {
+        // the way it used to be: a new socket factory for every connection
+        RequestTimingStatistics statistics = new RequestTimingStatistics();
+        upload(new ResumableSessionUploader.ConnectionFactory() {
+            @Override
+            public HttpURLConnection open(String url) throws IOException {
+                try {
+                    return openConnection(url, NetworkingFactory.createSocketFactory(trustedKeystore));
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+        }, statistics);
+
+        System.out.println("Factory per connection: " + statistics);
+        Assert.assertEquals(0, statistics.getConnectionsReused());
+    }
+
+    private void upload(ResumableSessionUploader.ConnectionFactory connectionFactory,
+                        RequestTimingStatistics statistics) throws IOException {
+        ResumableSessionUploader uploader = new ResumableSessionUploader(
+                "https://localhost:" + server.getAddress().getPort() + "/", connectionFactory, CHUNK_SIZE);
+        uploader.setCompressionEnabled(false);
+        uploader.setStatistics(statistics);
+
+        RecordingSession session = new RecordingSession();
+        session.setId(1);
+        session.setStartTime(new Date());
+        session.setEndTime(new Date());
+        session.setDataFileFullPath(dataFile.getAbsolutePath());
+        uploader.upload(session, 0, new ResumableSessionUploader.Checkpoint() {
+            @Override
+            public void onAcknowledged(RecordingSession session, long offset) {
+            }
+        });
+    }
+
+    private static ResumableSessionUploader.ConnectionFactory sharedFactory(final TimingSSLSocketFactory factory) {
+        return new ResumableSessionUploader.ConnectionFactory() {
+            @Override
+            public HttpURLConnection open(String url) throws IOException {
+                return openConnection(url, factory);
+            }
+        };
+    }
+
+    private static HttpURLConnection openConnection(String url, TimingSSLSocketFactory factory) throws IOException {
+        HttpsURLConnection connection = (HttpsURLConnection) new URL(url).openConnection();
+        connection.setSSLSocketFactory(factory);
+        connection.setHostnameVerifier(HOSTNAME_VERIFIER);
+        return connection;
+    }
+
+    private static boolean generateKeystore(File keystore) throws InterruptedException {
+        File keytool = new File(System.getProperty("java.home"), "bin/keytool");
+        if (!keytool.isFile()) {
+            return false;
+        }
+        try {
+            Process process = new ProcessBuilder(keytool.getPath(), "-genkeypair", "-alias", "server",
+                    "-keyalg", "RSA", "-keysize", "2048", "-dname", "CN=localhost", "-validity", "2",
+                    "-storetype", "PKCS12", "-keystore", keystore.getPath(),
+                    "-storepass", PASSWORD, "-keypass", PASSWORD)
+                    .redirectErrorStream(true).start();
+            InputStream output = process.getInputStream();
+            while (output.read() >= 0) {
+                // keytool may block on a full pipe otherwise
+            }
+            return process.waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
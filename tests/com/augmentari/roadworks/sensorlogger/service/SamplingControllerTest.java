@@ -0,0 +1,194 @@
+package com.augmentari.roadworks.sensorlogger.service;
+
+import com.augmentari.roadworks.sensorlogger.service.SamplingController.Mode;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests of the sampling decisions over simulated drives: the accelerometer is sampled at the rate of the current mode,
+ * the way the service re-registers it, and GPS speed comes at the GPS interval of the mode.
+ */
+public class SamplingControllerTest {
+
+    private static final long SECOND = 1000L * 1000 * 1000;
+
+    // accelerometer noise, m/s^2: a road, an idling engine, and something in between the thresholds
+    private static final float ROAD = 1f;
+    private static final float IDLE = 0.1f;
+    private static final float BORDERLINE = 0.3f;
+
+    @Test
+    public void shouldSlowDownWhenParkedAndResumeOnMoving() {
+        Drive drive = new Drive(new SamplingController(), true);
+        drive.phase(60, 14, 0, ROAD);
+        drive.phase(120, 0, 0.5f, IDLE);
+        drive.phase(60, 14, 0, ROAD);
+
+        Assert.assertEquals(2, drive.controller.getTransitionCount());
+        Assert.assertEquals(Mode.DRIVING, drive.modeAt(59 * SECOND));
+        long parkedFrom = drive.changeAfter(60 * SECOND);
+        Assert.assertTrue(parkedFrom >= 60 * SECOND + SamplingController.STATIONARY_AFTER_NANOS);
+        Assert.assertTrue(parkedFrom <= 62 * SECOND + SamplingController.STATIONARY_AFTER_NANOS);
+        Assert.assertEquals(Mode.STATIONARY, drive.modeAt(170 * SECOND));
+        // back to the fastest rate within a variance window of setting off
+        Assert.assertTrue(drive.changeAfter(180 * SECOND) <= 180 * SECOND + 2 * SamplingController.WINDOW_NANOS);
+        Assert.assertEquals(Mode.DRIVING, drive.controller.getMode());
+    }
+
+    @Test
+    public void shouldDetectStandingStillWithoutGps() {
+        Drive drive = new Drive(new SamplingController(), false);
+        drive.phase(30, 14, 0, ROAD);
+        drive.phase(60, 0, 0, IDLE);
+        Assert.assertEquals(Mode.STATIONARY, drive.controller.getMode());
+        drive.phase(10, 14, 0, ROAD);
+        Assert.assertEquals(Mode.DRIVING, drive.controller.getMode());
+        Assert.assertEquals(2, drive.controller.getTransitionCount());
+    }
+
+    @Test
+    public void shouldIgnoreShortStops() {
+        Drive drive = new Drive(new SamplingController(), true);
+        for (int i = 0; i < 5; i++) {
+            drive.phase(40, 12, 0, ROAD);
+            // traffic lights
+            drive.phase(15, 0, 0.5f, IDLE);
+        }
+        Assert.assertEquals(0, drive.controller.getTransitionCount());
+    }
+
+    @Test
+    public void shouldNotFlapOnBorderlineReadings() {
+        Drive drive = new Drive(new SamplingController(), true);
+        // vibration between the thresholds is not enough to take the car as stationary...
+        drive.phase(30, 14, 0, ROAD);
+        drive.phase(60, 0, 0.5f, BORDERLINE);
+        Assert.assertEquals(0, drive.controller.getTransitionCount());
+        // ...nor to take it as moving again, and neither is GPS speed jittering below the moving speed
+        drive.phase(60, 0, 0.5f, IDLE);
+        drive.phase(120, 0, 2.9f, BORDERLINE);
+        Assert.assertEquals(1, drive.controller.getTransitionCount());
+        Assert.assertEquals(Mode.STATIONARY, drive.controller.getMode());
+        // GPS alone may wake it up too
+        drive.phase(5, 5, 0, BORDERLINE);
+        Assert.assertEquals(Mode.DRIVING, drive.controller.getMode());
+    }
+
+    @Test
+    public void shouldSaveBatteryWithHysteresis() {
+        SamplingController controller = new SamplingController();
+        Assert.assertFalse(controller.onBatteryChanged(30, false));
+        Assert.assertTrue(controller.onBatteryChanged(20, false));
+        Assert.assertEquals(Mode.DRIVING_POWER_SAVING, controller.getMode());
+        for (int level : new int[]{21, 22, 20, 24, 19, 24}) {
+            Assert.assertFalse(controller.onBatteryChanged(level, false));
+        }
+        Assert.assertTrue(controller.onBatteryChanged(25, false));
+        Assert.assertEquals(Mode.DRIVING, controller.getMode());
+        Assert.assertFalse(controller.onBatteryChanged(5, true));
+        Assert.assertTrue(controller.onBatteryChanged(5, false));
+        Assert.assertEquals(3, controller.getTransitionCount());
+    }
+
+    @Test
+    public void shouldDetectStopsAtThePowerSavingRate() {
+        SamplingController controller = new SamplingController();
+        controller.onBatteryChanged(15, false);
+        Drive drive = new Drive(controller, true);
+        drive.phase(30, 14, 0, ROAD);
+        Assert.assertEquals(Mode.DRIVING_POWER_SAVING, drive.modeAt(29 * SECOND));
+        drive.phase(60, 0, 0.5f, IDLE);
+        Assert.assertEquals(Mode.STATIONARY_POWER_SAVING, controller.getMode());
+        drive.phase(10, 14, 0, ROAD);
+        Assert.assertEquals(Mode.DRIVING_POWER_SAVING, controller.getMode());
+    }
+
+    /**
+     * Simulated drive, made of phases of constant speed and road noise.
+     */
+    private static class Drive {
+        private static final int BATCH = 32;
+
+        private final SamplingController controller;
+        private final boolean withGps;
+        private final Random random = new Random(11);
+
+        private final long[] timestamps = new long[BATCH];
+        private final float[] xs = new float[BATCH];
+        private final float[] ys = new float[BATCH];
+        private final float[] zs = new float[BATCH];
+        private int batched = 0;
+
+        private long now = 0;
+        private long nextFixNanos = 0;
+        // mode changes: times and the modes changed to
+        private final List<Long> changeTimes = new ArrayList<Long>();
+        private final List<Mode> changeModes = new ArrayList<Mode>();
+
+        Drive(SamplingController controller, boolean withGps) {
+            this.controller = controller;
+            this.withGps = withGps;
+            changeTimes.add(0L);
+            changeModes.add(controller.getMode());
+        }
+
+        /**
+         * @param seconds     length of the phase.
+         * @param speed       speed reported by GPS, m/s.
+         * @param speedJitter GPS speed is off by up to that much, m/s.
+         * @param noise       standard deviation of the accelerometer readings, m/s^2.
+         */
+        void phase(int seconds, float speed, float speedJitter, float noise) {
+            long end = now + seconds * SECOND;
+            while (now < end) {
+                if (withGps && now >= nextFixNanos) {
+                    float reported = Math.max(0, speed + (random.nextFloat() * 2 - 1) * speedJitter);
+                    record(controller.onSpeed(reported));
+                    nextFixNanos = now + controller.getMode().getGpsIntervalMillis() * 1000 * 1000;
+                }
+
+                timestamps[batched] = now;
+                xs[batched] = (float) (random.nextGaussian() * noise / 2);
+                ys[batched] = (float) (random.nextGaussian() * noise / 2);
+                zs[batched] = (float) (9.81 + random.nextGaussian() * noise);
+                batched++;
+                if (batched == BATCH) {
+                    record(controller.onAccelerometerSamples(timestamps, xs, ys, zs, batched));
+                    batched = 0;
+                }
+
+                // 200 Hz at the fastest rate
+                long delayMicros = Math.max(5000, controller.getMode().getAccelerometerDelayMicros());
+                now += delayMicros * 1000;
+            }
+        }
+
+        private void record(boolean changed) {
+            if (changed) {
+                changeTimes.add(now);
+                changeModes.add(controller.getMode());
+            }
+        }
+
+        Mode modeAt(long nanos) {
+            Mode mode = null;
+            for (int i = 0; i < changeTimes.size() && changeTimes.get(i) <= nanos; i++) {
+                mode = changeModes.get(i);
+            }
+            return mode;
+        }
+
+        long changeAfter(long nanos) {
+            for (int i = 0; i < changeTimes.size(); i++) {
+                if (changeTimes.get(i) > nanos) {
+                    return changeTimes.get(i);
+                }
+            }
+            throw new AssertionError("No mode change after " + nanos);
+        }
+    }
+}
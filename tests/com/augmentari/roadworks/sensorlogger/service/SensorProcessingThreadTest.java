@@ -0,0 +1,167 @@
+package com.augmentari.roadworks.sensorlogger.service;
+
+import com.augmentari.roadworks.sensorlogger.component.SensorSampleQueue;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * JVM-level stress tests for the sensor sample hand-off: a producer thread standing in for the sensor callback pushes
+ * synthetic samples through {@link SensorSampleQueue} and {@link SensorProcessingThread}.
+ */
+public class SensorProcessingThreadTest {
+
+    @Test
+    public void shouldDeliverMillionsOfSamplesInOrderWithoutProducerAllocation() throws Exception {
+        final int total = 5 * 1000 * 1000;
+        SensorSampleQueue queue = new SensorSampleQueue(4096);
+        CheckingHandler handler = new CheckingHandler(0);
+        SensorProcessingThread thread = new SensorProcessingThread(queue, handler);
+        thread.start();
+
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        long allocatedBefore = allocatedBytes(threadMXBean);
+        for (int i = 0; i < total; i++) {
+            // a real sensor would drop the sample; here we wait to check that nothing gets lost in between
+            while (!queue.offer(i, i, -i, i * 2)) {
+                Thread.yield();
+            }
+        }
+        long allocatedAfter = allocatedBytes(threadMXBean);
+
+        thread.shutdown();
+
+        Assert.assertNull(handler.error, handler.error);
+        Assert.assertEquals(total, handler.received);
+        if (allocatedBefore >= 0) {
+            // a few bytes for the measurement calls themselves, nothing proportional to the sample count
+            Assert.assertTrue("Producer allocated " + (allocatedAfter - allocatedBefore) + " bytes",
+                    allocatedAfter - allocatedBefore < 16 * 1024);
+        }
+    }
+
+    @Test
+    public void shouldNotLoseSamplesUnderSlowConsumer() throws Exception {
+        final int total = 400 * 1000;
+        final int samplesPerMillisecond = 40;
+        SensorSampleQueue queue = new SensorSampleQueue(4096);
+        // consumer takes 2ms for each batch, no matter how small it is
+        CheckingHandler handler = new CheckingHandler(2);
+        SensorProcessingThread thread = new SensorProcessingThread(queue, handler);
+        thread.start();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            if (i % samplesPerMillisecond == 0) {
+                long due = start + (long) (i / samplesPerMillisecond) * 1000 * 1000;
+                while (System.nanoTime() < due) {
+                    Thread.yield();
+                }
+            }
+            queue.offer(i, i, -i, i * 2);
+        }
+        thread.shutdown();
+
+        Assert.assertNull(handler.error, handler.error);
+        Assert.assertEquals(0, queue.getOverflowCount());
+        Assert.assertEquals(total, handler.received);
+    }
+
+    @Test
+    public void shouldOnlyWakeUpForBatches() throws Exception {
+        SensorSampleQueue queue = new SensorSampleQueue(4096);
+        CheckingHandler handler = new CheckingHandler(0);
+        SensorProcessingThread thread = new SensorProcessingThread(queue, handler);
+        thread.start();
+
+        // nothing coming: no polling
+        Thread.sleep(500);
+        Assert.assertTrue("Woke up " + thread.getWakeUpCount() + " times", thread.getWakeUpCount() <= 1);
+
+        // events delivered from the sensor FIFO, 1000 at once twice a second
+        int sent = 0;
+        for (int burst = 0; burst < 4; burst++) {
+            for (int i = 0; i < 1000; i++, sent++) {
+                Assert.assertTrue(queue.offer(sent, sent, -sent, sent * 2));
+            }
+            Thread.sleep(500);
+        }
+        Assert.assertEquals(sent, handler.received);
+        // a couple of wake-ups per batch dispatched; polling every couple of ms would have been about 1000
+        Assert.assertTrue("Woke up " + thread.getWakeUpCount() + " times", thread.getWakeUpCount() <= 4 * 8);
+
+        // a lone sample still goes out within the batch delay
+        long wakeUps = thread.getWakeUpCount();
+        queue.offer(sent, sent, -sent, sent * 2);
+        Thread.sleep(300);
+        Assert.assertEquals(sent + 1, handler.received);
+        Assert.assertTrue(thread.getWakeUpCount() - wakeUps <= 2);
+
+        thread.shutdown();
+        Assert.assertNull(handler.error, handler.error);
+    }
+
+    @Test
+    public void shouldCountOverflow() {
+        SensorSampleQueue queue = new SensorSampleQueue(4);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(queue.offer(i, 0, 0, 0));
+        }
+        Assert.assertFalse(queue.offer(4, 0, 0, 0));
+        Assert.assertFalse(queue.offer(5, 0, 0, 0));
+        Assert.assertEquals(2, queue.getOverflowCount());
+
+        long[] timestamps = new long[4];
+        float[] values = new float[4];
+        Assert.assertEquals(3, queue.drainTo(timestamps, values, values, values, 3));
+        Assert.assertTrue(queue.offer(6, 0, 0, 0));
+        Assert.assertEquals(2, queue.size());
+
+        Assert.assertEquals(2, queue.drainTo(timestamps, values, values, values, 4));
+        Assert.assertEquals(3, timestamps[0]);
+        Assert.assertEquals(6, timestamps[1]);
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    private static long allocatedBytes(ThreadMXBean threadMXBean) {
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Handler verifying that samples come in the order they were produced, optionally simulating a slow consumer.
+     */
+    private static class CheckingHandler implements SensorProcessingThread.SampleBatchHandler {
+        private final long delayMillis;
+        private volatile long received = 0;
+        private volatile String error = null;
+
+        CheckingHandler(long delayMillis) {
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        public void onSampleBatch(long[] timestamps, float[] xs, float[] ys, float[] zs, int count) {
+            for (int i = 0; i < count; i++) {
+                long expected = received + i;
+                if (error == null && (timestamps[i] != expected || xs[i] != (float) expected
+                        || ys[i] != (float) -expected || zs[i] != (float) (expected * 2))) {
+                    error = "Sample " + expected + " got mixed up: timestamp " + timestamps[i];
+                }
+            }
+            received += count;
+
+            if (delayMillis > 0) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.augmentari.roadworks.sensorlogger.spatial;
+
+import com.augmentari.roadworks.sensorlogger.format.SessionFileReader;
+import com.augmentari.roadworks.sensorlogger.format.SessionFileWriter;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests of merging repeated passes over the same defects into clusters.
+ */
+public class DefectClustererTest {
+
+    private static final int DEFECTS = 5;
+    private static final int PASSES = 10;
+    private static final double DEFECT_SPACING_DEGREES = 0.001; // about 110 m north to south
+    private static final double LANE_OFFSET_DEGREES = 0.00012;  // about 8 m east to west
+
+    @Test
+    public void shouldCollapseRepeatedPasses() throws IOException {
+        Random random = new Random(1);
+        DefectClusterer clusterer = new DefectClusterer();
+        long sessionId = 1;
+        for (int pass = 0; pass < PASSES; pass++) {
+            Assert.assertEquals(DEFECTS, clusterer.addSession(sessionId, session(sessionId, random, true)));
+            sessionId++;
+            Assert.assertEquals(DEFECTS, clusterer.addSession(sessionId, session(sessionId, random, false)));
+            sessionId++;
+        }
+
+        // the two sides of the road are as close as the passes are noisy, the heading keeps them apart
+        Assert.assertEquals(2 * DEFECTS, clusterer.size());
+        for (DefectCluster cluster : clusterer.getClusters()) {
+            Assert.assertEquals(PASSES, cluster.getCount());
+            boolean northbound = cluster.getLongitude() < 30.52 + LANE_OFFSET_DEGREES / 2;
+            Assert.assertTrue(DefectClusterer.headingDifference(northbound ? 0 : 180, cluster.getHeading()) < 5);
+            Assert.assertTrue(cluster.getSeverityMax() >= cluster.getSeveritySum() / cluster.getCount());
+            Assert.assertTrue(cluster.isChanged());
+        }
+    }
+
+    @Test
+    public void shouldUploadOnlyDeltas() throws IOException {
+        Random random = new Random(2);
+        DefectClusterer clusterer = new DefectClusterer();
+        clusterer.addSession(1, session(1, random, true));
+        clusterer.addSession(2, session(2, random, true));
+
+        List<DefectCluster> changed = clusterer.getChangedClusters();
+        Assert.assertEquals(DEFECTS, changed.size());
+        clusterer.markUploaded(changed);
+        Assert.assertTrue(clusterer.getChangedClusters().isEmpty());
+
+        // one more pass seeing a single one of the defects
+        DefectCluster cluster = clusterer.add(50.45, 30.52, 0, 7f, 1370000900000L);
+        Assert.assertEquals(3, cluster.getCount());
+        changed = clusterer.getChangedClusters();
+        Assert.assertEquals(1, changed.size());
+        Assert.assertSame(cluster, changed.get(0));
+        Assert.assertEquals(2, cluster.getUploadedCount());
+        Assert.assertEquals(7d, cluster.getSeveritySum() - cluster.getUploadedSeveritySum(), 1e-6);
+    }
+
+    @Test
+    public void shouldLeaveOutEventsWithoutFix() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SessionFileWriter writer = new SessionFileWriter(bytes, 1);
+        // logged with the GPS bypassed, before the first fix
+        for (int i = 0; i < 10; i++) {
+            writer.write(1370000000000L + i * 1000, 5, 0, 0, 0);
+        }
+        writer.write(1370000010000L, 5, 50.45, 30.52, 11);
+        writer.write(1370000020000L, 5, 50.45 + DEFECT_SPACING_DEGREES, 30.52, 11);
+        writer.close();
+
+        DefectClusterer clusterer = new DefectClusterer();
+        Assert.assertEquals(2, clusterer.addSession(1, new SessionFileReader(new ByteArrayInputStream(
+                bytes.toByteArray()))));
+        Assert.assertEquals(2, clusterer.size());
+        for (DefectCluster cluster : clusterer.getClusters()) {
+            Assert.assertTrue(cluster.getLatitude() > 50);
+            // the heading comes from the two real events, not from the way from 0,0
+            Assert.assertEquals(0d, cluster.getHeading(), 1);
+        }
+    }
+
+    @Test
+    public void shouldKeepLanesApartByBearingOfSparseEvents() throws IOException {
+        DefectClusterer clusterer = new DefectClusterer();
+        // single defects a kilometer apart: too far for the way between them to tell the direction
+        for (long sessionId = 1; sessionId <= 4; sessionId++) {
+            boolean northbound = sessionId % 2 == 1;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            SessionFileWriter writer = new SessionFileWriter(bytes, sessionId);
+            for (int i = 0; i < 3; i++) {
+                int defect = northbound ? i : 2 - i;
+                writer.write(1370000000000L + sessionId * 3600000L + i * 60000, 5,
+                        50.45 + defect * 10 * DEFECT_SPACING_DEGREES, 30.52 + (northbound ? 0 : LANE_OFFSET_DEGREES),
+                        11, northbound ? 2 : 178);
+            }
+            writer.close();
+            clusterer.addSession(sessionId, new SessionFileReader(new ByteArrayInputStream(bytes.toByteArray())));
+        }
+
+        Assert.assertEquals(6, clusterer.size());
+        for (DefectCluster cluster : clusterer.getClusters()) {
+            Assert.assertEquals(2, cluster.getCount());
+            boolean northbound = cluster.getLongitude() < 30.52 + LANE_OFFSET_DEGREES / 2;
+            Assert.assertEquals(northbound ? 2 : 178, cluster.getHeading(), 0.1);
+        }
+    }
+
+    @Test
+    public void shouldMergeSessionOnlyOnce() throws IOException {
+        Random random = new Random(3);
+        DefectClusterer clusterer = new DefectClusterer();
+        clusterer.addSession(5, session(5, random, true));
+        Assert.assertTrue(clusterer.isMerged(4));
+        Assert.assertTrue(clusterer.isMerged(5));
+        Assert.assertFalse(clusterer.isMerged(6));
+        Assert.assertEquals(0, clusterer.addSession(5, session(5, random, true)));
+        Assert.assertEquals(DEFECTS, clusterer.getClusters().get(0).getCount() * clusterer.size());
+    }
+
+    @Test
+    public void shouldSaveAndLoad() throws IOException {
+        Random random = new Random(4);
+        DefectClusterer clusterer = new DefectClusterer();
+        for (long sessionId = 1; sessionId <= 4; sessionId++) {
+            clusterer.addSession(sessionId, session(sessionId, random, sessionId % 2 == 0));
+        }
+        clusterer.markUploaded(clusterer.getChangedClusters().subList(0, 3));
+
+        File file = File.createTempFile("clusters", ".bin");
+        try {
+            clusterer.save(file);
+            DefectClusterer loaded = DefectClusterer.load(file);
+            Assert.assertEquals(4, loaded.getLastMergedSessionId());
+            Assert.assertEquals(clusterer.size(), loaded.size());
+            Assert.assertEquals(clusterer.size() - 3, loaded.getChangedClusters().size());
+            for (int i = 0; i < clusterer.size(); i++) {
+                DefectCluster expected = clusterer.getClusters().get(i);
+                DefectCluster actual = loaded.getClusters().get(i);
+                Assert.assertEquals(expected.getId(), actual.getId());
+                Assert.assertEquals(expected.getLatitude(), actual.getLatitude());
+                Assert.assertEquals(expected.getLongitude(), actual.getLongitude());
+                Assert.assertEquals(expected.getHeading(), actual.getHeading());
+                Assert.assertEquals(expected.getCount(), actual.getCount());
+                Assert.assertEquals(expected.getSeveritySum(), actual.getSeveritySum());
+                Assert.assertEquals(expected.getSeverityMax(), actual.getSeverityMax());
+                Assert.assertEquals(expected.getLastSeen(), actual.getLastSeen());
+                Assert.assertEquals(expected.getUploadedCount(), actual.getUploadedCount());
+            }
+
+            // new clusters get new ids
+            DefectCluster added = loaded.add(10, 10, Double.NaN, 3f, 0);
+            Assert.assertEquals(clusterer.size() + 1, added.getId());
+        } finally {
+            file.delete();
+        }
+        Assert.assertEquals(0, DefectClusterer.load(file).size());
+    }
+
+    @Test
+    public void shouldCompareHeadingsAroundNorth() {
+        Assert.assertEquals(20d, DefectClusterer.headingDifference(350, 10), 1e-9);
+        Assert.assertEquals(180d, DefectClusterer.headingDifference(90, 270), 1e-9);
+        Assert.assertEquals(0d, DefectClusterer.headingDifference(Double.NaN, 270), 1e-9);
+        Assert.assertEquals(90d, DefectClusterer.bearingDegrees(50, 30, 50, 30.001), 0.01);
+        Assert.assertEquals(180d, DefectClusterer.bearingDegrees(50, 30, 49.999, 30), 0.01);
+    }
+
+    /**
+     * A drive past the same defects, north along the west lane or south along the east one, with a few meters of GPS
+     * noise.
+     */
+    private static SessionFileReader session(long sessionId, Random random, boolean northbound) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SessionFileWriter writer = new SessionFileWriter(bytes, sessionId);
+        long time = 1370000000000L + sessionId * 3600000L;
+        for (int i = 0; i < DEFECTS; i++) {
+            int defect = northbound ? i : DEFECTS - 1 - i;
+            double latitude = 50.45 + defect * DEFECT_SPACING_DEGREES + noise(random);
+            double longitude = 30.52 + (northbound ? 0 : LANE_OFFSET_DEGREES) + noise(random);
+            writer.write(time + i * 10000, 2 + random.nextDouble() * 8, latitude, longitude, 11);
+        }
+        writer.close();
+        return new SessionFileReader(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    private static double noise(Random random) {
+        // up to 2 m either way
+        return (random.nextDouble() - 0.5) * 0.000036;
+    }
+}
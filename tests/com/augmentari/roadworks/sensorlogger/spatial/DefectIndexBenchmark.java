@@ -0,0 +1,97 @@
+package com.augmentari.roadworks.sensorlogger.spatial;
+
+import java.util.Random;
+
+/**
+ * Plain JVM benchmark of the defect tile index: inserts per second, and microseconds per radius and bounding box query
+ * over years' worth of defects in one region, against a linear scan of the same points.
+ */
+public class DefectIndexBenchmark {
+
+    private static final int DEFECTS = 500000;
+    private static final int QUERIES = 20000;
+    private static final int ROUNDS = 3;
+
+    private static final double RADIUS_METERS = 300;
+    private static final double BOX_DEGREES = 0.01;
+
+    public static void main(String[] args) {
+        Random random = new Random(7);
+        double[] latitudes = new double[DEFECTS];
+        double[] longitudes = new double[DEFECTS];
+        double latitude = 50.45, longitude = 30.52;
+        for (int i = 0; i < DEFECTS; i++) {
+            // drives wandering around a region of about 50 by 50 km
+            latitude = clamp(latitude + (random.nextDouble() - 0.5) / 500, 50.2, 50.65);
+            longitude = clamp(longitude + (random.nextDouble() - 0.5) / 500, 30.2, 30.9);
+            latitudes[i] = latitude;
+            longitudes[i] = longitude;
+        }
+        double[] queryLatitudes = new double[QUERIES];
+        double[] queryLongitudes = new double[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            int near = random.nextInt(DEFECTS);
+            queryLatitudes[i] = latitudes[near];
+            queryLongitudes[i] = longitudes[near];
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            DefectIndex index = new DefectIndex();
+            long start = System.nanoTime();
+            for (int i = 0; i < DEFECTS; i++) {
+                index.add(latitudes[i], longitudes[i], 3f, i);
+            }
+            double insertsPerSecond = DEFECTS * 1e9 / (System.nanoTime() - start);
+
+            Counter counter = new Counter();
+            start = System.nanoTime();
+            for (int i = 0; i < QUERIES; i++) {
+                index.queryRadius(queryLatitudes[i], queryLongitudes[i], RADIUS_METERS, counter);
+            }
+            double radiusMicros = (System.nanoTime() - start) / 1e3 / QUERIES;
+            long radiusFound = counter.count;
+
+            counter.count = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < QUERIES; i++) {
+                index.queryBox(queryLatitudes[i], queryLongitudes[i],
+                        queryLatitudes[i] + BOX_DEGREES, queryLongitudes[i] + BOX_DEGREES, counter);
+            }
+            double boxMicros = (System.nanoTime() - start) / 1e3 / QUERIES;
+
+            // the alternative: go through all the points
+            int scanQueries = QUERIES / 100;
+            long scanFound = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < scanQueries; i++) {
+                double latitudeDelta = RADIUS_METERS / 111195;
+                double longitudeDelta = latitudeDelta / Math.cos(Math.toRadians(queryLatitudes[i]));
+                for (int j = 0; j < DEFECTS; j++) {
+                    if (Math.abs(latitudes[j] - queryLatitudes[i]) <= latitudeDelta
+                            && Math.abs(longitudes[j] - queryLongitudes[i]) <= longitudeDelta) {
+                        scanFound++;
+                    }
+                }
+            }
+            double scanMicros = (System.nanoTime() - start) / 1e3 / scanQueries;
+
+            System.out.printf("round %d: %d defects in %d tiles, %.0f inserts/s; radius %.0f m: %.1f us/query "
+                    + "(%.1f found); box: %.1f us/query (%.1f found); linear scan: %.0f us/query (%d)%n",
+                    round, index.size(), index.getTileCount(), insertsPerSecond, RADIUS_METERS, radiusMicros,
+                    (double) radiusFound / QUERIES, boxMicros, (double) counter.count / QUERIES, scanMicros, scanFound);
+        }
+    }
+
+    private static double clamp(double value, double min, double max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static class Counter implements DefectIndex.Visitor {
+        long count = 0;
+
+        @Override
+        public void visit(double latitude, double longitude, float severity, long timeMillis) {
+            count++;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.augmentari.roadworks.sensorlogger.spatial;
+
+import com.augmentari.roadworks.sensorlogger.format.SessionFileFormat;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+/**
+ * Tests of the defect tile index against a brute force scan, and of its persistence.
+ */
+public class DefectIndexTest {
+
+    private static final int DEFECTS = 20000;
+
+    @Test
+    public void shouldFindSameAsBruteForce() {
+        Random random = new Random(1);
+        double[] latitudes = new double[DEFECTS];
+        double[] longitudes = new double[DEFECTS];
+        DefectIndex index = new DefectIndex();
+        for (int i = 0; i < DEFECTS; i++) {
+            // a city of about 20 by 20 km
+            latitudes[i] = 50.35 + random.nextDouble() * 0.18;
+            longitudes[i] = 30.35 + random.nextDouble() * 0.28;
+            index.add(latitudes[i], longitudes[i], 3f, i);
+        }
+        Assert.assertEquals(DEFECTS, index.size());
+
+        for (int query = 0; query < 200; query++) {
+            double latitude = 50.3 + random.nextDouble() * 0.28;
+            double longitude = 30.3 + random.nextDouble() * 0.38;
+            double radius = 50 + random.nextDouble() * 3000;
+
+            int expected = 0;
+            for (int i = 0; i < DEFECTS; i++) {
+                if (greatCircleMeters(latitude, longitude, latitudes[i], longitudes[i]) <= radius) {
+                    expected++;
+                }
+            }
+            CountingVisitor visitor = new CountingVisitor();
+            int found = index.queryRadius(latitude, longitude, radius, visitor);
+            Assert.assertEquals(found, visitor.count);
+            // planar distance: allow for the points right on the circle
+            Assert.assertTrue(expected + " vs " + found, Math.abs(expected - found) <= 1 + expected / 1000);
+
+            double size = random.nextDouble() * 0.05;
+            expected = 0;
+            for (int i = 0; i < DEFECTS; i++) {
+                // the index compares in the fixed point of the session files
+                int lat = fixed(latitudes[i]);
+                int lon = fixed(longitudes[i]);
+                if (lat >= fixed(latitude) && lat <= fixed(latitude + size)
+                        && lon >= fixed(longitude) && lon <= fixed(longitude + size)) {
+                    expected++;
+                }
+            }
+            Assert.assertEquals(expected, index.queryBox(latitude, longitude, latitude + size, longitude + size,
+                    new CountingVisitor()));
+        }
+    }
+
+    @Test
+    public void shouldQueryAcrossWholeIndex() {
+        DefectIndex index = new DefectIndex();
+        index.add(50.45, 30.52, 3f, 1);
+        index.add(-33.86, 151.2, 4f, 2);
+        index.add(40.71, -74.0, 5f, 3);
+        Assert.assertEquals(3, index.queryBox(-90, -180, 90, 180, new CountingVisitor()));
+        Assert.assertEquals(1, index.queryBox(0, 0, 90, 180, new CountingVisitor()));
+    }
+
+    @Test
+    public void shouldPassDefectValues() {
+        DefectIndex index = new DefectIndex();
+        index.add(50.4501234, 30.5234567, 7.5f, 1370000000000L);
+        final double[] found = new double[4];
+        index.queryRadius(50.45, 30.52, 1000, new DefectIndex.Visitor() {
+            @Override
+            public void visit(double latitude, double longitude, float severity, long timeMillis) {
+                found[0] = latitude;
+                found[1] = longitude;
+                found[2] = severity;
+                found[3] = timeMillis;
+            }
+        });
+        Assert.assertEquals(50.4501234, found[0], 1e-7);
+        Assert.assertEquals(30.5234567, found[1], 1e-7);
+        Assert.assertEquals(7.5, found[2]);
+        Assert.assertEquals(1370000000000d, found[3]);
+    }
+
+    @Test
+    public void shouldReloadAndDropPartialRecord() throws IOException {
+        File file = File.createTempFile("defects", ".idx");
+        file.delete();
+        try {
+            DefectStore store = new DefectStore(file);
+            for (int i = 0; i < 1000; i++) {
+                store.add(50.45 + i * 0.0001, 30.52, 3f, i);
+            }
+            store.flush();
+            store.close();
+            Assert.assertEquals(DefectStore.HEADER_SIZE + 1000 * DefectStore.RECORD_SIZE, file.length());
+
+            // killed in the middle of writing a record
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(file.length() + 7);
+            raf.close();
+
+            store = new DefectStore(file);
+            Assert.assertEquals(1000, store.getIndex().size());
+            store.add(50.45, 30.53, 4f, 1000);
+            store.close();
+
+            store = new DefectStore(file);
+            Assert.assertEquals(1001, store.getIndex().size());
+            Assert.assertEquals(1, store.getIndex().queryRadius(50.45, 30.53, 10, new CountingVisitor()));
+            store.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void shouldKeepEveryDefectInIndexWhenLogFallsBehind() throws IOException {
+        File file = File.createTempFile("defects", ".idx");
+        file.delete();
+        try {
+            DefectStore store = new DefectStore(file);
+            // far faster than the detector ever adds: the writer thread may not keep up
+            for (int i = 0; i < 100000; i++) {
+                store.add(50.45 + (i % 1000) * 0.0001, 30.52, 3f, i);
+            }
+            store.close();
+            Assert.assertEquals(100000, store.getIndex().size());
+            long logged = 100000 - store.getRecordsDropped();
+            Assert.assertEquals(DefectStore.HEADER_SIZE + logged * DefectStore.RECORD_SIZE, file.length());
+
+            store = new DefectStore(file);
+            Assert.assertEquals(logged, store.getIndex().size());
+            store.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static int fixed(double coordinate) {
+        return SessionFileFormat.toFixedPoint(coordinate);
+    }
+
+    private static double greatCircleMeters(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double dLatitude = Math.toRadians(latitude2 - latitude1);
+        double dLongitude = Math.toRadians(longitude2 - longitude1);
+        double a = Math.sin(dLatitude / 2) * Math.sin(dLatitude / 2) + Math.cos(Math.toRadians(latitude1))
+                * Math.cos(Math.toRadians(latitude2)) * Math.sin(dLongitude / 2) * Math.sin(dLongitude / 2);
+        return 2 * 6371000 * Math.asin(Math.sqrt(a));
+    }
+
+    private static class CountingVisitor implements DefectIndex.Visitor {
+        int count = 0;
+
+        @Override
+        public void visit(double latitude, double longitude, float severity, long timeMillis) {
+            count++;
+        }
+    }
+}
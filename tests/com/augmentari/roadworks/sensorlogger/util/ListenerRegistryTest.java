@@ -0,0 +1,118 @@
+package com.augmentari.roadworks.sensorlogger.util;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests for the copy-on-write {@link ListenerRegistry}.
+ */
+public class ListenerRegistryTest {
+
+    @Test
+    public void shouldAddAndRemoveListeners() {
+        ListenerRegistry<Object> registry = new ListenerRegistry<Object>();
+        Object first = new Object();
+        Object second = new Object();
+
+        Assert.assertTrue(registry.add(first));
+        Assert.assertFalse(registry.add(first));
+        Assert.assertTrue(registry.add(second));
+        Assert.assertEquals(2, registry.size());
+
+        ListenerRegistry.Entry<Object>[] before = registry.snapshot();
+        Assert.assertTrue(registry.remove(first));
+        Assert.assertFalse(registry.remove(first));
+
+        // snapshots taken earlier are not affected
+        Assert.assertEquals(2, before.length);
+        Assert.assertEquals(1, registry.size());
+        Assert.assertSame(second, registry.snapshot()[0].getListener());
+    }
+
+    @Test
+    public void shouldRecordTimings() {
+        ListenerRegistry<Object> registry = new ListenerRegistry<Object>();
+        registry.add(new Object());
+        ListenerRegistry.Entry<Object> entry = registry.snapshot()[0];
+
+        entry.recordTiming(10);
+        entry.recordTiming(30);
+
+        Assert.assertEquals(2, entry.getInvocations());
+        Assert.assertEquals(40, entry.getTotalNanos());
+        Assert.assertEquals(30, entry.getMaxNanos());
+    }
+
+    @Test
+    public void shouldSurviveConcurrentAddRemoveWhilePublishing() throws Exception {
+        final ListenerRegistry<CountingListener> registry = new ListenerRegistry<CountingListener>();
+        final CountingListener permanent = new CountingListener();
+        registry.add(permanent);
+
+        final int publishCount = 2 * 1000 * 1000;
+        final int churnThreads = 4;
+        final AtomicBoolean publishing = new AtomicBoolean(true);
+        final AtomicLong churnOperations = new AtomicLong();
+        final CountDownLatch started = new CountDownLatch(churnThreads);
+        final Throwable[] failure = new Throwable[1];
+
+        Thread[] churners = new Thread[churnThreads];
+        for (int t = 0; t < churnThreads; t++) {
+            churners[t] = new Thread() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    CountingListener[] own = new CountingListener[8];
+                    for (int i = 0; i < own.length; i++) {
+                        own[i] = new CountingListener();
+                    }
+                    int i = 0;
+                    while (publishing.get()) {
+                        CountingListener listener = own[i++ % own.length];
+                        registry.add(listener);
+                        registry.remove(listener);
+                        churnOperations.incrementAndGet();
+                    }
+                }
+            };
+            churners[t].start();
+        }
+        started.await();
+
+        try {
+            for (int i = 0; i < publishCount; i++) {
+                ListenerRegistry.Entry<CountingListener>[] snapshot = registry.snapshot();
+                for (int j = 0; j < snapshot.length; j++) {
+                    long start = System.nanoTime();
+                    snapshot[j].getListener().onEvent();
+                    snapshot[j].recordTiming(System.nanoTime() - start);
+                }
+            }
+        } catch (Throwable e) {
+            failure[0] = e;
+        } finally {
+            publishing.set(false);
+            for (Thread churner : churners) {
+                churner.join();
+            }
+        }
+
+        Assert.assertNull(String.valueOf(failure[0]), failure[0]);
+        Assert.assertTrue(churnOperations.get() > 0);
+        Assert.assertEquals(publishCount, permanent.count);
+        Assert.assertEquals(1, registry.size());
+        Assert.assertEquals(publishCount, registry.snapshot()[0].getInvocations());
+    }
+
+    private static class CountingListener {
+        long count = 0;
+
+        void onEvent() {
+            count++;
+        }
+    }
+}